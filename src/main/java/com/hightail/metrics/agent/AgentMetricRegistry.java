@@ -0,0 +1,48 @@
+package com.hightail.metrics.agent;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * A {@link MetricRegistry} whose {@link #timer(String)} hands out {@link AgentTimer}s, so that code written against
+ * the plain registry API gets the agent's lock-free timers without changes.
+ *
+ * Timers registered explicitly through {@link #register(String, Metric)} are kept as they are.
+ */
+public class AgentMetricRegistry extends MetricRegistry {
+
+    private final boolean keepSnapshots;
+
+    public AgentMetricRegistry() {
+        this(false);
+    }
+
+    /**
+     * @param keepSnapshots back every {@link AgentTimer} with a regular {@link Timer}, for other reporters that read
+     *                      rates and percentiles from the same registry
+     */
+    public AgentMetricRegistry(boolean keepSnapshots) {
+        this.keepSnapshots = keepSnapshots;
+    }
+
+    @Override
+    public Timer timer(String name) {
+        Metric metric = getMetrics().get(name);
+        if (metric instanceof Timer) {
+            return (Timer) metric;
+        }
+        if (metric == null) {
+            try {
+                return register(name, new AgentTimer(keepSnapshots ? new Timer() : null));
+            } catch (IllegalArgumentException iaex) {
+                // registered by another thread in the meantime
+                metric = getMetrics().get(name);
+                if (metric instanceof Timer) {
+                    return (Timer) metric;
+                }
+            }
+        }
+        throw new IllegalArgumentException(name + " is already used for a different type of metric");
+    }
+}
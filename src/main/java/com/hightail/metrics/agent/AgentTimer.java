@@ -0,0 +1,246 @@
+package com.hightail.metrics.agent;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link Timer} meant for the New Relic agent, whose timing path takes no locks.
+ *
+ * Durations are added to striped cells picked by the recording thread's id, so concurrent threads rarely touch the
+ * same cache line. A timer that recorded anything since it was last flushed puts itself on its reporter's queue once,
+ * so {@link NewRelicAgentReporter} only visits the timers that were actually used instead of polling every registered
+ * timer with 15 agent calls.
+ *
+ * Without a delegate, the plain {@link Timer} view only carries the count: other reporters reading this timer see no
+ * rates and an empty snapshot. Pass a delegate to keep those, at the cost of its reservoir's locking.
+ *
+ * <pre>
+ * MetricRegistry registry = new AgentMetricRegistry();
+ * Timer.Context context = registry.timer("scan.file").time();
+ * </pre>
+ */
+public class AgentTimer extends Timer {
+
+    /**
+     * How {@link NewRelicAgentReporter} hands an interval of an {@link AgentTimer} to the agent.
+     */
+    public enum FlushMode {
+        /** count, mean, min and max as custom metrics */
+        AGGREGATED,
+        /** the mean as a response time metric plus a counter of calls */
+        RESPONSE_TIME
+    }
+
+    // one cell per stripe, padded to 64 bytes so that stripes do not share a cache line
+    private static final int STRIDE = 8;
+    private static final int COUNT = 0;
+    private static final int TOTAL = 1;
+    private static final int MIN = 2;
+    private static final int MAX = 3;
+
+    private static final Snapshot EMPTY_SNAPSHOT = new Snapshot(new long[0]);
+
+    private final Timer delegate;
+    private final int mask;
+    private final AtomicLongArray cells;
+    private final AtomicBoolean queued = new AtomicBoolean(false);
+
+    private volatile Queue<AgentTimer> activeQueue;
+    private volatile String name;
+
+    // only touched by the flushing reporter
+    private long flushedCount;
+    private long flushedTotal;
+
+    public AgentTimer() {
+        this(null);
+    }
+
+    /**
+     * @param delegate a timer that is updated as well and that backs the plain {@link Timer} view, or null
+     */
+    public AgentTimer(Timer delegate) {
+        this.delegate = delegate;
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() * 2) {
+            stripes <<= 1;
+        }
+        this.mask = stripes - 1;
+        this.cells = new AtomicLongArray(stripes * STRIDE);
+        for (int i = 0; i < stripes; i++) {
+            cells.set(i * STRIDE + MIN, Long.MAX_VALUE);
+            cells.set(i * STRIDE + MAX, Long.MIN_VALUE);
+        }
+    }
+
+    @Override
+    public void update(long duration, TimeUnit unit) {
+        long nanos = unit.toNanos(duration);
+        if (nanos < 0) {
+            return;
+        }
+
+        int cell = ((int) Thread.currentThread().getId() & mask) * STRIDE;
+        cells.incrementAndGet(cell + COUNT);
+        cells.addAndGet(cell + TOTAL, nanos);
+        long min;
+        while (nanos < (min = cells.get(cell + MIN)) && !cells.compareAndSet(cell + MIN, min, nanos)) {
+        }
+        long max;
+        while (nanos > (max = cells.get(cell + MAX)) && !cells.compareAndSet(cell + MAX, max, nanos)) {
+        }
+
+        if (delegate != null) {
+            delegate.update(duration, unit);
+        }
+
+        Queue<AgentTimer> queue = activeQueue;
+        if (queue != null && !queued.get() && queued.compareAndSet(false, true)) {
+            queue.offer(this);
+        }
+    }
+
+    @Override
+    public <T> T time(Callable<T> event) throws Exception {
+        long startTime = System.nanoTime();
+        try {
+            return event.call();
+        } finally {
+            update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < cells.length(); i += STRIDE) {
+            count += cells.get(i + COUNT);
+        }
+        return count;
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+        return (delegate != null) ? delegate.getFifteenMinuteRate() : 0;
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+        return (delegate != null) ? delegate.getFiveMinuteRate() : 0;
+    }
+
+    @Override
+    public double getMeanRate() {
+        return (delegate != null) ? delegate.getMeanRate() : 0;
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+        return (delegate != null) ? delegate.getOneMinuteRate() : 0;
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        return (delegate != null) ? delegate.getSnapshot() : EMPTY_SNAPSHOT;
+    }
+
+    /**
+     * @return the name this timer is reported under, or null while no reporter has picked it up
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Makes the timer announce itself on the given queue whenever it records after a flush.
+     */
+    void attach(String name, Queue<AgentTimer> activeQueue) {
+        this.name = name;
+        this.activeQueue = activeQueue;
+        if (getCount() > flushedCount && queued.compareAndSet(false, true)) {
+            activeQueue.offer(this);
+        }
+    }
+
+    void detach(Queue<AgentTimer> activeQueue) {
+        if (this.activeQueue == activeQueue) {
+            this.activeQueue = null;
+        }
+    }
+
+    /**
+     * Returns what was recorded since the previous call and re-arms the timer, or null if nothing was. Only one
+     * thread may flush a timer.
+     */
+    public Interval flush() {
+        queued.set(false);
+
+        long count = 0;
+        long total = 0;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < cells.length(); i += STRIDE) {
+            count += cells.get(i + COUNT);
+            total += cells.get(i + TOTAL);
+            min = Math.min(min, cells.getAndSet(i + MIN, Long.MAX_VALUE));
+            max = Math.max(max, cells.getAndSet(i + MAX, Long.MIN_VALUE));
+        }
+
+        // count and total only grow, so an update racing with this flush is picked up by the next one
+        long intervalCount = count - flushedCount;
+        long intervalTotal = total - flushedTotal;
+        flushedCount = count;
+        flushedTotal = total;
+        if (intervalCount <= 0) {
+            return null;
+        }
+        if (min > max) {
+            // the interval's updates had counted but not yet set their extremes
+            min = max = intervalTotal / intervalCount;
+        }
+        return new Interval(intervalCount, intervalTotal, min, max);
+    }
+
+    /**
+     * What an {@link AgentTimer} recorded between two flushes, in nanoseconds.
+     */
+    public static final class Interval {
+        private final long count;
+        private final long totalNanos;
+        private final long minNanos;
+        private final long maxNanos;
+
+        Interval(long count, long totalNanos, long minNanos, long maxNanos) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.minNanos = minNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMinNanos() {
+            return minNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public double getMeanNanos() {
+            return (double) totalNanos / count;
+        }
+    }
+}
@@ -4,17 +4,35 @@ import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
+import com.hightail.metrics.exemplar.Exemplar;
+import com.hightail.metrics.exemplar.ExemplarTimer;
+import com.hightail.metrics.gauge.AsyncGauge;
+import com.hightail.metrics.publish.MetricBatchPublisher;
+import com.hightail.metrics.reporter.LoadSheddingPolicy;
+import com.hightail.metrics.reporter.MetricIndex;
+import com.hightail.metrics.reporter.NameNormalizer;
 import com.hightail.metrics.reporter.NewRelicReporter;
+import com.hightail.metrics.reporter.ReporterEvents;
+import com.hightail.metrics.reporter.ReporterOptions;
+import com.hightail.metrics.reporter.ReportingTier;
+import com.hightail.metrics.sink.TimeSeriesSink;
+import com.newrelic.api.agent.Insights;
 import com.newrelic.api.agent.NewRelic;
 import org.apache.log4j.Logger;
 
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -26,13 +44,48 @@ import java.util.concurrent.TimeUnit;
  *
  * To keep the number of custom metrics under control, provide appropriate implementations of {@link MetricFilter} and
  * {@link MetricAttributeFilter}.
+ *
+ * {@link AgentTimer}s, e.g. from an {@link AgentMetricRegistry}, are not polled: only the ones that recorded since
+ * the previous tick are flushed, with 4 custom metrics ({@link AgentTimer.FlushMode#AGGREGATED}) or a response time
+ * metric and a call counter ({@link AgentTimer.FlushMode#RESPONSE_TIME}). They are flushed on every tick, whatever
+ * {@link ReportingTier} they would fall into.
+ *
+ * The slowest calls kept by an {@link ExemplarTimer} go out as {@value #EXEMPLAR_EVENT_TYPE} custom events carrying
+ * the metric name, rank, duration and the caller's label.
  */
 public final class NewRelicAgentReporter extends NewRelicReporter {
 
     private static final Logger logger = Logger.getLogger(NewRelicAgentReporter.class);
 
+    public static final String EXEMPLAR_EVENT_TYPE = "TimerExemplar";
+
 
     private final String metricNamePrefix;
+    private final AgentTimer.FlushMode agentTimerFlushMode;
+    private final MetricRegistry registry;
+    private final MetricFilter filter;
+
+    // agent timers that recorded since they were last flushed
+    private final Queue<AgentTimer> activeAgentTimers = new ConcurrentLinkedQueue<AgentTimer>();
+    private final Map<String, AgentTimer> agentTimers = new ConcurrentHashMap<String, AgentTimer>();
+
+    private final MetricRegistryListener agentTimerListener = new MetricRegistryListener.Base() {
+        @Override
+        public void onTimerAdded(String name, Timer timer) {
+            if (timer instanceof AgentTimer && filter.matches(name, timer)) {
+                agentTimers.put(name, (AgentTimer) timer);
+                ((AgentTimer) timer).attach(name, activeAgentTimers);
+            }
+        }
+
+        @Override
+        public void onTimerRemoved(String name) {
+            AgentTimer timer = agentTimers.remove(name);
+            if (timer != null) {
+                timer.detach(activeAgentTimers);
+            }
+        }
+    };
 
     /**
      * @param registry         metric registry to get metrics from
@@ -47,8 +100,55 @@ public final class NewRelicAgentReporter extends NewRelicReporter {
      */
     public NewRelicAgentReporter(MetricRegistry registry, String name, MetricFilter filter,
                                  TimeUnit rateUnit, TimeUnit durationUnit, String metricNamePrefix) {
-        super(registry, name, filter, rateUnit, durationUnit);
+        this(registry, name, filter, rateUnit, durationUnit, metricNamePrefix, new ReporterOptions());
+    }
+
+    /**
+     * @param registry          metric registry to get metrics from
+     * @param name              reporter name
+     * @param filter            metric filter
+     * @param rateUnit          unit for reporting rates
+     * @param durationUnit      unit for reporting durations
+     * @param metricNamePrefix  metricNamePrefix before the metric name used when naming New Relic metrics.
+     * @param options           the optional behaviour of this reporter
+     * @see NewRelicReporter#NewRelicReporter(MetricRegistry, String, MetricFilter, TimeUnit, TimeUnit, ReporterOptions)
+     */
+    public NewRelicAgentReporter(MetricRegistry registry, String name, MetricFilter filter,
+                                 TimeUnit rateUnit, TimeUnit durationUnit, String metricNamePrefix,
+                                 ReporterOptions options) {
+        this(registry, name, filter, rateUnit, durationUnit, metricNamePrefix, options,
+                AgentTimer.FlushMode.AGGREGATED);
+    }
+
+    /**
+     * @param registry              metric registry to get metrics from
+     * @param name                  reporter name
+     * @param filter                metric filter
+     * @param rateUnit              unit for reporting rates
+     * @param durationUnit          unit for reporting durations
+     * @param metricNamePrefix      metricNamePrefix before the metric name used when naming New Relic metrics.
+     * @param options               the optional behaviour of this reporter
+     * @param agentTimerFlushMode   how {@link AgentTimer}s are handed to the agent
+     */
+    public NewRelicAgentReporter(MetricRegistry registry, String name, MetricFilter filter,
+                                 TimeUnit rateUnit, TimeUnit durationUnit, String metricNamePrefix,
+                                 ReporterOptions options, AgentTimer.FlushMode agentTimerFlushMode) {
+        super(registry, name, excludeAgentTimers(filter), rateUnit, durationUnit, options);
         this.metricNamePrefix = metricNamePrefix;
+        this.agentTimerFlushMode = agentTimerFlushMode;
+        this.registry = registry;
+        this.filter = filter;
+        registry.addListener(agentTimerListener);
+    }
+
+    // agent timers are flushed from activeAgentTimers rather than polled through the index
+    private static MetricFilter excludeAgentTimers(final MetricFilter filter) {
+        return new MetricFilter() {
+            @Override
+            public boolean matches(String name, Metric metric) {
+                return !(metric instanceof AgentTimer) && filter.matches(name, metric);
+            }
+        };
     }
 
 
@@ -68,6 +168,8 @@ public final class NewRelicAgentReporter extends NewRelicReporter {
         private TimeUnit rateUnit;
         private TimeUnit durationUnit;
         private MetricFilter filter;
+        private final ReporterOptions options;
+        private AgentTimer.FlushMode agentTimerFlushMode;
 
         private Builder(MetricRegistry registry) {
             this.registry = registry;
@@ -75,6 +177,8 @@ public final class NewRelicAgentReporter extends NewRelicReporter {
             this.rateUnit = TimeUnit.SECONDS;
             this.durationUnit = TimeUnit.MILLISECONDS;
             this.filter = MetricFilter.ALL;
+            this.options = new ReporterOptions();
+            this.agentTimerFlushMode = AgentTimer.FlushMode.AGGREGATED;
         }
 
         /**
@@ -121,6 +225,111 @@ public final class NewRelicAgentReporter extends NewRelicReporter {
             return this;
         }
 
+        /**
+         * Evaluate gauges on virtual threads instead of the reporter thread. Ignored on JVMs without virtual threads.
+         *
+         * @param useVirtualThreads whether to use virtual threads
+         * @return {@code this}
+         */
+        public Builder useVirtualThreads(boolean useVirtualThreads) {
+            options.useVirtualThreads(useVirtualThreads);
+            return this;
+        }
+
+        /**
+         * Refresh gauges in the background at the given interval and report their latest value, so that slow gauges
+         * do not hold up the reporter. Gauges registered as {@link AsyncGauge}s keep their own interval.
+         *
+         * @param period the refresh interval, 0 to evaluate gauges on every tick
+         * @param unit   the unit of {@code period}
+         * @return {@code this}
+         */
+        public Builder refreshGaugesAsynchronously(long period, TimeUnit unit) {
+            options.refreshGaugesAsynchronously(period, unit);
+            return this;
+        }
+
+        /**
+         * Report the metrics matching the given filter at their own period instead of the one passed to
+         * {@code start}. A metric belongs to the first tier that matches it.
+         *
+         * @param tier a {@link ReportingTier}
+         * @return {@code this}
+         */
+        public Builder tier(ReportingTier tier) {
+            options.addTier(tier);
+            return this;
+        }
+
+        /**
+         * Also keep the reported values in the given sink, for looking at recent metrics locally.
+         *
+         * @param timeSeriesSink a {@link TimeSeriesSink} not fed by any other reporter
+         * @return {@code this}
+         */
+        public Builder timeSeriesSink(TimeSeriesSink timeSeriesSink) {
+            options.timeSeriesSink(timeSeriesSink);
+            return this;
+        }
+
+        /**
+         * Shed low priority metrics first while the reporter is under pressure.
+         *
+         * @param loadSheddingPolicy a {@link LoadSheddingPolicy} not used by any other reporter
+         * @return {@code this}
+         */
+        public Builder loadShedding(LoadSheddingPolicy loadSheddingPolicy) {
+            options.loadShedding(loadSheddingPolicy);
+            return this;
+        }
+
+        /**
+         * Collapse the ID segments of metric names, such as customer or file IDs, reporting the counters, meters,
+         * timers and histograms that share a template as one.
+         *
+         * @param nameNormalizer a {@link NameNormalizer} not used by any other reporter
+         * @return {@code this}
+         */
+        public Builder collapseNames(NameNormalizer nameNormalizer) {
+            options.nameNormalizer(nameNormalizer);
+            return this;
+        }
+
+        /**
+         * Also hand every reporting pass to the given publisher's subscribers, reading the registry once for both.
+         * The publisher is fed what this reporter reports and must not be started itself.
+         *
+         * @param batchPublisher a {@link MetricBatchPublisher} not fed by any other reporter
+         * @return {@code this}
+         */
+        public Builder publishTo(MetricBatchPublisher batchPublisher) {
+            options.publishTo(batchPublisher);
+            return this;
+        }
+
+        /**
+         * Record cycles, collection and slow gauges as Java Flight Recorder events. Off by default, and ignored on
+         * JVMs without JFR.
+         *
+         * @param recordFlightEvents whether to record events
+         * @return {@code this}
+         */
+        public Builder recordFlightEvents(boolean recordFlightEvents) {
+            options.recordFlightEvents(recordFlightEvents);
+            return this;
+        }
+
+        /**
+         * Choose how {@link AgentTimer}s are handed to the agent.
+         *
+         * @param agentTimerFlushMode an {@link AgentTimer.FlushMode}
+         * @return {@code this}
+         */
+        public Builder flushAgentTimersAs(AgentTimer.FlushMode agentTimerFlushMode) {
+            this.agentTimerFlushMode = agentTimerFlushMode;
+            return this;
+        }
+
         /**
          * Builds a {@link NewRelicHTTPv1Reporter} with the given properties, sending definedMetrics using the
          * given {@link com.hightail.metrics.rest.NewRelic} client.
@@ -134,52 +343,123 @@ public final class NewRelicAgentReporter extends NewRelicReporter {
                     "new-relic-agent-reporter",
                     filter,
                     rateUnit,
-                    durationUnit, metricNamePrefix);
+                    durationUnit, metricNamePrefix,
+                    options,
+                    agentTimerFlushMode);
         }
     }
 
     @Override
-    public void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters,
-                       SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters, SortedMap<String, Timer> timers) {
+    public void report(MetricIndex.Group<Gauge> gauges, MetricIndex.Group<Counter> counters,
+                       MetricIndex.Group<Histogram> histograms, MetricIndex.Group<Meter> meters,
+                       MetricIndex.Group<Timer> timers) {
 
+        ReporterEvents events = getEvents();
         try {
-            for (Map.Entry<String, Gauge> gaugeEntry : gauges.entrySet()) {
-                doGauge(gaugeEntry.getKey(), gaugeEntry.getValue());
+            Object collection = events.beginCollection();
+            Object[] gaugeValues = isUsingVirtualThreads() ? evaluateGauges(gauges) : null;
+            for (int i = 0; i < gauges.size(); i++) {
+                String name = gauges.name(i);
+                Gauge gauge = gauges.metric(i);
+                if (gauge instanceof AsyncGauge) {
+                    doAsyncGauge(name, (AsyncGauge) gauge);
+                } else {
+                    doGauge(name, (gaugeValues != null) ? gaugeValues[i] : getGaugeValue(name, gauge));
+                }
             }
+            events.endCollection(collection, "gauges", gauges.size());
 
-            for (Map.Entry<String, Counter> counterEntry : counters.entrySet()) {
-                String name = counterEntry.getKey();
-                Counter counter = counterEntry.getValue();
+            collection = events.beginCollection();
+            for (int i = 0; i < counters.size(); i++) {
+                String name = counters.name(i);
+                Counter counter = counters.metric(i);
                 record(name + "/count", counter.getCount());
             }
+            events.endCollection(collection, "counters", counters.size());
 
-            for (Map.Entry<String, Histogram> histogramEntry : histograms.entrySet()) {
-                String name = histogramEntry.getKey();
-                Snapshot snapshot = histogramEntry.getValue().getSnapshot();
+            collection = events.beginCollection();
+            for (int i = 0; i < histograms.size(); i++) {
+                String name = histograms.name(i);
+                Histogram metric = histograms.metric(i);
+                Snapshot snapshot = metric.getSnapshot();
 
-                Histogram metric = histogramEntry.getValue();
                 doHistogramSnapshot(name, snapshot, metric);
             }
+            events.endCollection(collection, "histograms", histograms.size());
 
-            for (Map.Entry<String, Meter> meterEntry : meters.entrySet()) {
-                String name = meterEntry.getKey();
-                Meter meter = meterEntry.getValue();
+            collection = events.beginCollection();
+            for (int i = 0; i < meters.size(); i++) {
+                String name = meters.name(i);
+                Meter meter = meters.metric(i);
                 doMetered(name, meter);
             }
+            events.endCollection(collection, "meters", meters.size());
 
-            for (Map.Entry<String, Timer> timerEntry : timers.entrySet()) {
-                Timer timer = timerEntry.getValue();
-                String name = timerEntry.getKey();
+            collection = events.beginCollection();
+            for (int i = 0; i < timers.size(); i++) {
+                Timer timer = timers.metric(i);
+                String name = timers.name(i);
                 Snapshot snapshot = timer.getSnapshot();
 
                 doTimerMetered(timer, name);
                 doTimerSnapshot(timer, name, snapshot);
+                if (timer instanceof ExemplarTimer) {
+                    doExemplars(name, (ExemplarTimer) timer);
+                }
             }
+            events.endCollection(collection, "timers", timers.size());
+
+            collection = events.beginCollection();
+            int flushed = flushAgentTimers();
+            events.endCollection(collection, "agent timers", flushed);
         }catch(Exception ex) {
             logger.error("Could not push metrics to NewRelic via Agent: ", ex);
         }
     }
 
+    // returns how many timers were flushed
+    private int flushAgentTimers() {
+        int flushed = 0;
+        // bounded by what is queued now, timers recording meanwhile come back on the next tick
+        for (int i = activeAgentTimers.size(); i > 0; i--) {
+            AgentTimer timer = activeAgentTimers.poll();
+            if (timer == null) {
+                break;
+            }
+            AgentTimer.Interval interval = timer.flush();
+            if (interval != null && timer.getName() != null) {
+                doAgentTimer(timer.getName(), interval);
+                flushed++;
+            }
+        }
+        return flushed;
+    }
+
+    private void doAgentTimer(String name, AgentTimer.Interval interval) {
+        if (agentTimerFlushMode == AgentTimer.FlushMode.RESPONSE_TIME) {
+            long meanMillis = TimeUnit.NANOSECONDS.toMillis(Math.round(interval.getMeanNanos()));
+            NewRelic.recordResponseTimeMetric(metricNamePrefix + "/" + name, meanMillis);
+            NewRelic.incrementCounter(metricNamePrefix + "/" + name + "/count",
+                    (int) Math.min(Integer.MAX_VALUE, interval.getCount()));
+            return;
+        }
+
+        String nameSuffix = "/" + getDurationUnit();
+        record(name + "/count", interval.getCount());
+        record(name + "/mean" + nameSuffix, (float) convertDuration(interval.getMeanNanos()));
+        record(name + "/min" + nameSuffix, (float) convertDuration(interval.getMinNanos()));
+        record(name + "/max" + nameSuffix, (float) convertDuration(interval.getMaxNanos()));
+    }
+
+    @Override
+    public void stop() {
+        registry.removeListener(agentTimerListener);
+        for (AgentTimer timer : agentTimers.values()) {
+            timer.detach(activeAgentTimers);
+        }
+        super.stop();
+    }
+
     private void doMetered(String name, Meter meter) {
         record(name + "/count", meter.getCount());
         record(name + "/meanRate/" + getRateUnit(), (float) convertRate(meter.getMeanRate()));
@@ -224,9 +504,35 @@ public final class NewRelicAgentReporter extends NewRelicReporter {
         record(name + "/99.9th" + nameSuffix, (float) convertDuration(snapshot.get999thPercentile()));
     }
 
-    private void doGauge(String name, Gauge gauge) {
-        Object gaugeValue = gauge.getValue();
+    /**
+     * Sends the slowest call as a metric and every kept call, label included, as a custom event. Custom parameters
+     * would need a transaction, which the reporter thread does not have.
+     */
+    private void doExemplars(String name, ExemplarTimer timer) {
+        List<Exemplar> exemplars = timer.drainExemplars();
+        if (exemplars.isEmpty()) {
+            return;
+        }
+        record(name + "/slowest/" + getDurationUnit(), (float) convertDuration(exemplars.get(0).getDurationNanos()));
+
+        Insights insights = NewRelic.getAgent().getInsights();
+        for (int rank = 0; rank < exemplars.size(); rank++) {
+            Exemplar exemplar = exemplars.get(rank);
+            Map<String, Object> attributes = new HashMap<String, Object>();
+            attributes.put("metric", metricNamePrefix + "/" + name);
+            attributes.put("rank", rank + 1);
+            attributes.put("duration", convertDuration(exemplar.getDurationNanos()));
+            attributes.put("durationUnit", getDurationUnit());
+            attributes.put("thread", exemplar.getThreadName());
+            attributes.put("recordedAt", exemplar.getTimestamp());
+            if (exemplar.getLabel() != null) {
+                attributes.put("label", exemplar.getLabel());
+            }
+            insights.recordCustomEvent(EXEMPLAR_EVENT_TYPE, attributes);
+        }
+    }
 
+    private void doGauge(String name, Object gaugeValue) {
         if (gaugeValue instanceof Number) {
             float n = ((Number) gaugeValue).floatValue();
             if (!Float.isNaN(n) && !Float.isInfinite(n)) {
@@ -235,8 +541,30 @@ public final class NewRelicAgentReporter extends NewRelicReporter {
         }
     }
 
+    private void doAsyncGauge(String name, AsyncGauge gauge) {
+        float n = (float) gauge.getDoubleValue();
+        if (!Float.isNaN(n) && !Float.isInfinite(n)) {
+            record(name+"/gauge", n);
+        }
+    }
+
     private void record(String name, float value) {
-        logger.info("Reporting metric: "+metricNamePrefix+"/"+name+" : "+value);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Reporting metric: "+metricNamePrefix+"/"+name+" : "+value);
+        }
         NewRelic.recordMetric(metricNamePrefix+"/" + name, value);
+
+        TimeSeriesSink sink = getTimeSeriesSink();
+        if (sink != null) {
+            sink.record(metricNamePrefix + "/" + name, value);
+        }
+    }
+
+    @Override
+    protected void onMetricRemoved(String name) {
+        TimeSeriesSink sink = getTimeSeriesSink();
+        if (sink != null) {
+            sink.releaseAll(metricNamePrefix + "/" + name + "/");
+        }
     }
 }
@@ -1,6 +1,7 @@
 package com.hightail.metrics.constants;
 
 import com.codahale.metrics.MetricFilter;
+import com.hightail.metrics.agent.AgentTimer;
 
 import java.util.concurrent.TimeUnit;
 
@@ -11,13 +12,20 @@ public class NewRelicConstants {
 
     //Default values
     public static final String DEFAULT_URL = "http://platform-api.newrelic.com/platform/v1/metrics";
+    public static final String DEFAULT_METRIC_API_URL = "https://metric-api.newrelic.com/metric/v1";
     public static final int DEFAULT_AGENT_PID = 1;
     public static final String DEFAULT_AGENT_VERSION = "1.0.0";
     public static final String DEFAULT_AGENT_HOST = "localhost";
+    public static final int DEFAULT_DURATION = 60;
     public static final TimeUnit DEFAULT_RATE_UNIT = TimeUnit.SECONDS;
     public static final TimeUnit DEFAULT_DURATION_UNIT = TimeUnit.MILLISECONDS;
     public static final MetricFilter DEFAULT_METRIC_FILTER = MetricFilter.ALL;
     public static final String DEFAULT_PREFIX = null;
+    public static final boolean DEFAULT_USE_VIRTUAL_THREADS = false;
+    public static final long DEFAULT_GAUGE_REFRESH_INTERVAL_MILLIS = 0;
+    public static final boolean DEFAULT_RECORD_FLIGHT_EVENTS = false;
+    public static final boolean DEFAULT_COALESCE_REQUESTS = false;
+    public static final AgentTimer.FlushMode DEFAULT_AGENT_TIMER_FLUSH_MODE = AgentTimer.FlushMode.AGGREGATED;
 
     //These can be used for defining Property Keys
     public static final String LICENSE_KEY = "LICENSE_KEY";
@@ -29,5 +37,45 @@ public class NewRelicConstants {
     public static final String RATE_UNIT = "RATE_UNIT";
     public static final String DURATION_UNIT = "DURATION_UNIT";
     public static final String METRIC_FILTER = "METRIC_FILTER";
+    public static final String USE_VIRTUAL_THREADS = "USE_VIRTUAL_THREADS";
+    public static final String GAUGE_REFRESH_INTERVAL_MILLIS = "GAUGE_REFRESH_INTERVAL_MILLIS";
+    public static final String AGENT_TIMER_FLUSH_MODE = "AGENT_TIMER_FLUSH_MODE";
+    public static final String TIME_SERIES_SINK = "TIME_SERIES_SINK";
+    public static final String BATCH_PUBLISHER = "BATCH_PUBLISHER";
+    public static final String RECORD_FLIGHT_EVENTS = "RECORD_FLIGHT_EVENTS";
+    public static final String COALESCE_REQUESTS = "COALESCE_REQUESTS";
+
+    //Dimensional reporter: the Metric API endpoint, a Map<String, String> of extra common attributes and the
+    //percentiles to send as gauges, as quantiles (comma separated, or a double[] / Collection<Number>)
+    public static final String METRIC_API_URL = "METRIC_API_URL";
+    public static final String SERVICE_NAME = "SERVICE_NAME";
+    public static final String COMMON_ATTRIBUTES = "COMMON_ATTRIBUTES";
+    public static final String PERCENTILES = "PERCENTILES";
+
+    //Reporting tiers: a Collection<ReportingTier>, or a comma separated list of tier names, each configured by
+    //REPORTING_TIER.<name>.INTERVAL_SECONDS plus the pattern lists below prefixed with REPORTING_TIER.<name>.
+    public static final String REPORTING_TIERS = "REPORTING_TIERS";
+    public static final String REPORTING_TIER_PREFIX = "REPORTING_TIER.";
+    public static final String INTERVAL_SECONDS = "INTERVAL_SECONDS";
+
+    //Load shedding: a LoadSheddingPolicy, or thresholds below. Priorities are given per MetricPriority name by
+    //METRIC_PRIORITY.<HIGH|LOW>.METRIC_FILTER and/or the pattern lists below prefixed with METRIC_PRIORITY.<HIGH|LOW>.
+    public static final String LOAD_SHEDDING_POLICY = "LOAD_SHEDDING_POLICY";
+    public static final String SHED_MAX_CYCLE_MILLIS = "SHED_MAX_CYCLE_MILLIS";
+    public static final String SHED_MAX_HEAP_USAGE_PERCENT = "SHED_MAX_HEAP_USAGE_PERCENT";
+    public static final String SHED_DOWNSAMPLE_FACTOR = "SHED_DOWNSAMPLE_FACTOR";
+    public static final String METRIC_PRIORITY_PREFIX = "METRIC_PRIORITY.";
+
+    //Name normalization: a NameNormalizer, or the number of distinct ID segments after which a name segment is
+    //collapsed into a template
+    public static final String NAME_NORMALIZER = "NAME_NORMALIZER";
+    public static final String COLLAPSE_SEGMENTS_AFTER = "COLLAPSE_SEGMENTS_AFTER";
+
+    //Pattern lists compiled into a CompiledMetricFilter: a String[] / Collection<String>, or a string holding comma
+    //separated globs or one regex per line
+    public static final String METRIC_INCLUDE_GLOBS = "METRIC_INCLUDE_GLOBS";
+    public static final String METRIC_EXCLUDE_GLOBS = "METRIC_EXCLUDE_GLOBS";
+    public static final String METRIC_INCLUDE_REGEXES = "METRIC_INCLUDE_REGEXES";
+    public static final String METRIC_EXCLUDE_REGEXES = "METRIC_EXCLUDE_REGEXES";
 
 }
@@ -5,5 +5,5 @@ package com.hightail.metrics.constants;
  */
 public enum ReporterType {
 
-    AGENT, HTTPv1;
+    AGENT, HTTPv1, DIMENSIONAL;
 }
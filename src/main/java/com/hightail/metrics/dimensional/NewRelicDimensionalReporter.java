@@ -0,0 +1,567 @@
+package com.hightail.metrics.dimensional;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.google.gson.stream.JsonWriter;
+import com.hightail.metrics.constants.NewRelicConstants;
+import com.hightail.metrics.gauge.AsyncGauge;
+import com.hightail.metrics.publish.MetricBatchPublisher;
+import com.hightail.metrics.reporter.LoadSheddingPolicy;
+import com.hightail.metrics.reporter.MetricIndex;
+import com.hightail.metrics.reporter.NameNormalizer;
+import com.hightail.metrics.reporter.NewRelicReporter;
+import com.hightail.metrics.reporter.ReporterOptions;
+import com.hightail.metrics.reporter.ReportingTier;
+import com.hightail.metrics.rest.MetricsTransport;
+import com.hightail.metrics.rest.NewRelic;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reports to the New Relic Metric API as dimensional metrics instead of HTTPv1's flat per-host metric names.
+ *
+ * Host, service and prefix are sent once per payload as common attributes, so metric names stay the registry names.
+ * Gauges and counters become gauge metrics, since a counter can go down, which a count metric cannot express. Meters
+ * become count metrics of the increase since the previous report, and timers and histograms one summary each (count,
+ * sum, min and max) where HTTPv1 sends 15 or 10 series. Percentiles are only sent when asked for, as gauges named
+ * {@code <name>.percentiles} with a {@code percentile} attribute. Payloads are gzip-compressed JSON.
+ *
+ * The first report after a meter, timer or histogram appears only takes its count as the baseline and sends no count
+ * or summary for it, so a metric registered long before the reporter started does not show up as one spike.
+ *
+ * The summary of a timer or histogram counts exactly what was recorded since the previous report. Its sum is that
+ * count times the reservoir's mean, and min and max are taken from the reservoir, so they cover the reservoir's
+ * window rather than the exact interval; summaries therefore carry a {@code summary.approximate} attribute.
+ *
+ * Count and summary metrics carry the start of their interval as their timestamp, and its length as
+ * {@code interval.ms}. Gauges carry the time of the report.
+ */
+public class NewRelicDimensionalReporter extends NewRelicReporter {
+
+    private static final Logger logger = Logger.getLogger(NewRelicDimensionalReporter.class);
+
+    private static final int MAX_METRICS_PER_REQUEST = 1000;
+
+    private final NewRelic newRelic;
+    private final MetricsTransport transport;
+    private final Map<String, String> commonAttributes;
+    private final double[] percentiles;
+
+    // count and time of the previous report by registry name, only touched from the reporter thread
+    private final Map<String, long[]> previousCounts = new HashMap<String, long[]>();
+    // names removed from the registry since the last tick, whose counts are forgotten
+    private final Queue<String> removedNames = new ConcurrentLinkedQueue<String>();
+
+    // request being filled during the current tick, which holds every tier due on it
+    private ByteArrayOutputStream buffer;
+    private JsonWriter writer;
+    private int metricCount;
+    private final List<Future<Void>> pendingDeliveries = new ArrayList<Future<Void>>();
+
+    /**
+     * @param newRelic         the Metric API endpoint and license key; the component name is the default service
+     * @param registry         metric registry to get metrics from
+     * @param metricNamePrefix sent as the {@code prefix} attribute, may be null
+     * @param filter           metric filter
+     * @param rateUnit         unit of rates, which this reporter does not send
+     * @param durationUnit     unit of the timers' summaries and percentiles
+     * @param options          the optional behaviour of this reporter
+     * @param transport        sends the compressed requests
+     * @param attributes       extra attributes common to all metrics
+     * @param percentiles      quantiles between 0 and 1 to send as gauges, may be empty
+     */
+    protected NewRelicDimensionalReporter(NewRelic newRelic, MetricRegistry registry, String metricNamePrefix,
+                                          MetricFilter filter, TimeUnit rateUnit, TimeUnit durationUnit,
+                                          ReporterOptions options, MetricsTransport transport,
+                                          Map<String, String> attributes, double[] percentiles) {
+        super(registry, "new-relic-dimensional-reporter", filter, rateUnit, durationUnit, options);
+        this.newRelic = newRelic;
+        this.transport = transport;
+
+        String hostname;
+        try {
+            hostname = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException uhex) {
+            logger.warn("This can be ignored: Agent hostId Error: ", uhex);
+            hostname = NewRelicConstants.DEFAULT_AGENT_HOST;
+        }
+
+        Map<String, String> common = new LinkedHashMap<String, String>();
+        common.put("host.name", hostname);
+        if (StringUtils.isNotBlank(newRelic.getComponentName())) {
+            common.put("service.name", newRelic.getComponentName());
+        }
+        if (StringUtils.isNotBlank(metricNamePrefix)) {
+            common.put("prefix", metricNamePrefix);
+        }
+        common.put("duration.unit", getDurationUnit());
+        common.putAll(attributes);
+        this.commonAttributes = common;
+
+        this.percentiles = percentiles.clone();
+        for (int i = 0; i < percentiles.length; i++) {
+            if (percentiles[i] < 0 || percentiles[i] > 1) {
+                throw new IllegalArgumentException("Percentiles are given as quantiles between 0 and 1, not "
+                        + percentiles[i]);
+            }
+        }
+
+        logger.info("NewRelicDimensionalReporter initialized..");
+    }
+
+    /**
+     * Returns a new {@link Builder} for {@link NewRelicDimensionalReporter}.
+     *
+     * @param registry the registry to report
+     * @return a {@link Builder} instance for a {@link NewRelicDimensionalReporter}
+     */
+    public static Builder forRegistry(MetricRegistry registry) {
+        return new Builder(registry);
+    }
+
+    public static class Builder {
+        private final MetricRegistry registry;
+        private String metricNamePrefix;
+        private TimeUnit rateUnit;
+        private TimeUnit durationUnit;
+        private MetricFilter filter;
+        private final ReporterOptions options;
+        private MetricsTransport transport;
+        private final Map<String, String> attributes;
+        private double[] percentiles;
+
+        private Builder(MetricRegistry registry) {
+            this.registry = registry;
+            this.metricNamePrefix = null;
+            this.rateUnit = TimeUnit.SECONDS;
+            this.durationUnit = TimeUnit.MILLISECONDS;
+            this.filter = MetricFilter.ALL;
+            this.options = new ReporterOptions();
+            this.transport = new MetricApiTransport();
+            this.attributes = new LinkedHashMap<String, String>();
+            this.percentiles = new double[0];
+        }
+
+        /**
+         * Send the given prefix as the {@code prefix} attribute of all metrics.
+         *
+         * @param prefix the metricNamePrefix for all metric names
+         * @return {@code this}
+         */
+        public Builder prefixedWith(String prefix) {
+            this.metricNamePrefix = prefix;
+            return this;
+        }
+
+        /**
+         * Convert rates to the given time unit.
+         *
+         * @param rateUnit a unit of time
+         * @return {@code this}
+         */
+        public Builder convertRatesTo(TimeUnit rateUnit) {
+            this.rateUnit = rateUnit;
+            return this;
+        }
+
+        /**
+         * Convert durations to the given time unit.
+         *
+         * @param durationUnit a unit of time
+         * @return {@code this}
+         */
+        public Builder convertDurationsTo(TimeUnit durationUnit) {
+            this.durationUnit = durationUnit;
+            return this;
+        }
+
+        /**
+         * Only report metrics which match the given filter.
+         *
+         * @param filter a {@link MetricFilter}
+         * @return {@code this}
+         */
+        public Builder filter(MetricFilter filter) {
+            this.filter = filter;
+            return this;
+        }
+
+        /**
+         * Evaluate gauges and deliver payloads on virtual threads instead of the reporter thread. Ignored on JVMs
+         * without virtual threads.
+         *
+         * @param useVirtualThreads whether to use virtual threads
+         * @return {@code this}
+         */
+        public Builder useVirtualThreads(boolean useVirtualThreads) {
+            options.useVirtualThreads(useVirtualThreads);
+            return this;
+        }
+
+        /**
+         * Refresh gauges in the background at the given interval and report their latest value.
+         *
+         * @param period the refresh interval, 0 to evaluate gauges on every tick
+         * @param unit   the unit of {@code period}
+         * @return {@code this}
+         */
+        public Builder refreshGaugesAsynchronously(long period, TimeUnit unit) {
+            options.refreshGaugesAsynchronously(period, unit);
+            return this;
+        }
+
+        /**
+         * Report the metrics matching the given filter at their own period.
+         *
+         * @param tier a {@link ReportingTier}
+         * @return {@code this}
+         */
+        public Builder tier(ReportingTier tier) {
+            options.addTier(tier);
+            return this;
+        }
+
+        /**
+         * Shed low priority metrics first while the reporter is under pressure.
+         *
+         * @param loadSheddingPolicy a {@link LoadSheddingPolicy} not used by any other reporter
+         * @return {@code this}
+         */
+        public Builder loadShedding(LoadSheddingPolicy loadSheddingPolicy) {
+            options.loadShedding(loadSheddingPolicy);
+            return this;
+        }
+
+        /**
+         * Collapse the ID segments of metric names, such as customer or file IDs, reporting the counters, meters,
+         * timers and histograms that share a template as one.
+         *
+         * @param nameNormalizer a {@link NameNormalizer} not used by any other reporter
+         * @return {@code this}
+         */
+        public Builder collapseNames(NameNormalizer nameNormalizer) {
+            options.nameNormalizer(nameNormalizer);
+            return this;
+        }
+
+        /**
+         * Also hand every reporting pass to the given publisher's subscribers, reading the registry once for both.
+         * The publisher is fed what this reporter reports and must not be started itself.
+         *
+         * @param batchPublisher a {@link MetricBatchPublisher} not fed by any other reporter
+         * @return {@code this}
+         */
+        public Builder publishTo(MetricBatchPublisher batchPublisher) {
+            options.publishTo(batchPublisher);
+            return this;
+        }
+
+        /**
+         * Record cycles and slow gauges as Java Flight Recorder events. Off by default, and ignored on JVMs without
+         * JFR.
+         *
+         * @param recordFlightEvents whether to record events
+         * @return {@code this}
+         */
+        public Builder recordFlightEvents(boolean recordFlightEvents) {
+            options.recordFlightEvents(recordFlightEvents);
+            return this;
+        }
+
+        /**
+         * Add an attribute common to all metrics, e.g. the environment.
+         *
+         * @param name  the attribute's name
+         * @param value the attribute's value
+         * @return {@code this}
+         */
+        public Builder commonAttribute(String name, String value) {
+            attributes.put(name, value);
+            return this;
+        }
+
+        /**
+         * Also send the given percentiles of timers and histograms as gauges. None are sent by default.
+         *
+         * @param quantiles quantiles between 0 and 1, e.g. 0.5, 0.99
+         * @return {@code this}
+         */
+        public Builder percentiles(double... quantiles) {
+            this.percentiles = quantiles.clone();
+            return this;
+        }
+
+        /**
+         * Send requests through the given transport instead of POSTing them to the Metric API directly.
+         *
+         * @param transport a {@link MetricsTransport}
+         * @return {@code this}
+         */
+        public Builder withTransport(MetricsTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * Builds a {@link NewRelicDimensionalReporter} sending to the Metric API endpoint of the given
+         * {@link NewRelic}, whose component name becomes the {@code service.name} attribute.
+         *
+         * @param newRelic a {@link NewRelic} client
+         * @return a {@link NewRelicDimensionalReporter}
+         */
+        public NewRelicDimensionalReporter build(NewRelic newRelic) {
+            return new NewRelicDimensionalReporter(newRelic,
+                    registry,
+                    metricNamePrefix,
+                    filter,
+                    rateUnit,
+                    durationUnit,
+                    options,
+                    transport,
+                    attributes,
+                    percentiles
+            );
+        }
+    }
+
+    @Override
+    public void report(MetricIndex.Group<Gauge> gauges,
+                       MetricIndex.Group<Counter> counters,
+                       MetricIndex.Group<Histogram> histograms,
+                       MetricIndex.Group<Meter> meters,
+                       MetricIndex.Group<Timer> timers) {
+
+        for (String removed = removedNames.poll(); removed != null; removed = removedNames.poll()) {
+            previousCounts.remove(removed);
+        }
+
+        long now = System.currentTimeMillis();
+        try {
+            Object[] gaugeValues = isUsingVirtualThreads() ? evaluateGauges(gauges) : null;
+            for (int i = 0; i < gauges.size(); i++) {
+                Gauge gauge = gauges.metric(i);
+                if (gauge instanceof AsyncGauge) {
+                    doGauge(gauges.name(i), ((AsyncGauge) gauge).getDoubleValue(), now);
+                } else {
+                    Object value = (gaugeValues != null) ? gaugeValues[i] : getGaugeValue(gauges.name(i), gauge);
+                    if (value instanceof Number) {
+                        doGauge(gauges.name(i), ((Number) value).doubleValue(), now);
+                    }
+                }
+            }
+
+            for (int i = 0; i < counters.size(); i++) {
+                doGauge(counters.name(i), counters.metric(i).getCount(), now);
+            }
+
+            for (int i = 0; i < meters.size(); i++) {
+                doCount(meters.name(i), meters.metric(i), now);
+            }
+
+            for (int i = 0; i < histograms.size(); i++) {
+                Histogram histogram = histograms.metric(i);
+                doSummary(histograms.name(i), histogram, histogram.getSnapshot(), false, now);
+            }
+
+            for (int i = 0; i < timers.size(); i++) {
+                Timer timer = timers.metric(i);
+                doSummary(timers.name(i), timer, timer.getSnapshot(), true, now);
+            }
+        } catch (Exception ex) {
+            logger.error("Could not push metrics to the New Relic Metric API : ", ex);
+            // the request may have been left in the middle of a metric
+            buffer = null;
+            writer = null;
+        }
+    }
+
+    /**
+     * Sends the request holding every tier reported on this tick, and waits until it is delivered.
+     */
+    @Override
+    protected void endTick() {
+        try {
+            flush();
+        } catch (Exception ex) {
+            logger.error("Could not push metrics to the New Relic Metric API : ", ex);
+        } finally {
+            for (int i = 0; i < pendingDeliveries.size(); i++) {
+                await(pendingDeliveries.get(i));
+            }
+            pendingDeliveries.clear();
+            buffer = null;
+            writer = null;
+        }
+    }
+
+    private void doGauge(String name, double value, long now) throws IOException {
+        if (!isFinite(value)) {
+            return;
+        }
+        JsonWriter out = begin(name, "gauge", now);
+        out.name("value").value(value);
+        out.endObject();
+        added();
+    }
+
+    private void doCount(String name, Meter meter, long now) throws IOException {
+        long count = meter.getCount();
+        long[] previous = previousCounts.get(name);
+        if (previous == null) {
+            previousCounts.put(name, new long[]{count, now});
+            return;
+        }
+        long delta = count - previous[0];
+        long startMillis = previous[1];
+        long intervalMillis = Math.max(1, now - startMillis);
+        previous[0] = count;
+        previous[1] = now;
+
+        JsonWriter out = begin(name, "count", now);
+        out.name("timestamp").value(startMillis);
+        out.name("value").value(delta);
+        out.name("interval.ms").value(intervalMillis);
+        out.endObject();
+        added();
+    }
+
+    private void doSummary(String name, Counting counting, Snapshot snapshot, boolean durations, long now)
+            throws IOException {
+        long count = counting.getCount();
+        long[] previous = previousCounts.get(name);
+        if (previous == null) {
+            previousCounts.put(name, new long[]{count, now});
+        } else {
+            long delta = count - previous[0];
+            long startMillis = previous[1];
+            long intervalMillis = Math.max(1, now - startMillis);
+            previous[0] = count;
+            previous[1] = now;
+            if (delta > 0) {
+                doSummary(name, snapshot, durations, delta, startMillis, intervalMillis, now);
+            }
+        }
+
+        if (percentiles.length > 0 && count > 0) {
+            for (int i = 0; i < percentiles.length; i++) {
+                double value = convert(snapshot.getValue(percentiles[i]), durations);
+                if (!isFinite(value)) {
+                    continue;
+                }
+                JsonWriter out = begin(name + ".percentiles", "gauge", now);
+                out.name("value").value(value);
+                out.name("attributes").beginObject().name("percentile").value(percentiles[i] * 100).endObject();
+                out.endObject();
+                added();
+            }
+        }
+    }
+
+    // sum, min and max come from the reservoir rather than the interval, which the attribute owns up to
+    private void doSummary(String name, Snapshot snapshot, boolean durations, long delta, long startMillis,
+                           long intervalMillis, long now) throws IOException {
+        double mean = convert(snapshot.getMean(), durations);
+        double min = convert(snapshot.getMin(), durations);
+        double max = convert(snapshot.getMax(), durations);
+        if (!isFinite(mean) || !isFinite(min) || !isFinite(max)) {
+            return;
+        }
+        JsonWriter out = begin(name, "summary", now);
+        out.name("timestamp").value(startMillis);
+        out.name("value").beginObject()
+                .name("count").value(delta)
+                .name("sum").value(mean * delta)
+                .name("min").value(min)
+                .name("max").value(max)
+                .endObject();
+        out.name("interval.ms").value(intervalMillis);
+        out.name("attributes").beginObject().name("summary.approximate").value(true).endObject();
+        out.endObject();
+        added();
+    }
+
+    private double convert(double value, boolean isDuration) {
+        return isDuration ? convertDuration(value) : value;
+    }
+
+    // opens a metric object in the current request, starting a new request if there is none
+    private JsonWriter begin(String name, String type, long now) throws IOException {
+        if (writer == null) {
+            buffer = new ByteArrayOutputStream(16 * 1024);
+            writer = new JsonWriter(new OutputStreamWriter(new GZIPOutputStream(buffer), "UTF-8"));
+            writer.beginArray().beginObject();
+            writer.name("common").beginObject();
+            writer.name("timestamp").value(now);
+            writer.name("attributes").beginObject();
+            for (Map.Entry<String, String> attribute : commonAttributes.entrySet()) {
+                writer.name(attribute.getKey()).value(attribute.getValue());
+            }
+            writer.endObject().endObject();
+            writer.name("metrics").beginArray();
+            metricCount = 0;
+        }
+        writer.beginObject();
+        writer.name("name").value(name);
+        writer.name("type").value(type);
+        return writer;
+    }
+
+    private void added() throws IOException {
+        if (++metricCount >= MAX_METRICS_PER_REQUEST) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        writer.endArray().endObject().endArray();
+        // closing the writer finishes the gzip stream
+        writer.close();
+        final byte[] payload = buffer.toByteArray();
+        writer = null;
+        buffer = null;
+
+        pendingDeliveries.add(submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                transport.send(newRelic, payload, payload.length);
+                return null;
+            }
+        }));
+    }
+
+    private static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    @Override
+    protected void onMetricRemoved(String name) {
+        removedNames.add(name);
+    }
+}
@@ -0,0 +1,54 @@
+package com.hightail.metrics.exemplar;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One slow call kept by an {@link ExemplarTimer}: how long it took, when it ended, on which thread, and the label its
+ * caller gave it, if any.
+ */
+public final class Exemplar {
+
+    private final long durationNanos;
+    private final String label;
+    private final String threadName;
+    private final long timestamp;
+
+    public Exemplar(long durationNanos, String label, String threadName, long timestamp) {
+        this.durationNanos = durationNanos;
+        this.label = label;
+        this.threadName = threadName;
+        this.timestamp = timestamp;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public double getDuration(TimeUnit unit) {
+        return durationNanos / (double) unit.toNanos(1);
+    }
+
+    /**
+     * @return the label passed by the caller, or null
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    /**
+     * @return when the call was recorded, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return TimeUnit.NANOSECONDS.toMillis(durationNanos) + " ms" + ((label != null) ? " " + label : "")
+                + " on " + threadName;
+    }
+}
@@ -0,0 +1,264 @@
+package com.hightail.metrics.exemplar;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@link Timer} that also keeps the slowest calls of every reporting interval as {@link Exemplar}s, so that a bad
+ * p99.9 can be traced back to the calls behind it. Callers may label a call, e.g. with a request id:
+ *
+ * <pre>
+ * ExemplarTimer timer = registry.register("api.latency", new ExemplarTimer(5));
+ * ExemplarTimer.Context context = timer.time(requestId);
+ * ...
+ * context.stop();
+ * </pre>
+ *
+ * The slowest calls are kept in a fixed number of slots replaced by compare-and-set. A call no slower than the
+ * fastest one kept costs a single volatile read once the slots are full, so only calls that make it into the top
+ * allocate. Every other statistic comes from the wrapped timer.
+ *
+ * {@link com.hightail.metrics.rest.NewRelicHTTPv1Reporter} and
+ * {@link com.hightail.metrics.agent.NewRelicAgentReporter} take the exemplars out on every report, so a timer should
+ * be reported by one of them only.
+ */
+public class ExemplarTimer extends Timer {
+
+    public static final int DEFAULT_SIZE = 5;
+
+    private static final Comparator<Exemplar> SLOWEST_FIRST = new Comparator<Exemplar>() {
+        @Override
+        public int compare(Exemplar a, Exemplar b) {
+            return (a.getDurationNanos() < b.getDurationNanos()) ? 1
+                    : (a.getDurationNanos() > b.getDurationNanos()) ? -1 : 0;
+        }
+    };
+
+    private final Timer delegate;
+    private final int size;
+    private final AtomicReference<Window> window;
+
+    public ExemplarTimer() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * @param size how many of the slowest calls to keep per interval
+     */
+    public ExemplarTimer(int size) {
+        this(new Timer(), size);
+    }
+
+    /**
+     * @param delegate the timer all calls are recorded in, which backs every statistic of this timer
+     * @param size     how many of the slowest calls to keep per interval
+     */
+    public ExemplarTimer(Timer delegate, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("An exemplar timer has to keep at least 1 call");
+        }
+        this.delegate = delegate;
+        this.size = size;
+        this.window = new AtomicReference<Window>(new Window(size));
+    }
+
+    /**
+     * @return how many of the slowest calls are kept per interval
+     */
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public void update(long duration, TimeUnit unit) {
+        update(duration, unit, null);
+    }
+
+    /**
+     * Records a call under the given label.
+     *
+     * @param label identifies the call in case it is among the slowest, may be null
+     */
+    public void update(long duration, TimeUnit unit, String label) {
+        delegate.update(duration, unit);
+        long nanos = unit.toNanos(duration);
+        if (nanos >= 0) {
+            window.get().offer(nanos, label);
+        }
+    }
+
+    /**
+     * Starts timing a call under the given label.
+     *
+     * @param label identifies the call in case it is among the slowest, may be null
+     */
+    public Context time(String label) {
+        return new Context(this, label);
+    }
+
+    @Override
+    public <T> T time(Callable<T> event) throws Exception {
+        return time(event, null);
+    }
+
+    /**
+     * Times and runs the given event under the given label.
+     */
+    public <T> T time(Callable<T> event, String label) throws Exception {
+        long startTime = System.nanoTime();
+        try {
+            return event.call();
+        } finally {
+            update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS, label);
+        }
+    }
+
+    /**
+     * Returns the slowest calls since the previous call, slowest first, and starts a new interval. A call recorded
+     * while the interval is switched may be missed.
+     */
+    public List<Exemplar> drainExemplars() {
+        Window drained = window.getAndSet(new Window(size));
+        List<Exemplar> exemplars = new ArrayList<Exemplar>(size);
+        for (int i = 0; i < size; i++) {
+            Exemplar exemplar = drained.slots.get(i);
+            if (exemplar != null) {
+                exemplars.add(exemplar);
+            }
+        }
+        Collections.sort(exemplars, SLOWEST_FIRST);
+        return exemplars;
+    }
+
+    @Override
+    public long getCount() {
+        return delegate.getCount();
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+        return delegate.getFifteenMinuteRate();
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+        return delegate.getFiveMinuteRate();
+    }
+
+    @Override
+    public double getMeanRate() {
+        return delegate.getMeanRate();
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+        return delegate.getOneMinuteRate();
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        return delegate.getSnapshot();
+    }
+
+    /**
+     * Times one labelled call, see {@link ExemplarTimer#time(String)}.
+     */
+    public static final class Context implements Closeable {
+        private final ExemplarTimer timer;
+        private final String label;
+        private final long startTime;
+
+        private Context(ExemplarTimer timer, String label) {
+            this.timer = timer;
+            this.label = label;
+            this.startTime = System.nanoTime();
+        }
+
+        /**
+         * Records the time elapsed since the context was created.
+         *
+         * @return the elapsed time in nanoseconds
+         */
+        public long stop() {
+            long elapsed = System.nanoTime() - startTime;
+            timer.update(elapsed, TimeUnit.NANOSECONDS, label);
+            return elapsed;
+        }
+
+        @Override
+        public void close() {
+            stop();
+        }
+    }
+
+    /**
+     * The slowest calls of one interval.
+     */
+    private static final class Window {
+        private final AtomicReferenceArray<Exemplar> slots;
+        // no call at or below this makes it in; only ever lags behind the true minimum, which merely costs a scan
+        private volatile long threshold = -1;
+
+        Window(int size) {
+            this.slots = new AtomicReferenceArray<Exemplar>(size);
+        }
+
+        void offer(long nanos, String label) {
+            if (nanos <= threshold) {
+                return;
+            }
+
+            Exemplar exemplar = null;
+            for (int attempt = 0; attempt < slots.length(); attempt++) {
+                int fastest = -1;
+                Exemplar fastestExemplar = null;
+                for (int i = 0; i < slots.length(); i++) {
+                    Exemplar current = slots.get(i);
+                    if (current == null) {
+                        fastest = i;
+                        fastestExemplar = null;
+                        break;
+                    }
+                    if (fastestExemplar == null || current.getDurationNanos() < fastestExemplar.getDurationNanos()) {
+                        fastest = i;
+                        fastestExemplar = current;
+                    }
+                }
+                if (fastestExemplar != null && fastestExemplar.getDurationNanos() >= nanos) {
+                    return;
+                }
+
+                if (exemplar == null) {
+                    exemplar = new Exemplar(nanos, label, Thread.currentThread().getName(), System.currentTimeMillis());
+                }
+                if (slots.compareAndSet(fastest, fastestExemplar, exemplar)) {
+                    updateThreshold();
+                    return;
+                }
+            }
+        }
+
+        // slots only ever get slower within a window, so the minimum seen here is a safe lower bound
+        private void updateThreshold() {
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < slots.length(); i++) {
+                Exemplar current = slots.get(i);
+                if (current == null) {
+                    return;
+                }
+                min = Math.min(min, current.getDurationNanos());
+            }
+            threshold = min;
+        }
+    }
+}
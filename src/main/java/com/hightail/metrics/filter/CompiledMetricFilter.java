@@ -0,0 +1,193 @@
+package com.hightail.metrics.filter;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link MetricFilter} built from glob and regex include/exclude lists.
+ *
+ * A metric is reported when it matches at least one include pattern (or no include pattern is given) and no exclude
+ * pattern. The patterns are compiled once into {@link NamePatterns}, and the decision for every metric name is cached,
+ * so after the first tick filtering costs one hash lookup per metric. Register the filter with
+ * {@link com.codahale.metrics.MetricRegistry#addListener(MetricRegistryListener)} so that decisions are computed as
+ * metrics are registered and dropped as they are removed; otherwise the cache grows with every name ever matched.
+ * A {@link com.hightail.metrics.reporter.NewRelicReporter} does so itself for the filters it is built with, for as
+ * long as it runs.
+ *
+ * An optional delegate filter is applied on top of the patterns. Its result is not cached because it may depend on
+ * the metric itself.
+ */
+public class CompiledMetricFilter implements MetricFilter, MetricRegistryListener {
+
+    private final NamePatterns includes;
+    private final NamePatterns excludes;
+    private final MetricFilter delegate;
+    private final ConcurrentMap<String, Boolean> decisions = new ConcurrentHashMap<String, Boolean>();
+
+    private CompiledMetricFilter(NamePatterns includes, NamePatterns excludes, MetricFilter delegate) {
+        this.includes = includes;
+        this.excludes = excludes;
+        this.delegate = delegate;
+    }
+
+    /**
+     * Returns a new {@link Builder} for {@link CompiledMetricFilter}.
+     *
+     * @return a {@link Builder} instance for a {@link CompiledMetricFilter}
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private final List<String> includeGlobs = new ArrayList<String>();
+        private final List<String> includeRegexes = new ArrayList<String>();
+        private final List<String> excludeGlobs = new ArrayList<String>();
+        private final List<String> excludeRegexes = new ArrayList<String>();
+        private MetricFilter delegate;
+
+        private Builder() {
+            this.delegate = MetricFilter.ALL;
+        }
+
+        public Builder includeGlob(String glob) {
+            includeGlobs.add(glob);
+            return this;
+        }
+
+        public Builder includeRegex(String regex) {
+            includeRegexes.add(regex);
+            return this;
+        }
+
+        public Builder excludeGlob(String glob) {
+            excludeGlobs.add(glob);
+            return this;
+        }
+
+        public Builder excludeRegex(String regex) {
+            excludeRegexes.add(regex);
+            return this;
+        }
+
+        /**
+         * Also require the given filter to match.
+         *
+         * @param delegate a {@link MetricFilter}
+         * @return {@code this}
+         */
+        public Builder and(MetricFilter delegate) {
+            this.delegate = delegate;
+            return this;
+        }
+
+        /**
+         * @return a {@link CompiledMetricFilter}
+         * @throws java.util.regex.PatternSyntaxException if one of the regexes is invalid
+         */
+        public CompiledMetricFilter build() {
+            return new CompiledMetricFilter(
+                    new NamePatterns(includeGlobs, includeRegexes),
+                    new NamePatterns(excludeGlobs, excludeRegexes),
+                    delegate);
+        }
+    }
+
+    @Override
+    public boolean matches(String name, Metric metric) {
+        return decide(name) && delegate.matches(name, metric);
+    }
+
+    /**
+     * @return the cached decision for the given name based on the include/exclude patterns alone
+     */
+    public boolean decide(String name) {
+        Boolean decision = decisions.get(name);
+        if (decision == null) {
+            decision = compute(name);
+            decisions.put(name, decision);
+        }
+        return decision;
+    }
+
+    /**
+     * @return how many metric names a decision is cached for
+     */
+    public int getDecisionCount() {
+        return decisions.size();
+    }
+
+    private Boolean compute(String name) {
+        boolean included = includes.isEmpty() || includes.matches(name);
+        return included && !excludes.matches(name);
+    }
+
+    private void added(String name) {
+        decide(name);
+    }
+
+    private void removed(String name) {
+        decisions.remove(name);
+    }
+
+    @Override
+    public void onGaugeAdded(String name, Gauge<?> gauge) {
+        added(name);
+    }
+
+    @Override
+    public void onGaugeRemoved(String name) {
+        removed(name);
+    }
+
+    @Override
+    public void onCounterAdded(String name, Counter counter) {
+        added(name);
+    }
+
+    @Override
+    public void onCounterRemoved(String name) {
+        removed(name);
+    }
+
+    @Override
+    public void onHistogramAdded(String name, Histogram histogram) {
+        added(name);
+    }
+
+    @Override
+    public void onHistogramRemoved(String name) {
+        removed(name);
+    }
+
+    @Override
+    public void onMeterAdded(String name, Meter meter) {
+        added(name);
+    }
+
+    @Override
+    public void onMeterRemoved(String name) {
+        removed(name);
+    }
+
+    @Override
+    public void onTimerAdded(String name, Timer timer) {
+        added(name);
+    }
+
+    @Override
+    public void onTimerRemoved(String name) {
+        removed(name);
+    }
+}
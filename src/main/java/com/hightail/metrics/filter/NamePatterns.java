@@ -0,0 +1,196 @@
+package com.hightail.metrics.filter;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A set of glob and regex patterns compiled into a single matcher.
+ *
+ * Globs without wildcards become exact names and globs whose only wildcard is a trailing {@code *} go into a prefix
+ * trie, which covers the common "everything under com.hightail.scan" case without a regex. All remaining globs and
+ * regexes are merged into one alternation, so a name is run through at most one {@link Pattern}. The exceptions are
+ * regexes with backreferences or named groups: merging renumbers groups and may repeat group names, so those are
+ * compiled on their own.
+ *
+ * In globs {@code *} matches any run of characters (dots included) and {@code ?} matches a single character. Regexes
+ * must match the whole metric name.
+ */
+public final class NamePatterns {
+
+    private final Set<String> exactNames = new HashSet<String>();
+    private final PrefixTrie prefixes = new PrefixTrie();
+    private final Pattern pattern;
+    private final List<Pattern> separatePatterns = new ArrayList<Pattern>();
+    private final boolean empty;
+
+    public NamePatterns(List<String> globs, List<String> regexes) {
+        List<String> alternatives = new ArrayList<String>();
+
+        for (String glob : globs) {
+            int firstWildcard = indexOfWildcard(glob);
+            if (firstWildcard < 0) {
+                exactNames.add(glob);
+            } else if (firstWildcard == glob.length() - 1 && glob.charAt(firstWildcard) == '*') {
+                prefixes.add(glob.substring(0, firstWildcard));
+            } else {
+                alternatives.add(globToRegex(glob));
+            }
+        }
+        for (String regex : regexes) {
+            if (refersToGroups(regex)) {
+                separatePatterns.add(Pattern.compile(regex));
+            } else {
+                alternatives.add(regex);
+            }
+        }
+
+        if (alternatives.isEmpty()) {
+            pattern = null;
+        } else {
+            StringBuilder combined = new StringBuilder();
+            for (String alternative : alternatives) {
+                if (combined.length() > 0) {
+                    combined.append('|');
+                }
+                combined.append("(?:").append(alternative).append(')');
+            }
+            pattern = Pattern.compile(combined.toString());
+        }
+
+        empty = globs.isEmpty() && regexes.isEmpty();
+    }
+
+    /**
+     * @return true if no pattern was given at all
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    public boolean matches(String name) {
+        return exactNames.contains(name)
+                || prefixes.matchesPrefixOf(name)
+                || (pattern != null && pattern.matcher(name).matches())
+                || matchesSeparately(name);
+    }
+
+    private boolean matchesSeparately(String name) {
+        for (int i = 0; i < separatePatterns.size(); i++) {
+            if (separatePatterns.get(i).matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // a backreference (\1, \k<name>) or a named group, i.e. "(?<" not starting a lookbehind
+    static boolean refersToGroups(String regex) {
+        for (int i = 0; i < regex.length() - 1; i++) {
+            char c = regex.charAt(i);
+            char next = regex.charAt(i + 1);
+            if (c == '\\') {
+                if ((next >= '1' && next <= '9') || next == 'k') {
+                    return true;
+                }
+                i++;
+            } else if (c == '(' && regex.startsWith("?<", i + 1) && i + 3 < regex.length()
+                    && regex.charAt(i + 3) != '=' && regex.charAt(i + 3) != '!') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOfWildcard(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Character trie answering "does any registered prefix start this name".
+     */
+    private static final class PrefixTrie {
+        private final Node root = new Node();
+
+        void add(String prefix) {
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.childFor(prefix.charAt(i), true);
+            }
+            node.terminal = true;
+        }
+
+        boolean matchesPrefixOf(String name) {
+            Node node = root;
+            for (int i = 0; ; i++) {
+                if (node.terminal) {
+                    return true;
+                }
+                if (i == name.length()) {
+                    return false;
+                }
+                node = node.childFor(name.charAt(i), false);
+                if (node == null) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private boolean terminal;
+
+        Node childFor(char c, boolean create) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            if (!create) {
+                return null;
+            }
+
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, keys.length);
+            System.arraycopy(children, 0, newChildren, 0, children.length);
+            Node child = new Node();
+            newKeys[keys.length] = c;
+            newChildren[children.length] = child;
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+    }
+}
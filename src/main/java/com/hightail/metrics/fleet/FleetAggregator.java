@@ -0,0 +1,278 @@
+package com.hightail.metrics.fleet;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.hightail.metrics.reporter.NewRelicReporter;
+import com.hightail.metrics.reporter.ReporterExecutors;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The central process of fleet-wide percentiles. Nodes running a {@link SketchExporter} POST the cumulative sketches
+ * of their {@link SketchReservoir}-backed timers and histograms; the aggregator works out what every node recorded
+ * since its previous message, merges that per metric across nodes and, once per window, publishes the merged sketch
+ * through a registry of its own. Any reporter can report that registry; with a
+ * {@link com.hightail.metrics.rest.NewRelicHTTPv1Reporter} the fleet's percentiles go out through the usual HTTPv1
+ * path:
+ *
+ * <pre>
+ * FleetAggregator aggregator = new FleetAggregator(new InetSocketAddress(9411));
+ * NewRelicHTTPv1Reporter reporter = NewRelicHTTPv1Reporter.forRegistry(aggregator.getRegistry())
+ *         .prefixedWith("CustomHTTPMetrics/billing-service")
+ *         .build(newRelic);
+ * aggregator.start(reporter, 1, TimeUnit.MINUTES);
+ * </pre>
+ *
+ * Nodes that stay silent for {@link #NODE_EXPIRY_WINDOWS} windows are forgotten.
+ */
+public class FleetAggregator {
+
+    private static final Logger logger = Logger.getLogger(FleetAggregator.class);
+
+    public static final int NODE_EXPIRY_WINDOWS = 10;
+
+    private final InetSocketAddress address;
+    private final MetricRegistry registry = new MetricRegistry();
+    private final Map<String, FleetMetric> metrics = new HashMap<String, FleetMetric>();
+
+    private HttpServer server;
+    private ScheduledExecutorService scheduler;
+    private long window;
+
+    /**
+     * @param address the address to accept sketches on, port 0 for any free port
+     */
+    public FleetAggregator(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * @return the registry holding the merged metrics, to be reported by any reporter
+     */
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Starts accepting sketches. Windows have to be closed by calling {@link #closeWindow()}.
+     */
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            return;
+        }
+        server = HttpServer.create(address, 0);
+        server.createContext(SketchProtocol.PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int status = 204;
+                try {
+                    if (!"POST".equals(exchange.getRequestMethod())) {
+                        status = 405;
+                    } else {
+                        ingest(exchange.getRequestBody());
+                    }
+                } catch (IOException ioex) {
+                    logger.warn("Rejected sketches from " + exchange.getRemoteAddress() + ": " + ioex.getMessage());
+                    status = 400;
+                } catch (RuntimeException rex) {
+                    logger.warn("Rejected malformed sketches from " + exchange.getRemoteAddress() + ": ", rex);
+                    status = 400;
+                } finally {
+                    exchange.sendResponseHeaders(status, -1);
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        logger.info("FleetAggregator accepting sketches on port " + getPort());
+    }
+
+    /**
+     * Starts accepting sketches and, every period, closes the window and has the given reporter report it. The
+     * reporter must report {@link #getRegistry()} and should not be started itself.
+     */
+    public synchronized void start(final NewRelicReporter reporter, long period, TimeUnit unit) throws IOException {
+        start();
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = ReporterExecutors.newDaemonScheduler("fleet-aggregator");
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    closeWindow();
+                    reporter.report();
+                } catch (RuntimeException rex) {
+                    logger.error("Could not report the fleet's metrics: ", rex);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * @return the port sketches are accepted on, once started
+     */
+    public synchronized int getPort() {
+        return (server != null) ? server.getAddress().getPort() : address.getPort();
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    /**
+     * Merges everything received since the previous call into one sketch per metric and publishes it through the
+     * registry.
+     */
+    public synchronized void closeWindow() {
+        window++;
+        for (FleetMetric metric : metrics.values()) {
+            metric.closeWindow(window);
+        }
+    }
+
+    /**
+     * Reads one message in the {@link SketchProtocol} format.
+     */
+    void ingest(InputStream body) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(body));
+        if (in.readInt() != SketchProtocol.MAGIC) {
+            throw new IOException("Not a sketch message");
+        }
+        byte version = in.readByte();
+        if (version != SketchProtocol.VERSION) {
+            throw new IOException("Unsupported sketch message version " + version);
+        }
+
+        String node = in.readUTF();
+        int count = in.readInt();
+        if (count < 0 || count > SketchProtocol.MAX_METRICS) {
+            throw new IOException("Invalid number of metrics: " + count);
+        }
+        List<String> names = new ArrayList<String>(count);
+        List<Byte> kinds = new ArrayList<Byte>(count);
+        List<SketchData> sketches = new ArrayList<SketchData>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(in.readUTF());
+            kinds.add(in.readByte());
+            long recorded = in.readLong();
+            SketchData sketch = SketchData.read(in);
+            if (sketch.getCount() != recorded) {
+                throw new IOException("Sketch of " + names.get(i) + " holds " + sketch.getCount()
+                        + " values instead of " + recorded);
+            }
+            sketches.add(sketch);
+        }
+
+        // only merge complete messages
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                FleetMetric metric = metric(names.get(i), kinds.get(i));
+                if (metric != null) {
+                    metric.receive(node, sketches.get(i), window);
+                }
+            }
+        }
+    }
+
+    private FleetMetric metric(String name, byte kind) {
+        FleetMetric metric = metrics.get(name);
+        if (metric == null) {
+            Metric registered;
+            if (kind == SketchProtocol.KIND_TIMER) {
+                registered = new FleetTimer();
+            } else if (kind == SketchProtocol.KIND_HISTOGRAM) {
+                registered = new FleetHistogram();
+            } else {
+                logger.warn("Ignoring sketch of " + name + " with unknown kind " + kind);
+                return null;
+            }
+            registry.register(name, registered);
+            metric = new FleetMetric(kind, registered);
+            metrics.put(name, metric);
+        } else if (metric.kind != kind) {
+            logger.warn("Ignoring sketch of " + name + " because nodes disagree on its type");
+            return null;
+        }
+        return metric;
+    }
+
+    /**
+     * The per-node state behind one merged metric. Guarded by the aggregator.
+     */
+    private static final class FleetMetric {
+        private final byte kind;
+        private final Metric registered;
+        private final Map<String, NodeState> nodes = new HashMap<String, NodeState>();
+        private final List<SketchData> pending = new ArrayList<SketchData>();
+
+        private FleetMetric(byte kind, Metric registered) {
+            this.kind = kind;
+            this.registered = registered;
+        }
+
+        void receive(String node, SketchData cumulative, long window) {
+            NodeState state = nodes.get(node);
+            if (state == null) {
+                state = new NodeState();
+                nodes.put(node, state);
+            }
+            SketchData delta = cumulative.since(state.cumulative);
+            state.cumulative = cumulative;
+            state.lastSeenWindow = window;
+
+            if (delta.getCount() > 0) {
+                pending.add(delta);
+                if (registered instanceof FleetTimer) {
+                    ((FleetTimer) registered).add(delta.getCount());
+                } else {
+                    ((FleetHistogram) registered).add(delta.getCount());
+                }
+            }
+        }
+
+        void closeWindow(long window) {
+            SketchData merged = SketchData.merge(pending);
+            pending.clear();
+            if (registered instanceof FleetTimer) {
+                ((FleetTimer) registered).window(merged);
+            } else {
+                ((FleetHistogram) registered).window(merged);
+            }
+
+            for (Iterator<NodeState> it = nodes.values().iterator(); it.hasNext(); ) {
+                if (window - it.next().lastSeenWindow > NODE_EXPIRY_WINDOWS) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static final class NodeState {
+        private SketchData cumulative = SketchData.EMPTY;
+        private long lastSeenWindow;
+    }
+}
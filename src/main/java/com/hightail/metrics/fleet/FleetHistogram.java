@@ -0,0 +1,38 @@
+package com.hightail.metrics.fleet;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Snapshot;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A histogram merged across the fleet by a {@link FleetAggregator}. Its snapshot covers the last closed window and
+ * its count everything the fleet recorded since the aggregator started.
+ */
+class FleetHistogram extends Histogram {
+
+    private final AtomicLong count = new AtomicLong();
+    private volatile Snapshot snapshot = new SketchSnapshot(SketchData.EMPTY);
+
+    FleetHistogram() {
+        super(new SketchReservoir());
+    }
+
+    void add(long recorded) {
+        count.addAndGet(recorded);
+    }
+
+    void window(SketchData window) {
+        snapshot = new SketchSnapshot(window);
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+}
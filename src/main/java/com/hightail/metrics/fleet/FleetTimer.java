@@ -0,0 +1,53 @@
+package com.hightail.metrics.fleet;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * A timer merged across the fleet by a {@link FleetAggregator}. Its snapshot covers the last closed window; count
+ * and rates cover everything the fleet recorded since the aggregator started.
+ */
+class FleetTimer extends Timer {
+
+    private final Meter meter = new Meter();
+    private volatile Snapshot snapshot = new SketchSnapshot(SketchData.EMPTY);
+
+    void add(long recorded) {
+        meter.mark(recorded);
+    }
+
+    void window(SketchData window) {
+        snapshot = new SketchSnapshot(window);
+    }
+
+    @Override
+    public long getCount() {
+        return meter.getCount();
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+        return meter.getFifteenMinuteRate();
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+        return meter.getFiveMinuteRate();
+    }
+
+    @Override
+    public double getMeanRate() {
+        return meter.getMeanRate();
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+        return meter.getOneMinuteRate();
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+}
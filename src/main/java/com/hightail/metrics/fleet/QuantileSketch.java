@@ -0,0 +1,92 @@
+package com.hightail.metrics.fleet;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A mergeable quantile sketch with logarithmic buckets, in the spirit of DDSketch.
+ *
+ * A positive value v falls in bucket {@code ceil(log(v) / log(gamma))}, where gamma is chosen so that every value in
+ * a bucket is within {@link #RELATIVE_ACCURACY} of the bucket's representative value. Values of 0 and below share a
+ * bucket of their own. Because all sketches use the same buckets, sketches recorded on different nodes merge exactly
+ * by adding up their counts, which is what makes fleet-wide percentiles possible where averaging per-node
+ * percentiles is not.
+ *
+ * Recording is lock-free. The sketch covers the whole range of long values in about 2200 buckets, so it takes about
+ * 18 KB regardless of how many values it holds.
+ */
+public class QuantileSketch {
+
+    public static final double RELATIVE_ACCURACY = 0.01;
+
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+
+    static final int BUCKETS = index(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    public void update(long value) {
+        buckets.incrementAndGet(index(value));
+        sum.addAndGet(value);
+        long current;
+        while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+        }
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+        }
+    }
+
+    /**
+     * @return how many values were recorded so far, without copying the buckets
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return a copy of everything recorded so far
+     */
+    public SketchData getData() {
+        long[] dense = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            dense[i] = buckets.get(i);
+        }
+        return SketchData.fromDense(dense, sum.get(), min.get(), max.get());
+    }
+
+    static int index(long value) {
+        if (value <= 0) {
+            return 0;
+        }
+        return 1 + (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+    }
+
+    // the value a bucket stands for, within RELATIVE_ACCURACY of everything in it
+    static long value(int index) {
+        if (index == 0) {
+            return 0;
+        }
+        return Math.round(2 * Math.pow(GAMMA, index - 1) / (GAMMA + 1));
+    }
+
+    static long lowerBound(int index) {
+        if (index <= 1) {
+            return index;
+        }
+        return (long) Math.floor(Math.pow(GAMMA, index - 2)) + 1;
+    }
+
+    static long upperBound(int index) {
+        if (index == 0) {
+            return 0;
+        }
+        return (long) Math.floor(Math.pow(GAMMA, index - 1));
+    }
+}
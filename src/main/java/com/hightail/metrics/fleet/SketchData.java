@@ -0,0 +1,237 @@
+package com.hightail.metrics.fleet;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * An immutable, sparse copy of a {@link QuantileSketch}: the non-empty buckets in index order plus the exact count,
+ * sum, min and max. This is what nodes send to the {@link FleetAggregator} and what it merges.
+ *
+ * Two sketches merge by adding up their bucket counts, so the quantiles of a merge are those of the union of the
+ * recorded values, within the sketch's relative accuracy.
+ */
+public final class SketchData {
+
+    public static final SketchData EMPTY = new SketchData(new int[0], new long[0], 0, 0, 0);
+
+    private final int[] indexes;
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long min;
+    private final long max;
+
+    SketchData(int[] indexes, long[] counts, long sum, long min, long max) {
+        this.indexes = indexes;
+        this.counts = counts;
+        long total = 0;
+        for (long bucketCount : counts) {
+            total += bucketCount;
+        }
+        this.count = total;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Compacts a dense array of bucket counts, as kept by {@link QuantileSketch}.
+     */
+    static SketchData fromDense(long[] dense, long sum, long min, long max) {
+        int buckets = 0;
+        for (long bucketCount : dense) {
+            if (bucketCount > 0) {
+                buckets++;
+            }
+        }
+        if (buckets == 0) {
+            return EMPTY;
+        }
+
+        int[] indexes = new int[buckets];
+        long[] counts = new long[buckets];
+        int b = 0;
+        for (int i = 0; i < dense.length; i++) {
+            if (dense[i] > 0) {
+                indexes[b] = i;
+                counts[b] = dense[i];
+                b++;
+            }
+        }
+        return new SketchData(indexes, counts, sum, min, max);
+    }
+
+    /**
+     * @return a sketch of the union of the values recorded in all the given sketches
+     */
+    public static SketchData merge(List<SketchData> sketches) {
+        long[] dense = new long[QuantileSketch.BUCKETS];
+        long sum = 0;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (SketchData sketch : sketches) {
+            if (sketch.count == 0) {
+                continue;
+            }
+            for (int b = 0; b < sketch.indexes.length; b++) {
+                dense[sketch.indexes[b]] += sketch.counts[b];
+            }
+            sum += sketch.sum;
+            min = Math.min(min, sketch.min);
+            max = Math.max(max, sketch.max);
+        }
+        return fromDense(dense, sum, min, max);
+    }
+
+    /**
+     * Returns what was recorded after {@code previous}, given that this sketch is a later, cumulative copy of the
+     * same recorder. If any bucket went down the recorder was restarted, and this sketch is returned as is.
+     */
+    public SketchData since(SketchData previous) {
+        if (previous.count == 0) {
+            return this;
+        }
+
+        long[] dense = new long[QuantileSketch.BUCKETS];
+        for (int b = 0; b < indexes.length; b++) {
+            dense[indexes[b]] = counts[b];
+        }
+        for (int b = 0; b < previous.indexes.length; b++) {
+            dense[previous.indexes[b]] -= previous.counts[b];
+            if (dense[previous.indexes[b]] < 0) {
+                return this;
+            }
+        }
+
+        // the exact extremes of the difference are unknown, so estimate them from its outermost buckets
+        int lowest = -1;
+        int highest = -1;
+        for (int i = 0; i < dense.length; i++) {
+            if (dense[i] > 0) {
+                if (lowest < 0) {
+                    lowest = i;
+                }
+                highest = i;
+            }
+        }
+        if (lowest < 0) {
+            return EMPTY;
+        }
+        long deltaMin = clamp(QuantileSketch.lowerBound(lowest), min, max);
+        long deltaMax = clamp(QuantileSketch.upperBound(highest), min, max);
+        return fromDense(dense, sum - previous.sum, deltaMin, deltaMax);
+    }
+
+    /**
+     * @param quantile a quantile between 0 and 1
+     * @return the value at the given quantile, within the sketch's relative accuracy, or 0 for an empty sketch
+     */
+    public double getValue(double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        if (quantile <= 0) {
+            return min;
+        }
+        if (quantile >= 1) {
+            return max;
+        }
+
+        double rank = quantile * (count - 1);
+        long seen = 0;
+        for (int b = 0; b < indexes.length; b++) {
+            seen += counts[b];
+            if (seen > rank) {
+                return clamp(QuantileSketch.value(indexes[b]), min, max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return the standard deviation, estimated from the buckets
+     */
+    public double getStdDev() {
+        if (count <= 1) {
+            return 0;
+        }
+        double mean = getMean();
+        double sumOfSquares = 0;
+        for (int b = 0; b < indexes.length; b++) {
+            double diff = clamp(QuantileSketch.value(indexes[b]), min, max) - mean;
+            sumOfSquares += diff * diff * counts[b];
+        }
+        return Math.sqrt(sumOfSquares / (count - 1));
+    }
+
+    public double getMean() {
+        return (count == 0) ? 0 : (double) sum / count;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMin() {
+        return min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @return one representative value per non-empty bucket, in ascending order
+     */
+    public long[] getBucketValues() {
+        long[] values = new long[indexes.length];
+        for (int b = 0; b < indexes.length; b++) {
+            values[b] = clamp(QuantileSketch.value(indexes[b]), min, max);
+        }
+        return values;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(sum);
+        out.writeLong(min);
+        out.writeLong(max);
+        out.writeInt(indexes.length);
+        for (int b = 0; b < indexes.length; b++) {
+            out.writeShort(indexes[b]);
+            out.writeLong(counts[b]);
+        }
+    }
+
+    public static SketchData read(DataInput in) throws IOException {
+        long sum = in.readLong();
+        long min = in.readLong();
+        long max = in.readLong();
+        int buckets = in.readInt();
+        if (buckets < 0 || buckets > QuantileSketch.BUCKETS) {
+            throw new IOException("Invalid number of sketch buckets: " + buckets);
+        }
+
+        int[] indexes = new int[buckets];
+        long[] counts = new long[buckets];
+        int previous = -1;
+        for (int b = 0; b < buckets; b++) {
+            indexes[b] = in.readUnsignedShort();
+            counts[b] = in.readLong();
+            if (indexes[b] <= previous || indexes[b] >= QuantileSketch.BUCKETS || counts[b] < 0) {
+                throw new IOException("Invalid sketch bucket " + indexes[b]);
+            }
+            previous = indexes[b];
+        }
+        return (buckets == 0) ? EMPTY : new SketchData(indexes, counts, sum, min, max);
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
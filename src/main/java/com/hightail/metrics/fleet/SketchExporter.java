@@ -0,0 +1,193 @@
+package com.hightail.metrics.fleet;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.hightail.metrics.reporter.MetricIndex;
+import com.hightail.metrics.reporter.NewRelicReporter;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The node side of fleet-wide percentiles: sends the cumulative sketches of all timers and histograms backed by a
+ * {@link SketchReservoir} to a {@link FleetAggregator}. Other metrics are left to the node's regular reporters.
+ *
+ * Each message carries everything recorded since the node started, so a lost message only delays data rather than
+ * dropping it.
+ */
+public class SketchExporter extends NewRelicReporter {
+
+    private static final Logger logger = Logger.getLogger(SketchExporter.class);
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    private final URL aggregatorUrl;
+    private final String nodeName;
+
+    /**
+     * @param registry      metric registry to get metrics from
+     * @param filter        metric filter
+     * @param aggregatorUrl the aggregator's base URL, e.g. http://aggregator:9411
+     * @param nodeName      identifies this node to the aggregator, must be unique in the fleet
+     */
+    public SketchExporter(MetricRegistry registry, MetricFilter filter, URL aggregatorUrl, String nodeName) {
+        super(registry, "sketch-exporter", filter, TimeUnit.SECONDS, TimeUnit.MILLISECONDS);
+        this.aggregatorUrl = aggregatorUrl;
+        this.nodeName = nodeName;
+    }
+
+    /**
+     * Returns a new {@link Builder} for {@link SketchExporter}.
+     *
+     * @param registry the registry to report
+     * @return a {@link Builder} instance for a {@link SketchExporter}
+     */
+    public static Builder forRegistry(MetricRegistry registry) {
+        return new Builder(registry);
+    }
+
+    public static class Builder {
+        private final MetricRegistry registry;
+        private MetricFilter filter;
+        private String nodeName;
+
+        private Builder(MetricRegistry registry) {
+            this.registry = registry;
+            this.filter = MetricFilter.ALL;
+            this.nodeName = ManagementFactory.getRuntimeMXBean().getName();
+        }
+
+        /**
+         * Only export metrics which match the given filter.
+         *
+         * @param filter a {@link MetricFilter}
+         * @return {@code this}
+         */
+        public Builder filter(MetricFilter filter) {
+            this.filter = filter;
+            return this;
+        }
+
+        /**
+         * Identify this node to the aggregator by the given name. Defaults to the JVM's pid@host.
+         *
+         * @param nodeName a name unique in the fleet
+         * @return {@code this}
+         */
+        public Builder nodeName(String nodeName) {
+            this.nodeName = nodeName;
+            return this;
+        }
+
+        /**
+         * Builds a {@link SketchExporter} sending to the aggregator at the given URL.
+         *
+         * @param aggregatorUrl the aggregator's base URL, e.g. http://aggregator:9411
+         * @return a {@link SketchExporter}
+         */
+        public SketchExporter build(String aggregatorUrl) throws IOException {
+            return new SketchExporter(registry, filter, new URL(aggregatorUrl), nodeName);
+        }
+    }
+
+    @Override
+    public void report(MetricIndex.Group<Gauge> gauges, MetricIndex.Group<Counter> counters,
+                       MetricIndex.Group<Histogram> histograms, MetricIndex.Group<Meter> meters,
+                       MetricIndex.Group<Timer> timers) {
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeInt(SketchProtocol.MAGIC);
+            out.writeByte(SketchProtocol.VERSION);
+            out.writeUTF(nodeName);
+
+            SketchData[] histogramSketches = sketches(histograms);
+            SketchData[] timerSketches = sketches(timers);
+            out.writeInt(count(histogramSketches) + count(timerSketches));
+            write(out, histograms, histogramSketches, SketchProtocol.KIND_HISTOGRAM);
+            write(out, timers, timerSketches, SketchProtocol.KIND_TIMER);
+            out.flush();
+
+            if (count(histogramSketches) + count(timerSketches) > 0) {
+                send(buffer.toByteArray());
+            }
+        } catch (IOException ioex) {
+            logger.error("Could not send sketches to " + aggregatorUrl + ": ", ioex);
+        }
+    }
+
+    private static SketchData[] sketches(MetricIndex.Group<? extends Sampling> group) {
+        SketchData[] sketches = new SketchData[group.size()];
+        for (int i = 0; i < group.size(); i++) {
+            Snapshot snapshot = group.metric(i).getSnapshot();
+            if (snapshot instanceof SketchSnapshot) {
+                sketches[i] = ((SketchSnapshot) snapshot).getData();
+            }
+        }
+        return sketches;
+    }
+
+    private static int count(SketchData[] sketches) {
+        int count = 0;
+        for (SketchData sketch : sketches) {
+            if (sketch != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void write(DataOutputStream out, MetricIndex.Group<?> group, SketchData[] sketches, byte kind)
+            throws IOException {
+        for (int i = 0; i < sketches.length; i++) {
+            if (sketches[i] != null) {
+                out.writeUTF(group.name(i));
+                out.writeByte(kind);
+                out.writeLong(sketches[i].getCount());
+                sketches[i].write(out);
+            }
+        }
+    }
+
+    private void send(byte[] payload) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(aggregatorUrl, SketchProtocol.PATH).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(payload.length);
+        connection.setRequestProperty("Content-Type", SketchProtocol.CONTENT_TYPE);
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(payload);
+        } finally {
+            out.close();
+        }
+
+        int responseCode = connection.getResponseCode();
+        InputStream in = (responseCode < 400) ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            in.close();
+        }
+        if (responseCode >= 400) {
+            throw new IOException("Aggregator rejected the sketches with HTTP " + responseCode);
+        }
+    }
+}
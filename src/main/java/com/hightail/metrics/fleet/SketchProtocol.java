@@ -0,0 +1,33 @@
+package com.hightail.metrics.fleet;
+
+/**
+ * The binary format nodes POST to a {@link FleetAggregator}, written with {@link java.io.DataOutputStream}:
+ *
+ * <pre>
+ * int    MAGIC
+ * byte   VERSION
+ * UTF    node name
+ * int    number of metrics, at most MAX_METRICS
+ * per metric:
+ *   UTF  metric name
+ *   byte KIND_HISTOGRAM or KIND_TIMER (timer values are in nanoseconds)
+ *   long count (number of recorded values, for a quick consistency check)
+ *   the metric's cumulative {@link SketchData}
+ * </pre>
+ */
+final class SketchProtocol {
+
+    static final int MAGIC = 0x534B4554;
+    static final byte VERSION = 1;
+
+    static final byte KIND_HISTOGRAM = 0;
+    static final byte KIND_TIMER = 1;
+
+    static final int MAX_METRICS = 100000;
+
+    static final String PATH = "/sketches";
+    static final String CONTENT_TYPE = "application/x-hightail-sketches";
+
+    private SketchProtocol() {
+    }
+}
@@ -0,0 +1,36 @@
+package com.hightail.metrics.fleet;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * A {@link Reservoir} that records into a {@link QuantileSketch}, for timers and histograms whose percentiles should
+ * be merged across the fleet by a {@link FleetAggregator}:
+ *
+ * <pre>
+ * registry.register("api.latency", new Timer(new SketchReservoir()));
+ * </pre>
+ *
+ * Unlike the sampling reservoirs it keeps every value since it was created, so reporters reading it directly get
+ * percentiles over the whole lifetime of the process. {@link SketchExporter} sends the cumulative sketch and the
+ * aggregator works out what was recorded in each interval.
+ */
+public class SketchReservoir implements Reservoir {
+
+    private final QuantileSketch sketch = new QuantileSketch();
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, sketch.getCount());
+    }
+
+    @Override
+    public void update(long value) {
+        sketch.update(value);
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        return new SketchSnapshot(sketch.getData());
+    }
+}
@@ -0,0 +1,77 @@
+package com.hightail.metrics.fleet;
+
+import com.codahale.metrics.Snapshot;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+
+/**
+ * A {@link Snapshot} backed by a {@link SketchData}, so that reporters read sketched percentiles the same way as
+ * sampled ones. {@link #getValues()} only holds one representative value per non-empty bucket.
+ */
+public class SketchSnapshot extends Snapshot {
+
+    private final SketchData data;
+
+    public SketchSnapshot(SketchData data) {
+        super(new long[0]);
+        this.data = data;
+    }
+
+    /**
+     * @return the sketch behind this snapshot, for merging with other nodes' sketches
+     */
+    public SketchData getData() {
+        return data;
+    }
+
+    @Override
+    public double getValue(double quantile) {
+        if (quantile < 0.0 || quantile > 1.0) {
+            throw new IllegalArgumentException(quantile + " is not in [0..1]");
+        }
+        return data.getValue(quantile);
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, data.getCount());
+    }
+
+    @Override
+    public long[] getValues() {
+        return data.getBucketValues();
+    }
+
+    @Override
+    public long getMax() {
+        return data.getMax();
+    }
+
+    @Override
+    public long getMin() {
+        return data.getMin();
+    }
+
+    @Override
+    public double getMean() {
+        return data.getMean();
+    }
+
+    @Override
+    public double getStdDev() {
+        return data.getStdDev();
+    }
+
+    @Override
+    public void dump(OutputStream output) {
+        PrintWriter out = new PrintWriter(output);
+        try {
+            for (long value : getValues()) {
+                out.printf("%d%n", value);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.hightail.metrics.gauge;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Gauge;
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A stale-while-revalidate wrapper for expensive gauges.
+ *
+ * Reading the gauge never calls the wrapped gauge: it returns the latest value right away and, once that value is
+ * older than the refresh interval, hands a refresh to the given {@link Executor}. At most one refresh runs at a time,
+ * so a gauge that takes longer than its interval is not piled up on. The first refresh starts on construction.
+ *
+ * The reporters read numeric values through {@link #getDoubleValue()}, which does not box, and how old that value is
+ * is available from {@link #getAgeMillis()}.
+ *
+ * <pre>
+ * registry.register("disk.used", new AsyncGauge&lt;Long&gt;(diskUsageGauge, 30, TimeUnit.SECONDS, executor));
+ * </pre>
+ */
+public class AsyncGauge<T> implements Gauge<T> {
+
+    private static final Logger logger = Logger.getLogger(AsyncGauge.class);
+
+    private final Gauge<T> gauge;
+    private final long refreshNanos;
+    private final Executor executor;
+    private final Clock clock;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+    private volatile T value;
+    private volatile double doubleValue = Double.NaN;
+    // clock ticks of the last successful refresh (only meaningful once refreshed is true) and the last attempt
+    private volatile long refreshedAt;
+    private volatile long attemptedAt;
+    private volatile boolean refreshed;
+
+    public AsyncGauge(Gauge<T> gauge, long refreshInterval, TimeUnit unit, Executor executor) {
+        this(gauge, refreshInterval, unit, executor, Clock.defaultClock());
+    }
+
+    public AsyncGauge(Gauge<T> gauge, long refreshInterval, TimeUnit unit, Executor executor, Clock clock) {
+        this.gauge = gauge;
+        this.refreshNanos = unit.toNanos(refreshInterval);
+        this.executor = executor;
+        this.clock = clock;
+        scheduleRefresh();
+    }
+
+    /**
+     * @return the latest value, or null if the first refresh has not completed yet
+     */
+    @Override
+    public T getValue() {
+        refreshIfDue();
+        return value;
+    }
+
+    /**
+     * @return the latest value as a double, or NaN if there is no value yet or it is not a number
+     */
+    public double getDoubleValue() {
+        refreshIfDue();
+        return doubleValue;
+    }
+
+    /**
+     * @return true once the first refresh has completed
+     */
+    public boolean hasValue() {
+        return refreshed;
+    }
+
+    /**
+     * @return milliseconds since the current value was computed, or -1 if there is no value yet
+     */
+    public long getAgeMillis() {
+        if (!refreshed) {
+            return -1;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(clock.getTick() - refreshedAt);
+    }
+
+    public long getRefreshInterval(TimeUnit unit) {
+        return unit.convert(refreshNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the wrapped gauge
+     */
+    public Gauge<T> getGauge() {
+        return gauge;
+    }
+
+    private void refreshIfDue() {
+        if (clock.getTick() - attemptedAt >= refreshNanos) {
+            scheduleRefresh();
+        }
+    }
+
+    private void scheduleRefresh() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    refresh();
+                }
+            });
+        } catch (RejectedExecutionException reex) {
+            refreshing.set(false);
+        }
+    }
+
+    private void refresh() {
+        attemptedAt = clock.getTick();
+        try {
+            T newValue = gauge.getValue();
+            value = newValue;
+            doubleValue = (newValue instanceof Number) ? ((Number) newValue).doubleValue() : Double.NaN;
+            refreshedAt = attemptedAt;
+            refreshed = true;
+        } catch (Exception ex) {
+            // keep serving the previous value and try again after the next interval
+            logger.warn("Could not refresh gauge, keeping its previous value: ", ex);
+        } finally {
+            refreshing.set(false);
+        }
+    }
+}
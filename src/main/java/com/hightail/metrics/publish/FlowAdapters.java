@@ -0,0 +1,174 @@
+package com.hightail.metrics.publish;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Bridges a {@link MetricBatchPublisher} to {@code java.util.concurrent.Flow}.
+ *
+ * The library is built for Java 7 and {@code Flow} came with Java 9, so the bridge is built reflectively, the same
+ * way {@link com.hightail.metrics.reporter.ReporterExecutors} reaches virtual threads. On Java 9 and later the result
+ * of {@link #toFlowPublisher(MetricBatchPublisher)} can be cast:
+ *
+ * <pre>
+ * Flow.Publisher&lt;MetricBatch&gt; flow = (Flow.Publisher&lt;MetricBatch&gt;) FlowAdapters.toFlowPublisher(publisher);
+ * </pre>
+ */
+public final class FlowAdapters {
+
+    private static final String PUBLISHER = "java.util.concurrent.Flow$Publisher";
+    private static final String SUBSCRIBER = "java.util.concurrent.Flow$Subscriber";
+    private static final String SUBSCRIPTION = "java.util.concurrent.Flow$Subscription";
+
+    private FlowAdapters() {
+    }
+
+    /**
+     * @return true if the running JVM has {@code java.util.concurrent.Flow}
+     */
+    public static boolean isFlowSupported() {
+        try {
+            Class.forName(PUBLISHER);
+            return true;
+        } catch (ClassNotFoundException cnfex) {
+            return false;
+        }
+    }
+
+    /**
+     * @return a {@code Flow.Publisher<MetricBatch>} subscribing its {@code Flow.Subscriber}s to the given publisher
+     * @throws UnsupportedOperationException on JVMs without {@code Flow}
+     */
+    public static Object toFlowPublisher(final MetricBatchPublisher publisher) {
+        final Class<?> publisherClass = flowClass(PUBLISHER);
+        final Class<?> subscriptionClass = flowClass(SUBSCRIPTION);
+        return Proxy.newProxyInstance(publisherClass.getClassLoader(), new Class<?>[]{publisherClass},
+                new ObjectMethodsHandler(publisher) {
+                    @Override
+                    Object invokeInterface(Method method, Object[] args) {
+                        if (args[0] == null) {
+                            throw new NullPointerException("subscriber");
+                        }
+                        publisher.subscribe(new FlowSubscriber(args[0], subscriptionClass));
+                        return null;
+                    }
+                });
+    }
+
+    private static Class<?> flowClass(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException cnfex) {
+            throw new UnsupportedOperationException("java.util.concurrent.Flow needs Java 9 or later");
+        }
+    }
+
+    /**
+     * Forwards the publisher's signals to a {@code Flow.Subscriber}.
+     */
+    private static final class FlowSubscriber implements MetricBatchSubscriber {
+        private final Object subscriber;
+        private final Class<?> subscriptionClass;
+        private final Method onSubscribe;
+        private final Method onNext;
+        private final Method onError;
+        private final Method onComplete;
+
+        FlowSubscriber(Object subscriber, Class<?> subscriptionClass) {
+            this.subscriber = subscriber;
+            this.subscriptionClass = subscriptionClass;
+            Class<?> subscriberClass = flowClass(SUBSCRIBER);
+            try {
+                this.onSubscribe = subscriberClass.getMethod("onSubscribe", subscriptionClass);
+                this.onNext = subscriberClass.getMethod("onNext", Object.class);
+                this.onError = subscriberClass.getMethod("onError", Throwable.class);
+                this.onComplete = subscriberClass.getMethod("onComplete");
+            } catch (NoSuchMethodException nsmex) {
+                throw new UnsupportedOperationException("Unexpected java.util.concurrent.Flow.Subscriber", nsmex);
+            }
+        }
+
+        @Override
+        public void onSubscribe(final MetricBatchSubscription subscription) {
+            Object flowSubscription = Proxy.newProxyInstance(subscriptionClass.getClassLoader(),
+                    new Class<?>[]{subscriptionClass}, new ObjectMethodsHandler(subscription) {
+                        @Override
+                        Object invokeInterface(Method method, Object[] args) {
+                            if ("request".equals(method.getName())) {
+                                subscription.request((Long) args[0]);
+                            } else {
+                                subscription.cancel();
+                            }
+                            return null;
+                        }
+                    });
+            call(onSubscribe, flowSubscription);
+        }
+
+        @Override
+        public void onNext(MetricBatch batch) {
+            call(onNext, batch);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            call(onError, throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            call(onComplete);
+        }
+
+        private void call(Method method, Object... args) {
+            try {
+                method.invoke(subscriber, args);
+            } catch (IllegalAccessException iaex) {
+                throw new IllegalStateException(iaex);
+            } catch (InvocationTargetException itex) {
+                Throwable cause = itex.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(subscriber);
+        }
+    }
+
+    /**
+     * Answers the {@link Object} methods of a proxy on behalf of the object it stands for.
+     */
+    private abstract static class ObjectMethodsHandler implements InvocationHandler {
+        private final Object target;
+
+        ObjectMethodsHandler(Object target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getDeclaringClass() == Object.class) {
+                if ("equals".equals(method.getName())) {
+                    return proxy == args[0];
+                }
+                if ("hashCode".equals(method.getName())) {
+                    return System.identityHashCode(proxy);
+                }
+                return "Flow adapter of " + target;
+            }
+            return invokeInterface(method, args);
+        }
+
+        abstract Object invokeInterface(Method method, Object[] args);
+    }
+}
@@ -0,0 +1,77 @@
+package com.hightail.metrics.publish;
+
+/**
+ * The metrics of one collection pass of a {@link MetricBatchPublisher}, as primitive values.
+ *
+ * A batch is immutable and shared by all subscribers. Values are kept in one flat double array, metric by metric,
+ * each metric taking the fields of its {@link MetricKind}. Names are interned, so consumers may cache per name and
+ * compare names by identity across batches.
+ */
+public final class MetricBatch {
+
+    private final long timestamp;
+    private final String[] names;
+    private final MetricKind[] kinds;
+    private final int[] offsets;
+    private final double[] values;
+
+    MetricBatch(long timestamp, String[] names, MetricKind[] kinds, int[] offsets, double[] values) {
+        this.timestamp = timestamp;
+        this.names = names;
+        this.kinds = kinds;
+        this.offsets = offsets;
+        this.values = values;
+    }
+
+    /**
+     * @return when the batch was collected, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the number of metrics in the batch
+     */
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int i) {
+        return names[i];
+    }
+
+    public MetricKind getKind(int i) {
+        return kinds[i];
+    }
+
+    /**
+     * @return the given field of the i-th metric, or NaN if its kind does not have that field
+     */
+    public double getValue(int i, MetricField field) {
+        int position = kinds[i].positionOf(field);
+        return (position < 0) ? Double.NaN : values[offsets[i] + position];
+    }
+
+    /**
+     * @return the value stored at the given position of the i-th metric, see {@link MetricKind#getFields()}
+     */
+    public double getValue(int i, int position) {
+        if (position < 0 || position >= kinds[i].getFieldCount()) {
+            throw new IndexOutOfBoundsException("A " + kinds[i] + " has no field at position " + position);
+        }
+        return values[offsets[i] + position];
+    }
+
+    /**
+     * @return the position of the named metric, or -1 if the batch does not hold it
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
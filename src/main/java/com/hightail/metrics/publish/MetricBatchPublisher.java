@@ -0,0 +1,526 @@
+package com.hightail.metrics.publish;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metered;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.hightail.metrics.gauge.AsyncGauge;
+import com.hightail.metrics.reporter.LoadSheddingPolicy;
+import com.hightail.metrics.reporter.MetricIndex;
+import com.hightail.metrics.reporter.NewRelicReporter;
+import com.hightail.metrics.reporter.ReporterExecutors;
+import com.hightail.metrics.reporter.ReporterOptions;
+import com.hightail.metrics.reporter.ReportingTier;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A reporter that hands every collection pass to its subscribers as an immutable {@link MetricBatch}, for consumers
+ * that want the metrics without writing a reporter of their own. All subscribers share the same pass, so a registry
+ * is read once per tick however many sinks consume it:
+ *
+ * <pre>
+ * MetricBatchPublisher publisher = MetricBatchPublisher.forRegistry(registry).build();
+ * publisher.subscribe(subscriber);
+ * publisher.start(1, TimeUnit.MINUTES);
+ * </pre>
+ *
+ * Delivery follows the reactive streams rules of {@code java.util.concurrent.Flow}: a subscriber only receives as
+ * many batches as it requested, on the delivery executor rather than the reporter thread, one call at a time. Batches
+ * collected while a subscriber has no demand wait in its buffer; once the buffer is full the oldest batch is dropped,
+ * since the newest metrics are the most useful. Nothing is collected while there are no subscribers.
+ * {@link FlowAdapters} exposes the publisher as a {@code Flow.Publisher} on JVMs that have one.
+ *
+ * Next to a reporter, the publisher is better attached to it through
+ * {@link ReporterOptions#publishTo(MetricBatchPublisher)} than started on its own, so that the reporter and the
+ * subscribers share one pass instead of reading the registry twice.
+ *
+ * Stopping the publisher completes all subscriptions.
+ */
+public class MetricBatchPublisher extends NewRelicReporter {
+
+    private static final Logger logger = Logger.getLogger(MetricBatchPublisher.class);
+
+    public static final int DEFAULT_BUFFER_SIZE = 4;
+
+    private final Executor deliveryExecutor;
+    // only set when the publisher created the executor and has to shut it down
+    private final ExecutorService ownedExecutor;
+    private final int bufferSize;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+    private final AtomicLong droppedBatches = new AtomicLong();
+    private volatile boolean stopped;
+
+    /**
+     * @param registry         metric registry to get metrics from
+     * @param filter           metric filter
+     * @param rateUnit         unit of the published rates
+     * @param durationUnit     unit of the published durations
+     * @param options          the optional behaviour of this reporter
+     * @param deliveryExecutor runs the deliveries to subscribers, null for a daemon thread pool of the publisher's own
+     * @param bufferSize       batches held per subscriber while it has no demand
+     */
+    public MetricBatchPublisher(MetricRegistry registry, MetricFilter filter, TimeUnit rateUnit, TimeUnit durationUnit,
+                                ReporterOptions options, Executor deliveryExecutor, int bufferSize) {
+        super(registry, "metric-batch-publisher", filter, rateUnit, durationUnit, options);
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("A subscriber buffer must hold at least 1 batch");
+        }
+        if (deliveryExecutor == null) {
+            this.ownedExecutor = ReporterExecutors.newDaemonExecutor("metric-batch-publisher");
+            this.deliveryExecutor = ownedExecutor;
+        } else {
+            this.ownedExecutor = null;
+            this.deliveryExecutor = deliveryExecutor;
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Returns a new {@link Builder} for {@link MetricBatchPublisher}.
+     *
+     * @param registry the registry to publish
+     * @return a {@link Builder} instance for a {@link MetricBatchPublisher}
+     */
+    public static Builder forRegistry(MetricRegistry registry) {
+        return new Builder(registry);
+    }
+
+    public static class Builder {
+        private final MetricRegistry registry;
+        private TimeUnit rateUnit;
+        private TimeUnit durationUnit;
+        private MetricFilter filter;
+        private final ReporterOptions options;
+        private Executor deliveryExecutor;
+        private int bufferSize;
+
+        private Builder(MetricRegistry registry) {
+            this.registry = registry;
+            this.rateUnit = TimeUnit.SECONDS;
+            this.durationUnit = TimeUnit.MILLISECONDS;
+            this.filter = MetricFilter.ALL;
+            this.options = new ReporterOptions();
+            this.deliveryExecutor = null;
+            this.bufferSize = DEFAULT_BUFFER_SIZE;
+        }
+
+        /**
+         * Convert rates to the given time unit.
+         *
+         * @param rateUnit a unit of time
+         * @return {@code this}
+         */
+        public Builder convertRatesTo(TimeUnit rateUnit) {
+            this.rateUnit = rateUnit;
+            return this;
+        }
+
+        /**
+         * Convert durations to the given time unit.
+         *
+         * @param durationUnit a unit of time
+         * @return {@code this}
+         */
+        public Builder convertDurationsTo(TimeUnit durationUnit) {
+            this.durationUnit = durationUnit;
+            return this;
+        }
+
+        /**
+         * Only publish metrics which match the given filter.
+         *
+         * @param filter a {@link MetricFilter}
+         * @return {@code this}
+         */
+        public Builder filter(MetricFilter filter) {
+            this.filter = filter;
+            return this;
+        }
+
+        /**
+         * Refresh gauges in the background at the given interval and publish their latest value.
+         *
+         * @param period the refresh interval, 0 to evaluate gauges on every tick
+         * @param unit   the unit of {@code period}
+         * @return {@code this}
+         */
+        public Builder refreshGaugesAsynchronously(long period, TimeUnit unit) {
+            options.refreshGaugesAsynchronously(period, unit);
+            return this;
+        }
+
+        /**
+         * Publish the metrics matching the given filter at their own period.
+         *
+         * @param tier a {@link ReportingTier}
+         * @return {@code this}
+         */
+        public Builder tier(ReportingTier tier) {
+            options.addTier(tier);
+            return this;
+        }
+
+        /**
+         * Leave low priority metrics out of batches while the publisher is under pressure.
+         *
+         * @param loadSheddingPolicy a {@link LoadSheddingPolicy} used by this publisher only
+         * @return {@code this}
+         */
+        public Builder loadShedding(LoadSheddingPolicy loadSheddingPolicy) {
+            options.loadShedding(loadSheddingPolicy);
+            return this;
+        }
+
+        /**
+         * Deliver batches to subscribers on the given executor. Defaults to a daemon thread pool.
+         *
+         * @param deliveryExecutor an {@link Executor}
+         * @return {@code this}
+         */
+        public Builder deliverOn(Executor deliveryExecutor) {
+            this.deliveryExecutor = deliveryExecutor;
+            return this;
+        }
+
+        /**
+         * Hold up to the given number of batches per subscriber while it has no demand. Defaults to
+         * {@link #DEFAULT_BUFFER_SIZE}.
+         *
+         * @param bufferSize batches per subscriber
+         * @return {@code this}
+         */
+        public Builder bufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        /**
+         * Builds a {@link MetricBatchPublisher} with the given properties.
+         *
+         * @return a {@link MetricBatchPublisher}
+         */
+        public MetricBatchPublisher build() {
+            return new MetricBatchPublisher(registry, filter, rateUnit, durationUnit, options, deliveryExecutor,
+                    bufferSize);
+        }
+    }
+
+    /**
+     * Subscribes to the batches of every following collection pass. A subscriber that arrives after the publisher
+     * stopped is completed right away, on the calling thread.
+     */
+    public void subscribe(MetricBatchSubscriber subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        Subscription subscription = new Subscription(subscriber);
+        boolean added;
+        synchronized (subscriptions) {
+            added = !stopped && subscriptions.add(subscription);
+        }
+        if (!added) {
+            // the delivery executor may be shut down already, so the subscriber is signalled right here
+            subscription.cancelled = true;
+            subscriber.onSubscribe(subscription);
+            subscriber.onComplete();
+            return;
+        }
+        subscription.drain();
+    }
+
+    /**
+     * @return the number of batches dropped so far because a subscriber's buffer was full
+     */
+    public long getDroppedBatchCount() {
+        return droppedBatches.get();
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    @Override
+    public void report(MetricIndex.Group<Gauge> gauges, MetricIndex.Group<Counter> counters,
+                       MetricIndex.Group<Histogram> histograms, MetricIndex.Group<Meter> meters,
+                       MetricIndex.Group<Timer> timers) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        MetricBatch batch = collect(gauges, counters, histograms, meters, timers);
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(batch);
+        }
+    }
+
+    private MetricBatch collect(MetricIndex.Group<Gauge> gauges, MetricIndex.Group<Counter> counters,
+                                MetricIndex.Group<Histogram> histograms, MetricIndex.Group<Meter> meters,
+                                MetricIndex.Group<Timer> timers) {
+        int metrics = gauges.size() + counters.size() + histograms.size() + meters.size() + timers.size();
+        int fields = gauges.size() * MetricKind.GAUGE.getFieldCount()
+                + counters.size() * MetricKind.COUNTER.getFieldCount()
+                + histograms.size() * MetricKind.HISTOGRAM.getFieldCount()
+                + meters.size() * MetricKind.METER.getFieldCount()
+                + timers.size() * MetricKind.TIMER.getFieldCount();
+        BatchBuilder batch = new BatchBuilder(metrics, fields);
+
+        Object[] gaugeValues = isUsingVirtualThreads() ? evaluateGauges(gauges) : null;
+        for (int i = 0; i < gauges.size(); i++) {
+            Gauge gauge = gauges.metric(i);
+            double value;
+            if (gauge instanceof AsyncGauge) {
+                value = ((AsyncGauge) gauge).getDoubleValue();
+            } else {
+                Object gaugeValue = (gaugeValues != null) ? gaugeValues[i] : gauge.getValue();
+                value = (gaugeValue instanceof Number) ? ((Number) gaugeValue).doubleValue() : Double.NaN;
+            }
+            // a gauge without a numeric value is left out
+            if (!Double.isNaN(value)) {
+                batch.begin(gauges.name(i), MetricKind.GAUGE).add(value);
+            }
+        }
+        for (int i = 0; i < counters.size(); i++) {
+            batch.begin(counters.name(i), MetricKind.COUNTER).add(counters.metric(i).getCount());
+        }
+        for (int i = 0; i < histograms.size(); i++) {
+            Histogram histogram = histograms.metric(i);
+            batch.begin(histograms.name(i), MetricKind.HISTOGRAM).add(histogram.getCount());
+            addSnapshot(batch, histogram.getSnapshot(), false);
+        }
+        for (int i = 0; i < meters.size(); i++) {
+            Meter meter = meters.metric(i);
+            batch.begin(meters.name(i), MetricKind.METER).add(meter.getCount());
+            addRates(batch, meter);
+        }
+        for (int i = 0; i < timers.size(); i++) {
+            Timer timer = timers.metric(i);
+            batch.begin(timers.name(i), MetricKind.TIMER).add(timer.getCount());
+            addSnapshot(batch, timer.getSnapshot(), true);
+            addRates(batch, timer);
+        }
+        return batch.build(System.currentTimeMillis());
+    }
+
+    // histogram values are unitless, timer values are durations
+    private void addSnapshot(BatchBuilder batch, Snapshot snapshot, boolean durations) {
+        batch.add(duration(snapshot.getMin(), durations))
+                .add(duration(snapshot.getMax(), durations))
+                .add(duration(snapshot.getMean(), durations))
+                .add(duration(snapshot.getStdDev(), durations))
+                .add(duration(snapshot.getMedian(), durations))
+                .add(duration(snapshot.get75thPercentile(), durations))
+                .add(duration(snapshot.get95thPercentile(), durations))
+                .add(duration(snapshot.get98thPercentile(), durations))
+                .add(duration(snapshot.get99thPercentile(), durations))
+                .add(duration(snapshot.get999thPercentile(), durations));
+    }
+
+    private double duration(double value, boolean isDuration) {
+        return isDuration ? convertDuration(value) : value;
+    }
+
+    private void addRates(BatchBuilder batch, Metered metered) {
+        batch.add(convertRate(metered.getMeanRate()))
+                .add(convertRate(metered.getOneMinuteRate()))
+                .add(convertRate(metered.getFiveMinuteRate()))
+                .add(convertRate(metered.getFifteenMinuteRate()));
+    }
+
+    @Override
+    public void stop() {
+        synchronized (subscriptions) {
+            stopped = true;
+        }
+        super.stop();
+        for (Subscription subscription : subscriptions) {
+            subscription.complete();
+        }
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Fills the arrays of one batch, metric by metric.
+     */
+    private static final class BatchBuilder {
+        private final String[] names;
+        private final MetricKind[] kinds;
+        private final int[] offsets;
+        private final double[] values;
+        private int metric = -1;
+        private int value;
+
+        BatchBuilder(int metrics, int fields) {
+            this.names = new String[metrics];
+            this.kinds = new MetricKind[metrics];
+            this.offsets = new int[metrics];
+            this.values = new double[fields];
+        }
+
+        BatchBuilder begin(String name, MetricKind kind) {
+            metric++;
+            names[metric] = name.intern();
+            kinds[metric] = kind;
+            offsets[metric] = value;
+            return this;
+        }
+
+        BatchBuilder add(double v) {
+            values[value++] = v;
+            return this;
+        }
+
+        MetricBatch build(long timestamp) {
+            int metrics = metric + 1;
+            if (metrics == names.length) {
+                return new MetricBatch(timestamp, names, kinds, offsets, values);
+            }
+            // some gauges were left out
+            String[] keptNames = new String[metrics];
+            MetricKind[] keptKinds = new MetricKind[metrics];
+            int[] keptOffsets = new int[metrics];
+            double[] keptValues = new double[value];
+            System.arraycopy(names, 0, keptNames, 0, metrics);
+            System.arraycopy(kinds, 0, keptKinds, 0, metrics);
+            System.arraycopy(offsets, 0, keptOffsets, 0, metrics);
+            System.arraycopy(values, 0, keptValues, 0, value);
+            return new MetricBatch(timestamp, keptNames, keptKinds, keptOffsets, keptValues);
+        }
+    }
+
+    /**
+     * One subscriber's demand and buffer. Signals to the subscriber are only made from {@link #run()}, which the
+     * work-in-progress counter keeps to one thread at a time.
+     */
+    private final class Subscription implements MetricBatchSubscription, Runnable {
+        private final MetricBatchSubscriber subscriber;
+        private final ArrayDeque<MetricBatch> buffer = new ArrayDeque<MetricBatch>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private boolean subscribed;
+        private volatile boolean cancelled;
+        private volatile boolean completed;
+        private volatile Throwable error;
+
+        private Subscription(MetricBatchSubscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("A subscriber must request a positive number of batches, not "
+                        + n);
+                completed = true;
+            } else {
+                long current;
+                long next;
+                do {
+                    current = requested.get();
+                    next = (current + n < 0) ? Long.MAX_VALUE : current + n;
+                } while (!requested.compareAndSet(current, next));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        void offer(MetricBatch batch) {
+            synchronized (buffer) {
+                if (buffer.size() == bufferSize) {
+                    buffer.poll();
+                    droppedBatches.incrementAndGet();
+                }
+                buffer.add(batch);
+            }
+            drain();
+        }
+
+        void complete() {
+            completed = true;
+            drain();
+        }
+
+        void drain() {
+            if (cancelled) {
+                return;
+            }
+            if (wip.getAndIncrement() == 0) {
+                try {
+                    deliveryExecutor.execute(this);
+                } catch (RuntimeException rex) {
+                    logger.error("Could not deliver metric batches: ", rex);
+                    cancel();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                if (!cancelled) {
+                    deliver();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void deliver() {
+            try {
+                if (!subscribed) {
+                    subscribed = true;
+                    subscriber.onSubscribe(this);
+                }
+                while (!cancelled && error == null && requested.get() > 0) {
+                    MetricBatch batch;
+                    synchronized (buffer) {
+                        batch = buffer.poll();
+                    }
+                    if (batch == null) {
+                        break;
+                    }
+                    if (requested.get() != Long.MAX_VALUE) {
+                        requested.decrementAndGet();
+                    }
+                    subscriber.onNext(batch);
+                }
+
+                boolean empty;
+                synchronized (buffer) {
+                    empty = buffer.isEmpty();
+                }
+                if (!cancelled && completed && (empty || error != null)) {
+                    cancel();
+                    if (error != null) {
+                        subscriber.onError(error);
+                    } else {
+                        subscriber.onComplete();
+                    }
+                }
+            } catch (Throwable t) {
+                // a subscriber that throws is in breach of the contract and is dropped
+                logger.error("Metric batch subscriber " + subscriber + " failed, cancelling its subscription: ", t);
+                cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.hightail.metrics.publish;
+
+/**
+ * Receives the batches of a {@link MetricBatchPublisher}. Follows the contract of
+ * {@code java.util.concurrent.Flow.Subscriber}: {@link #onSubscribe(MetricBatchSubscription)} comes first, no more
+ * batches than requested are delivered, and calls are never concurrent. Use {@link FlowAdapters} to subscribe a
+ * {@code Flow.Subscriber} directly.
+ */
+public interface MetricBatchSubscriber {
+
+    void onSubscribe(MetricBatchSubscription subscription);
+
+    void onNext(MetricBatch batch);
+
+    void onError(Throwable throwable);
+
+    void onComplete();
+}
@@ -0,0 +1,18 @@
+package com.hightail.metrics.publish;
+
+/**
+ * The link between a {@link MetricBatchPublisher} and one of its subscribers, through which the subscriber signals
+ * demand. Mirrors {@code java.util.concurrent.Flow.Subscription}.
+ */
+public interface MetricBatchSubscription {
+
+    /**
+     * Asks for up to {@code n} more batches. Demand adds up; {@link Long#MAX_VALUE} means unbounded.
+     */
+    void request(long n);
+
+    /**
+     * Stops the delivery of batches. Batches already being delivered may still arrive.
+     */
+    void cancel();
+}
@@ -0,0 +1,24 @@
+package com.hightail.metrics.publish;
+
+/**
+ * One value of a metric in a {@link MetricBatch}. Which fields a metric has depends on its {@link MetricKind}.
+ * Durations are in the publisher's duration unit and rates per its rate unit.
+ */
+public enum MetricField {
+    VALUE,
+    COUNT,
+    MIN,
+    MAX,
+    MEAN,
+    STDDEV,
+    MEDIAN,
+    P75,
+    P95,
+    P98,
+    P99,
+    P999,
+    MEAN_RATE,
+    M1_RATE,
+    M5_RATE,
+    M15_RATE
+}
@@ -0,0 +1,47 @@
+package com.hightail.metrics.publish;
+
+import java.util.Arrays;
+
+import static com.hightail.metrics.publish.MetricField.*;
+
+/**
+ * The type of a metric in a {@link MetricBatch}, and the fields it carries in that order.
+ */
+public enum MetricKind {
+    GAUGE(VALUE),
+    COUNTER(COUNT),
+    HISTOGRAM(COUNT, MIN, MAX, MEAN, STDDEV, MEDIAN, P75, P95, P98, P99, P999),
+    METER(COUNT, MEAN_RATE, M1_RATE, M5_RATE, M15_RATE),
+    TIMER(COUNT, MIN, MAX, MEAN, STDDEV, MEDIAN, P75, P95, P98, P99, P999, MEAN_RATE, M1_RATE, M5_RATE, M15_RATE);
+
+    private final MetricField[] fields;
+    // position of every field in this kind's values, -1 for fields it does not have
+    private final int[] positions;
+
+    MetricKind(MetricField... fields) {
+        this.fields = fields;
+        this.positions = new int[MetricField.values().length];
+        Arrays.fill(positions, -1);
+        for (int i = 0; i < fields.length; i++) {
+            positions[fields[i].ordinal()] = i;
+        }
+    }
+
+    /**
+     * @return the fields of this kind, in the order they are stored
+     */
+    public MetricField[] getFields() {
+        return fields.clone();
+    }
+
+    public int getFieldCount() {
+        return fields.length;
+    }
+
+    /**
+     * @return where the given field is stored among this kind's values, or -1 if the kind does not have it
+     */
+    public int positionOf(MetricField field) {
+        return positions[field.ordinal()];
+    }
+}
@@ -0,0 +1,304 @@
+package com.hightail.metrics.reporter;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricSet;
+import org.apache.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cuts back on low priority metrics while a reporter is under pressure, so that the important ones keep going out.
+ *
+ * A reporter is under pressure when its previous reporting pass, delivery included, took longer than the maximum
+ * cycle time, or when the heap is fuller than the maximum heap usage. Every tick under pressure escalates the
+ * shedding level by one step, and it takes {@link #RECOVERY_TICKS} calm ticks in a row to step back down. Each
+ * {@link ReportingTier} of the reporter has a level of its own, which counts its own ticks and goes by its own share
+ * of the pass, so a slow tier does not shed a fast one:
+ *
+ * <pre>
+ * level 1: LOW metrics are only reported every n-th tick
+ * level 2: LOW metrics are dropped
+ * level 3: LOW metrics are dropped, NORMAL metrics only reported every n-th tick
+ * level 4: LOW and NORMAL metrics are dropped
+ * </pre>
+ *
+ * {@link MetricPriority#HIGH} metrics are always reported. A metric gets the priority of the first filter that
+ * matches it, {@link MetricPriority#NORMAL} otherwise. How many metrics were left out of a tick is kept per priority
+ * and can be registered as gauges through {@link #getMetrics()}; a metric left out of ten ticks counts ten times.
+ *
+ * A policy holds the state of one reporter and must not be shared.
+ */
+public class LoadSheddingPolicy {
+
+    private static final Logger logger = Logger.getLogger(LoadSheddingPolicy.class);
+
+    public static final int MAX_LEVEL = 4;
+    public static final int RECOVERY_TICKS = 3;
+
+    private final List<MetricFilter> priorityFilters;
+    private final List<MetricPriority> priorities;
+    private final long maxCycleNanos;
+    private final double maxHeapUsage;
+    private final int downsampleFactor;
+    private final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+
+    private final Map<String, MetricPriority> priorityCache = new ConcurrentHashMap<String, MetricPriority>();
+    private final Map<MetricPriority, AtomicLong> shedCounts = new EnumMap<MetricPriority, AtomicLong>(MetricPriority.class);
+    private final List<TierState> tiers = new CopyOnWriteArrayList<TierState>();
+
+    private LoadSheddingPolicy(Builder builder) {
+        this.priorityFilters = new ArrayList<MetricFilter>(builder.priorityFilters);
+        this.priorities = new ArrayList<MetricPriority>(builder.priorities);
+        this.maxCycleNanos = builder.maxCycleNanos;
+        this.maxHeapUsage = builder.maxHeapUsage;
+        this.downsampleFactor = builder.downsampleFactor;
+        for (MetricPriority priority : MetricPriority.values()) {
+            shedCounts.put(priority, new AtomicLong());
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private final List<MetricFilter> priorityFilters = new ArrayList<MetricFilter>();
+        private final List<MetricPriority> priorities = new ArrayList<MetricPriority>();
+        private long maxCycleNanos = Long.MAX_VALUE;
+        private double maxHeapUsage = 1.0;
+        private int downsampleFactor = 5;
+
+        private Builder() {
+        }
+
+        /**
+         * Give the metrics matching the filter the given priority, unless an earlier filter matched them.
+         */
+        public Builder priority(MetricFilter filter, MetricPriority priority) {
+            priorityFilters.add(filter);
+            priorities.add(priority);
+            return this;
+        }
+
+        /**
+         * Consider the reporter under pressure when a reporting pass takes longer than this.
+         */
+        public Builder maxCycleTime(long duration, TimeUnit unit) {
+            this.maxCycleNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Consider the reporter under pressure when more than this fraction of the maximum heap is in use.
+         */
+        public Builder maxHeapUsage(double fraction) {
+            this.maxHeapUsage = fraction;
+            return this;
+        }
+
+        /**
+         * Report downsampled metrics every {@code factor}-th tick. Defaults to 5.
+         */
+        public Builder downsampleFactor(int factor) {
+            if (factor < 1) {
+                throw new IllegalArgumentException("The downsample factor must be at least 1");
+            }
+            this.downsampleFactor = factor;
+            return this;
+        }
+
+        public LoadSheddingPolicy build() {
+            return new LoadSheddingPolicy(this);
+        }
+    }
+
+    /**
+     * @return the priority of the given metric, looked up once per name
+     */
+    public MetricPriority priorityOf(String name, Metric metric) {
+        MetricPriority priority = priorityCache.get(name);
+        if (priority == null) {
+            priority = MetricPriority.NORMAL;
+            for (int i = 0; i < priorityFilters.size(); i++) {
+                if (priorityFilters.get(i).matches(name, metric)) {
+                    priority = priorities.get(i);
+                    break;
+                }
+            }
+            priorityCache.put(name, priority);
+        }
+        return priority;
+    }
+
+    /**
+     * @return the highest shedding level of any tier, 0 when nothing is shed
+     */
+    public int getLevel() {
+        int level = 0;
+        for (TierState tier : tiers) {
+            level = Math.max(level, tier.level);
+        }
+        return level;
+    }
+
+    /**
+     * @return how many times a metric of the given priority was left out of a tick so far
+     */
+    public long getShedMetricCount(MetricPriority priority) {
+        return shedCounts.get(priority).get();
+    }
+
+    /**
+     * Exposes the shedding level and the shed counts as gauges, e.g. for
+     * {@code registry.register("reporter.shedding", policy.getMetrics())}.
+     */
+    public MetricSet getMetrics() {
+        return new MetricSet() {
+            @Override
+            public Map<String, Metric> getMetrics() {
+                Map<String, Metric> metrics = new HashMap<String, Metric>();
+                metrics.put("level", new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return getLevel();
+                    }
+                });
+                for (final MetricPriority priority : MetricPriority.values()) {
+                    metrics.put("shed." + priority.name().toLowerCase(), new Gauge<Long>() {
+                        @Override
+                        public Long getValue() {
+                            return getShedMetricCount(priority);
+                        }
+                    });
+                }
+                return Collections.unmodifiableMap(metrics);
+            }
+        };
+    }
+
+    List<MetricFilter> getPriorityFilters() {
+        return Collections.unmodifiableList(priorityFilters);
+    }
+
+    /**
+     * @return the shedding state of a tier of the reporter, or of the metrics claimed by no tier
+     */
+    TierState newTier(String name) {
+        TierState tier = new TierState(name);
+        tiers.add(tier);
+        return tier;
+    }
+
+    /**
+     * The shedding level of one tier, escalated and recovered on that tier's ticks only.
+     */
+    final class TierState {
+        private final String name;
+        private volatile int level;
+        private long tick;
+        private long lastCycleNanos;
+        private int calmTicks;
+
+        private TierState(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Works out the shedding level of the tier's tick that starts now.
+         */
+        int beginTick() {
+            tick++;
+            boolean underPressure = lastCycleNanos > maxCycleNanos || heapUsage() > maxHeapUsage;
+            int previous = level;
+            if (underPressure) {
+                calmTicks = 0;
+                level = Math.min(MAX_LEVEL, level + 1);
+            } else if (level > 0 && ++calmTicks >= RECOVERY_TICKS) {
+                calmTicks = 0;
+                level = level - 1;
+            }
+            if (level != previous) {
+                logger.warn("Load shedding level of tier " + name + " changed from " + previous + " to " + level);
+            }
+            return level;
+        }
+
+        /**
+         * @param cycleNanos the time the tier took to report, including its share of the delivery
+         */
+        void endTick(long cycleNanos) {
+            lastCycleNanos = cycleNanos;
+        }
+
+        /**
+         * @return the metrics of the group that are reported at the tier's current level
+         */
+        <T extends Metric> MetricIndex.Group<T> shed(MetricIndex.Group<T> group) {
+            if (level == 0 || group.size() == 0) {
+                return group;
+            }
+
+            String[] names = new String[group.size()];
+            Metric[] metrics = new Metric[group.size()];
+            int kept = 0;
+            for (int i = 0; i < group.size(); i++) {
+                MetricPriority priority = priorityOf(group.name(i), group.metric(i));
+                if (keep(priority)) {
+                    names[kept] = group.name(i);
+                    metrics[kept] = group.metric(i);
+                    kept++;
+                } else {
+                    shedCounts.get(priority).incrementAndGet();
+                }
+            }
+            if (kept == group.size()) {
+                return group;
+            }
+
+            String[] keptNames = new String[kept];
+            Metric[] keptMetrics = new Metric[kept];
+            System.arraycopy(names, 0, keptNames, 0, kept);
+            System.arraycopy(metrics, 0, keptMetrics, 0, kept);
+            return MetricIndex.Group.of(keptNames, keptMetrics);
+        }
+
+        private boolean keep(MetricPriority priority) {
+            boolean sampleTick = tick % downsampleFactor == 0;
+            switch (priority) {
+                case LOW:
+                    return level == 1 && sampleTick;
+                case NORMAL:
+                    return level < 3 || (level == 3 && sampleTick);
+                default:
+                    return true;
+            }
+        }
+    }
+
+    void forget(String name) {
+        priorityCache.remove(name);
+    }
+
+    private double heapUsage() {
+        if (maxHeapUsage >= 1.0) {
+            return 0;
+        }
+        MemoryUsage heap = memoryMXBean.getHeapMemoryUsage();
+        long max = (heap.getMax() > 0) ? heap.getMax() : heap.getCommitted();
+        return (double) heap.getUsed() / max;
+    }
+}
@@ -0,0 +1,229 @@
+package com.hightail.metrics.reporter;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+import com.hightail.metrics.gauge.AsyncGauge;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A live, pre-filtered index of the metrics in a {@link com.codahale.metrics.MetricRegistry}, kept up to date through
+ * {@link MetricRegistryListener} callbacks.
+ *
+ * {@link com.codahale.metrics.ScheduledReporter#report()} scans and filters the whole registry into five new
+ * {@link TreeMap}s on every tick. The index instead applies the filter once, when a metric is registered, and hands
+ * out immutable, name-ordered {@link Group}s that are only rebuilt on the first tick after the registry changed. A
+ * tick without registry churn therefore costs nothing beyond reading the metrics.
+ *
+ * Because the filter is evaluated when a metric is added, filters whose decision changes over time for the same
+ * metric are not supported here.
+ *
+ * When a gauge refresh interval is given, plain gauges are indexed wrapped in an {@link AsyncGauge}, so the reporter
+ * reads their latest value instead of evaluating them on its own thread. The registry keeps the original gauge.
+ */
+public class MetricIndex implements MetricRegistryListener {
+
+    private final MetricFilter filter;
+    private final long gaugeRefreshMillis;
+    private final Executor gaugeRefreshExecutor;
+
+    private final TypeIndex<Gauge> gauges = new TypeIndex<Gauge>();
+    private final TypeIndex<Counter> counters = new TypeIndex<Counter>();
+    private final TypeIndex<Histogram> histograms = new TypeIndex<Histogram>();
+    private final TypeIndex<Meter> meters = new TypeIndex<Meter>();
+    private final TypeIndex<Timer> timers = new TypeIndex<Timer>();
+
+    public MetricIndex(MetricFilter filter) {
+        this(filter, 0, null);
+    }
+
+    /**
+     * @param filter                the filter for which metrics to index
+     * @param gaugeRefreshMillis    refresh interval for indexing gauges as {@link AsyncGauge}s, 0 to index them as is
+     * @param gaugeRefreshExecutor  runs the gauge refreshes, only used with a positive refresh interval
+     */
+    public MetricIndex(MetricFilter filter, long gaugeRefreshMillis, Executor gaugeRefreshExecutor) {
+        this.filter = filter;
+        this.gaugeRefreshMillis = gaugeRefreshMillis;
+        this.gaugeRefreshExecutor = gaugeRefreshExecutor;
+    }
+
+    public Group<Gauge> gauges() {
+        return gauges.group();
+    }
+
+    public Group<Counter> counters() {
+        return counters.group();
+    }
+
+    public Group<Histogram> histograms() {
+        return histograms.group();
+    }
+
+    public Group<Meter> meters() {
+        return meters.group();
+    }
+
+    public Group<Timer> timers() {
+        return timers.group();
+    }
+
+    @Override
+    public void onGaugeAdded(String name, Gauge<?> gauge) {
+        if (filter.matches(name, gauge)) {
+            if (gaugeRefreshMillis > 0 && !(gauge instanceof AsyncGauge)) {
+                gauge = refreshedAsync(gauge);
+            }
+            gauges.put(name, gauge);
+        }
+    }
+
+    private <T> AsyncGauge<T> refreshedAsync(Gauge<T> gauge) {
+        return new AsyncGauge<T>(gauge, gaugeRefreshMillis, TimeUnit.MILLISECONDS, gaugeRefreshExecutor);
+    }
+
+    @Override
+    public void onGaugeRemoved(String name) {
+        gauges.remove(name);
+    }
+
+    @Override
+    public void onCounterAdded(String name, Counter counter) {
+        if (filter.matches(name, counter)) {
+            counters.put(name, counter);
+        }
+    }
+
+    @Override
+    public void onCounterRemoved(String name) {
+        counters.remove(name);
+    }
+
+    @Override
+    public void onHistogramAdded(String name, Histogram histogram) {
+        if (filter.matches(name, histogram)) {
+            histograms.put(name, histogram);
+        }
+    }
+
+    @Override
+    public void onHistogramRemoved(String name) {
+        histograms.remove(name);
+    }
+
+    @Override
+    public void onMeterAdded(String name, Meter meter) {
+        if (filter.matches(name, meter)) {
+            meters.put(name, meter);
+        }
+    }
+
+    @Override
+    public void onMeterRemoved(String name) {
+        meters.remove(name);
+    }
+
+    @Override
+    public void onTimerAdded(String name, Timer timer) {
+        if (filter.matches(name, timer)) {
+            timers.put(name, timer);
+        }
+    }
+
+    @Override
+    public void onTimerRemoved(String name) {
+        timers.remove(name);
+    }
+
+    /**
+     * An immutable, name-ordered array view of the metrics of one type.
+     */
+    public static final class Group<T extends Metric> {
+
+        private static final Group EMPTY = new Group(new String[0], new Metric[0]);
+
+        private final String[] names;
+        private final Metric[] metrics;
+
+        private Group(String[] names, Metric[] metrics) {
+            this.names = names;
+            this.metrics = metrics;
+        }
+
+        @SuppressWarnings("unchecked")
+        public static <T extends Metric> Group<T> empty() {
+            return (Group<T>) EMPTY;
+        }
+
+        /**
+         * Copies a map as handed to {@link com.codahale.metrics.ScheduledReporter#report(SortedMap, SortedMap,
+         * SortedMap, SortedMap, SortedMap)} into a group.
+         */
+        public static <T extends Metric> Group<T> of(Map<String, ? extends T> metrics) {
+            String[] names = new String[metrics.size()];
+            Metric[] values = new Metric[metrics.size()];
+            int i = 0;
+            for (Map.Entry<String, ? extends T> entry : metrics.entrySet()) {
+                names[i] = entry.getKey();
+                values[i] = entry.getValue();
+                i++;
+            }
+            return new Group<T>(names, values);
+        }
+
+        // takes ownership of the arrays
+        static <T extends Metric> Group<T> of(String[] names, Metric[] metrics) {
+            return new Group<T>(names, metrics);
+        }
+
+        public int size() {
+            return names.length;
+        }
+
+        public String name(int i) {
+            return names[i];
+        }
+
+        @SuppressWarnings("unchecked")
+        public T metric(int i) {
+            return (T) metrics[i];
+        }
+    }
+
+    private static final class TypeIndex<T extends Metric> {
+        private final Map<String, T> metrics = new ConcurrentHashMap<String, T>();
+        private final AtomicBoolean changed = new AtomicBoolean(false);
+        private volatile Group<T> group = Group.empty();
+
+        void put(String name, T metric) {
+            metrics.put(name, metric);
+            changed.set(true);
+        }
+
+        void remove(String name) {
+            if (metrics.remove(name) != null) {
+                changed.set(true);
+            }
+        }
+
+        Group<T> group() {
+            // a change racing with the rebuild sets the flag again and is picked up on the next tick
+            if (changed.getAndSet(false)) {
+                group = Group.of(new TreeMap<String, T>(metrics));
+            }
+            return group;
+        }
+    }
+}
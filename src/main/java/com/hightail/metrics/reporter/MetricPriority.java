@@ -0,0 +1,9 @@
+package com.hightail.metrics.reporter;
+
+/**
+ * How important a metric is when a {@link LoadSheddingPolicy} has to cut back on what is reported. Lower priorities
+ * are shed first; {@link #HIGH} metrics are never shed.
+ */
+public enum MetricPriority {
+    HIGH, NORMAL, LOW
+}
@@ -0,0 +1,654 @@
+package com.hightail.metrics.reporter;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformReservoir;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collapses metric name segments that carry IDs, such as customer IDs, UUIDs or file IDs, into a placeholder, so
+ * that {@code scan.file.1234.time} and {@code scan.file.5678.time} are reported as one {@code scan.file.{id}.time}.
+ *
+ * Which segments to collapse is learnt from the names seen: once more than {@code maxValuesPerSegment} distinct
+ * segments follow the same parent (the name up to that segment, with earlier collapsed segments replaced), every
+ * segment after that parent is collapsed from then on. Names are reported as they are until then. Only segments
+ * containing a digit count as IDs, so that vocabularies such as class or endpoint names never collapse however large
+ * they are.
+ *
+ * Metrics collapsing into the same template are reported as one: counters and meters are summed, and timers and
+ * histograms report the summed count and rates with a snapshot drawn from every member's snapshot in proportion to
+ * its count. Gauges are left alone, since there is no telling how their values combine. The count of a template
+ * keeps the last count of every member that was removed or moved to another template, so that it does not go down
+ * when members come and go, and a template is dropped once its last member is gone.
+ *
+ * Memory is bounded: at most {@code maxTrackedParents} parents are tracked, each with at most
+ * {@code maxValuesPerSegment} segments until it collapses, and the template of at most {@code cacheSize} names is
+ * cached. Names under parents beyond the limit are reported as they are. The metric members are merged into is kept
+ * per template and reused on every tick.
+ *
+ * A normalizer holds the state of one reporter and must not be shared.
+ */
+public class NameNormalizer {
+
+    private static final Logger logger = Logger.getLogger(NameNormalizer.class);
+
+    public static final String PLACEHOLDER = "{id}";
+    // samples drawn from the members of a collapsed timer or histogram
+    private static final int MERGED_SAMPLES = 1028;
+    // never updated, only there because a Histogram or Timer cannot be built without one
+    private static final Reservoir NO_RESERVOIR = new UniformReservoir(1);
+
+    private final char separator;
+    private final int maxValuesPerSegment;
+    private final int maxTrackedParents;
+
+    // guarded by this
+    private final Map<String, Parent> parents = new HashMap<String, Parent>();
+    private final Map<String, String> templates;
+    private boolean warnedAboutParents;
+    private final Map<String, Merged<?>> mergedByMember = new HashMap<String, Merged<?>>();
+    private final List<String> emptiedTemplates = new ArrayList<String>();
+
+    private final Merger<Counter, CollapsedCounter> counterMerger = new Merger<Counter, CollapsedCounter>() {
+        @Override
+        long count(Counter member) {
+            return member.getCount();
+        }
+
+        @Override
+        CollapsedCounter create() {
+            return new CollapsedCounter();
+        }
+
+        @Override
+        void merge(CollapsedCounter counter, List<Counter> members, long[] counts, long total) {
+            counter.count = total;
+        }
+    };
+
+    private final Merger<Meter, CollapsedMeter> meterMerger = new Merger<Meter, CollapsedMeter>() {
+        @Override
+        long count(Meter member) {
+            return member.getCount();
+        }
+
+        @Override
+        CollapsedMeter create() {
+            return new CollapsedMeter();
+        }
+
+        @Override
+        void merge(CollapsedMeter meter, List<Meter> members, long[] counts, long total) {
+            meter.reset();
+            meter.count = total;
+            for (Meter member : members) {
+                meter.meanRate += member.getMeanRate();
+                meter.oneMinuteRate += member.getOneMinuteRate();
+                meter.fiveMinuteRate += member.getFiveMinuteRate();
+                meter.fifteenMinuteRate += member.getFifteenMinuteRate();
+            }
+        }
+    };
+
+    private final Merger<Histogram, CollapsedHistogram> histogramMerger = new Merger<Histogram, CollapsedHistogram>() {
+        @Override
+        long count(Histogram member) {
+            return member.getCount();
+        }
+
+        @Override
+        CollapsedHistogram create() {
+            return new CollapsedHistogram();
+        }
+
+        @Override
+        void merge(CollapsedHistogram histogram, List<Histogram> members, long[] counts, long total) {
+            Snapshot[] snapshots = new Snapshot[members.size()];
+            for (int i = 0; i < snapshots.length; i++) {
+                snapshots[i] = members.get(i).getSnapshot();
+            }
+            histogram.count = total;
+            histogram.snapshot = mergeSnapshots(counts, snapshots);
+        }
+    };
+
+    private final Merger<Timer, CollapsedTimer> timerMerger = new Merger<Timer, CollapsedTimer>() {
+        @Override
+        long count(Timer member) {
+            return member.getCount();
+        }
+
+        @Override
+        CollapsedTimer create() {
+            return new CollapsedTimer();
+        }
+
+        @Override
+        void merge(CollapsedTimer timer, List<Timer> members, long[] counts, long total) {
+            timer.reset();
+            Snapshot[] snapshots = new Snapshot[members.size()];
+            for (int i = 0; i < snapshots.length; i++) {
+                Timer member = members.get(i);
+                snapshots[i] = member.getSnapshot();
+                timer.meanRate += member.getMeanRate();
+                timer.oneMinuteRate += member.getOneMinuteRate();
+                timer.fiveMinuteRate += member.getFiveMinuteRate();
+                timer.fifteenMinuteRate += member.getFifteenMinuteRate();
+            }
+            timer.count = total;
+            timer.snapshot = mergeSnapshots(counts, snapshots);
+        }
+    };
+
+    private NameNormalizer(Builder builder) {
+        this.separator = builder.separator;
+        this.maxValuesPerSegment = builder.maxValuesPerSegment;
+        this.maxTrackedParents = builder.maxTrackedParents;
+        final int cacheSize = builder.cacheSize;
+        this.templates = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private char separator = '.';
+        private int maxValuesPerSegment = 50;
+        private int maxTrackedParents = 10000;
+        private int cacheSize = 10000;
+
+        private Builder() {
+        }
+
+        /**
+         * Split names into segments at this character. Defaults to '.'.
+         */
+        public Builder separator(char separator) {
+            this.separator = separator;
+            return this;
+        }
+
+        /**
+         * Collapse the segments following a parent once more than this many distinct ones were seen. Defaults to 50.
+         */
+        public Builder maxValuesPerSegment(int maxValuesPerSegment) {
+            if (maxValuesPerSegment < 1) {
+                throw new IllegalArgumentException("At least 1 value per segment has to be allowed");
+            }
+            this.maxValuesPerSegment = maxValuesPerSegment;
+            return this;
+        }
+
+        /**
+         * Track the segments of at most this many parents. Defaults to 10000.
+         */
+        public Builder maxTrackedParents(int maxTrackedParents) {
+            this.maxTrackedParents = maxTrackedParents;
+            return this;
+        }
+
+        /**
+         * Cache the templates of at most this many names. Defaults to 10000.
+         */
+        public Builder cacheSize(int cacheSize) {
+            this.cacheSize = cacheSize;
+            return this;
+        }
+
+        public NameNormalizer build() {
+            return new NameNormalizer(this);
+        }
+    }
+
+    /**
+     * Returns the template the given name is reported under, learning from it on first sight.
+     *
+     * @return the template, or the name itself if none of its segments is collapsed
+     */
+    public synchronized String normalize(String name) {
+        String template = templates.get(name);
+        if (template == null) {
+            template = learn(name);
+            templates.put(name, template);
+        }
+        return template;
+    }
+
+    /**
+     * @return the number of parents whose segments are collapsed
+     */
+    public synchronized int getCollapsedParentCount() {
+        int collapsed = 0;
+        for (Parent parent : parents.values()) {
+            if (parent.values == null) {
+                collapsed++;
+            }
+        }
+        return collapsed;
+    }
+
+    synchronized void forget(String name) {
+        templates.remove(name);
+        Merged<?> merged = mergedByMember.remove(name);
+        if (merged != null) {
+            leave(merged, name);
+        }
+    }
+
+    /**
+     * @return the templates that lost their last member since the last call, so that whatever was kept for them can
+     * be dropped
+     */
+    synchronized List<String> takeEmptiedTemplates() {
+        if (emptiedTemplates.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> taken = new ArrayList<String>(emptiedTemplates);
+        emptiedTemplates.clear();
+        return taken;
+    }
+
+    // guarded by this
+    private void join(Merged<?> merged, String member, long count) {
+        Merged<?> previous = mergedByMember.put(member, merged);
+        if (previous != null && previous != merged) {
+            leave(previous, member);
+        }
+        long[] lastCount = merged.lastCounts.get(member);
+        if (lastCount == null) {
+            lastCount = new long[1];
+            merged.lastCounts.put(member, lastCount);
+        }
+        lastCount[0] = count;
+    }
+
+    // guarded by this
+    private void leave(Merged<?> merged, String member) {
+        long[] lastCount = merged.lastCounts.remove(member);
+        if (lastCount != null) {
+            merged.base += lastCount[0];
+        }
+        if (merged.lastCounts.isEmpty()) {
+            merged.owner.remove(merged.template);
+            emptiedTemplates.add(merged.template);
+        }
+    }
+
+    private String learn(String name) {
+        StringBuilder template = new StringBuilder(name.length());
+        boolean collapsed = false;
+        int start = 0;
+        while (start <= name.length()) {
+            int end = name.indexOf(separator, start);
+            if (end < 0) {
+                end = name.length();
+            }
+            String segment = name.substring(start, end);
+
+            Parent parent = hasDigit(segment) ? parent(template.toString()) : null;
+            if (parent != null && parent.add(segment)) {
+                segment = PLACEHOLDER;
+                collapsed = true;
+            }
+            if (start > 0) {
+                template.append(separator);
+            }
+            template.append(segment);
+            start = end + 1;
+        }
+        return collapsed ? template.toString() : name;
+    }
+
+    private static boolean hasDigit(String segment) {
+        for (int i = 0; i < segment.length(); i++) {
+            if (Character.isDigit(segment.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Parent parent(String name) {
+        Parent parent = parents.get(name);
+        if (parent == null) {
+            if (parents.size() >= maxTrackedParents) {
+                if (!warnedAboutParents) {
+                    logger.warn("Tracking the maximum of " + maxTrackedParents + " metric name parents, names under"
+                            + " new ones are reported as they are");
+                    warnedAboutParents = true;
+                }
+                return null;
+            }
+            parent = new Parent(name);
+            parents.put(name, parent);
+        }
+        return parent;
+    }
+
+    /**
+     * The distinct ID-like segments seen after one parent, until there are too many of them.
+     */
+    private final class Parent {
+        private final String name;
+        // null once collapsed
+        private Set<String> values = new HashSet<String>();
+
+        Parent(String name) {
+            this.name = name;
+        }
+
+        // returns true if the segment is to be collapsed
+        boolean add(String segment) {
+            if (values == null) {
+                return true;
+            }
+            if (values.add(segment) && values.size() > maxValuesPerSegment) {
+                logger.info("Collapsing the segments after \"" + name + "\" into " + PLACEHOLDER + " after seeing "
+                        + values.size() + " of them");
+                values = null;
+                // names cached with a segment that now collapses are learnt again
+                templates.clear();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    MetricIndex.Group<Counter> collapseCounters(MetricIndex.Group<Counter> counters) {
+        return collapse(counters, counterMerger);
+    }
+
+    MetricIndex.Group<Meter> collapseMeters(MetricIndex.Group<Meter> meters) {
+        return collapse(meters, meterMerger);
+    }
+
+    MetricIndex.Group<Histogram> collapseHistograms(MetricIndex.Group<Histogram> histograms) {
+        return collapse(histograms, histogramMerger);
+    }
+
+    MetricIndex.Group<Timer> collapseTimers(MetricIndex.Group<Timer> timers) {
+        return collapse(timers, timerMerger);
+    }
+
+    // returns the group itself unless one of its names collapses
+    private <T extends Metric> MetricIndex.Group<T> collapse(MetricIndex.Group<T> group, Merger<T, ?> merger) {
+        int first = -1;
+        for (int i = 0; i < group.size() && first < 0; i++) {
+            if (!normalize(group.name(i)).equals(group.name(i))) {
+                first = i;
+            }
+        }
+        if (first < 0) {
+            return group;
+        }
+
+        Map<String, List<Integer>> members = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < group.size(); i++) {
+            String template = normalize(group.name(i));
+            List<Integer> templateMembers = members.get(template);
+            if (templateMembers == null) {
+                templateMembers = new ArrayList<Integer>(1);
+                members.put(template, templateMembers);
+            }
+            templateMembers.add(i);
+        }
+
+        String[] names = new String[members.size()];
+        Metric[] metrics = new Metric[members.size()];
+        int i = 0;
+        for (Map.Entry<String, List<Integer>> entry : members.entrySet()) {
+            names[i] = entry.getKey();
+            List<Integer> templateMembers = entry.getValue();
+            int member = templateMembers.get(0);
+            // a template with a single member still goes through its merged metric, which keeps the counts of the
+            // members it had before
+            metrics[i] = names[i].equals(group.name(member)) ? group.metric(member)
+                    : merger.merge(names[i], group, templateMembers);
+            i++;
+        }
+        return MetricIndex.Group.of(names, metrics);
+    }
+
+    // draws from every snapshot in proportion to its count, spread evenly over its sorted values
+    private static Snapshot mergeSnapshots(long[] counts, Snapshot[] snapshots) {
+        if (snapshots.length == 1) {
+            return snapshots[0];
+        }
+        long total = sum(counts);
+        int[] takes = new int[snapshots.length];
+        int size = 0;
+        for (int i = 0; i < snapshots.length; i++) {
+            if (snapshots[i].size() > 0 && counts[i] > 0) {
+                takes[i] = (int) Math.max(1, Math.round((double) MERGED_SAMPLES * counts[i] / total));
+                size += takes[i];
+            }
+        }
+
+        long[] samples = new long[size];
+        int sample = 0;
+        for (int i = 0; i < snapshots.length; i++) {
+            if (takes[i] == 0) {
+                continue;
+            }
+            long[] values = snapshots[i].getValues();
+            for (int j = 0; j < takes[i]; j++) {
+                samples[sample++] = values[(int) ((long) j * values.length / takes[i])];
+            }
+        }
+        return new Snapshot(samples);
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /**
+     * Merges the members of a template into one metric, which is kept per template and reused from tick to tick.
+     */
+    private abstract class Merger<T extends Metric, M extends T> {
+        // guarded by NameNormalizer.this
+        private final Map<String, Merged<M>> merged = new HashMap<String, Merged<M>>();
+
+        T merge(String template, MetricIndex.Group<T> group, List<Integer> indexes) {
+            List<T> members = new ArrayList<T>(indexes.size());
+            long[] counts = new long[indexes.size()];
+            for (int i = 0; i < counts.length; i++) {
+                members.add(group.metric(indexes.get(i)));
+                counts[i] = count(members.get(i));
+            }
+
+            Merged<M> metric;
+            long total;
+            synchronized (NameNormalizer.this) {
+                metric = merged.get(template);
+                if (metric == null) {
+                    metric = new Merged<M>(merged, template, create());
+                    merged.put(template, metric);
+                }
+                for (int i = 0; i < counts.length; i++) {
+                    join(metric, group.name(indexes.get(i)), counts[i]);
+                }
+                total = metric.total();
+            }
+            merge(metric.metric, members, counts, total);
+            return metric.metric;
+        }
+
+        abstract long count(T member);
+
+        abstract M create();
+
+        // the total is the count of the template, counting members that were left out or are gone
+        abstract void merge(M merged, List<T> members, long[] counts, long total);
+    }
+
+    /**
+     * The merged metric of a template with the last count of each of its members.
+     */
+    private static final class Merged<M extends Metric> {
+        // the merged metrics of the merger this one belongs to
+        private final Map<String, Merged<M>> owner;
+        private final String template;
+        private final M metric;
+        // guarded by the NameNormalizer
+        private final Map<String, long[]> lastCounts = new HashMap<String, long[]>();
+        private long base;
+
+        Merged(Map<String, Merged<M>> owner, String template, M metric) {
+            this.owner = owner;
+            this.template = template;
+            this.metric = metric;
+        }
+
+        long total() {
+            long total = base;
+            for (long[] lastCount : lastCounts.values()) {
+                total += lastCount[0];
+            }
+            return total;
+        }
+    }
+
+    private static final class CollapsedCounter extends Counter {
+        private long count;
+
+        @Override
+        public long getCount() {
+            return count;
+        }
+    }
+
+    private static final class CollapsedMeter extends Meter {
+        private long count;
+        private double meanRate;
+        private double oneMinuteRate;
+        private double fiveMinuteRate;
+        private double fifteenMinuteRate;
+
+        void reset() {
+            count = 0;
+            meanRate = 0;
+            oneMinuteRate = 0;
+            fiveMinuteRate = 0;
+            fifteenMinuteRate = 0;
+        }
+
+        @Override
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public double getMeanRate() {
+            return meanRate;
+        }
+
+        @Override
+        public double getOneMinuteRate() {
+            return oneMinuteRate;
+        }
+
+        @Override
+        public double getFiveMinuteRate() {
+            return fiveMinuteRate;
+        }
+
+        @Override
+        public double getFifteenMinuteRate() {
+            return fifteenMinuteRate;
+        }
+    }
+
+    private static final class CollapsedHistogram extends Histogram {
+        private long count;
+        private Snapshot snapshot;
+
+        CollapsedHistogram() {
+            super(NO_RESERVOIR);
+        }
+
+        @Override
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public Snapshot getSnapshot() {
+            return snapshot;
+        }
+    }
+
+    private static final class CollapsedTimer extends Timer {
+        private long count;
+        private double meanRate;
+        private double oneMinuteRate;
+        private double fiveMinuteRate;
+        private double fifteenMinuteRate;
+        private Snapshot snapshot;
+
+        CollapsedTimer() {
+            super(NO_RESERVOIR);
+        }
+
+        void reset() {
+            meanRate = 0;
+            oneMinuteRate = 0;
+            fiveMinuteRate = 0;
+            fifteenMinuteRate = 0;
+        }
+
+        @Override
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public double getMeanRate() {
+            return meanRate;
+        }
+
+        @Override
+        public double getOneMinuteRate() {
+            return oneMinuteRate;
+        }
+
+        @Override
+        public double getFiveMinuteRate() {
+            return fiveMinuteRate;
+        }
+
+        @Override
+        public double getFifteenMinuteRate() {
+            return fifteenMinuteRate;
+        }
+
+        @Override
+        public Snapshot getSnapshot() {
+            return snapshot;
+        }
+    }
+}
@@ -1,16 +1,118 @@
 package com.hightail.metrics.reporter;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
 import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Timer;
+import com.hightail.metrics.gauge.AsyncGauge;
+import com.hightail.metrics.publish.MetricBatchPublisher;
+import com.hightail.metrics.sink.TimeSeriesSink;
+import org.apache.log4j.Logger;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
+ * Base class of the New Relic reporters.
+ *
+ * Rather than letting {@link ScheduledReporter#report()} copy the registry into sorted maps on every tick, the
+ * reporter keeps a {@link MetricIndex} registered with the registry and reports straight from its arrays through
+ * {@link #report(MetricIndex.Group, MetricIndex.Group, MetricIndex.Group, MetricIndex.Group, MetricIndex.Group)}.
+ *
+ * With {@link ReportingTier}s configured, every tier gets its own index and interval. The reporter then runs its own
+ * scheduler thread, ticking at the fastest tier's period, and reports every tier due on a tick, including the metrics
+ * claimed by none, in that one tick: each tier is handed to
+ * {@link #report(MetricIndex.Group, MetricIndex.Group, MetricIndex.Group, MetricIndex.Group, MetricIndex.Group)}
+ * with its period available from {@link #getTickPeriod(TimeUnit)}, and {@link #endTick()} then lets the reporter
+ * send them as one payload.
+ *
+ * Filters that are also {@link MetricRegistryListener}s, such as a
+ * {@link com.hightail.metrics.filter.CompiledMetricFilter}, are registered with the registry for as long as the
+ * reporter runs; this covers the reporter's own filter, its tiers' filters and its load shedding priority filters.
+ *
+ * A {@link MetricBatchPublisher} attached through {@link ReporterOptions#publishTo(MetricBatchPublisher)} is fed from
+ * the reporter's own pass, so the registry is read once for both.
+ *
  * Created by hightail on 4/6/14.
  */
 public abstract class NewRelicReporter extends ScheduledReporter{
 
+    private static final Logger logger = Logger.getLogger(NewRelicReporter.class);
+
+    // null when all the work runs on the ScheduledReporter thread
+    private final ExecutorService taskExecutor;
+
+    // refreshes asynchronous gauges, null when gauges are evaluated on every tick
+    private final ExecutorService gaugeRefreshExecutor;
+
+    private final MetricRegistry registry;
+    // metrics not claimed by any tier
+    private final MetricIndex index;
+    private final List<TierIndex> tiers = new ArrayList<TierIndex>();
+    // the metrics claimed by no tier followed by every tier
+    private final List<TierIndex> sections = new ArrayList<TierIndex>();
+    // the filters this reporter relies on that keep per name state, e.g. a CompiledMetricFilter
+    private final List<MetricRegistryListener> filterListeners = new ArrayList<MetricRegistryListener>();
+    private ScheduledExecutorService tierScheduler;
+    // the period passed to start(), 0 until then
+    private volatile long defaultPeriodMillis;
+    // the period of the tier being reported
+    private volatile long tickPeriodMillis;
+
+    // null unless reported values are also kept locally
+    private final TimeSeriesSink timeSeriesSink;
+    // null unless low priority metrics may be shed, with a state per tier
+    private final LoadSheddingPolicy loadSheddingPolicy;
+    // null unless ID segments of metric names are collapsed
+    private final NameNormalizer nameNormalizer;
+    // null unless a publisher is fed from the same pass, along with the views shared with it
+    private final MetricBatchPublisher batchPublisher;
+    private final SharedPass sharedPass;
+    // records nothing unless flight recorder events are enabled
+    private final ReporterEvents events;
+
+    private final MetricRegistryListener removalListener = new MetricRegistryListener.Base() {
+        @Override
+        public void onGaugeRemoved(String name) {
+            metricRemoved(name);
+        }
+
+        @Override
+        public void onCounterRemoved(String name) {
+            metricRemoved(name);
+        }
+
+        @Override
+        public void onHistogramRemoved(String name) {
+            metricRemoved(name);
+        }
+
+        @Override
+        public void onMeterRemoved(String name) {
+            metricRemoved(name);
+        }
+
+        @Override
+        public void onTimerRemoved(String name) {
+            metricRemoved(name);
+        }
+    };
+
     /**
      * Creates a new {@link com.codahale.metrics.ScheduledReporter} instance.
      *
@@ -22,6 +124,528 @@ public abstract class NewRelicReporter extends ScheduledReporter{
      * @param durationUnit
      */
     protected NewRelicReporter(MetricRegistry registry, String name, MetricFilter filter, TimeUnit rateUnit, TimeUnit durationUnit) {
+        this(registry, name, filter, rateUnit, durationUnit, new ReporterOptions());
+    }
+
+    /**
+     * Creates a new {@link com.codahale.metrics.ScheduledReporter} instance.
+     *
+     * @param registry          the {@link com.codahale.metrics.MetricRegistry} containing the metrics this
+     *                          reporter will report
+     * @param name              the reporter's name
+     * @param filter            the filter for which metrics to report
+     * @param rateUnit
+     * @param durationUnit
+     * @param options           the optional behaviour of this reporter
+     */
+    protected NewRelicReporter(MetricRegistry registry, String name, MetricFilter filter, TimeUnit rateUnit,
+                               TimeUnit durationUnit, ReporterOptions options) {
         super(registry, name, filter, rateUnit, durationUnit);
+
+        ExecutorService executor = null;
+        if (options.isUseVirtualThreads()) {
+            executor = ReporterExecutors.newVirtualThreadExecutor(name);
+            if (executor == null) {
+                logger.warn("Virtual threads are not available on this JVM, " + name + " will use its reporter thread");
+            }
+        }
+        this.taskExecutor = executor;
+
+        ExecutorService gaugeExecutor = null;
+        if (options.getGaugeRefreshMillis() > 0) {
+            gaugeExecutor = (taskExecutor != null) ? taskExecutor : ReporterExecutors.newDaemonExecutor(name + "-gauges");
+        }
+        this.gaugeRefreshExecutor = gaugeExecutor;
+
+        this.registry = registry;
+        this.timeSeriesSink = options.getTimeSeriesSink();
+        this.loadSheddingPolicy = options.getLoadSheddingPolicy();
+        this.nameNormalizer = options.getNameNormalizer();
+        this.batchPublisher = options.getBatchPublisher();
+        this.sharedPass = (batchPublisher != null) ? new SharedPass() : null;
+        this.events = ReporterEvents.forReporter(name, options.isRecordFlightEvents());
+
+        List<MetricFilter> earlierTiers = new ArrayList<MetricFilter>();
+        for (ReportingTier tier : options.getTiers()) {
+            MetricIndex tierIndex = new MetricIndex(new TierFilter(filter, tier.getFilter(), earlierTiers),
+                    options.getGaugeRefreshMillis(), gaugeRefreshExecutor);
+            tiers.add(new TierIndex(tier, tierIndex));
+            earlierTiers.add(tier.getFilter());
+        }
+        this.index = new MetricIndex(new TierFilter(filter, null, earlierTiers),
+                options.getGaugeRefreshMillis(), gaugeRefreshExecutor);
+        sections.add(new TierIndex(null, index));
+        sections.addAll(tiers);
+
+        addFilterListener(filter);
+        for (ReportingTier tier : options.getTiers()) {
+            addFilterListener(tier.getFilter());
+        }
+        if (loadSheddingPolicy != null) {
+            for (MetricFilter priorityFilter : loadSheddingPolicy.getPriorityFilters()) {
+                addFilterListener(priorityFilter);
+            }
+        }
+        for (MetricRegistryListener filterListener : filterListeners) {
+            registry.addListener(filterListener);
+        }
+        registry.addListener(index);
+        for (TierIndex tier : tiers) {
+            registry.addListener(tier.index);
+        }
+        registry.addListener(removalListener);
+    }
+
+    private void addFilterListener(MetricFilter filter) {
+        if (filter instanceof MetricRegistryListener && !filterListeners.contains(filter)) {
+            filterListeners.add((MetricRegistryListener) filter);
+        }
+    }
+
+    /**
+     * Starts the reporter polling at the given period. Metrics that belong to a {@link ReportingTier} are reported
+     * at their tier's period instead.
+     *
+     * @param period the amount of time between polls
+     * @param unit   the unit for {@code period}
+     */
+    @Override
+    public synchronized void start(long period, TimeUnit unit) {
+        defaultPeriodMillis = Math.max(1, unit.toMillis(period));
+        if (tiers.isEmpty()) {
+            super.start(period, unit);
+            return;
+        }
+        if (tierScheduler != null) {
+            return;
+        }
+
+        long tickMillis = defaultPeriodMillis;
+        for (TierIndex tier : tiers) {
+            logger.info("Reporting tier " + tier.tier.getName() + " every " + tier.periodMillis() + " ms");
+            tickMillis = Math.min(tickMillis, tier.periodMillis());
+        }
+        tierScheduler = ReporterExecutors.newDaemonScheduler(getClass().getSimpleName() + "-tiers");
+        tierScheduler.scheduleAtFixedRate(new TierSchedule(sections, tickMillis), tickMillis, tickMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reports all metrics currently in the index, every tier in one tick.
+     */
+    @Override
+    public void report() {
+        List<Section> due = new ArrayList<Section>(sections.size());
+        for (TierIndex section : sections) {
+            due.add(section.section());
+        }
+        reportTick(due);
+    }
+
+    /**
+     * @return the period of the tier being reported, i.e. of its {@link ReportingTier} or the one passed to
+     * {@link #start(long, TimeUnit)}, or 0 if the reporter was not started
+     */
+    protected long getTickPeriod(TimeUnit unit) {
+        return unit.convert(tickPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reports the given metrics, for callers that hand over maps as {@link ScheduledReporter} does.
+     */
+    @Override
+    public void report(SortedMap<String, Gauge> gauges,
+                       SortedMap<String, Counter> counters,
+                       SortedMap<String, Histogram> histograms,
+                       SortedMap<String, Meter> meters,
+                       SortedMap<String, Timer> timers) {
+        reportTick(Collections.singletonList(new Section(sections.get(0), MetricIndex.Group.of(gauges),
+                MetricIndex.Group.of(counters), MetricIndex.Group.of(histograms), MetricIndex.Group.of(meters),
+                MetricIndex.Group.of(timers))));
+    }
+
+    // one tick, bracketed as one tick of the time series sink and recorded as one flight recorder cycle; every due
+    // tier is handed to report() in turn, after which endTick() lets the subclass send them together. Each tier's
+    // load shedding state is charged with the tier's own time plus a share of endTick() by its number of metrics
+    private void reportTick(List<Section> due) {
+        Object cycle = events.beginCycle();
+        if (timeSeriesSink != null) {
+            timeSeriesSink.beginTick(System.currentTimeMillis());
+        }
+        long[] sectionNanos = new long[due.size()];
+        int[] metricCounts = new int[due.size()];
+        int reported = 0;
+        int metricCount = 0;
+        long endNanos = 0;
+        try {
+            try {
+                for (Section section : due) {
+                    long start = System.nanoTime();
+                    metricCounts[reported] = reportSection(section);
+                    sectionNanos[reported] = System.nanoTime() - start;
+                    metricCount += metricCounts[reported++];
+                }
+            } finally {
+                long start = System.nanoTime();
+                endTick();
+                endNanos = System.nanoTime() - start;
+            }
+        } finally {
+            if (timeSeriesSink != null) {
+                timeSeriesSink.endTick();
+            }
+            for (int i = 0; i < reported; i++) {
+                if (due.get(i).shedding != null) {
+                    long share = (metricCount > 0) ? endNanos * metricCounts[i] / metricCount : 0;
+                    due.get(i).shedding.endTick(sectionNanos[i] + share);
+                }
+            }
+            events.endCycle(cycle, metricCount);
+        }
+    }
+
+    // the metrics of one tier; names are collapsed after shedding, which goes by the registered names, and an
+    // attached publisher is handed the same metrics first
+    private int reportSection(Section section) {
+        MetricIndex.Group<Gauge> gauges = section.gauges;
+        MetricIndex.Group<Counter> counters = section.counters;
+        MetricIndex.Group<Histogram> histograms = section.histograms;
+        MetricIndex.Group<Meter> meters = section.meters;
+        MetricIndex.Group<Timer> timers = section.timers;
+        if (section.shedding != null && section.shedding.beginTick() > 0) {
+            gauges = section.shedding.shed(gauges);
+            counters = section.shedding.shed(counters);
+            histograms = section.shedding.shed(histograms);
+            meters = section.shedding.shed(meters);
+            timers = section.shedding.shed(timers);
+        }
+        if (nameNormalizer != null) {
+            counters = nameNormalizer.collapseCounters(counters);
+            histograms = nameNormalizer.collapseHistograms(histograms);
+            meters = nameNormalizer.collapseMeters(meters);
+            timers = nameNormalizer.collapseTimers(timers);
+            forgetEmptiedTemplates();
+        }
+        if (batchPublisher != null && batchPublisher.getSubscriberCount() > 0) {
+            gauges = sharedPass.gauges(gauges);
+            histograms = sharedPass.histograms(histograms);
+            timers = sharedPass.timers(timers);
+            try {
+                batchPublisher.report(gauges, counters, histograms, meters, timers);
+            } catch (RuntimeException rex) {
+                logger.error("Publishing the metric batch failed: ", rex);
+            }
+        }
+        tickPeriodMillis = section.periodMillis;
+        report(gauges, counters, histograms, meters, timers);
+        return gauges.size() + counters.size() + histograms.size() + meters.size() + timers.size();
+    }
+
+    /**
+     * Reports the metrics of one tier, or of every metric when there are no tiers. A tick hands every tier due on it
+     * to this method in turn, and then calls {@link #endTick()}.
+     */
+    public abstract void report(MetricIndex.Group<Gauge> gauges,
+                                MetricIndex.Group<Counter> counters,
+                                MetricIndex.Group<Histogram> histograms,
+                                MetricIndex.Group<Meter> meters,
+                                MetricIndex.Group<Timer> timers);
+
+    /**
+     * Called once every tier due on a tick was reported, also when reporting one of them failed, so that a subclass
+     * can send what they reported as one payload.
+     */
+    protected void endTick() {
+    }
+
+    private void metricRemoved(String name) {
+        if (loadSheddingPolicy != null) {
+            loadSheddingPolicy.forget(name);
+        }
+        if (nameNormalizer != null) {
+            nameNormalizer.forget(name);
+        }
+        if (sharedPass != null) {
+            sharedPass.forget(name);
+        }
+        onMetricRemoved(name);
+        if (nameNormalizer != null) {
+            forgetEmptiedTemplates();
+        }
+    }
+
+    // a template whose last member is gone is dropped like a removed metric
+    private void forgetEmptiedTemplates() {
+        for (String template : nameNormalizer.takeEmptiedTemplates()) {
+            if (sharedPass != null) {
+                sharedPass.forget(template);
+            }
+            onMetricRemoved(template);
+        }
+    }
+
+    /**
+     * Called on the registering thread when a metric is removed from the registry, so that subclasses can drop
+     * whatever they cached for it. Also called with the template of collapsed names once its last member is gone,
+     * possibly on the reporting thread.
+     *
+     * @param name the removed metric's name
+     */
+    protected void onMetricRemoved(String name) {
+    }
+
+    /**
+     * @return the sink the reported values are also stored in, or null
+     */
+    protected TimeSeriesSink getTimeSeriesSink() {
+        return timeSeriesSink;
+    }
+
+    /**
+     * @return the flight recorder events of this reporter, which record nothing unless enabled
+     */
+    protected ReporterEvents getEvents() {
+        return events;
+    }
+
+    /**
+     * @return true if gauge evaluation and delivery are handed off to virtual threads
+     */
+    public boolean isUsingVirtualThreads() {
+        return taskExecutor != null;
+    }
+
+    /**
+     * Runs the given task on a virtual thread, or right away on the calling thread when virtual threads are not in
+     * use. Either way the outcome is available through the returned {@link Future}.
+     */
+    protected <T> Future<T> submit(Callable<T> task) {
+        if (taskExecutor != null) {
+            return taskExecutor.submit(task);
+        }
+        FutureTask<T> futureTask = new FutureTask<T>(task);
+        futureTask.run();
+        return futureTask;
+    }
+
+    /**
+     * Evaluates the given gauges, concurrently when virtual threads are in use, and returns their values in
+     * iteration order. A gauge that throws yields null, as does every {@link AsyncGauge}, which is meant to be read
+     * directly.
+     */
+    protected Object[] evaluateGauges(MetricIndex.Group<Gauge> gauges) {
+        List<Future<Object>> futures = new ArrayList<Future<Object>>(gauges.size());
+        for (int i = 0; i < gauges.size(); i++) {
+            final String name = gauges.name(i);
+            final Gauge gauge = gauges.metric(i);
+            if (gauge instanceof AsyncGauge) {
+                futures.add(null);
+                continue;
+            }
+            futures.add(submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return getGaugeValue(name, gauge);
+                }
+            }));
+        }
+
+        Object[] values = new Object[futures.size()];
+        for (int i = 0; i < values.length; i++) {
+            Future<Object> future = futures.get(i);
+            values[i] = (future != null) ? await(future) : null;
+        }
+        return values;
+    }
+
+    /**
+     * Evaluates one gauge, recording it as a flight recorder event if it is slow.
+     *
+     * @return the gauge's value, or null if the gauge threw, which is logged rather than propagated
+     */
+    protected Object getGaugeValue(String name, Gauge gauge) {
+        Object event = events.beginGauge();
+        try {
+            return gauge.getValue();
+        } catch (RuntimeException rex) {
+            logger.error("Gauge " + name + " failed: ", rex);
+            return null;
+        } finally {
+            events.endGauge(event, name);
+        }
+    }
+
+    /**
+     * Waits for a task handed to {@link #submit(Callable)}, logging rather than propagating its failure.
+     *
+     * @return the task's result, or null if it failed
+     */
+    protected <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException eex) {
+            logger.error("Reporter task failed: ", eex.getCause());
+            return null;
+        }
+    }
+
+    @Override
+    public void stop() {
+        registry.removeListener(removalListener);
+        registry.removeListener(index);
+        for (TierIndex tier : tiers) {
+            registry.removeListener(tier.index);
+        }
+        for (MetricRegistryListener filterListener : filterListeners) {
+            registry.removeListener(filterListener);
+        }
+        synchronized (this) {
+            if (tierScheduler != null) {
+                tierScheduler.shutdown();
+                try {
+                    tierScheduler.awaitTermination(1, TimeUnit.SECONDS);
+                } catch (InterruptedException iex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        super.stop();
+        if (taskExecutor != null) {
+            taskExecutor.shutdown();
+        }
+        if (gaugeRefreshExecutor != null) {
+            gaugeRefreshExecutor.shutdown();
+        }
+    }
+
+    private final class TierIndex {
+        // null for the metrics claimed by no tier
+        private final ReportingTier tier;
+        private final MetricIndex index;
+        // null unless metrics may be shed
+        private final LoadSheddingPolicy.TierState shedding;
+
+        private TierIndex(ReportingTier tier, MetricIndex index) {
+            this.tier = tier;
+            this.index = index;
+            this.shedding = (loadSheddingPolicy != null)
+                    ? loadSheddingPolicy.newTier((tier != null) ? tier.getName() : "default") : null;
+        }
+
+        long periodMillis() {
+            return (tier != null) ? tier.getPeriod(TimeUnit.MILLISECONDS) : defaultPeriodMillis;
+        }
+
+        Section section() {
+            return new Section(this, index.gauges(), index.counters(), index.histograms(), index.meters(),
+                    index.timers());
+        }
+    }
+
+    /**
+     * The metrics of one tier as taken from its index for one tick.
+     */
+    private static final class Section {
+        private final long periodMillis;
+        private final LoadSheddingPolicy.TierState shedding;
+        private final MetricIndex.Group<Gauge> gauges;
+        private final MetricIndex.Group<Counter> counters;
+        private final MetricIndex.Group<Histogram> histograms;
+        private final MetricIndex.Group<Meter> meters;
+        private final MetricIndex.Group<Timer> timers;
+
+        private Section(TierIndex tier, MetricIndex.Group<Gauge> gauges, MetricIndex.Group<Counter> counters,
+                        MetricIndex.Group<Histogram> histograms, MetricIndex.Group<Meter> meters,
+                        MetricIndex.Group<Timer> timers) {
+            this.periodMillis = tier.periodMillis();
+            this.shedding = tier.shedding;
+            this.gauges = gauges;
+            this.counters = counters;
+            this.histograms = histograms;
+            this.meters = meters;
+            this.timers = timers;
+        }
+    }
+
+    /**
+     * Runs every tick of the fastest tier and reports the tiers due on it together. A tier is due once its next
+     * report is less than half a tick away, and its next report is then one period later, so a tier whose period is
+     * not a multiple of the tick keeps its rate on average.
+     */
+    private final class TierSchedule implements Runnable {
+        private final TierIndex[] sections;
+        private final long tickNanos;
+        private final long[] periodNanos;
+        private final long[] nextDueNanos;
+
+        private TierSchedule(List<TierIndex> sections, long tickMillis) {
+            this.sections = sections.toArray(new TierIndex[sections.size()]);
+            this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+            this.periodNanos = new long[this.sections.length];
+            this.nextDueNanos = new long[this.sections.length];
+            long now = System.nanoTime();
+            for (int i = 0; i < this.sections.length; i++) {
+                periodNanos[i] = TimeUnit.MILLISECONDS.toNanos(this.sections[i].periodMillis());
+                nextDueNanos[i] = now + periodNanos[i];
+            }
+        }
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            List<Section> due = new ArrayList<Section>(sections.length);
+            for (int i = 0; i < sections.length; i++) {
+                if (now - nextDueNanos[i] >= -tickNanos / 2) {
+                    due.add(sections[i].section());
+                    nextDueNanos[i] += periodNanos[i];
+                    if (nextDueNanos[i] - now <= 0) {
+                        nextDueNanos[i] = now + periodNanos[i];
+                    }
+                }
+            }
+            if (due.isEmpty()) {
+                return;
+            }
+            try {
+                reportTick(due);
+            } catch (RuntimeException rex) {
+                logger.error("Reporting tiers failed: ", rex);
+            }
+        }
+    }
+
+    /**
+     * Matches the metrics the reporter's filter lets through, that the tier claims (any metric for the default
+     * tier) and that no earlier tier has claimed.
+     */
+    private static final class TierFilter implements MetricFilter {
+        private final MetricFilter reporterFilter;
+        private final MetricFilter tierFilter;
+        private final MetricFilter[] earlierTiers;
+
+        private TierFilter(MetricFilter reporterFilter, MetricFilter tierFilter, List<MetricFilter> earlierTiers) {
+            this.reporterFilter = reporterFilter;
+            this.tierFilter = tierFilter;
+            this.earlierTiers = earlierTiers.toArray(new MetricFilter[earlierTiers.size()]);
+        }
+
+        @Override
+        public boolean matches(String name, Metric metric) {
+            if (!reporterFilter.matches(name, metric)) {
+                return false;
+            }
+            if (tierFilter != null && !tierFilter.matches(name, metric)) {
+                return false;
+            }
+            for (MetricFilter earlierTier : earlierTiers) {
+                if (earlierTier.matches(name, metric)) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 }
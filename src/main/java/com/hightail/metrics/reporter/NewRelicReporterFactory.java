@@ -2,19 +2,28 @@ package com.hightail.metrics.reporter;
 
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
+import com.hightail.metrics.agent.AgentTimer;
 import com.hightail.metrics.agent.NewRelicAgentReporter;
 import com.hightail.metrics.constants.NewRelicConstants;
 import com.hightail.metrics.constants.ReporterType;
+import com.hightail.metrics.dimensional.NewRelicDimensionalReporter;
 import com.hightail.metrics.exceptions.CannotCreateInstanceException;
+import com.hightail.metrics.filter.CompiledMetricFilter;
+import com.hightail.metrics.publish.MetricBatchPublisher;
 import com.hightail.metrics.rest.NewRelic;
 import com.hightail.metrics.rest.NewRelicHTTPv1Reporter;
+import com.hightail.metrics.sink.TimeSeriesSink;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.PatternSyntaxException;
 
 /**
  *
@@ -30,11 +39,36 @@ import java.util.concurrent.TimeUnit;
  *      - Component Id (The list of components inside a plugin)
  *      - App Id : com.companyname (companyname will appear as the plugin name on the left panel in the dashboard)
  *
+ *   for Dimensional:
+ *      - MetricsRegistry
+ *      - NewRelic License Key
+ *   optionally SERVICE_NAME, METRIC_API_URL, COMMON_ATTRIBUTES and PERCENTILES (e.g. "0.5,0.99");
+ *   TIME_SERIES_SINK is rejected, as dimensional metrics are not kept as flat series
+ *
  * The Default properties, if not provided explicitly are:
  *      - rate Unit     : {@link java.util.concurrent.TimeUnit.SECONDS}
  *      - duration Unit : {@link java.util.concurrent.TimeUnit.MILLISECONDS}
  *      - metric filter : {@link com.codahale.metrics.MetricFilter.ALL}
  *      - prefix        : null
+ *      - virtual threads : false (gauges and delivery run on the reporter thread)
+ *      - gauge refresh interval : 0 (gauges are evaluated on the reporter thread on every tick)
+ *      - agent timer flush mode : AGGREGATED (see {@link com.hightail.metrics.agent.AgentTimer.FlushMode})
+ *      - time series sink : none (TIME_SERIES_SINK takes a {@link com.hightail.metrics.sink.TimeSeriesSink})
+ *      - load shedding : off, unless SHED_MAX_CYCLE_MILLIS or SHED_MAX_HEAP_USAGE_PERCENT is given
+ *
+ * Metrics can also be selected by name with glob and regex lists (METRIC_INCLUDE_GLOBS, METRIC_EXCLUDE_GLOBS,
+ * METRIC_INCLUDE_REGEXES, METRIC_EXCLUDE_REGEXES). These are compiled into a
+ * {@link com.hightail.metrics.filter.CompiledMetricFilter}, combined with METRIC_FILTER if that is given too.
+ *
+ * Metrics can be reported at different intervals through REPORTING_TIERS, e.g. for a tier named "slo":
+ *      REPORTING_TIERS                         = slo
+ *      REPORTING_TIER.slo.INTERVAL_SECONDS     = 10
+ *      REPORTING_TIER.slo.METRIC_INCLUDE_GLOBS = com.hightail.api.*
+ *
+ * Under load shedding, metrics are NORMAL priority unless matched by METRIC_PRIORITY.HIGH.* or METRIC_PRIORITY.LOW.*:
+ *      SHED_MAX_CYCLE_MILLIS                       = 5000
+ *      METRIC_PRIORITY.HIGH.METRIC_INCLUDE_GLOBS   = com.hightail.api.*
+ *      METRIC_PRIORITY.LOW.METRIC_INCLUDE_GLOBS    = *.debug.*
  *
  *
  * Created by hightail on 4/6/14.
@@ -59,6 +93,10 @@ public class NewRelicReporterFactory {
                 newRelicReporter = buildNewRelicHttpV1Instance(properties);
                 break;
             }
+            case DIMENSIONAL: {
+                newRelicReporter = buildNewRelicDimensionalInstance(properties);
+                break;
+            }
         }
 
         return newRelicReporter;
@@ -101,22 +139,111 @@ public class NewRelicReporterFactory {
                 NewRelicConstants.DEFAULT_RATE_UNIT ;
         TimeUnit durationUnit = (properties.containsKey(NewRelicConstants.DURATION_UNIT)) ? (TimeUnit) properties.get(NewRelicConstants.DURATION_UNIT) :
                 NewRelicConstants.DEFAULT_DURATION_UNIT;
-        MetricFilter filter = (properties.containsKey(NewRelicConstants.METRIC_FILTER))? (MetricFilter) properties.get(NewRelicConstants.METRIC_FILTER):
-                NewRelicConstants.DEFAULT_METRIC_FILTER;
+        MetricFilter filter = buildMetricFilter(properties);
+        boolean useVirtualThreads = getBoolean(properties, NewRelicConstants.USE_VIRTUAL_THREADS,
+                NewRelicConstants.DEFAULT_USE_VIRTUAL_THREADS);
+        long gaugeRefreshMillis = getLong(properties, NewRelicConstants.GAUGE_REFRESH_INTERVAL_MILLIS,
+                NewRelicConstants.DEFAULT_GAUGE_REFRESH_INTERVAL_MILLIS);
 
         NewRelic newRelic = new NewRelic(NewRelicConstants.DEFAULT_URL,licenseKey,
                 componentName,
                 appId);
 
-        return NewRelicHTTPv1Reporter
-                .forRegistry(registry)
+        NewRelicHTTPv1Reporter.Builder builder = NewRelicHTTPv1Reporter.forRegistry(registry);
+        for (ReportingTier tier : buildReportingTiers(properties)) {
+            builder.tier(tier);
+        }
+        if (getBoolean(properties, NewRelicConstants.COALESCE_REQUESTS, NewRelicConstants.DEFAULT_COALESCE_REQUESTS)) {
+            builder.coalesceRequests();
+        }
+
+        return builder
                 .prefixedWith(prefix)
                 .convertRatesTo(rateUnit)
                 .convertDurationsTo(durationUnit)
                 .filter(filter)
+                .useVirtualThreads(useVirtualThreads)
+                .refreshGaugesAsynchronously(gaugeRefreshMillis, TimeUnit.MILLISECONDS)
+                .timeSeriesSink((TimeSeriesSink) properties.get(NewRelicConstants.TIME_SERIES_SINK))
+                .loadShedding(buildLoadSheddingPolicy(properties))
+                .collapseNames(buildNameNormalizer(properties))
+                .publishTo((MetricBatchPublisher) properties.get(NewRelicConstants.BATCH_PUBLISHER))
+                .recordFlightEvents(getBoolean(properties, NewRelicConstants.RECORD_FLIGHT_EVENTS,
+                        NewRelicConstants.DEFAULT_RECORD_FLIGHT_EVENTS))
                 .build(newRelic);
     }
 
+    private static NewRelicReporter buildNewRelicDimensionalInstance(Properties properties)
+            throws CannotCreateInstanceException {
+
+        List<String> errorMsgs = new ArrayList<String>();
+
+        if(!properties.containsKey(NewRelicConstants.METRIC_REGISTRY) ||  properties.get(NewRelicConstants.METRIC_REGISTRY) == null) {
+            errorMsgs.add(NewRelicConstants.METRIC_REGISTRY+" is not provided");
+        }
+
+        if(!properties.containsKey(NewRelicConstants.LICENSE_KEY) || StringUtils.isBlank(properties.getProperty(NewRelicConstants.LICENSE_KEY))) {
+            errorMsgs.add(NewRelicConstants.LICENSE_KEY+" is not provided");
+        }
+
+        if(!errorMsgs.isEmpty()) {
+            logger.error("Cannot instantiate New Relic Reporter because mandatory attributes are not provided: "+ errorMsgs.toString());
+            throw new CannotCreateInstanceException(errorMsgs.toString());
+        }
+
+        // the sink keeps flat series as HTTPv1 and the agent report them, which dimensional metrics do not map onto
+        if (properties.get(NewRelicConstants.TIME_SERIES_SINK) != null) {
+            logger.error("Cannot instantiate New Relic Reporter because a dimensional reporter cannot feed a time series sink");
+            throw new CannotCreateInstanceException(NewRelicConstants.TIME_SERIES_SINK + " is not supported by the "
+                    + ReporterType.DIMENSIONAL + " reporter");
+        }
+
+        MetricRegistry registry = (MetricRegistry) properties.get(NewRelicConstants.METRIC_REGISTRY);
+        String licenseKey = properties.getProperty(NewRelicConstants.LICENSE_KEY);
+        String serviceName = (properties.containsKey(NewRelicConstants.SERVICE_NAME)) ? properties.getProperty(NewRelicConstants.SERVICE_NAME) :
+                properties.getProperty(NewRelicConstants.COMPONENT_NAME);
+        String url = (properties.containsKey(NewRelicConstants.METRIC_API_URL)) ? properties.getProperty(NewRelicConstants.METRIC_API_URL) :
+                NewRelicConstants.DEFAULT_METRIC_API_URL;
+
+        String prefix = (properties.containsKey(NewRelicConstants.PREFIX)) ? properties.getProperty(NewRelicConstants.PREFIX) :
+                NewRelicConstants.DEFAULT_PREFIX;
+        TimeUnit rateUnit = (properties.containsKey(NewRelicConstants.RATE_UNIT)) ? (TimeUnit) properties.get(NewRelicConstants.RATE_UNIT) :
+                NewRelicConstants.DEFAULT_RATE_UNIT ;
+        TimeUnit durationUnit = (properties.containsKey(NewRelicConstants.DURATION_UNIT)) ? (TimeUnit) properties.get(NewRelicConstants.DURATION_UNIT) :
+                NewRelicConstants.DEFAULT_DURATION_UNIT;
+        MetricFilter filter = buildMetricFilter(properties);
+        boolean useVirtualThreads = getBoolean(properties, NewRelicConstants.USE_VIRTUAL_THREADS,
+                NewRelicConstants.DEFAULT_USE_VIRTUAL_THREADS);
+        long gaugeRefreshMillis = getLong(properties, NewRelicConstants.GAUGE_REFRESH_INTERVAL_MILLIS,
+                NewRelicConstants.DEFAULT_GAUGE_REFRESH_INTERVAL_MILLIS);
+
+        NewRelicDimensionalReporter.Builder builder = NewRelicDimensionalReporter.forRegistry(registry);
+        for (ReportingTier tier : buildReportingTiers(properties)) {
+            builder.tier(tier);
+        }
+        Object attributes = properties.get(NewRelicConstants.COMMON_ATTRIBUTES);
+        if (attributes instanceof Map) {
+            for (Map.Entry<?, ?> attribute : ((Map<?, ?>) attributes).entrySet()) {
+                builder.commonAttribute(String.valueOf(attribute.getKey()), String.valueOf(attribute.getValue()));
+            }
+        }
+
+        return builder
+                .prefixedWith(prefix)
+                .convertRatesTo(rateUnit)
+                .convertDurationsTo(durationUnit)
+                .filter(filter)
+                .useVirtualThreads(useVirtualThreads)
+                .refreshGaugesAsynchronously(gaugeRefreshMillis, TimeUnit.MILLISECONDS)
+                .loadShedding(buildLoadSheddingPolicy(properties))
+                .percentiles(getPercentiles(properties))
+                .collapseNames(buildNameNormalizer(properties))
+                .publishTo((MetricBatchPublisher) properties.get(NewRelicConstants.BATCH_PUBLISHER))
+                .recordFlightEvents(getBoolean(properties, NewRelicConstants.RECORD_FLIGHT_EVENTS,
+                        NewRelicConstants.DEFAULT_RECORD_FLIGHT_EVENTS))
+                .build(new NewRelic(url, licenseKey, serviceName, null));
+    }
+
     private static NewRelicReporter buildNewRelicAgentInstance(Properties properties) throws CannotCreateInstanceException {
 
 
@@ -131,16 +258,256 @@ public class NewRelicReporterFactory {
                 NewRelicConstants.DEFAULT_RATE_UNIT ;
         TimeUnit durationUnit = (properties.containsKey(NewRelicConstants.DURATION_UNIT)) ? (TimeUnit) properties.get(NewRelicConstants.DURATION_UNIT) :
                 NewRelicConstants.DEFAULT_DURATION_UNIT;
-        MetricFilter filter = (properties.containsKey(NewRelicConstants.METRIC_FILTER))? (MetricFilter) properties.get(NewRelicConstants.METRIC_FILTER):
-                NewRelicConstants.DEFAULT_METRIC_FILTER;
+        MetricFilter filter = buildMetricFilter(properties);
+        boolean useVirtualThreads = getBoolean(properties, NewRelicConstants.USE_VIRTUAL_THREADS,
+                NewRelicConstants.DEFAULT_USE_VIRTUAL_THREADS);
+        long gaugeRefreshMillis = getLong(properties, NewRelicConstants.GAUGE_REFRESH_INTERVAL_MILLIS,
+                NewRelicConstants.DEFAULT_GAUGE_REFRESH_INTERVAL_MILLIS);
+        AgentTimer.FlushMode agentTimerFlushMode = getAgentTimerFlushMode(properties);
 
-        return NewRelicAgentReporter
-                .forRegistry(registry)
+        NewRelicAgentReporter.Builder builder = NewRelicAgentReporter.forRegistry(registry);
+        for (ReportingTier tier : buildReportingTiers(properties)) {
+            builder.tier(tier);
+        }
+
+        return builder
                 .prefixedWith(prefix)
                 .convertRatesTo(rateUnit)
                 .convertDurationsTo(durationUnit)
                 .filter(filter)
+                .useVirtualThreads(useVirtualThreads)
+                .refreshGaugesAsynchronously(gaugeRefreshMillis, TimeUnit.MILLISECONDS)
+                .timeSeriesSink((TimeSeriesSink) properties.get(NewRelicConstants.TIME_SERIES_SINK))
+                .loadShedding(buildLoadSheddingPolicy(properties))
+                .flushAgentTimersAs(agentTimerFlushMode)
+                .collapseNames(buildNameNormalizer(properties))
+                .publishTo((MetricBatchPublisher) properties.get(NewRelicConstants.BATCH_PUBLISHER))
+                .recordFlightEvents(getBoolean(properties, NewRelicConstants.RECORD_FLIGHT_EVENTS,
+                        NewRelicConstants.DEFAULT_RECORD_FLIGHT_EVENTS))
                 .build();
 
     }
+
+    private static AgentTimer.FlushMode getAgentTimerFlushMode(Properties properties)
+            throws CannotCreateInstanceException {
+        Object value = properties.get(NewRelicConstants.AGENT_TIMER_FLUSH_MODE);
+        if (value == null) {
+            return NewRelicConstants.DEFAULT_AGENT_TIMER_FLUSH_MODE;
+        }
+        if (value instanceof AgentTimer.FlushMode) {
+            return (AgentTimer.FlushMode) value;
+        }
+        try {
+            return AgentTimer.FlushMode.valueOf(value.toString().trim().toUpperCase());
+        } catch (IllegalArgumentException iaex) {
+            logger.error("Cannot instantiate New Relic Reporter because of an unknown agent timer flush mode: " + value);
+            throw new CannotCreateInstanceException(NewRelicConstants.AGENT_TIMER_FLUSH_MODE + " is not one of "
+                    + Arrays.toString(AgentTimer.FlushMode.values()));
+        }
+    }
+
+    private static double[] getPercentiles(Properties properties) throws CannotCreateInstanceException {
+        Object value = properties.get(NewRelicConstants.PERCENTILES);
+        if (value instanceof double[]) {
+            return (double[]) value;
+        }
+        List<String> values = getList(properties, NewRelicConstants.PERCENTILES);
+        double[] percentiles = new double[values.size()];
+        for (int i = 0; i < percentiles.length; i++) {
+            try {
+                percentiles[i] = Double.parseDouble(values.get(i));
+            } catch (NumberFormatException nfex) {
+                logger.error("Cannot instantiate New Relic Reporter because of an invalid percentile: " + values.get(i));
+                throw new CannotCreateInstanceException(NewRelicConstants.PERCENTILES + " is not a list of numbers: " + value);
+            }
+            if (percentiles[i] < 0 || percentiles[i] > 1) {
+                logger.error("Cannot instantiate New Relic Reporter because of an invalid percentile: " + values.get(i));
+                throw new CannotCreateInstanceException(NewRelicConstants.PERCENTILES + " must be quantiles between 0 and 1: " + value);
+            }
+        }
+        return percentiles;
+    }
+
+    private static List<ReportingTier> buildReportingTiers(Properties properties)
+            throws CannotCreateInstanceException {
+        List<ReportingTier> tiers = new ArrayList<ReportingTier>();
+        Object value = properties.get(NewRelicConstants.REPORTING_TIERS);
+        if (value instanceof Collection && !((Collection<?>) value).isEmpty()
+                && ((Collection<?>) value).iterator().next() instanceof ReportingTier) {
+            for (Object tier : (Collection<?>) value) {
+                tiers.add((ReportingTier) tier);
+            }
+            return tiers;
+        }
+
+        for (String tierName : getList(properties, NewRelicConstants.REPORTING_TIERS)) {
+            String keyPrefix = NewRelicConstants.REPORTING_TIER_PREFIX + tierName + ".";
+            long intervalSeconds = getLong(properties, keyPrefix + NewRelicConstants.INTERVAL_SECONDS, 0);
+            if (intervalSeconds <= 0) {
+                logger.error("Cannot instantiate New Relic Reporter because reporting tier " + tierName + " has no interval");
+                throw new CannotCreateInstanceException(keyPrefix + NewRelicConstants.INTERVAL_SECONDS + " is not provided");
+            }
+
+            MetricFilter tierFilter = buildPatternFilter(properties, keyPrefix, MetricFilter.ALL);
+            tiers.add(new ReportingTier(tierName, tierFilter, intervalSeconds, TimeUnit.SECONDS));
+        }
+        return tiers;
+    }
+
+    private static LoadSheddingPolicy buildLoadSheddingPolicy(Properties properties)
+            throws CannotCreateInstanceException {
+        if (properties.get(NewRelicConstants.LOAD_SHEDDING_POLICY) instanceof LoadSheddingPolicy) {
+            return (LoadSheddingPolicy) properties.get(NewRelicConstants.LOAD_SHEDDING_POLICY);
+        }
+
+        long maxCycleMillis = getLong(properties, NewRelicConstants.SHED_MAX_CYCLE_MILLIS, 0);
+        long maxHeapUsagePercent = getLong(properties, NewRelicConstants.SHED_MAX_HEAP_USAGE_PERCENT, 0);
+        if (maxCycleMillis <= 0 && maxHeapUsagePercent <= 0) {
+            return null;
+        }
+
+        LoadSheddingPolicy.Builder builder = LoadSheddingPolicy.builder();
+        if (maxCycleMillis > 0) {
+            builder.maxCycleTime(maxCycleMillis, TimeUnit.MILLISECONDS);
+        }
+        if (maxHeapUsagePercent > 0) {
+            builder.maxHeapUsage(maxHeapUsagePercent / 100.0);
+        }
+        long downsampleFactor = getLong(properties, NewRelicConstants.SHED_DOWNSAMPLE_FACTOR, 0);
+        if (downsampleFactor > 0) {
+            builder.downsampleFactor((int) downsampleFactor);
+        }
+
+        for (MetricPriority priority : MetricPriority.values()) {
+            String keyPrefix = NewRelicConstants.METRIC_PRIORITY_PREFIX + priority.name() + ".";
+            Object filter = properties.get(keyPrefix + NewRelicConstants.METRIC_FILTER);
+            if (filter instanceof MetricFilter) {
+                builder.priority((MetricFilter) filter, priority);
+            }
+            MetricFilter patternFilter = buildPatternFilter(properties, keyPrefix, MetricFilter.ALL);
+            if (patternFilter != MetricFilter.ALL) {
+                builder.priority(patternFilter, priority);
+            }
+        }
+        return builder.build();
+    }
+
+    private static NameNormalizer buildNameNormalizer(Properties properties) throws CannotCreateInstanceException {
+        if (properties.get(NewRelicConstants.NAME_NORMALIZER) instanceof NameNormalizer) {
+            return (NameNormalizer) properties.get(NewRelicConstants.NAME_NORMALIZER);
+        }
+
+        long collapseAfter = getLong(properties, NewRelicConstants.COLLAPSE_SEGMENTS_AFTER, 0);
+        if (collapseAfter <= 0) {
+            return null;
+        }
+        return NameNormalizer.builder().maxValuesPerSegment((int) collapseAfter).build();
+    }
+
+    private static MetricFilter buildMetricFilter(Properties properties)
+            throws CannotCreateInstanceException {
+        MetricFilter filter = (properties.containsKey(NewRelicConstants.METRIC_FILTER))? (MetricFilter) properties.get(NewRelicConstants.METRIC_FILTER):
+                NewRelicConstants.DEFAULT_METRIC_FILTER;
+
+        return buildPatternFilter(properties, "", filter);
+    }
+
+    /**
+     * Compiles the pattern lists found under the given key prefix into a filter applied on top of
+     * {@code filter}, or returns {@code filter} itself if there are none.
+     */
+    private static MetricFilter buildPatternFilter(Properties properties, String keyPrefix,
+                                                   MetricFilter filter) throws CannotCreateInstanceException {
+        List<String> includeGlobs = getList(properties, keyPrefix + NewRelicConstants.METRIC_INCLUDE_GLOBS);
+        List<String> excludeGlobs = getList(properties, keyPrefix + NewRelicConstants.METRIC_EXCLUDE_GLOBS);
+        List<String> includeRegexes = getRegexList(properties, keyPrefix + NewRelicConstants.METRIC_INCLUDE_REGEXES);
+        List<String> excludeRegexes = getRegexList(properties, keyPrefix + NewRelicConstants.METRIC_EXCLUDE_REGEXES);
+
+        if (includeGlobs.isEmpty() && excludeGlobs.isEmpty() && includeRegexes.isEmpty() && excludeRegexes.isEmpty()) {
+            return filter;
+        }
+
+        CompiledMetricFilter.Builder builder = CompiledMetricFilter.builder().and(filter);
+        for (String glob : includeGlobs) {
+            builder.includeGlob(glob);
+        }
+        for (String glob : excludeGlobs) {
+            builder.excludeGlob(glob);
+        }
+        for (String regex : includeRegexes) {
+            builder.includeRegex(regex);
+        }
+        for (String regex : excludeRegexes) {
+            builder.excludeRegex(regex);
+        }
+
+        CompiledMetricFilter compiledFilter;
+        try {
+            compiledFilter = builder.build();
+        } catch (PatternSyntaxException psex) {
+            logger.error("Cannot instantiate New Relic Reporter because of an invalid metric pattern: ", psex);
+            throw new CannotCreateInstanceException(psex.getMessage());
+        }
+        // the reporter registers the filter with the registry, and removes it when it stops
+        return compiledFilter;
+    }
+
+    private static List<String> getList(Properties properties, String key) {
+        Object value = properties.get(key);
+        List<String> values = new ArrayList<String>();
+        if (value instanceof String[]) {
+            values.addAll(Arrays.asList((String[]) value));
+        } else if (value instanceof Collection) {
+            for (Object element : (Collection<?>) value) {
+                values.add(String.valueOf(element));
+            }
+        } else if (value != null) {
+            for (String element : StringUtils.split(value.toString(), ',')) {
+                if (StringUtils.isNotBlank(element)) {
+                    values.add(element.trim());
+                }
+            }
+        }
+        return values;
+    }
+
+    // regexes may contain commas, e.g. in {1,3}, so a string holds one regex per line rather than a comma separated list
+    private static List<String> getRegexList(Properties properties, String key) {
+        Object value = properties.get(key);
+        if (value == null || value instanceof String[] || value instanceof Collection) {
+            return getList(properties, key);
+        }
+        List<String> values = new ArrayList<String>();
+        for (String line : StringUtils.split(value.toString(), "\r\n")) {
+            if (StringUtils.isNotBlank(line)) {
+                values.add(line);
+            }
+        }
+        return values;
+    }
+
+    private static boolean getBoolean(Properties properties, String key, boolean defaultValue) {
+        Object value = properties.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        return (value instanceof Boolean) ? (Boolean) value : Boolean.parseBoolean(value.toString().trim());
+    }
+
+    private static long getLong(Properties properties, String key, long defaultValue)
+            throws CannotCreateInstanceException {
+        Object value = properties.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return Long.parseLong(value.toString().trim());
+        } catch (NumberFormatException nfex) {
+            logger.error("Cannot instantiate New Relic Reporter because " + key + " is not a number: " + value);
+            throw new CannotCreateInstanceException(key + " is not a number: " + value);
+        }
+    }
 }
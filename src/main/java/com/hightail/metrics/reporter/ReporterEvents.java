@@ -0,0 +1,328 @@
+package com.hightail.metrics.reporter;
+
+import org.apache.log4j.Logger;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Java Flight Recorder events for the work a reporter does, so that reporting cycles show up next to GC pauses and
+ * application latency in the same recording:
+ *
+ * <ul>
+ * <li>{@value #CYCLE}: one reporting cycle, from start to end</li>
+ * <li>{@value #COLLECTION}: reading the metrics of one type within a cycle</li>
+ * <li>{@value #ENCODING}: writing one request body</li>
+ * <li>{@value #DELIVERY}: one attempt at sending a request, with its size and outcome</li>
+ * <li>{@value #SLOW_GAUGE}: a gauge that took longer than the event's threshold, 10 ms unless the recording's
+ * settings say otherwise</li>
+ * </ul>
+ *
+ * The events are defined through {@code jdk.jfr.EventFactory}, looked up reflectively like the virtual threads in
+ * {@link ReporterExecutors}, so the reporters still run on JVMs without JFR. They are off unless the reporter is built
+ * with {@link ReporterOptions#recordFlightEvents(boolean)}; a disabled reporter only ever reads a final field, while
+ * an enabled one makes at least one reflective call, which allocates, for every event, recorded or not.
+ *
+ * Each {@code begin} method returns an opaque handle to pass to the matching {@code end} method, null when the event
+ * is not being recorded.
+ */
+public final class ReporterEvents {
+
+    private static final Logger logger = Logger.getLogger(ReporterEvents.class);
+
+    public static final String CYCLE = "com.hightail.metrics.ReporterCycle";
+    public static final String COLLECTION = "com.hightail.metrics.ReporterCollection";
+    public static final String ENCODING = "com.hightail.metrics.ReporterEncoding";
+    public static final String DELIVERY = "com.hightail.metrics.ReporterDelivery";
+    public static final String SLOW_GAUGE = "com.hightail.metrics.ReporterSlowGauge";
+
+    private static final String CATEGORY = "New Relic Reporter";
+    private static final String SLOW_GAUGE_THRESHOLD = "10 ms";
+
+    private static final ReporterEvents DISABLED = new ReporterEvents(null, null);
+
+    private final EventTypes types;
+    private final String reporter;
+
+    private ReporterEvents(EventTypes types, String reporter) {
+        this.types = types;
+        this.reporter = reporter;
+    }
+
+    /**
+     * @return true if the running JVM has Java Flight Recorder
+     */
+    public static boolean isFlightRecorderSupported() {
+        return EventTypes.INSTANCE != null;
+    }
+
+    /**
+     * Returns the events of the given reporter, which record nothing unless enabled and supported by the JVM.
+     *
+     * @param reporter the reporter's name, recorded with every event
+     * @param enabled  whether the reporter records events at all
+     */
+    public static ReporterEvents forReporter(String reporter, boolean enabled) {
+        if (!enabled) {
+            return DISABLED;
+        }
+        if (!isFlightRecorderSupported()) {
+            logger.warn("Java Flight Recorder is not available on this JVM, " + reporter + " will record no events");
+            return DISABLED;
+        }
+        return new ReporterEvents(EventTypes.INSTANCE, reporter);
+    }
+
+    /**
+     * @return true if the reporter records events, whether or not a recording is running
+     */
+    public boolean isEnabled() {
+        return types != null;
+    }
+
+    public Object beginCycle() {
+        return (types != null) ? types.cycle.begin() : null;
+    }
+
+    /**
+     * @param metricCount the number of metrics the cycle reported
+     */
+    public void endCycle(Object event, int metricCount) {
+        if (event != null) {
+            types.cycle.commit(event, reporter, metricCount);
+        }
+    }
+
+    public Object beginCollection() {
+        return (types != null) ? types.collection.begin() : null;
+    }
+
+    /**
+     * @param metricType  the type of the metrics collected, e.g. "timers"
+     * @param metricCount the number of metrics collected
+     */
+    public void endCollection(Object event, String metricType, int metricCount) {
+        if (event != null) {
+            types.collection.commit(event, reporter, metricType, metricCount);
+        }
+    }
+
+    public Object beginEncoding() {
+        return (types != null) ? types.encoding.begin() : null;
+    }
+
+    /**
+     * @param bytes       the size of the encoded request
+     * @param metricCount the number of values in the request
+     */
+    public void endEncoding(Object event, int bytes, int metricCount) {
+        if (event != null) {
+            types.encoding.commit(event, reporter, (long) bytes, metricCount);
+        }
+    }
+
+    public Object beginDelivery() {
+        return (types != null) ? types.delivery.begin() : null;
+    }
+
+    /**
+     * @param endpoint where the request went
+     * @param bytes    the size of the request
+     * @param failure  why the attempt failed, null if it succeeded
+     */
+    public void endDelivery(Object event, String endpoint, int bytes, Throwable failure) {
+        if (event != null) {
+            types.delivery.commit(event, reporter, endpoint, (long) bytes, failure == null,
+                    (failure != null) ? String.valueOf(failure) : null);
+        }
+    }
+
+    public Object beginGauge() {
+        return (types != null) ? types.slowGauge.begin() : null;
+    }
+
+    /**
+     * Records the gauge if it took longer than the event's threshold.
+     *
+     * @param name the gauge's name
+     */
+    public void endGauge(Object event, String name) {
+        if (event != null) {
+            types.slowGauge.commit(event, reporter, name);
+        }
+    }
+
+    /**
+     * The event types, registered once per JVM. Null when JFR is not available.
+     */
+    private static final class EventTypes {
+        private static final EventTypes INSTANCE = create();
+
+        private final EventType cycle;
+        private final EventType collection;
+        private final EventType encoding;
+        private final EventType delivery;
+        private final EventType slowGauge;
+
+        private EventTypes(Reflection jfr) throws Exception {
+            cycle = jfr.define(CYCLE, "Reporter Cycle", "One reporting cycle, from start to end", null,
+                    field(String.class, "reporter", "Reporter"),
+                    field(int.class, "metrics", "Metrics"));
+            collection = jfr.define(COLLECTION, "Reporter Collection", "Reading the metrics of one type", null,
+                    field(String.class, "reporter", "Reporter"),
+                    field(String.class, "metricType", "Metric Type"),
+                    field(int.class, "metrics", "Metrics"));
+            encoding = jfr.define(ENCODING, "Reporter Encoding", "Writing one request body", null,
+                    field(String.class, "reporter", "Reporter"),
+                    field(long.class, "bytes", "Size"),
+                    field(int.class, "metrics", "Metrics"));
+            delivery = jfr.define(DELIVERY, "Reporter Delivery", "One attempt at sending a request", null,
+                    field(String.class, "reporter", "Reporter"),
+                    field(String.class, "endpoint", "Endpoint"),
+                    field(long.class, "bytes", "Size"),
+                    field(boolean.class, "succeeded", "Succeeded"),
+                    field(String.class, "failure", "Failure"));
+            slowGauge = jfr.define(SLOW_GAUGE, "Reporter Slow Gauge", "A gauge that was slow to evaluate",
+                    SLOW_GAUGE_THRESHOLD,
+                    field(String.class, "reporter", "Reporter"),
+                    field(String.class, "gauge", "Gauge"));
+        }
+
+        private static EventTypes create() {
+            try {
+                return new EventTypes(new Reflection());
+            } catch (ClassNotFoundException cnfex) {
+                return null;
+            } catch (Exception ex) {
+                logger.warn("Could not define the reporter's flight recorder events: ", ex);
+                return null;
+            } catch (LinkageError lerr) {
+                return null;
+            }
+        }
+
+        private static Object[] field(Class<?> type, String name, String label) {
+            return new Object[]{type, name, label};
+        }
+    }
+
+    /**
+     * One event type, created through {@code jdk.jfr.EventFactory}.
+     */
+    private static final class EventType {
+        private final Object factory;
+        private final Object type;
+        private final Reflection jfr;
+
+        private EventType(Object factory, Reflection jfr) throws Exception {
+            this.factory = factory;
+            this.type = jfr.getEventType.invoke(factory);
+            this.jfr = jfr;
+        }
+
+        // a started event, or null while no recording wants it
+        Object begin() {
+            try {
+                if (!(Boolean) jfr.isEnabled.invoke(type)) {
+                    return null;
+                }
+                Object event = jfr.newEvent.invoke(factory);
+                jfr.begin.invoke(event);
+                return event;
+            } catch (Exception ex) {
+                logger.debug("Could not begin a flight recorder event: ", ex);
+                return null;
+            }
+        }
+
+        void commit(Object event, Object... values) {
+            try {
+                jfr.end.invoke(event);
+                if (!(Boolean) jfr.shouldCommit.invoke(event)) {
+                    return;
+                }
+                for (int i = 0; i < values.length; i++) {
+                    jfr.set.invoke(event, i, values[i]);
+                }
+                jfr.commit.invoke(event);
+            } catch (Exception ex) {
+                logger.debug("Could not commit a flight recorder event: ", ex);
+            }
+        }
+    }
+
+    /**
+     * The parts of {@code jdk.jfr} the events are built with.
+     */
+    private static final class Reflection {
+        private final Class<? extends Annotation> name;
+        private final Class<? extends Annotation> label;
+        private final Class<? extends Annotation> description;
+        private final Class<? extends Annotation> category;
+        private final Class<? extends Annotation> threshold;
+        private final Constructor<?> annotationElement;
+        private final Constructor<?> valueDescriptor;
+        private final Method create;
+        private final Method getEventType;
+        private final Method isEnabled;
+        private final Method newEvent;
+        private final Method begin;
+        private final Method end;
+        private final Method shouldCommit;
+        private final Method set;
+        private final Method commit;
+
+        Reflection() throws Exception {
+            name = annotation("jdk.jfr.Name");
+            label = annotation("jdk.jfr.Label");
+            description = annotation("jdk.jfr.Description");
+            category = annotation("jdk.jfr.Category");
+            threshold = annotation("jdk.jfr.Threshold");
+            annotationElement = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+            valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor")
+                    .getConstructor(Class.class, String.class, List.class);
+
+            Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+            create = eventFactory.getMethod("create", List.class, List.class);
+            getEventType = eventFactory.getMethod("getEventType");
+            newEvent = eventFactory.getMethod("newEvent");
+            isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            begin = event.getMethod("begin");
+            end = event.getMethod("end");
+            shouldCommit = event.getMethod("shouldCommit");
+            set = event.getMethod("set", int.class, Object.class);
+            commit = event.getMethod("commit");
+        }
+
+        // fields are {type, name, label} triples
+        EventType define(String eventName, String eventLabel, String eventDescription, String eventThreshold,
+                         Object[]... fields) throws Exception {
+            List<Object> annotations = new ArrayList<Object>();
+            annotations.add(annotationElement.newInstance(name, eventName));
+            annotations.add(annotationElement.newInstance(label, eventLabel));
+            annotations.add(annotationElement.newInstance(description, eventDescription));
+            annotations.add(annotationElement.newInstance(category, new String[]{CATEGORY}));
+            if (eventThreshold != null) {
+                annotations.add(annotationElement.newInstance(threshold, eventThreshold));
+            }
+
+            List<Object> values = new ArrayList<Object>(fields.length);
+            for (Object[] field : fields) {
+                values.add(valueDescriptor.newInstance(field[0], field[1],
+                        Collections.singletonList(annotationElement.newInstance(label, field[2]))));
+            }
+            return new EventType(create.invoke(null, annotations, values), this);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Class<? extends Annotation> annotation(String className) throws ClassNotFoundException {
+            return (Class<? extends Annotation>) Class.forName(className);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.hightail.metrics.reporter;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors the reporters hand their blocking work (gauge evaluation, HTTP delivery) to.
+ *
+ * Virtual threads are looked up reflectively so that the reporters still compile and run on JVMs that predate them;
+ * on such JVMs {@link #newVirtualThreadExecutor(String)} returns null and the reporter keeps doing all of its work on
+ * the single {@link com.codahale.metrics.ScheduledReporter} thread.
+ */
+public final class ReporterExecutors {
+
+    private static final Logger logger = Logger.getLogger(ReporterExecutors.class);
+
+    private ReporterExecutors() {
+    }
+
+    /**
+     * @return true if the running JVM can create virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return true;
+        } catch (NoSuchMethodException nsmex) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns an executor that starts a new virtual thread for every task, or null if the running JVM has no
+     * virtual threads.
+     *
+     * @param name prefix used for naming the virtual threads
+     * @return a thread-per-task {@link ExecutorService} backed by virtual threads, or null
+     */
+    public static ExecutorService newVirtualThreadExecutor(String name) {
+        if (!isVirtualThreadSupported()) {
+            return null;
+        }
+
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+            Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+        } catch (Exception ex) {
+            logger.warn("Could not create a virtual thread executor, falling back to the reporter thread: ", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Returns a cached pool of daemon platform threads, for background work when virtual threads are not in use.
+     *
+     * @param name prefix used for naming the threads
+     * @return a cached thread pool
+     */
+    public static ExecutorService newDaemonExecutor(final String name) {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns a single-threaded scheduler running on a daemon thread.
+     *
+     * @param name the thread's name
+     * @return a single-threaded {@link ScheduledExecutorService}
+     */
+    public static ScheduledExecutorService newDaemonScheduler(final String name) {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,149 @@
+package com.hightail.metrics.reporter;
+
+import com.hightail.metrics.publish.MetricBatchPublisher;
+import com.hightail.metrics.sink.TimeSeriesSink;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The optional behaviour shared by all {@link NewRelicReporter}s. The reporters' builders fill one of these in and
+ * hand it to the reporter's constructor; the defaults reproduce the plain single-threaded, synchronous reporter.
+ */
+public class ReporterOptions {
+
+    private boolean useVirtualThreads;
+    private long gaugeRefreshMillis;
+    private final List<ReportingTier> tiers = new ArrayList<ReportingTier>();
+    private TimeSeriesSink timeSeriesSink;
+    private LoadSheddingPolicy loadSheddingPolicy;
+    private boolean recordFlightEvents;
+    private NameNormalizer nameNormalizer;
+    private MetricBatchPublisher batchPublisher;
+
+    public ReporterOptions() {
+        this.useVirtualThreads = false;
+        this.gaugeRefreshMillis = 0;
+    }
+
+    /**
+     * Run gauge evaluation and delivery on virtual threads instead of the reporter thread. Ignored on JVMs without
+     * virtual threads.
+     */
+    public ReporterOptions useVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+        return this;
+    }
+
+    /**
+     * Refresh gauges in the background at the given interval and report their latest value instead of calling them
+     * on the reporter thread. A period of 0 evaluates gauges synchronously on every tick.
+     *
+     * @see com.hightail.metrics.gauge.AsyncGauge
+     */
+    public ReporterOptions refreshGaugesAsynchronously(long period, TimeUnit unit) {
+        this.gaugeRefreshMillis = unit.toMillis(period);
+        return this;
+    }
+
+    /**
+     * Report the metrics matching the tier's filter at the tier's own period. Tiers are matched in the order they
+     * are added.
+     */
+    public ReporterOptions addTier(ReportingTier tier) {
+        tiers.add(tier);
+        return this;
+    }
+
+    /**
+     * Also store every reported value in the given sink, from the same reporting pass. A sink is fed by one reporter
+     * only.
+     */
+    public ReporterOptions timeSeriesSink(TimeSeriesSink timeSeriesSink) {
+        this.timeSeriesSink = timeSeriesSink;
+        return this;
+    }
+
+    /**
+     * Shed low priority metrics first while the reporter is under pressure. A policy serves one reporter only.
+     */
+    public ReporterOptions loadShedding(LoadSheddingPolicy loadSheddingPolicy) {
+        this.loadSheddingPolicy = loadSheddingPolicy;
+        return this;
+    }
+
+    /**
+     * Record the reporter's work as Java Flight Recorder events. Ignored on JVMs without JFR.
+     *
+     * @see ReporterEvents
+     */
+    public ReporterOptions recordFlightEvents(boolean recordFlightEvents) {
+        this.recordFlightEvents = recordFlightEvents;
+        return this;
+    }
+
+    /**
+     * Collapse the ID segments of metric names, reporting the metrics that share a template as one. A normalizer
+     * serves one reporter only.
+     */
+    public ReporterOptions nameNormalizer(NameNormalizer nameNormalizer) {
+        this.nameNormalizer = nameNormalizer;
+        return this;
+    }
+
+    /**
+     * Also hand every reporting pass to the given publisher's subscribers, reading each gauge and snapshot once for
+     * both. The publisher is fed what this reporter reports, one batch per tier tick, so its own filter, tiers and
+     * options do not apply and it must not be started itself. A publisher is fed by one reporter only.
+     */
+    public ReporterOptions publishTo(MetricBatchPublisher batchPublisher) {
+        this.batchPublisher = batchPublisher;
+        return this;
+    }
+
+    public boolean isUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    public long getGaugeRefreshMillis() {
+        return gaugeRefreshMillis;
+    }
+
+    /**
+     * @return the sink fed with the reported values, or null
+     */
+    public TimeSeriesSink getTimeSeriesSink() {
+        return timeSeriesSink;
+    }
+
+    /**
+     * @return the load shedding policy, or null to always report everything
+     */
+    public LoadSheddingPolicy getLoadSheddingPolicy() {
+        return loadSheddingPolicy;
+    }
+
+    /**
+     * @return the normalizer collapsing metric names, or null to report names as they are
+     */
+    public NameNormalizer getNameNormalizer() {
+        return nameNormalizer;
+    }
+
+    /**
+     * @return the publisher fed from the same reporting pass, or null
+     */
+    public MetricBatchPublisher getBatchPublisher() {
+        return batchPublisher;
+    }
+
+    public boolean isRecordFlightEvents() {
+        return recordFlightEvents;
+    }
+
+    public List<ReportingTier> getTiers() {
+        return Collections.unmodifiableList(tiers);
+    }
+}
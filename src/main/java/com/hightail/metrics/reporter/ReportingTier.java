@@ -0,0 +1,54 @@
+package com.hightail.metrics.reporter;
+
+import com.codahale.metrics.MetricFilter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A set of metrics a {@link NewRelicReporter} reports at their own interval, e.g. SLO timers every 10 seconds while
+ * everything else goes out every minute.
+ *
+ * A metric belongs to the first tier whose filter matches it; metrics matched by no tier are reported at the period
+ * passed to {@link NewRelicReporter#start(long, TimeUnit)}.
+ */
+public class ReportingTier {
+
+    private final String name;
+    private final MetricFilter filter;
+    private final long periodMillis;
+
+    /**
+     * @param name   the tier's name, used in log messages
+     * @param filter selects the metrics of this tier
+     * @param period how often the tier is reported
+     * @param unit   the unit of {@code period}
+     */
+    public ReportingTier(String name, MetricFilter filter, long period, TimeUnit unit) {
+        if (unit.toMillis(period) <= 0) {
+            throw new IllegalArgumentException("Reporting tier " + name + " needs a period of at least 1 millisecond");
+        }
+        this.name = name;
+        this.filter = filter;
+        this.periodMillis = unit.toMillis(period);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public MetricFilter getFilter() {
+        return filter;
+    }
+
+    public long getPeriod(TimeUnit unit) {
+        return unit.convert(periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "ReportingTier{" +
+                "name='" + name + '\'' +
+                ", periodMillis=" + periodMillis +
+                '}';
+    }
+}
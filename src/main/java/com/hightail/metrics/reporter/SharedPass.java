@@ -0,0 +1,218 @@
+package com.hightail.metrics.reporter;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformReservoir;
+import com.hightail.metrics.agent.AgentTimer;
+import com.hightail.metrics.exemplar.ExemplarTimer;
+import com.hightail.metrics.gauge.AsyncGauge;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets a {@link com.hightail.metrics.publish.MetricBatchPublisher} share a reporter's collection pass. Gauges, and the
+ * snapshots of timers and histograms, are read once per pass by whichever side comes first and handed to the other
+ * as they were read. Counters and meters are cheap to read and are passed on as they are, as are the
+ * {@link AsyncGauge}s, {@link ExemplarTimer}s and {@link AgentTimer}s that reporters handle by their own type.
+ *
+ * The views are kept per name and reused from pass to pass.
+ */
+final class SharedPass {
+
+    // never updated, only there because a Histogram cannot be built without one
+    private static final Reservoir NO_RESERVOIR = new UniformReservoir(1);
+
+    // guarded by this
+    private final Map<String, SharedGauge> gauges = new HashMap<String, SharedGauge>();
+    private final Map<String, SharedHistogram> histograms = new HashMap<String, SharedHistogram>();
+    private final Map<String, SharedTimer> timers = new HashMap<String, SharedTimer>();
+
+    synchronized MetricIndex.Group<Gauge> gauges(MetricIndex.Group<Gauge> group) {
+        String[] names = new String[group.size()];
+        Metric[] metrics = new Metric[group.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = group.name(i);
+            Gauge gauge = group.metric(i);
+            if (gauge instanceof AsyncGauge) {
+                metrics[i] = gauge;
+                continue;
+            }
+            SharedGauge view = gauges.get(names[i]);
+            if (view == null) {
+                view = new SharedGauge();
+                gauges.put(names[i], view);
+            }
+            view.reset(gauge);
+            metrics[i] = view;
+        }
+        return MetricIndex.Group.of(names, metrics);
+    }
+
+    synchronized MetricIndex.Group<Histogram> histograms(MetricIndex.Group<Histogram> group) {
+        String[] names = new String[group.size()];
+        Metric[] metrics = new Metric[group.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = group.name(i);
+            SharedHistogram view = histograms.get(names[i]);
+            if (view == null) {
+                view = new SharedHistogram();
+                histograms.put(names[i], view);
+            }
+            view.reset(group.metric(i));
+            metrics[i] = view;
+        }
+        return MetricIndex.Group.of(names, metrics);
+    }
+
+    synchronized MetricIndex.Group<Timer> timers(MetricIndex.Group<Timer> group) {
+        String[] names = new String[group.size()];
+        Metric[] metrics = new Metric[group.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = group.name(i);
+            Timer timer = group.metric(i);
+            if (timer instanceof ExemplarTimer || timer instanceof AgentTimer) {
+                metrics[i] = timer;
+                continue;
+            }
+            SharedTimer view = timers.get(names[i]);
+            if (view == null) {
+                view = new SharedTimer();
+                timers.put(names[i], view);
+            }
+            view.reset(timer);
+            metrics[i] = view;
+        }
+        return MetricIndex.Group.of(names, metrics);
+    }
+
+    synchronized void forget(String name) {
+        gauges.remove(name);
+        histograms.remove(name);
+        timers.remove(name);
+    }
+
+    private static final class SharedGauge implements Gauge<Object> {
+        // guarded by this
+        private Gauge gauge;
+        private boolean read;
+        private Object value;
+
+        synchronized void reset(Gauge gauge) {
+            this.gauge = gauge;
+            this.read = false;
+            this.value = null;
+        }
+
+        @Override
+        public synchronized Object getValue() {
+            if (!read) {
+                value = gauge.getValue();
+                read = true;
+            }
+            return value;
+        }
+    }
+
+    private static final class SharedHistogram extends Histogram {
+        private volatile Histogram histogram;
+        // guarded by this
+        private Snapshot snapshot;
+
+        SharedHistogram() {
+            super(NO_RESERVOIR);
+        }
+
+        synchronized void reset(Histogram histogram) {
+            this.histogram = histogram;
+            this.snapshot = null;
+        }
+
+        @Override
+        public void update(int value) {
+            histogram.update(value);
+        }
+
+        @Override
+        public void update(long value) {
+            histogram.update(value);
+        }
+
+        @Override
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        @Override
+        public synchronized Snapshot getSnapshot() {
+            if (snapshot == null) {
+                snapshot = histogram.getSnapshot();
+            }
+            return snapshot;
+        }
+    }
+
+    private static final class SharedTimer extends Timer {
+        private volatile Timer timer;
+        // guarded by this
+        private Snapshot snapshot;
+
+        SharedTimer() {
+            super(NO_RESERVOIR);
+        }
+
+        synchronized void reset(Timer timer) {
+            this.timer = timer;
+            this.snapshot = null;
+        }
+
+        @Override
+        public void update(long duration, TimeUnit unit) {
+            timer.update(duration, unit);
+        }
+
+        @Override
+        public <T> T time(Callable<T> event) throws Exception {
+            return timer.time(event);
+        }
+
+        @Override
+        public long getCount() {
+            return timer.getCount();
+        }
+
+        @Override
+        public double getFifteenMinuteRate() {
+            return timer.getFifteenMinuteRate();
+        }
+
+        @Override
+        public double getFiveMinuteRate() {
+            return timer.getFiveMinuteRate();
+        }
+
+        @Override
+        public double getMeanRate() {
+            return timer.getMeanRate();
+        }
+
+        @Override
+        public double getOneMinuteRate() {
+            return timer.getOneMinuteRate();
+        }
+
+        @Override
+        public synchronized Snapshot getSnapshot() {
+            if (snapshot == null) {
+                snapshot = timer.getSnapshot();
+            }
+            return snapshot;
+        }
+    }
+}
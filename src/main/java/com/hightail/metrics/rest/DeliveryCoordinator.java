@@ -0,0 +1,288 @@
+package com.hightail.metrics.rest;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link MetricsTransport} shared by several {@link NewRelicHTTPv1Reporter}s, which merges the requests they send
+ * to the same license key and endpoint within a short window into one request.
+ *
+ * The first request to arrive for a license key and endpoint opens a batch and waits for the window to pass, or
+ * until as many requests joined as did in the previous batch if that held more than one; every request arriving
+ * meanwhile joins the batch. A lone request, such as a reporter's first tick or the second half of a large report,
+ * never shortens the next window, so coalescing picks up again on the following batch. The
+ * merged request carries one component per distinct component name, guid and duration, holding the metrics of every
+ * request for it. Each caller returns once the merged request was sent and sees its outcome, so a failed delivery is
+ * still logged by every reporter involved.
+ *
+ * Merged requests for a license key and endpoint go out one at a time, through one reused buffer, so the
+ * {@link HttpMetricsTransport}'s keep-alive cache holds one connection per endpoint however many reporters share it.
+ *
+ * <pre>
+ * NewRelicHTTPv1Reporter.forRegistry(registry)
+ *         .prefixedWith("Component/billing-service01")
+ *         .coalesceRequests()
+ *         .build(newRelic);
+ * </pre>
+ */
+public class DeliveryCoordinator implements MetricsTransport {
+
+    private static final Logger logger = Logger.getLogger(DeliveryCoordinator.class);
+
+    public static final long DEFAULT_WINDOW_MILLIS = 200;
+    public static final int DEFAULT_MAX_REQUEST_BYTES = 1024 * 1024;
+
+    private static final DeliveryCoordinator INSTANCE = new DeliveryCoordinator(new HttpMetricsTransport(),
+            DEFAULT_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+
+    private final MetricsTransport transport;
+    private final long windowNanos;
+    private final int maxRequestBytes;
+    private final ConcurrentMap<String, Channel> channels = new ConcurrentHashMap<String, Channel>();
+
+    /**
+     * @param transport sends the merged requests
+     * @param window    how long the first request of a batch waits for others to join
+     * @param unit      the unit of {@code window}
+     */
+    public DeliveryCoordinator(MetricsTransport transport, long window, TimeUnit unit) {
+        this(transport, window, unit, DEFAULT_MAX_REQUEST_BYTES);
+    }
+
+    /**
+     * @param transport       sends the merged requests
+     * @param window          how long the first request of a batch waits for others to join
+     * @param unit            the unit of {@code window}
+     * @param maxRequestBytes the size above which a batch takes no more requests
+     */
+    public DeliveryCoordinator(MetricsTransport transport, long window, TimeUnit unit, int maxRequestBytes) {
+        this.transport = transport;
+        this.windowNanos = unit.toNanos(window);
+        this.maxRequestBytes = maxRequestBytes;
+    }
+
+    /**
+     * @return the coordinator shared by every reporter in this JVM that coalesces its requests
+     */
+    public static DeliveryCoordinator getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public void send(NewRelic newRelic, byte[] payload, int length) throws IOException {
+        String key = newRelic.getLicenseKey() + " " + newRelic.getEndpointURI();
+        Channel channel = channels.get(key);
+        if (channel == null) {
+            Channel created = new Channel();
+            channel = channels.putIfAbsent(key, created);
+            if (channel == null) {
+                channel = created;
+            }
+        }
+        channel.send(newRelic, payload, length);
+    }
+
+    /**
+     * The batches of one license key and endpoint.
+     */
+    private final class Channel {
+        // the batch taking requests, guarded by this
+        private Batch open;
+        // how many requests the previous batch held, which the next one need not wait beyond, or 0 to wait the
+        // whole window; guarded by this
+        private int expected;
+        // merged requests are sent one at a time, so the buffer is reused
+        private final Object sending = new Object();
+        private final PayloadBuffer merged = new PayloadBuffer(64 * 1024);
+
+        void send(NewRelic newRelic, byte[] payload, int length) throws IOException {
+            Batch batch;
+            boolean leader = false;
+            synchronized (this) {
+                if (open == null || open.bytes + length > maxRequestBytes) {
+                    open = new Batch();
+                    leader = true;
+                }
+                batch = open;
+                batch.add(payload, length);
+                if (batch.requests >= expected) {
+                    notifyAll();
+                }
+            }
+
+            if (leader) {
+                lead(newRelic, batch);
+            }
+            batch.await();
+            if (batch.failure != null) {
+                throw (batch.requests == 1 || leader) ? batch.failure
+                        : new IOException("Coalesced request failed: " + batch.failure.getMessage(), batch.failure);
+            }
+        }
+
+        // waits for the batch to fill up, sends it and wakes up everyone in it
+        private void lead(NewRelic newRelic, Batch batch) {
+            boolean interrupted = close(batch);
+            try {
+                synchronized (sending) {
+                    merge(batch);
+                    transport.send(newRelic, merged.array(), merged.size());
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Sent " + batch.requests + " requests as one of " + merged.size() + " bytes");
+                }
+            } catch (IOException ioex) {
+                batch.failure = ioex;
+            } catch (RuntimeException rex) {
+                batch.failure = new IOException("Could not send coalesced requests", rex);
+            } finally {
+                batch.done();
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        // stops the batch from taking requests once the window passed or it is as full as the previous one;
+        // an interrupt cuts the window short, the batch is sent all the same. A lone request is no measure of how
+        // many requests a batch can expect, so the next batch then waits the whole window
+        private synchronized boolean close(Batch batch) {
+            boolean interrupted = false;
+            long deadline = System.nanoTime() + windowNanos;
+            long left = windowNanos;
+            while (left > 0 && open == batch && (expected == 0 || batch.requests < expected)) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                } catch (InterruptedException iex) {
+                    interrupted = true;
+                    break;
+                }
+                left = deadline - System.nanoTime();
+            }
+            if (open == batch) {
+                open = null;
+            }
+            expected = (batch.requests > 1) ? batch.requests : 0;
+            return interrupted;
+        }
+
+        // the agent part of the first request, then one component per distinct component header
+        private void merge(Batch batch) {
+            merged.reset();
+            Component first = batch.components.get(0);
+            merged.write(first.payload, 0, first.headerOffset);
+
+            boolean[] written = new boolean[batch.components.size()];
+            for (int i = 0; i < written.length; i++) {
+                if (written[i]) {
+                    continue;
+                }
+                Component component = batch.components.get(i);
+                if (i > 0) {
+                    merged.write((byte) ',');
+                }
+                merged.write(component.payload, component.headerOffset,
+                        component.metricsOffset - component.headerOffset);
+
+                boolean empty = true;
+                for (int j = i; j < written.length; j++) {
+                    Component other = batch.components.get(j);
+                    if (!written[j] && other.sameHeader(component) && other.metricsEnd > other.metricsOffset) {
+                        if (!empty) {
+                            merged.write((byte) ',');
+                        }
+                        merged.write(other.payload, other.metricsOffset, other.metricsEnd - other.metricsOffset);
+                        empty = false;
+                    }
+                    if (other.sameHeader(component)) {
+                        written[j] = true;
+                    }
+                }
+                merged.write((byte) '}');
+                merged.write((byte) '}');
+            }
+            merged.write((byte) ']');
+            merged.write((byte) '}');
+        }
+    }
+
+    /**
+     * Requests waiting to go out as one. Their payloads stay valid because their senders wait until it is done.
+     */
+    private static final class Batch {
+        // the components of every request, in the order they arrived
+        private final List<Component> components = new ArrayList<Component>();
+        private int requests;
+        private int bytes;
+        private boolean done;
+        private volatile IOException failure;
+
+        void add(byte[] payload, int length) {
+            int headerOffset = PayloadEncoder.componentsOffset(payload, length);
+            while (headerOffset >= 0) {
+                Component component = new Component(payload, headerOffset, length);
+                components.add(component);
+                headerOffset = PayloadEncoder.nextComponentOffset(payload, component.metricsEnd, length);
+            }
+            requests++;
+            bytes += length;
+        }
+
+        synchronized void done() {
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void await() {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException iex) {
+                    // the leader still reads the payload, so it cannot be handed back before the batch is done
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * One component of a request in a batch, with the offsets of its header and metrics.
+     */
+    private static final class Component {
+        private final byte[] payload;
+        private final int headerOffset;
+        private final int metricsOffset;
+        private final int metricsEnd;
+
+        Component(byte[] payload, int headerOffset, int length) {
+            this.payload = payload;
+            this.headerOffset = headerOffset;
+            this.metricsOffset = PayloadEncoder.metricsOffset(payload, headerOffset, length);
+            this.metricsEnd = PayloadEncoder.metricsEnd(payload, metricsOffset, length);
+        }
+
+        // same name, guid and duration, i.e. the same encoded component header
+        boolean sameHeader(Component other) {
+            int length = metricsOffset - headerOffset;
+            if (length != other.metricsOffset - other.headerOffset) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (payload[headerOffset + i] != other.payload[other.headerOffset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
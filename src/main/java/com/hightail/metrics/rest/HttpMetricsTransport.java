@@ -0,0 +1,60 @@
+package com.hightail.metrics.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * The default {@link MetricsTransport}, which POSTs the payload to the New Relic plugin API. Relies on
+ * {@link HttpURLConnection}'s keep-alive cache to reuse connections between requests.
+ */
+public class HttpMetricsTransport implements MetricsTransport {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    @Override
+    public void send(NewRelic newRelic, byte[] payload, int length) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(newRelic.getEndpointURI()).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(length);
+        connection.setRequestProperty("X-License-Key", newRelic.getLicenseKey());
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setRequestProperty("Accept", "application/json");
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(payload, 0, length);
+        } finally {
+            out.close();
+        }
+
+        int responseCode = connection.getResponseCode();
+        drain(responseCode < 400 ? connection.getInputStream() : connection.getErrorStream());
+
+        if (responseCode >= 400) {
+            throw new IOException("New Relic rejected the metrics with HTTP " + responseCode + " "
+                    + connection.getResponseMessage());
+        }
+    }
+
+    // reading the response fully lets HttpURLConnection return the connection to its keep-alive cache
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try {
+            byte[] discard = new byte[512];
+            while (in.read(discard) != -1) {
+                // discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.hightail.metrics.rest;
+
+import java.io.IOException;
+
+/**
+ * Sends an encoded New Relic payload. The payload bytes are only valid for the duration of the call; the reporter
+ * reuses the buffer once {@link #send(NewRelic, byte[], int)} returns.
+ */
+public interface MetricsTransport {
+
+    /**
+     * @param newRelic the New Relic account and endpoint the payload is meant for
+     * @param payload  buffer holding the JSON request body
+     * @param length   number of bytes of {@code payload} that make up the request body
+     * @throws IOException if the payload could not be delivered
+     */
+    void send(NewRelic newRelic, byte[] payload, int length) throws IOException;
+}
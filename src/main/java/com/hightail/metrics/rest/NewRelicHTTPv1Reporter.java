@@ -3,16 +3,29 @@ package com.hightail.metrics.rest;
 import com.codahale.metrics.*;
 import com.codahale.metrics.Timer;
 import com.hightail.metrics.constants.NewRelicConstants;
+import com.hightail.metrics.exemplar.Exemplar;
+import com.hightail.metrics.exemplar.ExemplarTimer;
+import com.hightail.metrics.gauge.AsyncGauge;
+import com.hightail.metrics.publish.MetricBatchPublisher;
+import com.hightail.metrics.reporter.LoadSheddingPolicy;
+import com.hightail.metrics.reporter.MetricIndex;
+import com.hightail.metrics.reporter.NameNormalizer;
 import com.hightail.metrics.reporter.NewRelicReporter;
-import com.newrelic.metrics.publish.binding.ComponentData;
-import com.newrelic.metrics.publish.binding.Context;
-import com.newrelic.metrics.publish.binding.Request;
+import com.hightail.metrics.reporter.ReporterEvents;
+import com.hightail.metrics.reporter.ReporterOptions;
+import com.hightail.metrics.reporter.ReportingTier;
+import com.hightail.metrics.sink.TimeSeriesSink;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -23,9 +36,43 @@ public class NewRelicHTTPv1Reporter extends NewRelicReporter {
 
     private static final Logger logger = Logger.getLogger(NewRelicHTTPv1Reporter.class);
 
+    private static final String[] COUNTER_SUFFIXES = {"/count"};
+    private static final String[] GAUGE_SUFFIXES = {"/gauge"};
+    private static final String[] HISTOGRAM_SUFFIXES = {"/min", "/max", "/mean", "/stdDev", "/median",
+            "/75th", "/95th", "/98th", "/99th", "/99.9th"};
+    private static final int METERED_KEY_COUNT = 5;
+
+    private static final int MAX_METRICS_PER_REQUEST = 1000;
+    private static final int INITIAL_BUFFER_CAPACITY = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 8;
+
     private NewRelic newRelic;
     private String metricNamePrefix;
     private String hostname;
+    private final MetricsTransport transport;
+    private final PayloadEncoder encoder;
+
+    private final String[] meteredSuffixes;
+    private final String[] timerSuffixes;
+    // by number of exemplars, only touched from the reporter thread
+    private final Map<Integer, String[]> exemplarTimerSuffixes = new HashMap<Integer, String[]>();
+
+    // encoded metric names by registry name, only touched from the reporter thread
+    private final Map<String, MetricKeys> keyCache = new HashMap<String, MetricKeys>();
+    // names removed from the registry since the last tick, whose keys are dropped from the cache
+    private final Queue<String> removedNames = new ConcurrentLinkedQueue<String>();
+
+    // request being filled during the current tick, plus buffers ready to be reused
+    private PayloadBuffer current;
+    // the duration of the tier being reported, and of the component open in the current request
+    private int duration;
+    private int currentDuration;
+    private final BlockingQueue<PayloadBuffer> bufferPool = new ArrayBlockingQueue<PayloadBuffer>(MAX_POOLED_BUFFERS);
+
+    // requests handed off during the current tick, awaited before the tick ends
+    private final List<Future<Void>> pendingDeliveries = new ArrayList<Future<Void>>();
+    // flight recorder event of the request being filled, null unless recording
+    private Object currentEncoding;
 
     /**
      * Creates a new {@link com.codahale.metrics.ScheduledReporter} instance.
@@ -39,7 +86,26 @@ public class NewRelicHTTPv1Reporter extends NewRelicReporter {
      */
     protected NewRelicHTTPv1Reporter(NewRelic newRelic, MetricRegistry registry, String metricNamePrefix,
                                      MetricFilter filter, TimeUnit rateUnit, TimeUnit durationUnit) {
-        super(registry, "new-relic-http-reporter", filter, rateUnit, durationUnit);
+        this(newRelic, registry, metricNamePrefix, filter, rateUnit, durationUnit, new ReporterOptions(),
+                new HttpMetricsTransport());
+    }
+
+    /**
+     * Creates a new {@link com.codahale.metrics.ScheduledReporter} instance.
+     *
+     * @param registry          the {@link com.codahale.metrics.MetricRegistry} containing the definedMetrics this
+     *                          reporter will report
+     * @param metricNamePrefix  the reporter's name
+     * @param filter            the filter for which definedMetrics to report
+     * @param rateUnit
+     * @param durationUnit
+     * @param options           the optional behaviour of this reporter
+     * @param transport         sends the encoded requests
+     */
+    protected NewRelicHTTPv1Reporter(NewRelic newRelic, MetricRegistry registry, String metricNamePrefix,
+                                     MetricFilter filter, TimeUnit rateUnit, TimeUnit durationUnit,
+                                     ReporterOptions options, MetricsTransport transport) {
+        super(registry, "new-relic-http-reporter", filter, rateUnit, durationUnit, options);
         this.newRelic = newRelic;
         this.metricNamePrefix = metricNamePrefix;
 
@@ -50,6 +116,12 @@ public class NewRelicHTTPv1Reporter extends NewRelicReporter {
             hostname = NewRelicConstants.DEFAULT_AGENT_HOST;
         }
 
+        this.transport = transport;
+        this.encoder = new PayloadEncoder(hostname, NewRelicConstants.DEFAULT_AGENT_PID,
+                NewRelicConstants.DEFAULT_AGENT_VERSION, newRelic.getComponentName(), newRelic.getAppId());
+        this.meteredSuffixes = meteredSuffixes(getRateUnit());
+        this.timerSuffixes = timerSuffixes(getRateUnit(), getDurationUnit());
+
         logger.info("NewRelicHTTPv1Reporter initialized..");
     }
 
@@ -70,6 +142,8 @@ public class NewRelicHTTPv1Reporter extends NewRelicReporter {
         private TimeUnit rateUnit;
         private TimeUnit durationUnit;
         private MetricFilter filter;
+        private final ReporterOptions options;
+        private MetricsTransport transport;
 
         private Builder(MetricRegistry registry) {
             this.registry = registry;
@@ -77,6 +151,8 @@ public class NewRelicHTTPv1Reporter extends NewRelicReporter {
             this.rateUnit = TimeUnit.SECONDS;
             this.durationUnit = TimeUnit.MILLISECONDS;
             this.filter = MetricFilter.ALL;
+            this.options = new ReporterOptions();
+            this.transport = new HttpMetricsTransport();
         }
 
         /**
@@ -123,6 +199,123 @@ public class NewRelicHTTPv1Reporter extends NewRelicReporter {
             return this;
         }
 
+        /**
+         * Evaluate gauges and deliver requests on virtual threads instead of the reporter thread. Ignored on JVMs
+         * without virtual threads.
+         *
+         * @param useVirtualThreads whether to use virtual threads
+         * @return {@code this}
+         */
+        public Builder useVirtualThreads(boolean useVirtualThreads) {
+            options.useVirtualThreads(useVirtualThreads);
+            return this;
+        }
+
+        /**
+         * Refresh gauges in the background at the given interval and report their latest value, so that slow gauges
+         * do not hold up the reporter. Gauges registered as {@link AsyncGauge}s keep their own interval.
+         *
+         * @param period the refresh interval, 0 to evaluate gauges on every tick
+         * @param unit   the unit of {@code period}
+         * @return {@code this}
+         */
+        public Builder refreshGaugesAsynchronously(long period, TimeUnit unit) {
+            options.refreshGaugesAsynchronously(period, unit);
+            return this;
+        }
+
+        /**
+         * Report the metrics matching the given filter at their own period instead of the one passed to
+         * {@code start}. A metric belongs to the first tier that matches it.
+         *
+         * @param tier a {@link ReportingTier}
+         * @return {@code this}
+         */
+        public Builder tier(ReportingTier tier) {
+            options.addTier(tier);
+            return this;
+        }
+
+        /**
+         * Also keep the reported values in the given sink, for looking at recent metrics locally.
+         *
+         * @param timeSeriesSink a {@link TimeSeriesSink} not fed by any other reporter
+         * @return {@code this}
+         */
+        public Builder timeSeriesSink(TimeSeriesSink timeSeriesSink) {
+            options.timeSeriesSink(timeSeriesSink);
+            return this;
+        }
+
+        /**
+         * Shed low priority metrics first while the reporter is under pressure.
+         *
+         * @param loadSheddingPolicy a {@link LoadSheddingPolicy} not used by any other reporter
+         * @return {@code this}
+         */
+        public Builder loadShedding(LoadSheddingPolicy loadSheddingPolicy) {
+            options.loadShedding(loadSheddingPolicy);
+            return this;
+        }
+
+        /**
+         * Collapse the ID segments of metric names, such as customer or file IDs, reporting the counters, meters,
+         * timers and histograms that share a template as one.
+         *
+         * @param nameNormalizer a {@link NameNormalizer} not used by any other reporter
+         * @return {@code this}
+         */
+        public Builder collapseNames(NameNormalizer nameNormalizer) {
+            options.nameNormalizer(nameNormalizer);
+            return this;
+        }
+
+        /**
+         * Also hand every reporting pass to the given publisher's subscribers, reading the registry once for both.
+         * The publisher is fed what this reporter reports and must not be started itself.
+         *
+         * @param batchPublisher a {@link MetricBatchPublisher} not fed by any other reporter
+         * @return {@code this}
+         */
+        public Builder publishTo(MetricBatchPublisher batchPublisher) {
+            options.publishTo(batchPublisher);
+            return this;
+        }
+
+        /**
+         * Record cycles, collection, encoding, delivery attempts and slow gauges as Java Flight Recorder events.
+         * Off by default, and ignored on JVMs without JFR.
+         *
+         * @param recordFlightEvents whether to record events
+         * @return {@code this}
+         */
+        public Builder recordFlightEvents(boolean recordFlightEvents) {
+            options.recordFlightEvents(recordFlightEvents);
+            return this;
+        }
+
+        /**
+         * Send requests through the given transport instead of POSTing them to New Relic directly.
+         *
+         * @param transport a {@link MetricsTransport}
+         * @return {@code this}
+         */
+        public Builder withTransport(MetricsTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * Merge this reporter's requests with those of the other reporters in this JVM sending to the same license
+         * key and endpoint at about the same time, through the shared {@link DeliveryCoordinator}.
+         *
+         * @return {@code this}
+         */
+        public Builder coalesceRequests() {
+            this.transport = DeliveryCoordinator.getInstance();
+            return this;
+        }
+
         /**
          * Builds a {@link NewRelicHTTPv1Reporter} with the given properties, sending definedMetrics using the
          * given {@link NewRelic} client.
@@ -136,156 +329,315 @@ public class NewRelicHTTPv1Reporter extends NewRelicReporter {
                     metricNamePrefix,
                     filter,
                     rateUnit,
-                    durationUnit
+                    durationUnit,
+                    options,
+                    transport
             );
         }
     }
 
 
     @Override
-    public void report(SortedMap<String, Gauge> gauges,
-                       SortedMap<String, Counter> counters,
-                       SortedMap<String, Histogram> histograms,
-                       SortedMap<String, Meter> meters,
-                       SortedMap<String, Timer> timers) {
+    public void report(MetricIndex.Group<Gauge> gauges,
+                       MetricIndex.Group<Counter> counters,
+                       MetricIndex.Group<Histogram> histograms,
+                       MetricIndex.Group<Meter> meters,
+                       MetricIndex.Group<Timer> timers) {
+
+        // every tier due on the tick goes into the same request, as a component declaring the tier's period as its
+        // duration
+        long periodMillis = getTickPeriod(TimeUnit.MILLISECONDS);
+        duration = (periodMillis > 0) ? (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(periodMillis))
+                : NewRelicConstants.DEFAULT_DURATION;
+
+        for (String removed = removedNames.poll(); removed != null; removed = removedNames.poll()) {
+            MetricKeys metricKeys = keyCache.remove(removed);
+            if (metricKeys != null) {
+                releaseSeries(metricKeys);
+            }
+        }
 
+        ReporterEvents events = getEvents();
         try {
 
-            for (Map.Entry<String, Gauge> gaugeEntry : gauges.entrySet()) {
-                doGauge(gaugeEntry.getKey(), gaugeEntry.getValue());
+            Object collection = events.beginCollection();
+            Object[] gaugeValues = isUsingVirtualThreads() ? evaluateGauges(gauges) : null;
+            for (int i = 0; i < gauges.size(); i++) {
+                String name = gauges.name(i);
+                Gauge gauge = gauges.metric(i);
+                if (gauge instanceof AsyncGauge) {
+                    addMetric(keys(name, GAUGE_SUFFIXES), 0, (float) ((AsyncGauge) gauge).getDoubleValue());
+                } else {
+                    doGauge(name, (gaugeValues != null) ? gaugeValues[i] : getGaugeValue(name, gauge));
+                }
             }
+            events.endCollection(collection, "gauges", gauges.size());
 
-            for (Map.Entry<String, Counter> counterEntry : counters.entrySet()) {
-                String name = counterEntry.getKey();
-                Counter counter = counterEntry.getValue();
-                Map<String, Object> componentMetrics = new HashMap<String, Object>();
+            collection = events.beginCollection();
+            for (int i = 0; i < counters.size(); i++) {
+                String name = counters.name(i);
+                Counter counter = counters.metric(i);
 
-                componentMetrics.put(prefix(name) + "/count", counter.getCount());
-                postToNewRelic(componentMetrics);
+                addMetric(keys(name, COUNTER_SUFFIXES), 0, counter.getCount());
             }
+            events.endCollection(collection, "counters", counters.size());
 
-            for (Map.Entry<String, Histogram> histogramEntry : histograms.entrySet()) {
-                String name = histogramEntry.getKey();
-                Snapshot snapshot = histogramEntry.getValue().getSnapshot();
+            collection = events.beginCollection();
+            for (int i = 0; i < histograms.size(); i++) {
+                String name = histograms.name(i);
+                Snapshot snapshot = histograms.metric(i).getSnapshot();
 
-                Histogram metric = histogramEntry.getValue();
-                doHistogramSnapshot(name, snapshot, metric);
+                doSnapshot(keys(name, HISTOGRAM_SUFFIXES), 0, snapshot);
             }
+            events.endCollection(collection, "histograms", histograms.size());
 
-            for (Map.Entry<String, Meter> meterEntry : meters.entrySet()) {
-                String name = meterEntry.getKey();
-                Meter meter = meterEntry.getValue();
-                doMetered(name, meter);
+            collection = events.beginCollection();
+            for (int i = 0; i < meters.size(); i++) {
+                String name = meters.name(i);
+                Meter meter = meters.metric(i);
+                doMetered(keys(name, meteredSuffixes), meter);
             }
+            events.endCollection(collection, "meters", meters.size());
 
-            for (Map.Entry<String, Timer> timerEntry : timers.entrySet()) {
-                Timer timer = timerEntry.getValue();
-                String name = timerEntry.getKey();
+            collection = events.beginCollection();
+            for (int i = 0; i < timers.size(); i++) {
+                Timer timer = timers.metric(i);
+                String name = timers.name(i);
                 Snapshot snapshot = timer.getSnapshot();
 
-                doTimerMetered(timer, name);
-                doTimerSnapshot(timer, name, snapshot);
+                if (timer instanceof ExemplarTimer) {
+                    ExemplarTimer exemplarTimer = (ExemplarTimer) timer;
+                    MetricKeys keys = keys(name, exemplarTimerSuffixes(exemplarTimer.getSize()));
+                    doMetered(keys, timer);
+                    doSnapshot(keys, METERED_KEY_COUNT, snapshot);
+                    doExemplars(name, keys, exemplarTimer);
+                } else {
+                    MetricKeys keys = keys(name, timerSuffixes);
+                    doMetered(keys, timer);
+                    doSnapshot(keys, METERED_KEY_COUNT, snapshot);
+                }
             }
+            events.endCollection(collection, "timers", timers.size());
         }catch(Exception ex) {
             logger.error("Could not push metrics to NewRelic via HTTP : ", ex);
         }
     }
 
-    private void doMetered(String name, Meter meter) {
-        Map<String, Object> componentMetrics = new HashMap<String, Object>();
-
-        componentMetrics.put(prefix(name) + "/count", meter.getCount());
-        componentMetrics.put(prefix(name) + "/meanRate/" + getRateUnit(), (float) convertRate(meter.getMeanRate()));
-        componentMetrics.put(prefix(name) + "/1MinuteRate/" + getRateUnit(), (float) convertRate(meter.getOneMinuteRate()));
-        componentMetrics.put(prefix(name) + "/5MinuteRate/" + getRateUnit(), (float) convertRate(meter.getFiveMinuteRate()));
-        componentMetrics.put(prefix(name) + "/15MinuteRate/" + getRateUnit(), (float) convertRate(meter.getFifteenMinuteRate()));
-        postToNewRelic(componentMetrics);
-
+    /**
+     * Sends the request holding every tier reported on this tick, and waits until it is delivered.
+     */
+    @Override
+    protected void endTick() {
+        try {
+            flush();
+        } catch (Exception ex) {
+            logger.error("Could not push metrics to NewRelic via HTTP : ", ex);
+        } finally {
+            for (int i = 0; i < pendingDeliveries.size(); i++) {
+                await(pendingDeliveries.get(i));
+            }
+            pendingDeliveries.clear();
+            if (current != null) {
+                bufferPool.offer(current);
+                current = null;
+                currentEncoding = null;
+            }
+        }
     }
 
-    private void doTimerMetered(Timer timer, String name) {
-        Map<String, Object> componentMetrics = new HashMap<String, Object>();
+    private void doMetered(MetricKeys keys, Metered metered) {
+        addMetric(keys, 0, metered.getCount());
+        addMetric(keys, 1, (float) convertRate(metered.getMeanRate()));
+        addMetric(keys, 2, (float) convertRate(metered.getOneMinuteRate()));
+        addMetric(keys, 3, (float) convertRate(metered.getFiveMinuteRate()));
+        addMetric(keys, 4, (float) convertRate(metered.getFifteenMinuteRate()));
+    }
 
-        componentMetrics.put(prefix(name) + "/count", timer.getCount());
-        componentMetrics.put(prefix(name) + "/meanRate/" + getRateUnit(), (float) convertRate(timer.getMeanRate()));
-        componentMetrics.put(prefix(name) + "/1MinuteRate/" + getRateUnit(), (float) convertRate(timer.getOneMinuteRate()));
-        componentMetrics.put(prefix(name) + "/5MinuteRate/" + getRateUnit(), (float) convertRate(timer.getFiveMinuteRate()));
-        componentMetrics.put(prefix(name) + "/15MinuteRate/" + getRateUnit(), (float) convertRate(timer.getFifteenMinuteRate()));
-        postToNewRelic(componentMetrics);
+    private void doSnapshot(MetricKeys keys, int offset, Snapshot snapshot) {
+        addMetric(keys, offset, (float) convertDuration(snapshot.getMin()));
+        addMetric(keys, offset + 1, (float) convertDuration(snapshot.getMax()));
+        addMetric(keys, offset + 2, (float) convertDuration(snapshot.getMean()));
+        addMetric(keys, offset + 3, (float) convertDuration(snapshot.getStdDev()));
+        addMetric(keys, offset + 4, (float) convertDuration(snapshot.getMedian()));
+        addMetric(keys, offset + 5, (float) convertDuration(snapshot.get75thPercentile()));
+        addMetric(keys, offset + 6, (float) convertDuration(snapshot.get95thPercentile()));
+        addMetric(keys, offset + 7, (float) convertDuration(snapshot.get98thPercentile()));
+        addMetric(keys, offset + 8, (float) convertDuration(snapshot.get99thPercentile()));
+        addMetric(keys, offset + 9, (float) convertDuration(snapshot.get999thPercentile()));
+    }
 
+    // the slowest calls by rank; HTTPv1 only carries numbers, so labels only make it into the debug log
+    private void doExemplars(String name, MetricKeys keys, ExemplarTimer timer) {
+        List<Exemplar> exemplars = timer.drainExemplars();
+        for (int rank = 0; rank < exemplars.size(); rank++) {
+            addMetric(keys, timerSuffixes.length + rank,
+                    (float) convertDuration(exemplars.get(rank).getDurationNanos()));
+        }
+        if (logger.isDebugEnabled() && !exemplars.isEmpty()) {
+            logger.debug("Slowest calls of " + name + ": " + exemplars);
+        }
     }
 
-    private void doHistogramSnapshot(String name, Snapshot snapshot, Histogram histogram) {
-        Map<String, Object> componentMetrics = new HashMap<String, Object>();
-
-        componentMetrics.put(prefix(name) + "/min" , (float) convertDuration(snapshot.getMin()));
-        componentMetrics.put(prefix(name) + "/max" , (float) convertDuration(snapshot.getMax()));
-        componentMetrics.put(prefix(name) + "/mean" , (float) convertDuration(snapshot.getMean()));
-        componentMetrics.put(prefix(name) + "/stdDev" , (float) convertDuration(snapshot.getStdDev()));
-        componentMetrics.put(prefix(name) + "/median" , (float) convertDuration(snapshot.getMedian()));
-        componentMetrics.put(prefix(name) + "/75th" , (float) convertDuration(snapshot.get75thPercentile()));
-        componentMetrics.put(prefix(name) + "/95th" , (float) convertDuration(snapshot.get95thPercentile()));
-        componentMetrics.put(prefix(name) + "/98th" , (float) convertDuration(snapshot.get98thPercentile()));
-        componentMetrics.put(prefix(name) + "/99th" , (float) convertDuration(snapshot.get99thPercentile()));
-        componentMetrics.put(prefix(name) + "/99.9th" , (float) convertDuration(snapshot.get999thPercentile()));
-        postToNewRelic(componentMetrics);
+    private void doGauge(String name, Object gaugeValue) {
+        MetricKeys keys = keys(name, GAUGE_SUFFIXES);
 
+        if (gaugeValue instanceof Number) {
+            addMetric(keys, 0, ((Number) gaugeValue).floatValue());
+        }
     }
 
-    private void doTimerSnapshot(Timer timer, String name, Snapshot snapshot) {
-        Map<String, Object> componentMetrics = new HashMap<String, Object>();
+    private void addMetric(MetricKeys keys, int i, long value) {
+        encoder.metric(currentRequest(), keys.keys[i], value);
+        if (keys.slots != null) {
+            getTimeSeriesSink().record(keys.slots[i], value);
+        }
+        flushIfFull();
+    }
 
-        String nameSuffix = "/" + getDurationUnit();
+    private void addMetric(MetricKeys keys, int i, float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            return;
+        }
+        encoder.metric(currentRequest(), keys.keys[i], value);
+        if (keys.slots != null) {
+            getTimeSeriesSink().record(keys.slots[i], value);
+        }
+        flushIfFull();
+    }
 
-        componentMetrics.put(prefix(name) + "/min" + nameSuffix, (float) convertDuration(snapshot.getMin()));
-        componentMetrics.put(prefix(name) + "/max" + nameSuffix, (float) convertDuration(snapshot.getMax()));
-        componentMetrics.put(prefix(name) + "/mean" + nameSuffix, (float) convertDuration(snapshot.getMean()));
-        componentMetrics.put(prefix(name) + "/stdDev" + nameSuffix, (float) convertDuration(snapshot.getStdDev()));
-        componentMetrics.put(prefix(name) + "/median" + nameSuffix, (float) convertDuration(snapshot.getMedian()));
-        componentMetrics.put(prefix(name) + "/75th" + nameSuffix, (float) convertDuration(snapshot.get75thPercentile()));
-        componentMetrics.put(prefix(name) + "/95th" + nameSuffix, (float) convertDuration(snapshot.get95thPercentile()));
-        componentMetrics.put(prefix(name) + "/98th" + nameSuffix, (float) convertDuration(snapshot.get98thPercentile()));
-        componentMetrics.put(prefix(name) + "/99th" + nameSuffix, (float) convertDuration(snapshot.get99thPercentile()));
-        componentMetrics.put(prefix(name) + "/99.9th" + nameSuffix, (float) convertDuration(snapshot.get999thPercentile()));
-        postToNewRelic(componentMetrics);
+    private PayloadBuffer currentRequest() {
+        if (current == null) {
+            current = bufferPool.poll();
+            if (current == null) {
+                current = new PayloadBuffer(INITIAL_BUFFER_CAPACITY);
+            }
+            currentEncoding = getEvents().beginEncoding();
+            encoder.begin(current, duration);
+            currentDuration = duration;
+        } else if (currentDuration != duration) {
+            encoder.component(current, duration);
+            currentDuration = duration;
+        }
+        return current;
+    }
 
+    private void flushIfFull() {
+        if (current.metricCount() >= MAX_METRICS_PER_REQUEST) {
+            flush();
+        }
     }
 
-    private void doGauge(String name, Gauge gauge) {
-        Object gaugeValue = gauge.getValue();
-        Map<String, Object> componentMetrics = new HashMap<String, Object>();
+    private void flush() {
+        if (current == null) {
+            return;
+        }
 
-        if (gaugeValue instanceof Number) {
-            float n = ((Number) gaugeValue).floatValue();
-            if (!Float.isNaN(n) && !Float.isInfinite(n)) {
-                componentMetrics.put(prefix(name)+"/gauge", n);
-                postToNewRelic(componentMetrics);
+        final PayloadBuffer buffer = current;
+        current = null;
+        encoder.end(buffer);
+        final ReporterEvents events = getEvents();
+        events.endEncoding(currentEncoding, buffer.size(), buffer.metricCount());
+        currentEncoding = null;
+
+        pendingDeliveries.add(submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Object delivery = events.beginDelivery();
+                Throwable failure = null;
+                try {
+                    transport.send(newRelic, buffer.array(), buffer.size());
+                } catch (Exception ex) {
+                    failure = ex;
+                    throw ex;
+                } finally {
+                    events.endDelivery(delivery, newRelic.getEndpointURI(), buffer.size(), failure);
+                    bufferPool.offer(buffer);
+                }
+                return null;
             }
-        }
+        }));
     }
 
-    private void postToNewRelic(Map<String, Object> componentMetrics) {
+    /**
+     * Returns the encoded keys (and time series slots) for every metric the given suffixes produce for this metric,
+     * encoding them on first use only.
+     */
+    private MetricKeys keys(String name, String[] suffixes) {
+        MetricKeys metricKeys = keyCache.get(name);
+        if (metricKeys == null || metricKeys.suffixes != suffixes) {
+            if (metricKeys != null) {
+                releaseSeries(metricKeys);
+            }
 
-        Context context = new Context();
-        context.licenseKey = newRelic.getLicenseKey();
-        context.agentData.host = hostname;
-        context.agentData.pid = NewRelicConstants.DEFAULT_AGENT_PID;
-        context.agentData.version = NewRelicConstants.DEFAULT_AGENT_VERSION;
+            String prefixedName = prefix(name);
+            String[] names = new String[suffixes.length];
+            byte[][] keys = new byte[suffixes.length][];
+            for (int i = 0; i < suffixes.length; i++) {
+                names[i] = prefixedName + suffixes[i];
+                keys[i] = PayloadEncoder.encodeKey(names[i]);
+            }
 
-        ComponentData componentData = context.createComponent();
-        componentData.guid = newRelic.getAppId();
-        componentData.name = newRelic.getComponentName();
+            long[] slots = null;
+            TimeSeriesSink sink = getTimeSeriesSink();
+            if (sink != null) {
+                slots = new long[suffixes.length];
+                for (int i = 0; i < suffixes.length; i++) {
+                    slots[i] = sink.slot(names[i]);
+                }
+            }
+            metricKeys = new MetricKeys(suffixes, names, keys, slots);
+            keyCache.put(name, metricKeys);
+        }
+        return metricKeys;
+    }
 
-        Request request = new Request(context);
+    private void releaseSeries(MetricKeys metricKeys) {
+        if (metricKeys.slots != null) {
+            for (String seriesName : metricKeys.names) {
+                getTimeSeriesSink().release(seriesName);
+            }
+        }
+    }
 
+    @Override
+    protected void onMetricRemoved(String name) {
+        removedNames.add(name);
+    }
 
-        for(Map.Entry<String, Object> metric: componentMetrics.entrySet()) {
-            if(metric.getValue() instanceof Number) {
-                request.addMetric(componentData, metric.getKey(), (Number) metric.getValue());
+    /**
+     * The timer suffixes followed by one per rank of the slowest calls, the same array for the same size.
+     */
+    private String[] exemplarTimerSuffixes(int size) {
+        String[] suffixes = exemplarTimerSuffixes.get(size);
+        if (suffixes == null) {
+            suffixes = new String[timerSuffixes.length + size];
+            System.arraycopy(timerSuffixes, 0, suffixes, 0, timerSuffixes.length);
+            for (int rank = 0; rank < size; rank++) {
+                suffixes[timerSuffixes.length + rank] = "/slowest" + (rank + 1) + "/" + getDurationUnit();
             }
+            exemplarTimerSuffixes.put(size, suffixes);
         }
+        return suffixes;
+    }
+
+    private static String[] meteredSuffixes(String rateUnit) {
+        return new String[]{
+                "/count",
+                "/meanRate/" + rateUnit,
+                "/1MinuteRate/" + rateUnit,
+                "/5MinuteRate/" + rateUnit,
+                "/15MinuteRate/" + rateUnit
+        };
+    }
 
-        request.deliver();
+    private static String[] timerSuffixes(String rateUnit, String durationUnit) {
+        String[] metered = meteredSuffixes(rateUnit);
+        String[] suffixes = new String[METERED_KEY_COUNT + HISTOGRAM_SUFFIXES.length];
+        System.arraycopy(metered, 0, suffixes, 0, METERED_KEY_COUNT);
+        for (int i = 0; i < HISTOGRAM_SUFFIXES.length; i++) {
+            suffixes[METERED_KEY_COUNT + i] = HISTOGRAM_SUFFIXES[i] + "/" + durationUnit;
+        }
+        return suffixes;
     }
 
     private String prefix(String name) {
@@ -297,4 +649,19 @@ public class NewRelicHTTPv1Reporter extends NewRelicReporter {
         return stringBuffer.toString();
     }
 
+    private static final class MetricKeys {
+        private final String[] suffixes;
+        private final String[] names;
+        private final byte[][] keys;
+        // time series slot handles, null without a sink
+        private final long[] slots;
+
+        private MetricKeys(String[] suffixes, String[] names, byte[][] keys, long[] slots) {
+            this.suffixes = suffixes;
+            this.names = names;
+            this.keys = keys;
+            this.slots = slots;
+        }
+    }
+
 }
@@ -0,0 +1,139 @@
+package com.hightail.metrics.rest;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer holding one JSON request body. Buffers are pooled by the reporter, so once a buffer has
+ * grown to the size of a typical request, encoding into it no longer allocates.
+ */
+final class PayloadBuffer {
+
+    private static final byte[] DIGITS = "0123456789".getBytes(Charset.forName("US-ASCII"));
+    private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L};
+    private static final int FRACTION_DIGITS = 6;
+    // above this, value * 10^6 no longer fits comfortably in a long
+    private static final double MAX_FIXED_POINT = 9.0e12;
+
+    private byte[] bytes;
+    private int size;
+    private int metricCount;
+    // the metric count when the current component started
+    private int componentStart;
+
+    PayloadBuffer(int initialCapacity) {
+        this.bytes = new byte[initialCapacity];
+    }
+
+    void reset() {
+        size = 0;
+        metricCount = 0;
+        componentStart = 0;
+    }
+
+    byte[] array() {
+        return bytes;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int metricCount() {
+        return metricCount;
+    }
+
+    void metricAdded() {
+        metricCount++;
+    }
+
+    /**
+     * @return the number of metrics in the current component
+     */
+    int componentMetricCount() {
+        return metricCount - componentStart;
+    }
+
+    void componentStarted() {
+        componentStart = metricCount;
+    }
+
+    void write(byte b) {
+        ensureCapacity(size + 1);
+        bytes[size++] = b;
+    }
+
+    void write(byte[] b) {
+        ensureCapacity(size + b.length);
+        System.arraycopy(b, 0, bytes, size, b.length);
+        size += b.length;
+    }
+
+    void write(byte[] b, int offset, int length) {
+        ensureCapacity(size + length);
+        System.arraycopy(b, offset, bytes, size, length);
+        size += length;
+    }
+
+    void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            write(Long.toString(value).getBytes(Charset.forName("US-ASCII")));
+            return;
+        }
+        if (value < 0) {
+            write((byte) '-');
+            value = -value;
+        }
+
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        ensureCapacity(size + digits);
+        for (int i = size + digits - 1; i >= size; i--) {
+            bytes[i] = DIGITS[(int) (value % 10)];
+            value /= 10;
+        }
+        size += digits;
+    }
+
+    /**
+     * Writes a finite value as a JSON number with at most six fractional digits, without going through
+     * {@link Double#toString(double)}.
+     */
+    void writeDecimal(double value) {
+        if (Math.abs(value) >= MAX_FIXED_POINT) {
+            write(Double.toString(value).getBytes(Charset.forName("US-ASCII")));
+            return;
+        }
+
+        long scaled = Math.round(value * POWERS_OF_TEN[FRACTION_DIGITS]);
+        if (scaled < 0) {
+            write((byte) '-');
+            scaled = -scaled;
+        }
+
+        long integral = scaled / POWERS_OF_TEN[FRACTION_DIGITS];
+        long fraction = scaled % POWERS_OF_TEN[FRACTION_DIGITS];
+        writeLong(integral);
+        if (fraction == 0) {
+            return;
+        }
+
+        int fractionDigits = FRACTION_DIGITS;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            fractionDigits--;
+        }
+        write((byte) '.');
+        for (int i = fractionDigits - 1; i >= 0; i--) {
+            write(DIGITS[(int) ((fraction / POWERS_OF_TEN[i]) % 10)]);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.hightail.metrics.rest;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Encodes New Relic plugin API requests straight into a {@link PayloadBuffer}.
+ *
+ * The agent and component parts of the request never change between ticks, so they are encoded once into a header per
+ * duration; metric names are encoded once into keys by {@link #encodeKey(String)}. Per tick only the metric values
+ * are written. A request holds one component per duration it reports, i.e. per reporting tier due on the tick.
+ */
+final class PayloadEncoder {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] FOOTER = "}}]}".getBytes(UTF_8);
+    private static final byte[] COMPONENTS = ",\"components\":[".getBytes(UTF_8);
+    private static final byte[] METRICS = ",\"metrics\":{".getBytes(UTF_8);
+    // the end of one component's metrics and the start of the next
+    private static final byte[] NEXT_COMPONENT = "}},{\"name\":".getBytes(UTF_8);
+    private static final int COMPONENT_END_LENGTH = 3;
+
+    private final String host;
+    private final int pid;
+    private final String version;
+    private final String componentName;
+    private final String guid;
+
+    // the headers of the durations seen so far, so that tiers taking turns do not re-encode them
+    private int[] durations = new int[0];
+    private byte[][] headers = new byte[0][];
+    // where the component part starts in every header
+    private int componentOffset;
+
+    PayloadEncoder(String host, int pid, String version, String componentName, String guid) {
+        this.host = host;
+        this.pid = pid;
+        this.version = version;
+        this.componentName = componentName;
+        this.guid = guid;
+    }
+
+    /**
+     * Starts a request with a component covering the given number of seconds.
+     */
+    void begin(PayloadBuffer buffer, int duration) {
+        buffer.reset();
+        buffer.write(header(duration));
+    }
+
+    /**
+     * Ends the metrics of the current component and starts another one, covering the given number of seconds.
+     */
+    void component(PayloadBuffer buffer, int duration) {
+        byte[] header = header(duration);
+        buffer.write(NEXT_COMPONENT, 0, COMPONENT_END_LENGTH);
+        buffer.write(header, componentOffset, header.length - componentOffset);
+        buffer.componentStarted();
+    }
+
+    private byte[] header(int duration) {
+        for (int i = 0; i < durations.length; i++) {
+            if (durations[i] == duration) {
+                return headers[i];
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"agent\":{\"host\":");
+        appendString(sb, host);
+        sb.append(",\"pid\":").append(pid);
+        sb.append(",\"version\":");
+        appendString(sb, version);
+        sb.append("},\"components\":[");
+        componentOffset = sb.toString().getBytes(UTF_8).length;
+        sb.append("{\"name\":");
+        appendString(sb, componentName);
+        sb.append(",\"guid\":");
+        appendString(sb, guid);
+        sb.append(",\"duration\":").append(duration);
+        sb.append(",\"metrics\":{");
+        byte[] header = sb.toString().getBytes(UTF_8);
+
+        durations = Arrays.copyOf(durations, durations.length + 1);
+        headers = Arrays.copyOf(headers, headers.length + 1);
+        durations[durations.length - 1] = duration;
+        headers[headers.length - 1] = header;
+        return header;
+    }
+
+    void metric(PayloadBuffer buffer, byte[] key, long value) {
+        separate(buffer);
+        buffer.write(key);
+        buffer.writeLong(value);
+        buffer.metricAdded();
+    }
+
+    void metric(PayloadBuffer buffer, byte[] key, float value) {
+        separate(buffer);
+        buffer.write(key);
+        buffer.writeDecimal(value);
+        buffer.metricAdded();
+    }
+
+    void end(PayloadBuffer buffer) {
+        buffer.write(FOOTER);
+    }
+
+    /**
+     * @return the offset of the first component in an encoded request. Names and values are escaped strings, in
+     * which the unquoted markers cannot occur, so the first match is the real one.
+     */
+    static int componentsOffset(byte[] payload, int length) {
+        return indexOf(payload, 0, length, COMPONENTS) + COMPONENTS.length;
+    }
+
+    /**
+     * @return the offset of the first metric of the component starting at the given offset
+     */
+    static int metricsOffset(byte[] payload, int componentOffset, int length) {
+        return indexOf(payload, componentOffset, length, METRICS) + METRICS.length;
+    }
+
+    /**
+     * @return the offset at which the metrics starting at the given offset stop, i.e. the next component or the end
+     * of a request encoded by {@link #end(PayloadBuffer)}
+     */
+    static int metricsEnd(byte[] payload, int metricsOffset, int length) {
+        int next = find(payload, metricsOffset, length, NEXT_COMPONENT);
+        return (next >= 0) ? next : length - FOOTER.length;
+    }
+
+    /**
+     * @return the offset of the component following the metrics ending at the given offset, or -1 if there is none
+     */
+    static int nextComponentOffset(byte[] payload, int metricsEnd, int length) {
+        return (metricsEnd < length - FOOTER.length) ? metricsEnd + COMPONENT_END_LENGTH : -1;
+    }
+
+    private static int indexOf(byte[] payload, int from, int length, byte[] marker) {
+        int index = find(payload, from, length, marker);
+        if (index < 0) {
+            throw new IllegalArgumentException("Not a request encoded by " + PayloadEncoder.class.getSimpleName());
+        }
+        return index;
+    }
+
+    private static int find(byte[] payload, int from, int length, byte[] marker) {
+        outer:
+        for (int i = from; i <= length - marker.length; i++) {
+            for (int j = 0; j < marker.length; j++) {
+                if (payload[i + j] != marker[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the metric name as a quoted JSON string followed by a colon, ready to be followed by a value
+     */
+    static byte[] encodeKey(String name) {
+        StringBuilder sb = new StringBuilder(name.length() + 3);
+        appendString(sb, name);
+        sb.append(':');
+        return sb.toString().getBytes(UTF_8);
+    }
+
+    private static void separate(PayloadBuffer buffer) {
+        if (buffer.componentMetricCount() > 0) {
+            buffer.write((byte) ',');
+        }
+    }
+
+    private static void appendString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,182 @@
+package com.hightail.metrics.sink;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small read-only HTTP interface to a {@link TimeSeriesSink}, bound to the loopback interface by default:
+ *
+ * <pre>
+ * GET /series?prefix=CustomHTTPMetrics/          names of the kept series
+ * GET /latest?name=...                            {"name":...,"time":...,"value":...}
+ * GET /range?name=...&amp;from=millis&amp;to=millis       {"name":...,"points":[[time,value],...]}
+ * </pre>
+ *
+ * "from" and "to" are optional and default to everything kept.
+ */
+public class TimeSeriesHttpServer {
+
+    private static final Logger logger = Logger.getLogger(TimeSeriesHttpServer.class);
+
+    private final TimeSeriesSink sink;
+    private final InetSocketAddress address;
+    private HttpServer server;
+
+    /**
+     * Serves the sink on the loopback interface.
+     *
+     * @param port the port, 0 for any free port
+     */
+    public TimeSeriesHttpServer(TimeSeriesSink sink, int port) {
+        this(sink, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public TimeSeriesHttpServer(TimeSeriesSink sink, InetSocketAddress address) {
+        this.sink = sink;
+        this.address = address;
+    }
+
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            return;
+        }
+        server = HttpServer.create(address, 0);
+        server.createContext("/series", new Handler() {
+            @Override
+            JsonObject query(Map<String, String> parameters) {
+                JsonArray names = new JsonArray();
+                for (String name : sink.names(parameters.get("prefix"))) {
+                    names.add(new JsonPrimitive(name));
+                }
+                JsonObject result = new JsonObject();
+                result.add("series", names);
+                return result;
+            }
+        });
+        server.createContext("/latest", new Handler() {
+            @Override
+            JsonObject query(Map<String, String> parameters) {
+                String name = required(parameters, "name");
+                JsonObject result = new JsonObject();
+                result.addProperty("name", name);
+                result.addProperty("time", sink.getLatestTickMillis());
+                double value = sink.latest(name);
+                if (!Double.isNaN(value)) {
+                    result.addProperty("value", value);
+                }
+                return result;
+            }
+        });
+        server.createContext("/range", new Handler() {
+            @Override
+            JsonObject query(Map<String, String> parameters) {
+                String name = required(parameters, "name");
+                long from = parameters.containsKey("from") ? Long.parseLong(parameters.get("from")) : Long.MIN_VALUE;
+                long to = parameters.containsKey("to") ? Long.parseLong(parameters.get("to")) : Long.MAX_VALUE;
+                JsonArray points = new JsonArray();
+                List<TimeSeriesSink.Point> range = sink.range(name, from, to);
+                for (TimeSeriesSink.Point point : range) {
+                    JsonArray pair = new JsonArray();
+                    pair.add(new JsonPrimitive(point.getTimeMillis()));
+                    pair.add(new JsonPrimitive(point.getValue()));
+                    points.add(pair);
+                }
+                JsonObject result = new JsonObject();
+                result.addProperty("name", name);
+                result.add("points", points);
+                return result;
+            }
+        });
+        server.start();
+        logger.info("TimeSeriesHttpServer listening on port " + getPort());
+    }
+
+    /**
+     * @return the port queries are served on, once started
+     */
+    public synchronized int getPort() {
+        return (server != null) ? server.getAddress().getPort() : address.getPort();
+    }
+
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    private abstract static class Handler implements HttpHandler {
+
+        abstract JsonObject query(Map<String, String> parameters);
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            int status = 200;
+            String body;
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    status = 405;
+                    body = "{\"error\":\"only GET is supported\"}";
+                } else {
+                    body = query(parameters(exchange.getRequestURI().getRawQuery())).toString();
+                }
+            } catch (NumberFormatException nfex) {
+                status = 400;
+                body = "{\"error\":\"from and to must be epoch milliseconds\"}";
+            } catch (IllegalArgumentException iaex) {
+                status = 400;
+                JsonObject error = new JsonObject();
+                error.addProperty("error", iaex.getMessage());
+                body = error.toString();
+            }
+
+            byte[] bytes = body.getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+        }
+
+        static String required(Map<String, String> parameters, String name) {
+            String value = parameters.get(name);
+            if (value == null || value.isEmpty()) {
+                throw new IllegalArgumentException(name + " is required");
+            }
+            return value;
+        }
+
+        private static Map<String, String> parameters(String query) throws UnsupportedEncodingException {
+            Map<String, String> parameters = new HashMap<String, String>();
+            if (query == null) {
+                return parameters;
+            }
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                            URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+                }
+            }
+            return parameters;
+        }
+    }
+}
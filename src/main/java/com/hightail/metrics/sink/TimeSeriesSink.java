@@ -0,0 +1,311 @@
+package com.hightail.metrics.sink;
+
+import org.apache.log4j.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the last few ticks of every value a reporter sends, so recent metrics can still be looked at while New Relic
+ * is unreachable or lagging.
+ *
+ * Values are stored as floats in one direct buffer allocated up front: one column per tick, holding a cell for each
+ * series, and the columns reused as a ring. The memory budget therefore fixes how many series fit; series beyond
+ * that are not kept and counted in {@link #getDroppedSeriesCount()}. A reporter resolves a series name to a slot handle
+ * once and then writes by handle, so recording costs a buffer write per value. A handle carries the generation of its
+ * slot, which {@link #release(String)} bumps, so a handle kept past its series' release writes nothing rather than
+ * into the series that reclaimed the slot.
+ *
+ * A sink is fed by a single reporter (see {@link com.hightail.metrics.reporter.ReporterOptions#timeSeriesSink}).
+ * Queries may come from any thread, through this class, JMX ({@link #registerMBean(String)}) or
+ * {@link TimeSeriesHttpServer}. A query overlapping the column that is being overwritten may see a mix of old and new
+ * values for that one tick.
+ */
+public class TimeSeriesSink implements TimeSeriesSinkMBean {
+
+    private static final Logger logger = Logger.getLogger(TimeSeriesSink.class);
+
+    private static final int VALUE_BYTES = 4;
+
+    private final int ticks;
+    private final int maxSeries;
+    private final ByteBuffer columns;
+    private final long[] tickTimes;
+
+    private final Map<String, Integer> slots = new ConcurrentHashMap<String, Integer>();
+    private final List<Integer> freeSlots = new ArrayList<Integer>();
+    // bumped whenever a slot is released, invalidating the handles given out for it
+    private final AtomicIntegerArray generations;
+    private volatile int nextSlot;
+    private final AtomicLong droppedSeries = new AtomicLong();
+
+    // the tick being written and the latest completed one, -1 before the first
+    private long writingTick = -1;
+    private volatile long publishedTick = -1;
+
+    /**
+     * @param ticks             how many ticks to keep per series
+     * @param memoryBudgetBytes the off-heap memory to take for values
+     */
+    public TimeSeriesSink(int ticks, long memoryBudgetBytes) {
+        if (ticks < 1) {
+            throw new IllegalArgumentException("A time series sink needs to keep at least 1 tick");
+        }
+        long series = Math.min(memoryBudgetBytes, Integer.MAX_VALUE) / ((long) ticks * VALUE_BYTES);
+        if (series < 1) {
+            throw new IllegalArgumentException("A memory budget of " + memoryBudgetBytes + " bytes cannot hold "
+                    + ticks + " ticks of a single series");
+        }
+        this.ticks = ticks;
+        this.maxSeries = (int) series;
+        this.columns = ByteBuffer.allocateDirect(ticks * maxSeries * VALUE_BYTES);
+        this.tickTimes = new long[ticks];
+        this.generations = new AtomicIntegerArray(maxSeries);
+        for (int i = 0; i < ticks * maxSeries; i++) {
+            columns.putFloat(i * VALUE_BYTES, Float.NaN);
+        }
+    }
+
+    /**
+     * Resolves a series name to the handle to {@link #record(long, double)} it under, claiming a slot on first use.
+     * The handle stays valid until the series is released.
+     *
+     * @return the series' handle, or -1 if the memory budget is used up
+     */
+    public long slot(String name) {
+        Integer slot = slots.get(name);
+        return (slot != null) ? handle(slot) : claim(name);
+    }
+
+    private synchronized long claim(String name) {
+        Integer slot = slots.get(name);
+        if (slot != null) {
+            return handle(slot);
+        }
+
+        int claimed;
+        if (!freeSlots.isEmpty()) {
+            claimed = freeSlots.remove(freeSlots.size() - 1);
+        } else if (nextSlot < maxSeries) {
+            claimed = nextSlot++;
+        } else {
+            if (droppedSeries.getAndIncrement() == 0) {
+                logger.warn("Time series sink is full at " + maxSeries + " series, not keeping " + name
+                        + " and any further series");
+            }
+            return -1;
+        }
+        clear(claimed);
+        slots.put(name, claimed);
+        return handle(claimed);
+    }
+
+    private long handle(int slot) {
+        return ((long) generations.get(slot) << 32) | slot;
+    }
+
+    /**
+     * Drops a series and frees its slot for reuse. Handles of the series no longer record anything.
+     */
+    public synchronized void release(String name) {
+        Integer slot = slots.remove(name);
+        if (slot != null) {
+            generations.set(slot, (generations.get(slot) + 1) & Integer.MAX_VALUE);
+            freeSlots.add(slot);
+        }
+    }
+
+    /**
+     * Drops all series whose name starts with the given prefix.
+     */
+    public void releaseAll(String prefix) {
+        for (String name : new ArrayList<String>(slots.keySet())) {
+            if (name.startsWith(prefix)) {
+                release(name);
+            }
+        }
+    }
+
+    /**
+     * Starts a new tick, reusing the oldest column.
+     */
+    public void beginTick(long timeMillis) {
+        writingTick = publishedTick + 1;
+        int column = column(writingTick);
+        tickTimes[column] = timeMillis;
+        int base = column * maxSeries * VALUE_BYTES;
+        for (int i = 0; i < nextSlot; i++) {
+            columns.putFloat(base + i * VALUE_BYTES, Float.NaN);
+        }
+    }
+
+    /**
+     * Stores a value of the current tick. Ignored for a handle of -1, for a handle of a released series and outside
+     * of a tick.
+     */
+    public void record(long handle, double value) {
+        if (handle < 0 || writingTick < 0) {
+            return;
+        }
+        int slot = (int) handle;
+        if (generations.get(slot) != (int) (handle >>> 32)) {
+            return;
+        }
+        columns.putFloat((column(writingTick) * maxSeries + slot) * VALUE_BYTES, (float) value);
+    }
+
+    /**
+     * Stores a value of the current tick by name, for reporters that do not keep slots.
+     */
+    public void record(String name, double value) {
+        record(slot(name), value);
+    }
+
+    /**
+     * Makes the current tick visible to queries.
+     */
+    public void endTick() {
+        if (writingTick > publishedTick) {
+            publishedTick = writingTick;
+        }
+    }
+
+    @Override
+    public double latest(String name) {
+        Integer slot = slots.get(name);
+        long tick = publishedTick;
+        if (slot == null || tick < 0) {
+            return Double.NaN;
+        }
+        return value(tick, slot);
+    }
+
+    /**
+     * @return the values of a series between the given times, oldest first, or an empty list for an unknown series
+     */
+    public List<Point> range(String name, long fromMillis, long toMillis) {
+        Integer slot = slots.get(name);
+        long tick = publishedTick;
+        if (slot == null || tick < 0) {
+            return Collections.emptyList();
+        }
+
+        List<Point> points = new ArrayList<Point>();
+        for (long t = Math.max(0, tick - ticks + 1); t <= tick; t++) {
+            long time = tickTimes[column(t)];
+            if (time >= fromMillis && time <= toMillis) {
+                double value = value(t, slot);
+                if (!Double.isNaN(value)) {
+                    points.add(new Point(time, value));
+                }
+            }
+        }
+        return points;
+    }
+
+    @Override
+    public double[] rangeValues(String name, long fromMillis, long toMillis) {
+        List<Point> points = range(name, fromMillis, toMillis);
+        double[] values = new double[points.size() * 2];
+        for (int i = 0; i < points.size(); i++) {
+            values[2 * i] = points.get(i).getTimeMillis();
+            values[2 * i + 1] = points.get(i).getValue();
+        }
+        return values;
+    }
+
+    @Override
+    public String[] names(String prefix) {
+        List<String> names = new ArrayList<String>();
+        for (String name : slots.keySet()) {
+            if (prefix == null || name.startsWith(prefix)) {
+                names.add(name);
+            }
+        }
+        Collections.sort(names);
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * @return the time of the latest completed tick, or -1 before the first
+     */
+    @Override
+    public long getLatestTickMillis() {
+        long tick = publishedTick;
+        return (tick < 0) ? -1 : tickTimes[column(tick)];
+    }
+
+    @Override
+    public int getSeriesCount() {
+        return slots.size();
+    }
+
+    @Override
+    public int getMaxSeries() {
+        return maxSeries;
+    }
+
+    @Override
+    public int getTicks() {
+        return ticks;
+    }
+
+    @Override
+    public long getDroppedSeriesCount() {
+        return droppedSeries.get();
+    }
+
+    /**
+     * Registers this sink with the platform MBean server under the given name, e.g.
+     * "com.hightail.metrics:type=TimeSeriesSink".
+     */
+    public void registerMBean(String objectName) throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, new ObjectName(objectName));
+    }
+
+    private double value(long tick, int slot) {
+        return columns.getFloat((column(tick) * maxSeries + slot) * VALUE_BYTES);
+    }
+
+    private int column(long tick) {
+        return (int) (tick % ticks);
+    }
+
+    // a reused slot must not show the previous series' values
+    private void clear(int slot) {
+        for (int column = 0; column < ticks; column++) {
+            columns.putFloat((column * maxSeries + slot) * VALUE_BYTES, Float.NaN);
+        }
+    }
+
+    /**
+     * One value of a series.
+     */
+    public static final class Point {
+        private final long timeMillis;
+        private final double value;
+
+        public Point(long timeMillis, double value) {
+            this.timeMillis = timeMillis;
+            this.value = value;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public double getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.hightail.metrics.sink;
+
+/**
+ * The JMX view of a {@link TimeSeriesSink}.
+ */
+public interface TimeSeriesSinkMBean {
+
+    /**
+     * @return the latest value of a series, NaN if it is unknown or missed the latest tick
+     */
+    double latest(String name);
+
+    /**
+     * @return the values of a series between the given times as time, value pairs, oldest first
+     */
+    double[] rangeValues(String name, long fromMillis, long toMillis);
+
+    /**
+     * @return the names of the series starting with the given prefix, all of them for null
+     */
+    String[] names(String prefix);
+
+    long getLatestTickMillis();
+
+    int getSeriesCount();
+
+    int getMaxSeries();
+
+    int getTicks();
+
+    long getDroppedSeriesCount();
+}
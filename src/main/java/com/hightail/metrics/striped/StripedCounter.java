@@ -0,0 +1,37 @@
+package com.hightail.metrics.striped;
+
+import com.codahale.metrics.Counter;
+
+/**
+ * A {@link Counter} whose increments go to striped cells instead of one shared value, for counters bumped by many
+ * threads at once. The cells are summed up when the count is read, i.e. at report time.
+ */
+public class StripedCounter extends Counter {
+
+    private final StripedLong count = new StripedLong();
+
+    @Override
+    public void inc() {
+        count.add(1);
+    }
+
+    @Override
+    public void inc(long n) {
+        count.add(n);
+    }
+
+    @Override
+    public void dec() {
+        count.add(-1);
+    }
+
+    @Override
+    public void dec(long n) {
+        count.add(-n);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+}
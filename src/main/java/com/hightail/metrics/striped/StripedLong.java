@@ -0,0 +1,37 @@
+package com.hightail.metrics.striped;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A sum spread over cells picked by the adding thread's id, so concurrent threads rarely add to the same cache line.
+ * The cells are only summed up when the value is read.
+ */
+final class StripedLong {
+
+    // one cell per stripe, padded to 64 bytes so that stripes do not share a cache line
+    private static final int STRIDE = 8;
+
+    private final int mask;
+    private final AtomicLongArray cells;
+
+    StripedLong() {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() * 2) {
+            stripes <<= 1;
+        }
+        this.mask = stripes - 1;
+        this.cells = new AtomicLongArray(stripes * STRIDE);
+    }
+
+    void add(long n) {
+        cells.addAndGet(((int) Thread.currentThread().getId() & mask) * STRIDE, n);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += STRIDE) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,123 @@
+package com.hightail.metrics.striped;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.EWMA;
+import com.codahale.metrics.Meter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Meter} whose marks only add to striped cells. A plain meter also checks on every mark whether its moving
+ * averages are due a tick, which every marking thread does on the same shared values.
+ *
+ * Here the moving averages are only brought up to date when a rate is read: whatever was marked since the previous
+ * read is spread evenly over the 5 second ticks that passed, so a meter read once per reporting interval ends up with
+ * the rates of a plain meter marked at a steady pace.
+ */
+public class StripedMeter extends Meter {
+
+    private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    private final StripedLong count = new StripedLong();
+    private final Clock clock;
+    private final long startTime;
+    private final EWMA m1Rate = EWMA.oneMinuteEWMA();
+    private final EWMA m5Rate = EWMA.fiveMinuteEWMA();
+    private final EWMA m15Rate = EWMA.fifteenMinuteEWMA();
+
+    // guarded by this
+    private long lastTick;
+    private long folded;
+
+    public StripedMeter() {
+        this(Clock.defaultClock());
+    }
+
+    /**
+     * @param clock the clock the rates are measured with
+     */
+    public StripedMeter(Clock clock) {
+        super(clock);
+        this.clock = clock;
+        this.startTime = clock.getTick();
+        this.lastTick = startTime;
+    }
+
+    @Override
+    public void mark() {
+        count.add(1);
+    }
+
+    @Override
+    public void mark(long n) {
+        count.add(n);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getMeanRate() {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        double elapsed = clock.getTick() - startTime;
+        return count / elapsed * TimeUnit.SECONDS.toNanos(1);
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+        fold();
+        return m1Rate.getRate(TimeUnit.SECONDS);
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+        fold();
+        return m5Rate.getRate(TimeUnit.SECONDS);
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+        fold();
+        return m15Rate.getRate(TimeUnit.SECONDS);
+    }
+
+    // hands what was marked since the previous read to the moving averages, one share per tick that passed
+    private synchronized void fold() {
+        long sum = count.sum();
+        long delta = sum - folded;
+        folded = sum;
+
+        long ticks = (clock.getTick() - lastTick) / TICK_INTERVAL;
+        if (ticks <= 0) {
+            update(delta);
+            return;
+        }
+        lastTick += ticks * TICK_INTERVAL;
+        long share = delta / ticks;
+        update(delta - share * ticks + share);
+        tick();
+        for (long i = 1; i < ticks; i++) {
+            update(share);
+            tick();
+        }
+    }
+
+    private void update(long n) {
+        if (n != 0) {
+            m1Rate.update(n);
+            m5Rate.update(n);
+            m15Rate.update(n);
+        }
+    }
+
+    private void tick() {
+        m1Rate.tick();
+        m5Rate.tick();
+        m15Rate.tick();
+    }
+}
@@ -0,0 +1,131 @@
+package com.hightail.metrics.striped;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link MetricRegistry} whose {@link #counter(String)}, {@link #meter(String)} and {@link #timer(String)} hand out
+ * {@link StripedCounter}s, {@link StripedMeter}s and {@link StripedTimer}s, so that code written against the plain
+ * registry API gets the striped metrics without changes.
+ *
+ * Repeated lookups by name are answered from a handle cache, which costs a single map read. The plain registry
+ * wraps its map in a new unmodifiable view on every lookup. A metric removed from the registry leaves the cache
+ * with it. Metrics registered explicitly through {@link #register(String, Metric)} are kept as they are.
+ *
+ * Looking a metric up once outside of a hot loop is still cheaper than any lookup in it.
+ */
+public class StripedMetricRegistry extends MetricRegistry {
+
+    private interface Builder<T extends Metric> {
+        T build();
+    }
+
+    private static final Builder<Counter> COUNTERS = new Builder<Counter>() {
+        @Override
+        public Counter build() {
+            return new StripedCounter();
+        }
+    };
+
+    private static final Builder<Meter> METERS = new Builder<Meter>() {
+        @Override
+        public Meter build() {
+            return new StripedMeter();
+        }
+    };
+
+    private static final Builder<Timer> TIMERS = new Builder<Timer>() {
+        @Override
+        public Timer build() {
+            return new StripedTimer();
+        }
+    };
+
+    private static final Builder<Histogram> HISTOGRAMS = new Builder<Histogram>() {
+        @Override
+        public Histogram build() {
+            return new Histogram(new ExponentiallyDecayingReservoir());
+        }
+    };
+
+    private final ConcurrentMap<String, Metric> handles = new ConcurrentHashMap<String, Metric>();
+
+    public StripedMetricRegistry() {
+        addListener(new MetricRegistryListener.Base() {
+            @Override
+            public void onCounterRemoved(String name) {
+                handles.remove(name);
+            }
+
+            @Override
+            public void onHistogramRemoved(String name) {
+                handles.remove(name);
+            }
+
+            @Override
+            public void onMeterRemoved(String name) {
+                handles.remove(name);
+            }
+
+            @Override
+            public void onTimerRemoved(String name) {
+                handles.remove(name);
+            }
+        });
+    }
+
+    @Override
+    public Counter counter(String name) {
+        return getOrAdd(name, Counter.class, COUNTERS);
+    }
+
+    @Override
+    public Histogram histogram(String name) {
+        return getOrAdd(name, Histogram.class, HISTOGRAMS);
+    }
+
+    @Override
+    public Meter meter(String name) {
+        return getOrAdd(name, Meter.class, METERS);
+    }
+
+    @Override
+    public Timer timer(String name) {
+        return getOrAdd(name, Timer.class, TIMERS);
+    }
+
+    private <T extends Metric> T getOrAdd(String name, Class<T> type, Builder<T> builder) {
+        Metric metric = handles.get(name);
+        if (type.isInstance(metric)) {
+            return type.cast(metric);
+        }
+
+        metric = getMetrics().get(name);
+        if (metric == null) {
+            try {
+                metric = register(name, builder.build());
+            } catch (IllegalArgumentException iaex) {
+                // registered by another thread in the meantime
+                metric = getMetrics().get(name);
+            }
+        }
+        if (type.isInstance(metric)) {
+            handles.put(name, metric);
+            if (getMetrics().get(name) != metric) {
+                // removed in the meantime, so it must not stay cached
+                handles.remove(name, metric);
+            }
+            return type.cast(metric);
+        }
+        throw new IllegalArgumentException(name + " is already used for a different type of metric");
+    }
+}
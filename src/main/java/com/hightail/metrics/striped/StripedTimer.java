@@ -0,0 +1,160 @@
+package com.hightail.metrics.striped;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Timer} whose recording threads do not share the reservoir lock on every call.
+ *
+ * The count and rates come from a {@link StripedMeter}. Durations go to a small buffer owned by the recording thread
+ * and only reach the reservoir once the buffer is full, or when the snapshot is read, which drains every thread's
+ * buffer first. The buffer of a thread that died is dropped once drained.
+ *
+ * Buffered durations are weighed by the reservoir when they are drained rather than when they were recorded, so an
+ * {@link ExponentiallyDecayingReservoir} sees them up to one reporting interval late.
+ *
+ * <pre>
+ * MetricRegistry registry = new StripedMetricRegistry();
+ * Timer timer = registry.timer("scan.file");
+ * </pre>
+ */
+public class StripedTimer extends Timer {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64;
+
+    private final Clock clock;
+    private final StripedMeter meter;
+    private final Histogram histogram;
+    private final int bufferSize;
+    private final List<Buffer> buffers = new CopyOnWriteArrayList<Buffer>();
+    private final ThreadLocal<Buffer> buffer = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            Buffer buffer = new Buffer();
+            buffers.add(buffer);
+            return buffer;
+        }
+    };
+
+    public StripedTimer() {
+        this(new ExponentiallyDecayingReservoir());
+    }
+
+    /**
+     * @param reservoir the reservoir the durations are sampled into
+     */
+    public StripedTimer(Reservoir reservoir) {
+        this(reservoir, Clock.defaultClock(), DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param reservoir  the reservoir the durations are sampled into
+     * @param clock      the clock calls and rates are measured with
+     * @param bufferSize how many durations a thread keeps before handing them to the reservoir
+     */
+    public StripedTimer(Reservoir reservoir, Clock clock, int bufferSize) {
+        super(reservoir, clock);
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("A striped timer has to buffer at least 1 duration");
+        }
+        this.clock = clock;
+        this.meter = new StripedMeter(clock);
+        this.histogram = new Histogram(reservoir);
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public void update(long duration, TimeUnit unit) {
+        long nanos = unit.toNanos(duration);
+        if (nanos >= 0) {
+            meter.mark();
+            buffer.get().add(nanos);
+        }
+    }
+
+    @Override
+    public <T> T time(Callable<T> event) throws Exception {
+        long startTime = clock.getTick();
+        try {
+            return event.call();
+        } finally {
+            update(clock.getTick() - startTime, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return meter.getCount();
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+        return meter.getFifteenMinuteRate();
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+        return meter.getFiveMinuteRate();
+    }
+
+    @Override
+    public double getMeanRate() {
+        return meter.getMeanRate();
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+        return meter.getOneMinuteRate();
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        for (Buffer buffer : buffers) {
+            buffer.drain();
+            if (!buffer.isOwnerAlive()) {
+                buffers.remove(buffer);
+            }
+        }
+        return histogram.getSnapshot();
+    }
+
+    /**
+     * The durations one thread recorded since they were last handed to the reservoir. Only its owner and a reader
+     * draining it take its lock, so the lock is hardly ever contended.
+     */
+    private final class Buffer {
+        private final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+        private final long[] durations = new long[bufferSize];
+        // guarded by this
+        private int size;
+
+        synchronized void add(long nanos) {
+            durations[size++] = nanos;
+            if (size == durations.length) {
+                drain();
+            }
+        }
+
+        synchronized void drain() {
+            for (int i = 0; i < size; i++) {
+                histogram.update(durations[i]);
+            }
+            size = 0;
+        }
+
+        boolean isOwnerAlive() {
+            Thread thread = owner.get();
+            return thread != null && thread.isAlive();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.hightail.metrics;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.hightail.metrics.agent.AgentMetricRegistry;
+import com.hightail.metrics.agent.AgentTimer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AgentTimerTest {
+
+    private static final int THREADS = 8;
+    private static final int UPDATES_PER_THREAD = 100000;
+
+    @Test
+    public void testConcurrentUpdatesAreFlushedOnce() throws InterruptedException {
+        final AgentTimer timer = new AgentTimer();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= UPDATES_PER_THREAD; i++) {
+                        timer.update(i, TimeUnit.MICROSECONDS);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long count = (long) THREADS * UPDATES_PER_THREAD;
+        assertEquals(count, timer.getCount());
+
+        AgentTimer.Interval interval = timer.flush();
+        assertEquals(count, interval.getCount());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1), interval.getMinNanos());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(UPDATES_PER_THREAD), interval.getMaxNanos());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(UPDATES_PER_THREAD + 1) / 2.0, interval.getMeanNanos(), 0.001);
+
+        // nothing new since the flush
+        assertNull(timer.flush());
+
+        timer.update(5, TimeUnit.MILLISECONDS);
+        interval = timer.flush();
+        assertEquals(1, interval.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5), interval.getMinNanos());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5), interval.getMaxNanos());
+        assertEquals(count + 1, timer.getCount());
+    }
+
+    @Test
+    public void testRegistryHandsOutAgentTimers() throws Exception {
+        MetricRegistry registry = new AgentMetricRegistry(true);
+        Timer timer = registry.timer("scan.file");
+        assertTrue(timer instanceof AgentTimer);
+        assertSame(timer, registry.timer("scan.file"));
+
+        Timer.Context context = timer.time();
+        context.stop();
+        assertEquals(1, timer.getCount());
+        // the delegate keeps the regular view
+        assertEquals(1, timer.getSnapshot().size());
+
+        registry.counter("scan.count");
+        try {
+            registry.timer("scan.count");
+            throw new AssertionError("a counter was handed out as a timer");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
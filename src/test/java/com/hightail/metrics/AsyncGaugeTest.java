@@ -0,0 +1,90 @@
+package com.hightail.metrics;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Gauge;
+import com.hightail.metrics.gauge.AsyncGauge;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncGaugeTest {
+
+    @Test
+    public void testServesLatestValueWhileRefreshingInBackground() {
+        final AtomicLong source = new AtomicLong(1);
+        ManualClock clock = new ManualClock();
+        QueueingExecutor executor = new QueueingExecutor();
+
+        AsyncGauge<Long> gauge = new AsyncGauge<Long>(new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return source.get();
+            }
+        }, 10, TimeUnit.SECONDS, executor, clock);
+
+        // the first refresh is queued on construction but has not run yet
+        assertNull(gauge.getValue());
+        assertFalse(gauge.hasValue());
+        assertEquals(-1, gauge.getAgeMillis());
+
+        executor.runAll();
+        assertEquals(Long.valueOf(1), gauge.getValue());
+        assertEquals(1.0, gauge.getDoubleValue(), 0.0);
+
+        source.set(2);
+        clock.advance(5, TimeUnit.SECONDS);
+        assertEquals(Long.valueOf(1), gauge.getValue());
+        assertEquals(5000, gauge.getAgeMillis());
+        assertEquals(0, executor.tasks.size());
+
+        // once due, reading still returns the stale value and hands exactly one refresh to the executor
+        clock.advance(6, TimeUnit.SECONDS);
+        assertEquals(Long.valueOf(1), gauge.getValue());
+        assertEquals(1.0, gauge.getDoubleValue(), 0.0);
+        assertEquals(1, executor.tasks.size());
+
+        executor.runAll();
+        assertEquals(Long.valueOf(2), gauge.getValue());
+        assertEquals(0, gauge.getAgeMillis());
+        assertTrue(gauge.hasValue());
+    }
+
+    private static class ManualClock extends Clock {
+        private long tick;
+
+        @Override
+        public long getTick() {
+            return tick;
+        }
+
+        void advance(long duration, TimeUnit unit) {
+            tick += unit.toNanos(duration);
+        }
+    }
+
+    private static class QueueingExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            List<Runnable> pending = new ArrayList<Runnable>(tasks);
+            tasks.clear();
+            for (Runnable task : pending) {
+                task.run();
+            }
+        }
+    }
+}
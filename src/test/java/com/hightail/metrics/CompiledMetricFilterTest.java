@@ -0,0 +1,79 @@
+package com.hightail.metrics;
+
+import com.codahale.metrics.MetricRegistry;
+import com.hightail.metrics.filter.CompiledMetricFilter;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompiledMetricFilterTest {
+
+    @Test
+    public void testIncludesAndExcludes() {
+        CompiledMetricFilter filter = CompiledMetricFilter.builder()
+                .includeGlob("com.hightail.kaspersky.*")
+                .includeGlob("jvm.heap.used")
+                .includeGlob("db.*.latency")
+                .includeRegex("http\\.(get|post)\\.[0-9]{3}")
+                .excludeGlob("com.hightail.kaspersky.debug.*")
+                .build();
+
+        assertTrue(filter.decide("com.hightail.kaspersky.scan.file"));
+        assertTrue(filter.decide("jvm.heap.used"));
+        assertTrue(filter.decide("db.billing.latency"));
+        assertTrue(filter.decide("http.get.200"));
+
+        assertFalse(filter.decide("com.hightail.kaspersky.debug.queue"));
+        assertFalse(filter.decide("jvm.heap.used.max"));
+        assertFalse(filter.decide("db.billing.latency.p99"));
+        assertFalse(filter.decide("http.put.200"));
+        assertFalse(filter.decide("com.hightail.other"));
+    }
+
+    @Test
+    public void testNoIncludesMeansEverythingNotExcluded() {
+        CompiledMetricFilter filter = CompiledMetricFilter.builder().excludeRegex(".*\\.debug\\..*").build();
+
+        assertTrue(filter.decide("scan.file"));
+        assertFalse(filter.decide("scan.debug.file"));
+    }
+
+    @Test
+    public void testRegistryKeepsDecisionsInSync() {
+        MetricRegistry registry = new MetricRegistry();
+        CompiledMetricFilter filter = CompiledMetricFilter.builder().includeGlob("scan.*").build();
+        registry.addListener(filter);
+
+        registry.counter("scan.files");
+        registry.counter("other.files");
+
+        assertEquals(2, filter.getDecisionCount());
+        assertEquals(1, registry.getCounters(filter).size());
+        assertTrue(registry.remove("scan.files"));
+        assertEquals(1, filter.getDecisionCount());
+        assertEquals(0, registry.getCounters(filter).size());
+        assertEquals(1, filter.getDecisionCount());
+    }
+
+    @Test
+    public void testRegexesWithBackreferencesMatchOnTheirOwn() {
+        CompiledMetricFilter filter = CompiledMetricFilter.builder()
+                .includeRegex("api\\.(v){1,3}\\..*")
+                .includeRegex("(\\w+)\\.to\\.\\1")
+                .includeRegex("(?<queue>\\w+)\\.depth\\.\\k<queue>")
+                .includeRegex("(?<queue>\\w+)\\.size")
+                .includeGlob("db.*.latency")
+                .build();
+
+        assertTrue(filter.decide("api.vv.calls"));
+        assertTrue(filter.decide("copy.to.copy"));
+        assertFalse(filter.decide("copy.to.move"));
+        assertTrue(filter.decide("scan.depth.scan"));
+        assertFalse(filter.decide("scan.depth.upload"));
+        assertTrue(filter.decide("scan.size"));
+        assertTrue(filter.decide("db.billing.latency"));
+        assertFalse(filter.decide("api.vvvv.calls"));
+    }
+}
@@ -0,0 +1,232 @@
+package com.hightail.metrics;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.hightail.metrics.filter.CompiledMetricFilter;
+import com.hightail.metrics.reporter.ReportingTier;
+import com.hightail.metrics.rest.DeliveryCoordinator;
+import com.hightail.metrics.rest.MetricsTransport;
+import com.hightail.metrics.rest.NewRelic;
+import com.hightail.metrics.rest.NewRelicHTTPv1Reporter;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeliveryCoordinatorTest {
+
+    private static final long WINDOW_MILLIS = 2000;
+
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+    private final MetricsTransport capturing = new MetricsTransport() {
+        @Override
+        public void send(NewRelic newRelic, byte[] payload, int length) {
+            sent.add(newRelic.getLicenseKey() + " " + new String(payload, 0, length));
+        }
+    };
+
+    @Test
+    public void testMergesReportersTickingTogetherIntoOneRequest() throws Exception {
+        DeliveryCoordinator coordinator = new DeliveryCoordinator(capturing, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        NewRelicHTTPv1Reporter first = reporter(coordinator, "CustomHTTPMetrics/billing-service01", "Kaspersky-Metrics");
+        NewRelicHTTPv1Reporter second = reporter(coordinator, "CustomHTTPMetrics/billing-service02", "Kaspersky-Metrics");
+
+        reportTogether(first, second);
+        assertEquals(1, sent.size());
+        JsonArray components = components(sent.get(0));
+        assertEquals(1, components.size());
+        JsonObject metrics = components.get(0).getAsJsonObject().getAsJsonObject("metrics");
+        assertNotNull(metrics.get("CustomHTTPMetrics/billing-service01/jobs.done/count"));
+        assertNotNull(metrics.get("CustomHTTPMetrics/billing-service02/jobs.done/count"));
+
+        // both joined last time, so the next batch goes out as soon as both are in
+        sent.clear();
+        long started = System.nanoTime();
+        reportTogether(first, second);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < WINDOW_MILLIS);
+        assertEquals(1, sent.size());
+        first.stop();
+        second.stop();
+    }
+
+    @Test
+    public void testLoneRequestDoesNotStopLaterMerges() throws Exception {
+        DeliveryCoordinator coordinator = new DeliveryCoordinator(capturing, 500, TimeUnit.MILLISECONDS);
+        NewRelicHTTPv1Reporter first = reporter(coordinator, "CustomHTTPMetrics/billing-service01", "Kaspersky-Metrics");
+        NewRelicHTTPv1Reporter second = reporter(coordinator, "CustomHTTPMetrics/billing-service02", "Kaspersky-Metrics");
+
+        // the first reporter ticks on its own before the second one started
+        first.report();
+        assertEquals(1, sent.size());
+
+        for (int round = 0; round < 3; round++) {
+            sent.clear();
+            reportApart(20, first, second);
+            assertEquals("round " + round, 1, sent.size());
+        }
+        first.stop();
+        second.stop();
+    }
+
+    @Test
+    public void testKeepsComponentsAndLicenseKeysApart() throws Exception {
+        DeliveryCoordinator coordinator = new DeliveryCoordinator(capturing, 500, TimeUnit.MILLISECONDS);
+        NewRelicHTTPv1Reporter scanner = reporter(coordinator, "Component/scanner", "Scanner");
+        NewRelicHTTPv1Reporter billing = reporter(coordinator, "Component/billing", "Billing");
+        NewRelicHTTPv1Reporter other = NewRelicHTTPv1Reporter.forRegistry(registry())
+                .withTransport(coordinator)
+                .build(new NewRelic("http://localhost/unused", "other-license", "Billing", "com.hightail.test"));
+
+        reportTogether(scanner, billing, other);
+        assertEquals(2, sent.size());
+        for (String request : sent) {
+            if (request.startsWith("license ")) {
+                assertEquals(2, components(request).size());
+            } else {
+                assertEquals(1, components(request).size());
+            }
+        }
+    }
+
+    @Test
+    public void testMergesRequestsHoldingSeveralTiers() throws Exception {
+        DeliveryCoordinator coordinator = new DeliveryCoordinator(capturing, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        NewRelicHTTPv1Reporter first = tieredReporter(coordinator, "CustomHTTPMetrics/billing-service01");
+        NewRelicHTTPv1Reporter second = tieredReporter(coordinator, "CustomHTTPMetrics/billing-service02");
+
+        reportTogether(first, second);
+        assertEquals(1, sent.size());
+        JsonArray components = components(sent.get(0));
+        assertEquals(2, components.size());
+        for (int i = 0; i < components.size(); i++) {
+            JsonObject component = components.get(i).getAsJsonObject();
+            String metric = (component.get("duration").getAsInt() == 10) ? "slo.requests/count" : "jobs.done/count";
+            JsonObject metrics = component.getAsJsonObject("metrics");
+            assertEquals(metrics.toString(), 2, metrics.entrySet().size());
+            assertNotNull(metrics.get("CustomHTTPMetrics/billing-service01/" + metric));
+            assertNotNull(metrics.get("CustomHTTPMetrics/billing-service02/" + metric));
+        }
+        first.stop();
+        second.stop();
+    }
+
+    @Test
+    public void testEverySenderSeesTheFailure() throws Exception {
+        final List<byte[]> payloads = new ArrayList<byte[]>();
+        NewRelicHTTPv1Reporter reporter = NewRelicHTTPv1Reporter.forRegistry(registry())
+                .withTransport(new MetricsTransport() {
+                    @Override
+                    public void send(NewRelic newRelic, byte[] payload, int length) {
+                        payloads.add(Arrays.copyOf(payload, length));
+                    }
+                })
+                .build(newRelic("Billing"));
+        reporter.report();
+        reporter.report();
+
+        final DeliveryCoordinator coordinator = new DeliveryCoordinator(new MetricsTransport() {
+            @Override
+            public void send(NewRelic newRelic, byte[] payload, int length) throws IOException {
+                throw new IOException("New Relic rejected the metrics with HTTP 503");
+            }
+        }, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (final byte[] payload : payloads) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    coordinator.send(newRelic("Billing"), payload, payload.length);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+                fail("the failure was not passed on");
+            } catch (ExecutionException eex) {
+                assertTrue(eex.getCause() instanceof IOException);
+                assertTrue(eex.getCause().getMessage().contains("HTTP 503"));
+            }
+        }
+        executor.shutdown();
+    }
+
+    private void reportTogether(NewRelicHTTPv1Reporter... reporters) throws Exception {
+        reportApart(0, reporters);
+    }
+
+    // starts the reporters the given number of milliseconds after one another
+    private void reportApart(long millis, NewRelicHTTPv1Reporter... reporters) throws Exception {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final NewRelicHTTPv1Reporter reporter : reporters) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    reporter.report();
+                }
+            });
+            if (!threads.isEmpty()) {
+                Thread.sleep(millis);
+            }
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static NewRelicHTTPv1Reporter reporter(DeliveryCoordinator coordinator, String prefix, String component) {
+        return NewRelicHTTPv1Reporter.forRegistry(registry())
+                .prefixedWith(prefix)
+                .withTransport(coordinator)
+                .build(newRelic(component));
+    }
+
+    private static NewRelicHTTPv1Reporter tieredReporter(DeliveryCoordinator coordinator, String prefix) {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("jobs.done").inc();
+        registry.counter("slo.requests").inc();
+        return NewRelicHTTPv1Reporter.forRegistry(registry)
+                .prefixedWith(prefix)
+                .tier(new ReportingTier("slo", CompiledMetricFilter.builder().includeGlob("slo.*").build(),
+                        10, TimeUnit.SECONDS))
+                .withTransport(coordinator)
+                .build(newRelic("Billing"));
+    }
+
+    private static MetricRegistry registry() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("jobs.done").inc(3);
+        registry.timer("api.latency").update(5, TimeUnit.MILLISECONDS);
+        return registry;
+    }
+
+    private static NewRelic newRelic(String component) {
+        return new NewRelic("http://localhost/unused", "license", component, "com.hightail.test");
+    }
+
+    private static JsonArray components(String request) {
+        String json = request.substring(request.indexOf(' ') + 1);
+        return new JsonParser().parse(json).getAsJsonObject().getAsJsonArray("components");
+    }
+}
@@ -0,0 +1,124 @@
+package com.hightail.metrics;
+
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.hightail.metrics.exemplar.Exemplar;
+import com.hightail.metrics.exemplar.ExemplarTimer;
+import com.hightail.metrics.rest.MetricsTransport;
+import com.hightail.metrics.rest.NewRelic;
+import com.hightail.metrics.rest.NewRelicHTTPv1Reporter;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ExemplarTimerTest {
+
+    @Test
+    public void testKeepsSlowestLabelledCallsPerInterval() {
+        ExemplarTimer timer = new ExemplarTimer(3);
+        timer.update(10, TimeUnit.MILLISECONDS, "fast");
+        timer.update(900, TimeUnit.MILLISECONDS, "request-42");
+        timer.update(50, TimeUnit.MILLISECONDS);
+        timer.update(400, TimeUnit.MILLISECONDS, "request-7");
+        timer.update(20, TimeUnit.MILLISECONDS, "fast");
+
+        assertEquals(5, timer.getCount());
+        List<Exemplar> exemplars = timer.drainExemplars();
+        assertEquals(3, exemplars.size());
+        assertEquals(900, exemplars.get(0).getDuration(TimeUnit.MILLISECONDS), 0.0);
+        assertEquals("request-42", exemplars.get(0).getLabel());
+        assertEquals("request-7", exemplars.get(1).getLabel());
+        assertNull(exemplars.get(2).getLabel());
+        assertEquals(Thread.currentThread().getName(), exemplars.get(0).getThreadName());
+
+        // the next interval starts empty
+        assertTrue(timer.drainExemplars().isEmpty());
+        ExemplarTimer.Context context = timer.time("timed");
+        context.stop();
+        assertEquals("timed", timer.drainExemplars().get(0).getLabel());
+    }
+
+    @Test
+    public void testKeepsTheTopUnderConcurrentUpdates() throws Exception {
+        final ExemplarTimer timer = new ExemplarTimer(5);
+        final List<Long> recorded = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final Random random = new Random(t);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException iex) {
+                        return;
+                    }
+                    for (int i = 0; i < 20000; i++) {
+                        long nanos = random.nextInt(Integer.MAX_VALUE);
+                        recorded.add(nanos);
+                        timer.update(nanos, TimeUnit.NANOSECONDS);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Collections.sort(recorded, Collections.reverseOrder());
+        List<Exemplar> exemplars = timer.drainExemplars();
+        assertEquals(5, exemplars.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(recorded.get(i).longValue(), exemplars.get(i).getDurationNanos());
+        }
+    }
+
+    @Test
+    public void testHttpReporterSendsSlowestCallsByRank() {
+        MetricRegistry registry = new MetricRegistry();
+        ExemplarTimer timer = registry.register("api.latency", new ExemplarTimer(2));
+        timer.update(120, TimeUnit.MILLISECONDS, "a");
+        timer.update(480, TimeUnit.MILLISECONDS, "b");
+        timer.update(30, TimeUnit.MILLISECONDS, "c");
+
+        final List<JsonObject> metrics = new ArrayList<JsonObject>();
+        NewRelicHTTPv1Reporter reporter = NewRelicHTTPv1Reporter.forRegistry(registry)
+                .prefixedWith("Component/test")
+                .filter(MetricFilter.ALL)
+                .withTransport(new MetricsTransport() {
+                    @Override
+                    public void send(NewRelic newRelic, byte[] payload, int length) {
+                        metrics.add(new JsonParser().parse(new String(payload, 0, length)).getAsJsonObject()
+                                .getAsJsonArray("components").get(0).getAsJsonObject().getAsJsonObject("metrics"));
+                    }
+                })
+                .build(new NewRelic("http://localhost/unused", "license", "component", "com.hightail.test"));
+        reporter.report();
+
+        JsonObject sent = metrics.get(0);
+        assertEquals(480, sent.get("Component/test/api.latency/slowest1/milliseconds").getAsDouble(), 0.001);
+        assertEquals(120, sent.get("Component/test/api.latency/slowest2/milliseconds").getAsDouble(), 0.001);
+        assertEquals(3, sent.get("Component/test/api.latency/count").getAsLong());
+
+        // nothing slow was recorded since, so no ranks are sent
+        metrics.clear();
+        reporter.report();
+        assertNull(metrics.get(0).get("Component/test/api.latency/slowest1/milliseconds"));
+        reporter.stop();
+    }
+}
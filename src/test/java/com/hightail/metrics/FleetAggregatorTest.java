@@ -0,0 +1,179 @@
+package com.hightail.metrics;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.hightail.metrics.fleet.FleetAggregator;
+import com.hightail.metrics.fleet.QuantileSketch;
+import com.hightail.metrics.fleet.SketchData;
+import com.hightail.metrics.fleet.SketchReservoir;
+import com.hightail.metrics.fleet.SketchSnapshot;
+import com.hightail.metrics.rest.MetricsTransport;
+import com.hightail.metrics.rest.NewRelic;
+import com.hightail.metrics.rest.NewRelicHTTPv1Reporter;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FleetAggregatorTest {
+
+    // {first, last} millisecond timed by each node
+    private static final long[][] NODES = {{1, 1000}, {1001, 2000}, {50000, 50999}};
+
+    @Test
+    public void testMergesPercentilesFromSeveralJvms() throws Exception {
+        FleetAggregator aggregator = new FleetAggregator(new InetSocketAddress("127.0.0.1", 0));
+        aggregator.start();
+        try {
+            String url = "http://127.0.0.1:" + aggregator.getPort();
+            List<Process> nodes = new ArrayList<Process>();
+            for (int i = 0; i < NODES.length; i++) {
+                nodes.add(startNode(url, "billing-service0" + (i + 1), NODES[i][0], NODES[i][1]));
+            }
+            for (Process node : nodes) {
+                assertEquals(0, node.waitFor());
+            }
+            aggregator.closeWindow();
+
+            Timer fleet = aggregator.getRegistry().getTimers().get("api.latency");
+            Snapshot snapshot = fleet.getSnapshot();
+            assertEquals(3000, fleet.getCount());
+            assertEquals(3000, snapshot.size());
+            assertEquals(TimeUnit.MILLISECONDS.toNanos(1), snapshot.getMin());
+            assertEquals(TimeUnit.MILLISECONDS.toNanos(50999), snapshot.getMax());
+
+            // the true percentiles of the union, not an average of the nodes' percentiles
+            assertWithinAccuracy(millis(1500), snapshot.getMedian());
+            assertWithinAccuracy(millis(50000 + 969), snapshot.get99thPercentile());
+            assertWithinAccuracy(millis(1000), snapshot.getValue(1000.0 / 3000));
+
+            CapturingTransport transport = new CapturingTransport();
+            NewRelicHTTPv1Reporter reporter = NewRelicHTTPv1Reporter.forRegistry(aggregator.getRegistry())
+                    .prefixedWith("CustomHTTPMetrics/billing-service")
+                    .withTransport(transport)
+                    .build(new NewRelic("http://localhost/unused", "license", "component", "com.hightail.test"));
+            reporter.report();
+
+            JsonObject metrics = new JsonParser().parse(transport.captured.get(0)).getAsJsonObject()
+                    .getAsJsonArray("components").get(0).getAsJsonObject().getAsJsonObject("metrics");
+            double p99 = metrics.get("CustomHTTPMetrics/billing-service/api.latency/99th/milliseconds").getAsDouble();
+            assertWithinAccuracy(50969, p99);
+            assertEquals(3000, metrics.get("CustomHTTPMetrics/billing-service/api.latency/count").getAsLong());
+
+            // the next window only holds what was recorded since
+            aggregator.closeWindow();
+            assertEquals(0, aggregator.getRegistry().getTimers().get("api.latency").getSnapshot().size());
+        } finally {
+            aggregator.stop();
+        }
+    }
+
+    @Test
+    public void testIntervalsOfCumulativeSketches() {
+        SketchReservoir reservoir = new SketchReservoir();
+        for (int i = 1; i <= 100; i++) {
+            reservoir.update(i);
+        }
+        SketchData first = ((SketchSnapshot) reservoir.getSnapshot()).getData();
+        for (int i = 1000; i < 1100; i++) {
+            reservoir.update(i);
+        }
+        SketchData second = ((SketchSnapshot) reservoir.getSnapshot()).getData();
+
+        SketchData interval = second.since(first);
+        assertEquals(100, interval.getCount());
+        assertTrue(interval.getMin() >= 990 && interval.getMax() <= 1100);
+        assertWithinAccuracy(1049.5, interval.getValue(0.5));
+
+        // a restarted node starts again from zero
+        SketchData restarted = first.since(second);
+        assertEquals(100, restarted.getCount());
+
+        assertEquals(300, SketchData.merge(Arrays.asList(first, second)).getCount());
+    }
+
+    @Test
+    public void testRejectsMalformedMessages() throws Exception {
+        FleetAggregator aggregator = new FleetAggregator(new InetSocketAddress("127.0.0.1", 0));
+        aggregator.start();
+        try {
+            String url = "http://127.0.0.1:" + aggregator.getPort() + "/sketches";
+            assertEquals(400, post(url, message(-1)));
+            assertEquals(400, post(url, message(Integer.MAX_VALUE)));
+            assertEquals(204, post(url, message(0)));
+        } finally {
+            aggregator.stop();
+        }
+
+        SketchReservoir reservoir = new SketchReservoir();
+        reservoir.update(5);
+        reservoir.update(7);
+        assertEquals(2, reservoir.size());
+    }
+
+    // a message header claiming the given number of metrics, without any
+    private static byte[] message(int count) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x534B4554);
+        out.writeByte(1);
+        out.writeUTF("billing-service01");
+        out.writeInt(count);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static int post(String url, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        OutputStream out = connection.getOutputStream();
+        out.write(body);
+        out.close();
+        int status = connection.getResponseCode();
+        connection.disconnect();
+        return status;
+    }
+
+    private static Process startNode(String url, String name, long first, long last) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                FleetNode.class.getName(), url, name, String.valueOf(first), String.valueOf(last));
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+        return builder.start();
+    }
+
+    private static double millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private static void assertWithinAccuracy(double expected, double actual) {
+        // twice the sketch's accuracy leaves room for the rank rounding between neighbouring values
+        assertEquals(expected, actual, expected * 2 * QuantileSketch.RELATIVE_ACCURACY);
+    }
+
+    private static class CapturingTransport implements MetricsTransport {
+        private final List<String> captured = new ArrayList<String>();
+
+        @Override
+        public void send(NewRelic newRelic, byte[] payload, int length) throws IOException {
+            captured.add(new String(payload, 0, length, "UTF-8"));
+        }
+    }
+}
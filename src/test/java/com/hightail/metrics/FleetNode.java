@@ -0,0 +1,29 @@
+package com.hightail.metrics;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.hightail.metrics.fleet.SketchExporter;
+import com.hightail.metrics.fleet.SketchReservoir;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One node of {@link FleetAggregatorTest}, run in its own JVM: times "api.latency" from the given first to last
+ * millisecond and sends the sketch to the aggregator once.
+ *
+ * Usage: FleetNode aggregatorUrl nodeName firstMillis lastMillis
+ */
+public class FleetNode {
+
+    public static void main(String[] args) throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        Timer timer = registry.register("api.latency", new Timer(new SketchReservoir()));
+        for (long millis = Long.parseLong(args[2]); millis <= Long.parseLong(args[3]); millis++) {
+            timer.update(millis, TimeUnit.MILLISECONDS);
+        }
+
+        SketchExporter exporter = SketchExporter.forRegistry(registry).nodeName(args[1]).build(args[0]);
+        exporter.report();
+        exporter.stop();
+    }
+}
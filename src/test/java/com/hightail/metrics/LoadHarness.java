@@ -0,0 +1,418 @@
+package com.hightail.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.hightail.metrics.agent.NewRelicAgentReporter;
+import com.hightail.metrics.constants.ReporterType;
+import com.hightail.metrics.dimensional.NewRelicDimensionalReporter;
+import com.hightail.metrics.reporter.NewRelicReporter;
+import com.hightail.metrics.rest.NewRelic;
+import com.hightail.metrics.rest.NewRelicHTTPv1Reporter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures what the reporters cost the application. N worker threads update M timers, meters and counters at a
+ * target rate, first with no reporter attached and then with each reporter type in turn, reporting to local
+ * stand-ins: a loopback HTTP server for the HTTPv1 and dimensional reporters, and the agent API's no-op
+ * implementation for the agent reporter. For every run it prints the workers' throughput and latency percentiles and
+ * how far they dropped against the baseline.
+ *
+ * An operation's latency is measured from the time it was scheduled to start, so a worker held up by the reporter
+ * is charged for every operation it fell behind on. Configured through system properties:
+ *
+ * <pre>
+ * load.workers          worker threads (4)
+ * load.metrics          timers, meters and counters each (50)
+ * load.ratePerWorker    operations per second and worker, 0 for as fast as possible (20000)
+ * load.durationSeconds  measured time per run (10)
+ * load.warmupSeconds    unmeasured time before every run (3)
+ * load.periodMillis     reporting period (1000)
+ * load.reporters        reporter types to run against the baseline (HTTPv1,DIMENSIONAL,AGENT)
+ * </pre>
+ *
+ * Usage: java -Dload.workers=8 ... com.hightail.metrics.LoadHarness
+ */
+public class LoadHarness {
+
+    private final Config config;
+
+    public LoadHarness(Config config) {
+        this.config = config;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = Config.fromSystemProperties();
+        System.out.println(config);
+        print(new LoadHarness(config).runAll());
+    }
+
+    /**
+     * Runs the baseline, then every configured reporter type.
+     *
+     * @return the baseline's result followed by one per reporter type
+     */
+    public List<Result> runAll() throws Exception {
+        List<Result> results = new ArrayList<Result>();
+        results.add(run(null));
+        for (ReporterType type : config.reporters) {
+            results.add(run(type));
+        }
+        return results;
+    }
+
+    /**
+     * Runs the workers with the given reporter type attached.
+     *
+     * @param type the reporter type, null for the no-reporter baseline
+     */
+    public Result run(ReporterType type) throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        StandIn standIn = new StandIn();
+        NewRelicReporter reporter = (type != null) ? reporter(type, registry, standIn) : null;
+        Workers workers = new Workers(registry);
+        try {
+            if (reporter != null) {
+                reporter.start(config.periodMillis, TimeUnit.MILLISECONDS);
+            }
+            workers.start();
+            Thread.sleep(config.warmupMillis);
+
+            long requestsBefore = standIn.requests.get();
+            workers.measuring = true;
+            long started = System.nanoTime();
+            Thread.sleep(config.durationMillis);
+            workers.measuring = false;
+            long elapsed = System.nanoTime() - started;
+            workers.stop();
+
+            return new Result((type != null) ? type.name() : "none", workers.ops(), elapsed, workers.latencies(),
+                    standIn.requests.get() - requestsBefore);
+        } finally {
+            workers.stop();
+            if (reporter != null) {
+                reporter.stop();
+            }
+            standIn.stop();
+        }
+    }
+
+    private NewRelicReporter reporter(ReporterType type, MetricRegistry registry, StandIn standIn) {
+        switch (type) {
+            case HTTPv1:
+                return NewRelicHTTPv1Reporter.forRegistry(registry)
+                        .prefixedWith("Component/load")
+                        .build(new NewRelic(standIn.url(), "license", "load-harness", "com.hightail.load"));
+            case DIMENSIONAL:
+                return NewRelicDimensionalReporter.forRegistry(registry)
+                        .prefixedWith("Custom/load")
+                        .build(new NewRelic(standIn.url(), "license", "load-harness", null));
+            case AGENT:
+                return NewRelicAgentReporter.forRegistry(registry).prefixedWith("Custom/load").build();
+            default:
+                throw new IllegalArgumentException("Unknown reporter type " + type);
+        }
+    }
+
+    public static void print(List<Result> results) {
+        Result baseline = results.get(0);
+        System.out.println(String.format("%-12s %12s %8s %10s %10s %10s %8s %9s",
+                "reporter", "ops/s", "drop", "p50 us", "p99 us", "p99.9 us", "p99 +", "requests"));
+        for (Result result : results) {
+            System.out.println(String.format("%-12s %12.0f %7.1f%% %10.1f %10.1f %10.1f %7.1f%% %9d",
+                    result.reporter,
+                    result.getOpsPerSecond(),
+                    100 * (1 - result.getOpsPerSecond() / baseline.getOpsPerSecond()),
+                    result.latencies.percentile(0.5) / 1000.0,
+                    result.latencies.percentile(0.99) / 1000.0,
+                    result.latencies.percentile(0.999) / 1000.0,
+                    100 * ((double) result.latencies.percentile(0.99) / baseline.latencies.percentile(0.99) - 1),
+                    result.requests));
+        }
+    }
+
+    public static class Config {
+        int workers = 4;
+        int metrics = 50;
+        int ratePerWorker = 20000;
+        long durationMillis = TimeUnit.SECONDS.toMillis(10);
+        long warmupMillis = TimeUnit.SECONDS.toMillis(3);
+        long periodMillis = 1000;
+        List<ReporterType> reporters = new ArrayList<ReporterType>();
+
+        public Config() {
+            reporters.add(ReporterType.HTTPv1);
+            reporters.add(ReporterType.DIMENSIONAL);
+            reporters.add(ReporterType.AGENT);
+        }
+
+        public static Config fromSystemProperties() {
+            Config config = new Config();
+            config.workers = Integer.getInteger("load.workers", config.workers);
+            config.metrics = Integer.getInteger("load.metrics", config.metrics);
+            config.ratePerWorker = Integer.getInteger("load.ratePerWorker", config.ratePerWorker);
+            config.durationMillis = TimeUnit.SECONDS.toMillis(Long.getLong("load.durationSeconds",
+                    TimeUnit.MILLISECONDS.toSeconds(config.durationMillis)));
+            config.warmupMillis = TimeUnit.SECONDS.toMillis(Long.getLong("load.warmupSeconds",
+                    TimeUnit.MILLISECONDS.toSeconds(config.warmupMillis)));
+            config.periodMillis = Long.getLong("load.periodMillis", config.periodMillis);
+            String reporters = System.getProperty("load.reporters");
+            if (reporters != null) {
+                config.reporters.clear();
+                for (String reporter : reporters.split(",")) {
+                    if (!reporter.trim().isEmpty()) {
+                        config.reporters.add(ReporterType.valueOf(reporter.trim()));
+                    }
+                }
+            }
+            return config;
+        }
+
+        @Override
+        public String toString() {
+            return workers + " workers at " + ((ratePerWorker > 0) ? ratePerWorker + " ops/s" : "full speed")
+                    + " on " + metrics + " timers, meters and counters, " + durationMillis + " ms per run after "
+                    + warmupMillis + " ms warmup, reporting every " + periodMillis + " ms to " + reporters;
+        }
+    }
+
+    public static class Result {
+        private final String reporter;
+        private final long ops;
+        private final long elapsedNanos;
+        private final LatencyHistogram latencies;
+        private final long requests;
+
+        Result(String reporter, long ops, long elapsedNanos, LatencyHistogram latencies, long requests) {
+            this.reporter = reporter;
+            this.ops = ops;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+            this.requests = requests;
+        }
+
+        public String getReporter() {
+            return reporter;
+        }
+
+        public long getOps() {
+            return ops;
+        }
+
+        public double getOpsPerSecond() {
+            return ops * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @return the latency of the given quantile of operations, in nanoseconds
+         */
+        public long getLatency(double quantile) {
+            return latencies.percentile(quantile);
+        }
+
+        /**
+         * @return the requests the stand-in endpoint received while measuring
+         */
+        public long getRequests() {
+            return requests;
+        }
+    }
+
+    /**
+     * The worker threads, each updating one timer, meter and counter per operation, round robin.
+     */
+    private class Workers {
+        private final Timer[] timers;
+        private final Meter[] meters;
+        private final Counter[] counters;
+        private final List<Thread> threads = new ArrayList<Thread>();
+        private final List<Worker> workers = new ArrayList<Worker>();
+        private volatile boolean running = true;
+        volatile boolean measuring;
+
+        Workers(MetricRegistry registry) {
+            timers = new Timer[config.metrics];
+            meters = new Meter[config.metrics];
+            counters = new Counter[config.metrics];
+            for (int i = 0; i < config.metrics; i++) {
+                timers[i] = registry.timer("load.timer" + i);
+                meters[i] = registry.meter("load.meter" + i);
+                counters[i] = registry.counter("load.counter" + i);
+            }
+        }
+
+        void start() {
+            for (int i = 0; i < config.workers; i++) {
+                Worker worker = new Worker(i);
+                Thread thread = new Thread(worker, "load-worker-" + i);
+                thread.setDaemon(true);
+                workers.add(worker);
+                threads.add(thread);
+                thread.start();
+            }
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        long ops() {
+            long ops = 0;
+            for (Worker worker : workers) {
+                ops += worker.ops;
+            }
+            return ops;
+        }
+
+        LatencyHistogram latencies() {
+            LatencyHistogram latencies = new LatencyHistogram();
+            for (Worker worker : workers) {
+                latencies.add(worker.latencies);
+            }
+            return latencies;
+        }
+
+        private class Worker implements Runnable {
+            private final Random random;
+            private final LatencyHistogram latencies = new LatencyHistogram();
+            // written by the worker only, read once it stopped
+            private long ops;
+
+            Worker(int seed) {
+                this.random = new Random(seed);
+            }
+
+            @Override
+            public void run() {
+                long interval = (config.ratePerWorker > 0) ? TimeUnit.SECONDS.toNanos(1) / config.ratePerWorker : 0;
+                long next = System.nanoTime();
+                int metric = 0;
+                while (running) {
+                    long scheduled;
+                    if (interval > 0) {
+                        next += interval;
+                        long wait = next - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                        scheduled = next;
+                    } else {
+                        scheduled = System.nanoTime();
+                    }
+
+                    timers[metric].update(random.nextInt(1000000), TimeUnit.NANOSECONDS);
+                    meters[metric].mark();
+                    counters[metric].inc();
+                    metric = (metric + 1 < timers.length) ? metric + 1 : 0;
+
+                    if (measuring) {
+                        latencies.record(System.nanoTime() - scheduled);
+                        ops++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts of latencies in logarithmic buckets of 16 linear sub-buckets each, precise to about 6%.
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BUCKETS = 16;
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        private long total;
+
+        void record(long nanos) {
+            counts[index(Math.max(0, nanos))]++;
+            total++;
+        }
+
+        void add(LatencyHistogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+        }
+
+        long percentile(double quantile) {
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (magnitude - 4)) & (SUB_BUCKETS - 1);
+            return (magnitude - 3) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int magnitude = index / SUB_BUCKETS + 3;
+            long sub = index % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << (magnitude - 4)) - 1;
+        }
+    }
+
+    /**
+     * A loopback endpoint that accepts and discards whatever is POSTed to it.
+     */
+    private static final class StandIn {
+        private final HttpServer server;
+        final AtomicLong requests = new AtomicLong();
+
+        StandIn() throws IOException {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.createContext("/", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    InputStream body = exchange.getRequestBody();
+                    byte[] discard = new byte[4096];
+                    while (body.read(discard) != -1) {
+                        // discard
+                    }
+                    requests.incrementAndGet();
+                    exchange.sendResponseHeaders(202, -1);
+                    exchange.close();
+                }
+            });
+            server.start();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + server.getAddress().getPort() + "/metrics";
+        }
+
+        void stop() {
+            server.stop(0);
+        }
+    }
+}
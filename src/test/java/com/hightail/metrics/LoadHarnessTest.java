@@ -0,0 +1,56 @@
+package com.hightail.metrics;
+
+import com.hightail.metrics.constants.ReporterType;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a short {@link LoadHarness} pass over every reporter type, checking that the harness measures what it claims
+ * to rather than the reporters' cost itself, which depends on the machine.
+ */
+public class LoadHarnessTest {
+
+    @Test
+    public void testMeasuresEveryReporterAgainstTheBaseline() throws Exception {
+        LoadHarness.Config config = new LoadHarness.Config();
+        config.workers = 2;
+        config.metrics = 20;
+        config.ratePerWorker = 5000;
+        config.durationMillis = 1000;
+        config.warmupMillis = 300;
+        config.periodMillis = 100;
+
+        List<LoadHarness.Result> results = new LoadHarness(config).runAll();
+        LoadHarness.print(results);
+
+        assertEquals(4, results.size());
+        assertEquals("none", results.get(0).getReporter());
+        assertEquals(0, results.get(0).getRequests());
+        for (LoadHarness.Result result : results) {
+            assertTrue(result.getReporter() + " made no progress", result.getOps() > 0);
+            assertTrue(result.getLatency(0.5) <= result.getLatency(0.99));
+            assertTrue(result.getLatency(0.99) <= result.getLatency(0.999));
+        }
+        assertTrue(results.get(1).getReporter() + " sent nothing", results.get(1).getRequests() > 0);
+        assertTrue(results.get(2).getReporter() + " sent nothing", results.get(2).getRequests() > 0);
+    }
+
+    @Test
+    public void testLatencyHistogramPercentiles() {
+        LoadHarness.LatencyHistogram histogram = new LoadHarness.LatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+        assertEquals(500000, histogram.percentile(0.5), 500000 * 0.07);
+        assertEquals(990000, histogram.percentile(0.99), 990000 * 0.07);
+
+        LoadHarness.LatencyHistogram small = new LoadHarness.LatencyHistogram();
+        small.record(7);
+        assertEquals(7, small.percentile(1.0));
+    }
+}
@@ -0,0 +1,142 @@
+package com.hightail.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.hightail.metrics.filter.CompiledMetricFilter;
+import com.hightail.metrics.reporter.LoadSheddingPolicy;
+import com.hightail.metrics.reporter.MetricIndex;
+import com.hightail.metrics.reporter.MetricPriority;
+import com.hightail.metrics.reporter.NewRelicReporter;
+import com.hightail.metrics.reporter.ReporterOptions;
+import com.hightail.metrics.reporter.ReportingTier;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LoadSheddingPolicyTest {
+
+    @Test
+    public void testShedsLowPriorityFirstWhileCyclesAreSlow() throws InterruptedException {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("api.requests");
+        registry.counter("cache.hits");
+        registry.counter("scan.debug.files");
+
+        LoadSheddingPolicy policy = LoadSheddingPolicy.builder()
+                .priority(CompiledMetricFilter.builder().includeGlob("api.*").build(), MetricPriority.HIGH)
+                .priority(CompiledMetricFilter.builder().includeGlob("*.debug.*").build(), MetricPriority.LOW)
+                .maxCycleTime(20, TimeUnit.MILLISECONDS)
+                .downsampleFactor(2)
+                .build();
+        SlowReporter reporter = new SlowReporter(registry, new ReporterOptions().loadShedding(policy));
+
+        reporter.report();
+        assertEquals(0, policy.getLevel());
+        assertEquals(3, reporter.lastReported.size());
+
+        // delivery falls behind: every pass after a slow one escalates by one level
+        reporter.delayMillis = 40;
+        for (int i = 0; i < 3; i++) {
+            reporter.report();
+        }
+        assertEquals(2, policy.getLevel());
+        assertEquals(2, reporter.lastReported.size());
+        assertFalse(reporter.lastReported.contains("scan.debug.files"));
+
+        reporter.report();
+        reporter.report();
+        assertEquals(4, policy.getLevel());
+        assertEquals(1, reporter.lastReported.size());
+        assertEquals("api.requests", reporter.lastReported.get(0));
+
+        assertEquals(0, policy.getShedMetricCount(MetricPriority.HIGH));
+        assertTrue(policy.getShedMetricCount(MetricPriority.NORMAL) >= 1);
+        assertTrue(policy.getShedMetricCount(MetricPriority.LOW) > policy.getShedMetricCount(MetricPriority.NORMAL));
+
+        // recovery takes a few calm passes per level
+        reporter.delayMillis = 0;
+        for (int i = 0; i < LoadSheddingPolicy.RECOVERY_TICKS * LoadSheddingPolicy.MAX_LEVEL + 1; i++) {
+            reporter.report();
+        }
+        assertEquals(0, policy.getLevel());
+        assertEquals(3, reporter.lastReported.size());
+
+        registry.register("reporter.shedding", policy.getMetrics());
+        assertEquals(0L, registry.getGauges().get("reporter.shedding.shed.high").getValue());
+    }
+
+    @Test
+    public void testSlowTierDoesNotShedAFastOne() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("slo.requests");
+        registry.counter("batch.jobs");
+
+        LoadSheddingPolicy policy = LoadSheddingPolicy.builder()
+                .priority(MetricFilter.ALL, MetricPriority.LOW)
+                .maxCycleTime(20, TimeUnit.MILLISECONDS)
+                .downsampleFactor(1)
+                .build();
+        ReporterOptions options = new ReporterOptions()
+                .loadShedding(policy)
+                .addTier(new ReportingTier("slo", CompiledMetricFilter.builder().includeGlob("slo.*").build(),
+                        50, TimeUnit.MILLISECONDS));
+        SlowReporter reporter = new SlowReporter(registry, options);
+        reporter.slowPrefix = "batch.";
+        reporter.delayMillis = 40;
+
+        // only the batch metrics are slow to report, so only the tier they are in escalates to dropping them
+        reporter.report();
+        reporter.report();
+        reporter.allReported.clear();
+        reporter.report();
+        assertEquals(2, policy.getLevel());
+        assertEquals(1, reporter.allReported.size());
+        assertEquals("slo.requests", reporter.allReported.get(0));
+        assertEquals(1, policy.getShedMetricCount(MetricPriority.LOW));
+    }
+
+    private static class SlowReporter extends NewRelicReporter {
+        private volatile long delayMillis;
+        // only delays tiers reporting metrics with this prefix, if set
+        private volatile String slowPrefix;
+        private List<String> lastReported = new ArrayList<String>();
+        // the metrics of every tier reported so far
+        private final List<String> allReported = new ArrayList<String>();
+
+        private SlowReporter(MetricRegistry registry, ReporterOptions options) {
+            super(registry, "slow-reporter", MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, options);
+        }
+
+        @Override
+        public void report(MetricIndex.Group<Gauge> gauges, MetricIndex.Group<Counter> counters,
+                           MetricIndex.Group<Histogram> histograms, MetricIndex.Group<Meter> meters,
+                           MetricIndex.Group<Timer> timers) {
+            lastReported = new ArrayList<String>();
+            boolean slow = slowPrefix == null;
+            for (int i = 0; i < counters.size(); i++) {
+                lastReported.add(counters.name(i));
+                slow |= slowPrefix != null && counters.name(i).startsWith(slowPrefix);
+            }
+            allReported.addAll(lastReported);
+            if (!slow) {
+                return;
+            }
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException iex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
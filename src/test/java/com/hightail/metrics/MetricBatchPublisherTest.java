@@ -0,0 +1,292 @@
+package com.hightail.metrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.hightail.metrics.publish.FlowAdapters;
+import com.hightail.metrics.publish.MetricBatch;
+import com.hightail.metrics.publish.MetricBatchPublisher;
+import com.hightail.metrics.publish.MetricBatchSubscriber;
+import com.hightail.metrics.publish.MetricBatchSubscription;
+import com.hightail.metrics.publish.MetricField;
+import com.hightail.metrics.publish.MetricKind;
+import com.hightail.metrics.rest.MetricsTransport;
+import com.hightail.metrics.rest.NewRelic;
+import com.hightail.metrics.rest.NewRelicHTTPv1Reporter;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricBatchPublisherTest {
+
+    // delivers on the reporting thread, so the test sees every signal right away
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test
+    public void testPublishesPrimitiveValuesOfEveryKind() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("requests").inc(3);
+        registry.timer("latency").update(250, TimeUnit.MILLISECONDS);
+        registry.histogram("sizes").update(42);
+        registry.register("queue.depth", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return 7;
+            }
+        });
+        registry.register("status", new Gauge<String>() {
+            @Override
+            public String getValue() {
+                return "up";
+            }
+        });
+
+        MetricBatchPublisher publisher = MetricBatchPublisher.forRegistry(registry).deliverOn(DIRECT).build();
+        RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+        publisher.subscribe(subscriber);
+        publisher.report();
+
+        assertEquals(1, subscriber.batches.size());
+        MetricBatch batch = subscriber.batches.get(0);
+        // the string gauge has no numeric value and is left out
+        assertEquals(4, batch.size());
+        assertEquals(-1, batch.indexOf("status"));
+
+        int requests = batch.indexOf("requests");
+        assertEquals(MetricKind.COUNTER, batch.getKind(requests));
+        assertEquals(3.0, batch.getValue(requests, MetricField.COUNT), 0.0);
+        assertTrue(Double.isNaN(batch.getValue(requests, MetricField.MEAN)));
+
+        int latency = batch.indexOf("latency");
+        assertEquals(MetricKind.TIMER, batch.getKind(latency));
+        assertEquals(1.0, batch.getValue(latency, MetricField.COUNT), 0.0);
+        assertEquals(250.0, batch.getValue(latency, MetricField.P99), 0.0);
+
+        assertEquals(42.0, batch.getValue(batch.indexOf("sizes"), MetricField.MAX), 0.0);
+        assertEquals(7.0, batch.getValue(batch.indexOf("queue.depth"), MetricField.VALUE), 0.0);
+
+        // names are interned, so they are the same instance in every batch
+        publisher.report();
+        MetricBatch next = subscriber.batches.get(1);
+        assertSame(batch.getName(requests), next.getName(next.indexOf("requests")));
+        publisher.stop();
+    }
+
+    @Test
+    public void testDeliversOnlyWhatWasRequestedAndDropsTheOldest() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("ticks");
+        MetricBatchPublisher publisher = MetricBatchPublisher.forRegistry(registry)
+                .deliverOn(DIRECT)
+                .bufferSize(2)
+                .build();
+        RecordingSubscriber subscriber = new RecordingSubscriber(1);
+        publisher.subscribe(subscriber);
+
+        for (int tick = 1; tick <= 4; tick++) {
+            registry.counter("ticks").inc();
+            publisher.report();
+        }
+
+        // tick 1 went out on demand, tick 2 made room for ticks 3 and 4
+        assertEquals(1, subscriber.batches.size());
+        assertEquals(1, publisher.getDroppedBatchCount());
+        subscriber.subscription.request(5);
+        assertEquals(3, subscriber.batches.size());
+        assertEquals(3.0, subscriber.batches.get(1).getValue(0, MetricField.COUNT), 0.0);
+        assertEquals(4.0, subscriber.batches.get(2).getValue(0, MetricField.COUNT), 0.0);
+
+        publisher.stop();
+        assertTrue(subscriber.completed);
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void testCancelledAndFailingSubscribersAreDropped() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("ticks");
+        MetricBatchPublisher publisher = MetricBatchPublisher.forRegistry(registry).deliverOn(DIRECT).build();
+
+        RecordingSubscriber cancelling = new RecordingSubscriber(Long.MAX_VALUE);
+        RecordingSubscriber failing = new RecordingSubscriber(Long.MAX_VALUE) {
+            @Override
+            public void onNext(MetricBatch batch) {
+                throw new IllegalStateException("broken sink");
+            }
+        };
+        RecordingSubscriber invalid = new RecordingSubscriber(0);
+        publisher.subscribe(cancelling);
+        publisher.subscribe(failing);
+        publisher.subscribe(invalid);
+        invalid.subscription.request(0);
+        assertTrue(invalid.error instanceof IllegalArgumentException);
+
+        cancelling.subscription.cancel();
+        publisher.report();
+        assertEquals(0, cancelling.batches.size());
+        assertEquals(0, publisher.getSubscriberCount());
+        publisher.stop();
+    }
+
+    @Test
+    public void testBridgesToFlowWhenAvailable() throws Exception {
+        if (!FlowAdapters.isFlowSupported()) {
+            return;
+        }
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("ticks").inc();
+        MetricBatchPublisher publisher = MetricBatchPublisher.forRegistry(registry).deliverOn(DIRECT).build();
+
+        Class<?> publisherClass = Class.forName("java.util.concurrent.Flow$Publisher");
+        Class<?> subscriberClass = Class.forName("java.util.concurrent.Flow$Subscriber");
+        final Class<?> subscriptionClass = Class.forName("java.util.concurrent.Flow$Subscription");
+        Object flowPublisher = FlowAdapters.toFlowPublisher(publisher);
+        assertTrue(publisherClass.isInstance(flowPublisher));
+
+        final List<Object> received = new ArrayList<Object>();
+        Object flowSubscriber = Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{subscriberClass},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("onSubscribe".equals(method.getName())) {
+                            subscriptionClass.getMethod("request", long.class).invoke(args[0], 1L);
+                        } else if ("onNext".equals(method.getName())) {
+                            received.add(args[0]);
+                        }
+                        return null;
+                    }
+                });
+        publisherClass.getMethod("subscribe", subscriberClass).invoke(flowPublisher, flowSubscriber);
+
+        publisher.report();
+        publisher.report();
+        assertEquals(1, received.size());
+        assertNotNull(((MetricBatch) received.get(0)).getName(0));
+        publisher.stop();
+    }
+
+    @Test
+    public void testSharesTheReportersPass() {
+        MetricRegistry registry = new MetricRegistry();
+        final int[] gaugeReads = new int[1];
+        final int[] snapshotReads = new int[1];
+        registry.register("queue.depth", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                gaugeReads[0]++;
+                return 7;
+            }
+        });
+        Timer latency = registry.register("latency", new Timer() {
+            @Override
+            public Snapshot getSnapshot() {
+                snapshotReads[0]++;
+                return super.getSnapshot();
+            }
+        });
+        latency.update(250, TimeUnit.MILLISECONDS);
+
+        MetricBatchPublisher publisher = MetricBatchPublisher.forRegistry(registry).deliverOn(DIRECT).build();
+        RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+        publisher.subscribe(subscriber);
+        final List<JsonObject> sent = new ArrayList<JsonObject>();
+        NewRelicHTTPv1Reporter reporter = NewRelicHTTPv1Reporter.forRegistry(registry)
+                .prefixedWith("Component/scanner")
+                .publishTo(publisher)
+                .withTransport(new MetricsTransport() {
+                    @Override
+                    public void send(NewRelic newRelic, byte[] payload, int length) {
+                        sent.add(new JsonParser().parse(new String(payload, 0, length)).getAsJsonObject()
+                                .getAsJsonArray("components").get(0).getAsJsonObject().getAsJsonObject("metrics"));
+                    }
+                })
+                .build(new NewRelic("http://localhost/unused", "license", "scanner", "com.hightail.test"));
+
+        reporter.report();
+        assertEquals(1, gaugeReads[0]);
+        assertEquals(1, snapshotReads[0]);
+        assertEquals(1, subscriber.batches.size());
+        MetricBatch batch = subscriber.batches.get(0);
+        assertEquals(7.0, batch.getValue(batch.indexOf("queue.depth"), MetricField.VALUE), 0.0);
+        assertEquals(250.0, batch.getValue(batch.indexOf("latency"), MetricField.MAX), 0.0);
+        assertEquals(7, sent.get(0).get("Component/scanner/queue.depth/gauge").getAsDouble(), 0.0);
+        assertEquals(250, sent.get(0).get("Component/scanner/latency/max/milliseconds").getAsDouble(), 0.001);
+
+        // a second pass reads everything afresh, once again
+        reporter.report();
+        assertEquals(2, gaugeReads[0]);
+        assertEquals(2, snapshotReads[0]);
+        assertEquals(2, subscriber.batches.size());
+
+        reporter.stop();
+        publisher.stop();
+        assertTrue(subscriber.completed);
+    }
+
+    @Test
+    public void testSubscriberAfterStopIsCompletedRightAway() {
+        MetricBatchPublisher publisher = MetricBatchPublisher.forRegistry(new MetricRegistry()).build();
+        publisher.stop();
+
+        RecordingSubscriber subscriber = new RecordingSubscriber(1);
+        publisher.subscribe(subscriber);
+        assertNotNull(subscriber.subscription);
+        assertTrue(subscriber.completed);
+        assertEquals(null, subscriber.error);
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+    private static class RecordingSubscriber implements MetricBatchSubscriber {
+        private final long initialDemand;
+        private final List<MetricBatch> batches = new ArrayList<MetricBatch>();
+        private MetricBatchSubscription subscription;
+        private Throwable error;
+        private boolean completed;
+
+        RecordingSubscriber(long initialDemand) {
+            this.initialDemand = initialDemand;
+        }
+
+        @Override
+        public void onSubscribe(MetricBatchSubscription subscription) {
+            this.subscription = subscription;
+            if (initialDemand > 0) {
+                subscription.request(initialDemand);
+            }
+        }
+
+        @Override
+        public void onNext(MetricBatch batch) {
+            batches.add(batch);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}
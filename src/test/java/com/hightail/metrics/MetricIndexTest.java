@@ -0,0 +1,45 @@
+package com.hightail.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.hightail.metrics.reporter.MetricIndex;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class MetricIndexTest {
+
+    @Test
+    public void testIndexFollowsRegistry() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("b");
+
+        MetricIndex index = new MetricIndex(new MetricFilter() {
+            @Override
+            public boolean matches(String name, Metric metric) {
+                return !name.startsWith("ignored");
+            }
+        });
+        registry.addListener(index);
+
+        registry.counter("a");
+        registry.counter("ignored.c");
+        registry.timer("t");
+
+        MetricIndex.Group<Counter> counters = index.counters();
+        assertEquals(2, counters.size());
+        assertEquals("a", counters.name(0));
+        assertEquals("b", counters.name(1));
+        assertEquals(1, index.timers().size());
+
+        // unchanged registry hands out the same arrays
+        assertSame(counters, index.counters());
+
+        registry.remove("a");
+        assertEquals(1, index.counters().size());
+        assertEquals("b", index.counters().name(0));
+    }
+}
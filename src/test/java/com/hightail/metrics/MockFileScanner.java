@@ -13,9 +13,11 @@ public class MockFileScanner {
     //measuring the dummy file scanner
     public static void scanFiles(MetricRegistry registry) {
 
+        //looked up once, not on every file
+        Timer timer = registry.timer("com.hightail.kaspersky.scan.file");
+
         while(true) {
 
-            Timer timer = registry.timer("com.hightail.kaspersky.scan.file");
             Timer.Context context = timer.time();
 
             try {
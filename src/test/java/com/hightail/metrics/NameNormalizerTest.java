@@ -0,0 +1,176 @@
+package com.hightail.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.hightail.metrics.reporter.MetricIndex;
+import com.hightail.metrics.reporter.NameNormalizer;
+import com.hightail.metrics.reporter.NewRelicReporter;
+import com.hightail.metrics.reporter.ReporterOptions;
+import com.hightail.metrics.rest.MetricsTransport;
+import com.hightail.metrics.rest.NewRelic;
+import com.hightail.metrics.rest.NewRelicHTTPv1Reporter;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NameNormalizerTest {
+
+    @Test
+    public void testCollapsesSegmentsOnceTheyVaryTooMuch() {
+        NameNormalizer normalizer = NameNormalizer.builder().maxValuesPerSegment(50).build();
+        for (int i = 0; i < 50; i++) {
+            assertEquals("scan.file." + i + ".time", normalizer.normalize("scan.file." + i + ".time"));
+        }
+        assertEquals("scan.file.{id}.time", normalizer.normalize("scan.file.50.time"));
+        // names seen before the segment collapsed follow it
+        assertEquals("scan.file.{id}.time", normalizer.normalize("scan.file.7.time"));
+        assertEquals("scan.file.{id}.size", normalizer.normalize("scan.file.123456.size"));
+        assertEquals(1, normalizer.getCollapsedParentCount());
+
+        for (int i = 0; i < 120; i++) {
+            normalizer.normalize("customer." + UUID.randomUUID() + ".upload." + (1000 + i));
+        }
+        assertEquals("customer.{id}.upload.{id}", normalizer.normalize("customer." + UUID.randomUUID() + ".upload.9"));
+    }
+
+    @Test
+    public void testKeepsVocabulariesAndBoundsItsMemory() {
+        NameNormalizer normalizer = NameNormalizer.builder().maxValuesPerSegment(5).maxTrackedParents(1).build();
+        for (int i = 0; i < 100; i++) {
+            String name = "com.hightail.Service" + (char) ('A' + i % 26) + (char) ('a' + i / 26) + ".requests";
+            assertEquals(name, normalizer.normalize(name));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            normalizer.normalize("scan.file." + i);
+        }
+        assertEquals("scan.file.{id}", normalizer.normalize("scan.file.99"));
+        // a second parent is beyond the limit
+        for (int i = 0; i < 10; i++) {
+            assertEquals("upload.file." + i, normalizer.normalize("upload.file." + i));
+        }
+    }
+
+    @Test
+    public void testReportsCollapsedMetricsAsOne() {
+        MetricRegistry registry = new MetricRegistry();
+        for (int i = 1; i <= 20; i++) {
+            registry.counter("scan.file." + i + ".errors").inc(i);
+            registry.meter("scan.file." + i + ".bytes").mark(10);
+            Timer timer = registry.timer("scan.file." + i + ".time");
+            timer.update(i, TimeUnit.MILLISECONDS);
+        }
+        registry.counter("scan.total").inc(7);
+
+        final List<JsonObject> metrics = new ArrayList<JsonObject>();
+        NewRelicHTTPv1Reporter reporter = NewRelicHTTPv1Reporter.forRegistry(registry)
+                .prefixedWith("Component/scanner")
+                .collapseNames(NameNormalizer.builder().maxValuesPerSegment(5).build())
+                .withTransport(new MetricsTransport() {
+                    @Override
+                    public void send(NewRelic newRelic, byte[] payload, int length) {
+                        metrics.add(new JsonParser().parse(new String(payload, 0, length)).getAsJsonObject()
+                                .getAsJsonArray("components").get(0).getAsJsonObject().getAsJsonObject("metrics"));
+                    }
+                })
+                .build(new NewRelic("http://localhost/unused", "license", "scanner", "com.hightail.test"));
+        reporter.report();
+
+        JsonObject sent = metrics.get(0);
+        assertEquals(210, sent.get("Component/scanner/scan.file.{id}.errors/count").getAsLong());
+        assertEquals(200, sent.get("Component/scanner/scan.file.{id}.bytes/count").getAsLong());
+        assertEquals(20, sent.get("Component/scanner/scan.file.{id}.time/count").getAsLong());
+        assertEquals(1, sent.get("Component/scanner/scan.file.{id}.time/min/milliseconds").getAsDouble(), 0.001);
+        assertEquals(20, sent.get("Component/scanner/scan.file.{id}.time/max/milliseconds").getAsDouble(), 0.001);
+        assertEquals(10.5, sent.get("Component/scanner/scan.file.{id}.time/mean/milliseconds").getAsDouble(), 0.5);
+        assertEquals(7, sent.get("Component/scanner/scan.total/count").getAsLong());
+        assertNull(sent.get("Component/scanner/scan.file.3.errors/count"));
+        for (Map.Entry<String, ?> entry : sent.entrySet()) {
+            assertTrue(entry.getKey(), entry.getKey().startsWith("Component/scanner/scan.file.{id}.")
+                    || entry.getKey().startsWith("Component/scanner/scan.total/"));
+        }
+
+        // the next tick merges the members afresh
+        for (int i = 1; i <= 20; i++) {
+            registry.counter("scan.file." + i + ".errors").inc();
+        }
+        registry.timer("scan.file.3.time").update(40, TimeUnit.MILLISECONDS);
+        reporter.report();
+        reporter.stop();
+
+        sent = metrics.get(1);
+        assertEquals(230, sent.get("Component/scanner/scan.file.{id}.errors/count").getAsLong());
+        assertEquals(200, sent.get("Component/scanner/scan.file.{id}.bytes/count").getAsLong());
+        assertEquals(21, sent.get("Component/scanner/scan.file.{id}.time/count").getAsLong());
+        assertEquals(40, sent.get("Component/scanner/scan.file.{id}.time/max/milliseconds").getAsDouble(), 0.001);
+    }
+
+    @Test
+    public void testKeepsTheCountOfRemovedMembersAndDropsEmptiedTemplates() {
+        MetricRegistry registry = new MetricRegistry();
+        for (int i = 1; i <= 6; i++) {
+            registry.counter("scan.file." + i + ".errors").inc(i);
+        }
+        CountingReporter reporter = new CountingReporter(registry,
+                new ReporterOptions().nameNormalizer(NameNormalizer.builder().maxValuesPerSegment(5).build()));
+        reporter.report();
+        assertEquals(21, reporter.counts.get("scan.file.{id}.errors").longValue());
+
+        registry.remove("scan.file.6.errors");
+        registry.counter("scan.file.1.errors").inc();
+        reporter.report();
+        assertEquals(22, reporter.counts.get("scan.file.{id}.errors").longValue());
+
+        // a single member left is still reported under the template, with the counts of the others
+        for (int i = 2; i <= 5; i++) {
+            registry.remove("scan.file." + i + ".errors");
+        }
+        reporter.report();
+        assertEquals(22, reporter.counts.get("scan.file.{id}.errors").longValue());
+        assertFalse(reporter.removed.contains("scan.file.{id}.errors"));
+
+        registry.remove("scan.file.1.errors");
+        reporter.stop();
+        assertTrue(reporter.removed.contains("scan.file.{id}.errors"));
+    }
+
+    private static class CountingReporter extends NewRelicReporter {
+        private final Map<String, Long> counts = new HashMap<String, Long>();
+        private final List<String> removed = new ArrayList<String>();
+
+        private CountingReporter(MetricRegistry registry, ReporterOptions options) {
+            super(registry, "counting-reporter", MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, options);
+        }
+
+        @Override
+        public void report(MetricIndex.Group<Gauge> gauges, MetricIndex.Group<Counter> counters,
+                           MetricIndex.Group<Histogram> histograms, MetricIndex.Group<Meter> meters,
+                           MetricIndex.Group<Timer> timers) {
+            for (int i = 0; i < counters.size(); i++) {
+                counts.put(counters.name(i), counters.metric(i).getCount());
+            }
+        }
+
+        @Override
+        protected void onMetricRemoved(String name) {
+            removed.add(name);
+        }
+    }
+}
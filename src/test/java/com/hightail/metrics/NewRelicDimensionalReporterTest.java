@@ -0,0 +1,344 @@
+package com.hightail.metrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.hightail.metrics.constants.NewRelicConstants;
+import com.hightail.metrics.constants.ReporterType;
+import com.hightail.metrics.dimensional.NewRelicDimensionalReporter;
+import com.hightail.metrics.exceptions.CannotCreateInstanceException;
+import com.hightail.metrics.filter.CompiledMetricFilter;
+import com.hightail.metrics.reporter.NewRelicReporter;
+import com.hightail.metrics.reporter.NewRelicReporterFactory;
+import com.hightail.metrics.rest.MetricsTransport;
+import com.hightail.metrics.rest.NewRelic;
+import com.hightail.metrics.rest.NewRelicHTTPv1Reporter;
+import com.hightail.metrics.sink.TimeSeriesSink;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class NewRelicDimensionalReporterTest {
+
+    private HttpServer server;
+    private final List<JsonObject> payloads = Collections.synchronizedList(new ArrayList<JsonObject>());
+    private final List<String> apiKeys = Collections.synchronizedList(new ArrayList<String>());
+    private volatile int compressedBytes;
+
+    @Before
+    public void startStubEndpoint() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/metric/v1", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = readFully(exchange.getRequestBody());
+                compressedBytes += body.length;
+                apiKeys.add(exchange.getRequestHeaders().getFirst("Api-Key"));
+                assertEquals("gzip", exchange.getRequestHeaders().getFirst("Content-Encoding"));
+
+                InputStreamReader json = new InputStreamReader(
+                        new GZIPInputStream(new ByteArrayInputStream(body)), "UTF-8");
+                payloads.add(new JsonParser().parse(json).getAsJsonArray().get(0).getAsJsonObject());
+                exchange.sendResponseHeaders(202, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopStubEndpoint() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testSendsGaugesCountsAndSummaries() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("jobs.done").inc(5);
+        registry.meter("requests").mark(3);
+        Timer latency = registry.timer("api.latency");
+        latency.update(100, TimeUnit.MILLISECONDS);
+        latency.update(300, TimeUnit.MILLISECONDS);
+        registry.histogram("batch.size").update(12);
+        registry.register("queue.depth", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return 4;
+            }
+        });
+
+        NewRelicDimensionalReporter reporter = NewRelicDimensionalReporter.forRegistry(registry)
+                .prefixedWith("Custom/billing")
+                .commonAttribute("environment", "test")
+                .percentiles(0.99)
+                .build(newRelic());
+        reporter.report();
+
+        assertEquals(1, payloads.size());
+        assertEquals("license", apiKeys.get(0));
+        JsonObject common = payloads.get(0).getAsJsonObject("common");
+        assertNotNull(common.get("timestamp"));
+        JsonObject attributes = common.getAsJsonObject("attributes");
+        assertEquals("billing-service", attributes.get("service.name").getAsString());
+        assertEquals("Custom/billing", attributes.get("prefix").getAsString());
+        assertEquals("test", attributes.get("environment").getAsString());
+        assertNotNull(attributes.get("host.name"));
+
+        assertEquals(4, metric("queue.depth", "gauge").get("value").getAsDouble(), 0.0);
+        assertEquals(5, metric("jobs.done", "gauge").get("value").getAsDouble(), 0.0);
+        JsonObject p99 = metric("api.latency.percentiles", "gauge");
+        assertEquals(99.0, p99.getAsJsonObject("attributes").get("percentile").getAsDouble(), 0.0);
+        assertEquals(300, p99.get("value").getAsDouble(), 0.001);
+
+        // the first report only takes the baseline of what was counted before the reporter started
+        assertTrue(find("requests", "count") == null);
+        assertTrue(find("api.latency", "summary") == null);
+        assertTrue(find("batch.size", "summary") == null);
+
+        // counts and summaries carry what happened since the previous report, and start where it was made
+        long previousReport = common.get("timestamp").getAsLong();
+        payloads.clear();
+        registry.counter("jobs.done").dec(2);
+        registry.meter("requests").mark(3);
+        latency.update(100, TimeUnit.MILLISECONDS);
+        latency.update(300, TimeUnit.MILLISECONDS);
+        registry.histogram("batch.size").update(12);
+        reporter.report();
+
+        // a counter can go down, so it is sent as it stands
+        assertEquals(3, metric("jobs.done", "gauge").get("value").getAsDouble(), 0.0);
+        JsonObject requests = metric("requests", "count");
+        assertEquals(3, requests.get("value").getAsLong());
+        assertEquals(previousReport, requests.get("timestamp").getAsLong());
+        assertEquals(payloads.get(0).getAsJsonObject("common").get("timestamp").getAsLong() - previousReport,
+                requests.get("interval.ms").getAsLong(), 1);
+
+        JsonObject summaryMetric = metric("api.latency", "summary");
+        assertTrue(summaryMetric.getAsJsonObject("attributes").get("summary.approximate").getAsBoolean());
+        JsonObject summary = summaryMetric.getAsJsonObject("value");
+        assertEquals(2, summary.get("count").getAsLong());
+        assertEquals(400, summary.get("sum").getAsDouble(), 0.001);
+        assertEquals(100, summary.get("min").getAsDouble(), 0.001);
+        assertEquals(300, summary.get("max").getAsDouble(), 0.001);
+        assertEquals(1, metric("batch.size", "summary").getAsJsonObject("value").get("count").getAsLong());
+
+        payloads.clear();
+        registry.counter("jobs.done").dec(4);
+        reporter.report();
+        assertEquals(-1, metric("jobs.done", "gauge").get("value").getAsDouble(), 0.0);
+        assertEquals(0, metric("requests", "count").get("value").getAsLong());
+        assertTrue(find("api.latency", "summary") == null);
+        reporter.stop();
+    }
+
+    @Test
+    public void testThrowingGaugeDoesNotAbortThePayload() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.register("broken", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                throw new IllegalStateException("connection pool closed");
+            }
+        });
+        registry.counter("jobs.done").inc();
+
+        NewRelicDimensionalReporter reporter = NewRelicDimensionalReporter.forRegistry(registry).build(newRelic());
+        reporter.report();
+        reporter.stop();
+
+        assertTrue(find("broken", "gauge") == null);
+        assertEquals(1, metric("jobs.done", "gauge").get("value").getAsDouble(), 0.0);
+    }
+
+    @Test
+    public void testUsesFewerSeriesAndBytesThanHttpV1() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        for (int i = 0; i < 200; i++) {
+            Timer timer = registry.timer("service.endpoint" + i + ".latency");
+            timer.update(i, TimeUnit.MILLISECONDS);
+        }
+
+        final int[] httpBytes = new int[1];
+        final int[] httpSeries = new int[1];
+        NewRelicHTTPv1Reporter httpReporter = NewRelicHTTPv1Reporter.forRegistry(registry)
+                .prefixedWith("Custom/billing")
+                .withTransport(new MetricsTransport() {
+                    @Override
+                    public void send(NewRelic newRelic, byte[] payload, int length) {
+                        httpBytes[0] += length;
+                        String json = new String(payload, 0, length);
+                        httpSeries[0] += new JsonParser().parse(json).getAsJsonObject().getAsJsonArray("components")
+                                .get(0).getAsJsonObject().getAsJsonObject("metrics").entrySet().size();
+                    }
+                })
+                .build(newRelic());
+        httpReporter.report();
+        httpReporter.stop();
+
+        // the first report takes the baseline, the second one sends what was recorded since
+        NewRelicDimensionalReporter reporter = NewRelicDimensionalReporter.forRegistry(registry).build(newRelic());
+        reporter.report();
+        for (int i = 0; i < 200; i++) {
+            registry.timer("service.endpoint" + i + ".latency").update(i, TimeUnit.MILLISECONDS);
+        }
+        payloads.clear();
+        compressedBytes = 0;
+        reporter.report();
+        reporter.stop();
+
+        int series = 0;
+        for (JsonObject payload : payloads) {
+            series += payload.getAsJsonArray("metrics").size();
+        }
+        assertEquals(200, series);
+        assertEquals(200 * 15, httpSeries[0]);
+        assertTrue(compressedBytes + " bytes vs " + httpBytes[0], compressedBytes * 10 < httpBytes[0]);
+    }
+
+    @Test
+    public void testFactoryBuildsDimensionalReporter() throws Exception {
+        Properties properties = new Properties();
+        properties.put(NewRelicConstants.METRIC_REGISTRY, new MetricRegistry());
+        properties.put(NewRelicConstants.LICENSE_KEY, "license");
+        properties.put(NewRelicConstants.SERVICE_NAME, "billing-service");
+        properties.put(NewRelicConstants.METRIC_API_URL, newRelic().getEndpointURI());
+        properties.put(NewRelicConstants.PERCENTILES, "0.5, 0.99");
+
+        NewRelicReporter reporter = NewRelicReporterFactory.getNewRelicReporter(ReporterType.DIMENSIONAL, properties);
+        assertTrue(reporter instanceof NewRelicDimensionalReporter);
+        reporter.stop();
+    }
+
+    @Test
+    public void testFactoryKeepsRegexesWhole() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("api.vv.calls").inc();
+        registry.counter("api.vvvv.calls").inc();
+        registry.counter("scan.files").inc();
+        registry.counter("other.files").inc();
+
+        Properties properties = new Properties();
+        properties.put(NewRelicConstants.METRIC_REGISTRY, registry);
+        properties.put(NewRelicConstants.LICENSE_KEY, "license");
+        properties.put(NewRelicConstants.SERVICE_NAME, "billing-service");
+        properties.put(NewRelicConstants.METRIC_API_URL, newRelic().getEndpointURI());
+        properties.put(NewRelicConstants.METRIC_INCLUDE_REGEXES, "api\\.v{1,3}\\..*\nscan\\..*");
+
+        NewRelicReporter reporter = NewRelicReporterFactory.getNewRelicReporter(ReporterType.DIMENSIONAL, properties);
+        reporter.report();
+        reporter.stop();
+
+        assertNotNull(find("api.vv.calls", "gauge"));
+        assertNotNull(find("scan.files", "gauge"));
+        assertTrue(find("api.vvvv.calls", "gauge") == null);
+        assertTrue(find("other.files", "gauge") == null);
+    }
+
+    @Test(expected = CannotCreateInstanceException.class)
+    public void testFactoryRejectsTimeSeriesSink() throws Exception {
+        Properties properties = new Properties();
+        properties.put(NewRelicConstants.METRIC_REGISTRY, new MetricRegistry());
+        properties.put(NewRelicConstants.LICENSE_KEY, "license");
+        properties.put(NewRelicConstants.TIME_SERIES_SINK, new TimeSeriesSink(2, 1024));
+        NewRelicReporterFactory.getNewRelicReporter(ReporterType.DIMENSIONAL, properties);
+    }
+
+    @Test
+    public void testFactoryFiltersLeaveTheRegistryWhenStopped() throws Exception {
+        final List<MetricRegistryListener> listeners = new ArrayList<MetricRegistryListener>();
+        MetricRegistry registry = new MetricRegistry() {
+            @Override
+            public void addListener(MetricRegistryListener listener) {
+                listeners.add(listener);
+                super.addListener(listener);
+            }
+
+            @Override
+            public void removeListener(MetricRegistryListener listener) {
+                listeners.remove(listener);
+                super.removeListener(listener);
+            }
+        };
+
+        Properties properties = new Properties();
+        properties.put(NewRelicConstants.METRIC_REGISTRY, registry);
+        properties.put(NewRelicConstants.LICENSE_KEY, "license");
+        properties.put(NewRelicConstants.METRIC_API_URL, newRelic().getEndpointURI());
+        properties.put(NewRelicConstants.METRIC_INCLUDE_GLOBS, "api.*");
+        properties.put(NewRelicConstants.REPORTING_TIERS, "slo");
+        properties.put(NewRelicConstants.REPORTING_TIER_PREFIX + "slo." + NewRelicConstants.INTERVAL_SECONDS, "10");
+        properties.put(NewRelicConstants.REPORTING_TIER_PREFIX + "slo." + NewRelicConstants.METRIC_INCLUDE_GLOBS,
+                "api.requests.*");
+
+        NewRelicReporter reporter = NewRelicReporterFactory.getNewRelicReporter(ReporterType.DIMENSIONAL, properties);
+        int compiledFilters = 0;
+        for (MetricRegistryListener listener : listeners) {
+            if (listener instanceof CompiledMetricFilter) {
+                compiledFilters++;
+            }
+        }
+        assertEquals(2, compiledFilters);
+
+        reporter.stop();
+        assertTrue(listeners.toString(), listeners.isEmpty());
+    }
+
+    private NewRelic newRelic() {
+        return new NewRelic("http://127.0.0.1:" + server.getAddress().getPort() + "/metric/v1", "license",
+                "billing-service", "com.hightail.billing");
+    }
+
+    private JsonObject metric(String name, String type) {
+        JsonObject metric = find(name, type);
+        assertNotNull("no " + type + " " + name + " in " + payloads, metric);
+        return metric;
+    }
+
+    private JsonObject find(String name, String type) {
+        for (JsonObject payload : payloads) {
+            JsonArray metrics = payload.getAsJsonArray("metrics");
+            for (JsonElement element : metrics) {
+                JsonObject metric = element.getAsJsonObject();
+                if (name.equals(metric.get("name").getAsString()) && type.equals(metric.get("type").getAsString())) {
+                    return metric;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        for (int read = in.read(chunk); read != -1; read = in.read(chunk)) {
+            out.write(chunk, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
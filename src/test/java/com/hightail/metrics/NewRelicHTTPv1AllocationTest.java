@@ -0,0 +1,115 @@
+package com.hightail.metrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.hightail.metrics.rest.MetricsTransport;
+import com.hightail.metrics.rest.NewRelic;
+import com.hightail.metrics.rest.NewRelicHTTPv1Reporter;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Guards the steady-state allocation rate of a full HTTPv1 reporting tick, from the metric index through encoding.
+ * Snapshot-based metrics are left out because the Codahale reservoirs allocate when taking a snapshot; everything
+ * else should be collected and encoded without allocating.
+ */
+public class NewRelicHTTPv1AllocationTest {
+
+    private static final int METRICS_PER_TYPE = 500;
+    private static final int WARMUP_TICKS = 200;
+    private static final int MEASURED_TICKS = 200;
+    private static final double MAX_BYTES_PER_METRIC_PER_TICK = 2.0;
+
+    @Test
+    public void testSteadyStateEncodingDoesNotAllocate() throws Exception {
+        com.sun.management.ThreadMXBean threadMXBean = threadMXBean();
+        Assume.assumeTrue(threadMXBean != null && threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        MetricRegistry registry = new MetricRegistry();
+        final Integer gaugeValue = 42;
+        for (int i = 0; i < METRICS_PER_TYPE; i++) {
+            registry.counter("counter." + i).inc(i);
+            registry.meter("meter." + i).mark(i);
+            registry.register("gauge." + i, new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return gaugeValue;
+                }
+            });
+        }
+
+        CapturingTransport transport = new CapturingTransport();
+        NewRelicHTTPv1Reporter reporter = NewRelicHTTPv1Reporter.forRegistry(registry)
+                .prefixedWith("CustomHTTPMetrics/allocation-test")
+                .withTransport(transport)
+                .build(new NewRelic("http://localhost/unused", "license", "component", "com.hightail.test"));
+
+        for (int i = 0; i < WARMUP_TICKS; i++) {
+            reporter.report();
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_TICKS; i++) {
+            reporter.report();
+        }
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+        int metricsPerTick = METRICS_PER_TYPE * 3;
+        double bytesPerMetricPerTick = (double) allocated / metricsPerTick / MEASURED_TICKS;
+        assertTrue("Encoding allocated " + bytesPerMetricPerTick + " bytes per metric per tick",
+                bytesPerMetricPerTick <= MAX_BYTES_PER_METRIC_PER_TICK);
+
+        transport.capture = true;
+        reporter.report();
+
+        JsonObject metrics = new JsonObject();
+        for (String payload : transport.captured) {
+            JsonObject component = new JsonParser().parse(payload).getAsJsonObject()
+                    .getAsJsonArray("components").get(0).getAsJsonObject();
+            for (Map.Entry<String, JsonElement> metric : component.getAsJsonObject("metrics").entrySet()) {
+                metrics.add(metric.getKey(), metric.getValue());
+            }
+        }
+
+        // 1 gauge + 1 counter + 5 meter values per registered name
+        assertEquals(METRICS_PER_TYPE * 7, metrics.entrySet().size());
+        assertEquals(42, metrics.get("CustomHTTPMetrics/allocation-test/gauge.7/gauge").getAsInt());
+        assertEquals(7, metrics.get("CustomHTTPMetrics/allocation-test/counter.7/count").getAsLong());
+        assertEquals(7, metrics.get("CustomHTTPMetrics/allocation-test/meter.7/count").getAsLong());
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        return (threadMXBean instanceof com.sun.management.ThreadMXBean)
+                ? (com.sun.management.ThreadMXBean) threadMXBean : null;
+    }
+
+    /**
+     * Keeps the payloads only once capturing is switched on, so the measured ticks do not allocate on its behalf.
+     */
+    private static class CapturingTransport implements MetricsTransport {
+        private final List<String> captured = new ArrayList<String>();
+        private boolean capture;
+
+        @Override
+        public void send(NewRelic newRelic, byte[] payload, int length) throws IOException {
+            if (capture) {
+                captured.add(new String(payload, 0, length, "UTF-8"));
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.hightail.metrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.hightail.metrics.reporter.ReporterEvents;
+import com.hightail.metrics.rest.MetricsTransport;
+import com.hightail.metrics.rest.NewRelic;
+import com.hightail.metrics.rest.NewRelicHTTPv1Reporter;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReporterEventsTest {
+
+    @Test
+    public void testDisabledByDefault() {
+        ReporterEvents events = ReporterEvents.forReporter("test", false);
+        assertFalse(events.isEnabled());
+        assertNull(events.beginCycle());
+        assertNull(events.beginDelivery());
+        events.endDelivery(null, "http://localhost", 10, null);
+    }
+
+    @Test
+    public void testRecordsCycleCollectionEncodingDeliveryAndSlowGauges() throws Exception {
+        Assume.assumeTrue(ReporterEvents.isFlightRecorderSupported());
+
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("jobs.done").inc();
+        registry.timer("api.latency").update(5, TimeUnit.MILLISECONDS);
+        registry.register("slow.gauge", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException iex) {
+                    Thread.currentThread().interrupt();
+                }
+                return 1;
+            }
+        });
+
+        NewRelicHTTPv1Reporter reporter = NewRelicHTTPv1Reporter.forRegistry(registry)
+                .recordFlightEvents(true)
+                .withTransport(new MetricsTransport() {
+                    @Override
+                    public void send(NewRelic newRelic, byte[] payload, int length) throws IOException {
+                        throw new IOException("endpoint down");
+                    }
+                })
+                .build(new NewRelic("http://localhost/unused", "license", "component", "com.hightail.test"));
+
+        List<Object> events = record(reporter);
+        reporter.stop();
+
+        assertEquals(1, named(events, ReporterEvents.CYCLE).size());
+        assertEquals(3, (Integer) value(named(events, ReporterEvents.CYCLE).get(0), "metrics"), 0);
+        assertEquals(5, named(events, ReporterEvents.COLLECTION).size());
+        assertEquals(1, named(events, ReporterEvents.ENCODING).size());
+
+        Object delivery = named(events, ReporterEvents.DELIVERY).get(0);
+        assertFalse((Boolean) value(delivery, "succeeded"));
+        assertTrue(((String) value(delivery, "failure")).contains("endpoint down"));
+        assertEquals(value(named(events, ReporterEvents.ENCODING).get(0), "bytes"), value(delivery, "bytes"));
+        assertEquals("new-relic-http-reporter", value(delivery, "reporter"));
+
+        List<Object> slowGauges = named(events, ReporterEvents.SLOW_GAUGE);
+        assertEquals(1, slowGauges.size());
+        assertEquals("slow.gauge", value(slowGauges.get(0), "gauge"));
+    }
+
+    // runs one report inside a recording of the reporter's events and returns the recorded events
+    private static List<Object> record(NewRelicHTTPv1Reporter reporter) throws Exception {
+        Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+        Object recording = recordingClass.getConstructor().newInstance();
+        for (String name : new String[]{ReporterEvents.CYCLE, ReporterEvents.COLLECTION, ReporterEvents.ENCODING,
+                ReporterEvents.DELIVERY, ReporterEvents.SLOW_GAUGE}) {
+            recordingClass.getMethod("enable", String.class).invoke(recording, name);
+        }
+        recordingClass.getMethod("start").invoke(recording);
+        try {
+            reporter.report();
+        } finally {
+            recordingClass.getMethod("stop").invoke(recording);
+        }
+
+        File file = File.createTempFile("reporter-events", ".jfr");
+        try {
+            recordingClass.getMethod("dump", Class.forName("java.nio.file.Path")).invoke(recording, file.toPath());
+            recordingClass.getMethod("close").invoke(recording);
+            Method readAllEvents = Class.forName("jdk.jfr.consumer.RecordingFile")
+                    .getMethod("readAllEvents", Class.forName("java.nio.file.Path"));
+            @SuppressWarnings("unchecked")
+            List<Object> events = (List<Object>) readAllEvents.invoke(null, file.toPath());
+            return events;
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static List<Object> named(List<Object> events, String name) throws Exception {
+        List<Object> named = new ArrayList<Object>();
+        for (Object event : events) {
+            Object type = event.getClass().getMethod("getEventType").invoke(event);
+            if (name.equals(type.getClass().getMethod("getName").invoke(type))) {
+                named.add(event);
+            }
+        }
+        return named;
+    }
+
+    private static Object value(Object event, String field) throws Exception {
+        return event.getClass().getMethod("getValue", String.class).invoke(event, field);
+    }
+}
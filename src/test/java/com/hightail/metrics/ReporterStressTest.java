@@ -0,0 +1,342 @@
+package com.hightail.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.hightail.metrics.agent.AgentMetricRegistry;
+import com.hightail.metrics.agent.NewRelicAgentReporter;
+import com.hightail.metrics.reporter.MetricIndex;
+import com.hightail.metrics.reporter.ReporterOptions;
+import com.hightail.metrics.rest.MetricsTransport;
+import com.hightail.metrics.rest.NewRelic;
+import com.hightail.metrics.rest.NewRelicHTTPv1Reporter;
+import com.hightail.metrics.sink.TimeSeriesSink;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the reporters while writer threads hammer a few shared timers and keep registering and removing metrics.
+ * Checks that no errors are logged or thrown, that no reporting cycle is lost and that memory does not keep growing,
+ * and prints the reporter's throughput and how much the writers slowed down while it ran.
+ *
+ * The duration and the number of writers can be raised for a soak run:
+ * -Dstress.durationSeconds=600 -Dstress.writers=32
+ */
+public class ReporterStressTest {
+
+    private static final long DURATION_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("stress.durationSeconds", 3));
+    private static final int WRITERS = Integer.getInteger("stress.writers",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private static final long PERIOD_MILLIS = 50;
+
+    // names a writer cycles through, so the registry stays bounded while it churns
+    private static final int CHURN_NAMES = 200;
+    private static final String[] CHURN_SUFFIXES = {".count", ".meter", ".histogram", ".timer"};
+    private static final int HOT_TIMERS = 4;
+    // how long a reporter starved by the writers may take to run the ticks it fell behind on
+    private static final long CATCH_UP_MILLIS = 5000;
+    // allowed heap growth between the middle and the end of the run
+    private static final long MAX_HEAP_GROWTH_BYTES = 32L * 1024 * 1024;
+
+    private final ErrorCollector errors = new ErrorCollector();
+
+    @Before
+    public void collectErrors() {
+        Logger.getRootLogger().addAppender(errors);
+    }
+
+    @After
+    public void stopCollectingErrors() {
+        Logger.getRootLogger().removeAppender(errors);
+    }
+
+    @Test
+    public void testHttpReporterUnderChurn() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        final AtomicLong payloads = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        TimeSeriesSink sink = new TimeSeriesSink(10, 16 * 1024 * 1024);
+
+        final CountingHttpReporter reporter = new CountingHttpReporter(registry,
+                new ReporterOptions().timeSeriesSink(sink), new MetricsTransport() {
+            @Override
+            public void send(NewRelic newRelic, byte[] payload, int length) {
+                payloads.incrementAndGet();
+                bytes.addAndGet(length);
+            }
+        });
+
+        Result result = run(registry, new Startable() {
+            @Override
+            public void start() {
+                reporter.start(PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public void stop() {
+                // stopped once it caught up
+            }
+        }, reporter.cycles);
+
+        awaitEveryCycle(result, reporter.cycles);
+        reporter.stop();
+
+        // every series left in the sink belongs to a metric that is still registered
+        assertTrue("sink holds " + sink.getSeriesCount() + " series",
+                sink.getSeriesCount() <= registry.getMetrics().size() * 15);
+        result.print("HTTPv1", payloads.get() + " payloads, " + bytes.get() / 1024 + " KB");
+    }
+
+    @Test
+    public void testAgentReporterUnderChurn() throws Exception {
+        MetricRegistry registry = new AgentMetricRegistry(true);
+        final NewRelicAgentReporter reporter = NewRelicAgentReporter.forRegistry(registry)
+                .prefixedWith("Custom/stress-test")
+                .build();
+
+        // the agent reporter is final, so its cycles are scheduled at a fixed rate as start() would, and counted here
+        final AtomicLong cycles = new AtomicLong();
+        final ScheduledExecutorService driver = Executors.newSingleThreadScheduledExecutor();
+
+        Result result = run(registry, new Startable() {
+            @Override
+            public void start() {
+                driver.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        reporter.report();
+                        cycles.incrementAndGet();
+                    }
+                }, PERIOD_MILLIS, PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public void stop() {
+                // stopped once it caught up
+            }
+        }, cycles);
+
+        awaitEveryCycle(result, cycles);
+        driver.shutdown();
+        driver.awaitTermination(CATCH_UP_MILLIS, TimeUnit.MILLISECONDS);
+        reporter.stop();
+        result.print("Agent", "");
+    }
+
+    // ticks may be delayed while the writers hog the CPU, but every one of them has to run
+    private static void awaitEveryCycle(Result result, AtomicLong cycles) throws InterruptedException {
+        long expected = result.reportingMillis / PERIOD_MILLIS;
+        long deadline = System.currentTimeMillis() + CATCH_UP_MILLIS;
+        while (cycles.get() < expected - 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(PERIOD_MILLIS);
+        }
+        result.cycles = cycles.get();
+        assertTrue("only " + cycles.get() + " of " + expected + " cycles ran", cycles.get() >= expected - 1);
+    }
+
+    private Result run(MetricRegistry registry, Startable reporter, AtomicLong cycles) throws Exception {
+        Workload workload = new Workload(registry);
+
+        // writers on their own first, warmed up, as the baseline for the reporter's impact
+        workload.start();
+        Thread.sleep(DURATION_MILLIS / 3);
+        workload.takeOps();
+        Thread.sleep(DURATION_MILLIS / 3);
+        long baselineOps = workload.takeOps();
+        long baselineMillis = DURATION_MILLIS / 3;
+
+        reporter.start();
+        long started = System.currentTimeMillis();
+        Thread.sleep(DURATION_MILLIS / 2);
+        long midHeap = usedHeapAfterGc();
+        Thread.sleep(DURATION_MILLIS / 2);
+        long reportingOps = workload.takeOps();
+        long reportingMillis = System.currentTimeMillis() - started;
+        long endHeap = usedHeapAfterGc();
+
+        workload.stop();
+        reporter.stop();
+
+        Result result = new Result();
+        result.cycles = cycles.get();
+        result.reportingMillis = reportingMillis;
+        result.baselineOpsPerSecond = baselineOps * 1000.0 / baselineMillis;
+        result.reportingOpsPerSecond = reportingOps * 1000.0 / reportingMillis;
+        result.heapGrowth = endHeap - midHeap;
+
+        assertEquals("writer failures: " + workload.failures, 0, workload.failures.size());
+        assertEquals("errors logged: " + errors.messages, 0, errors.messages.size());
+        assertTrue("heap grew by " + result.heapGrowth + " bytes", result.heapGrowth <= MAX_HEAP_GROWTH_BYTES);
+        assertTrue("no cycles ran", result.cycles > 0);
+        return result;
+    }
+
+    private static long usedHeapAfterGc() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private interface Startable {
+        void start();
+
+        void stop() throws InterruptedException;
+    }
+
+    private static class Result {
+        private long cycles;
+        private long reportingMillis;
+        private double baselineOpsPerSecond;
+        private double reportingOpsPerSecond;
+        private long heapGrowth;
+
+        void print(String reporter, String details) {
+            System.out.println(String.format(
+                    "%s stress: %d cycles (%.1f/s) %s; writers %.0f ops/s alone, %.0f ops/s while reporting (%.1f%%); heap %+d KB",
+                    reporter, cycles, cycles * 1000.0 / reportingMillis, details, baselineOpsPerSecond,
+                    reportingOpsPerSecond, 100.0 * (reportingOpsPerSecond - baselineOpsPerSecond) / baselineOpsPerSecond,
+                    heapGrowth / 1024));
+        }
+    }
+
+    /**
+     * Writer threads that time shared hot timers and churn a bounded set of names per thread.
+     */
+    private static class Workload {
+        private final MetricRegistry registry;
+        private final List<Thread> threads = new ArrayList<Thread>();
+        private final AtomicLong ops = new AtomicLong();
+        private final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        private volatile boolean running = true;
+
+        Workload(MetricRegistry registry) {
+            this.registry = registry;
+        }
+
+        void start() {
+            for (int w = 0; w < WRITERS; w++) {
+                final int writer = w;
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            write(writer);
+                        } catch (Throwable t) {
+                            failures.add(t);
+                        }
+                    }
+                }, "stress-writer-" + w);
+                threads.add(thread);
+                thread.start();
+            }
+        }
+
+        private void write(int writer) {
+            Random random = new Random(writer);
+            Timer[] hot = new Timer[HOT_TIMERS];
+            for (int i = 0; i < HOT_TIMERS; i++) {
+                hot[i] = registry.timer("hot.timer." + i);
+            }
+
+            long localOps = 0;
+            while (running) {
+                hot[random.nextInt(HOT_TIMERS)].update(random.nextInt(1000), TimeUnit.MICROSECONDS);
+
+                String name = "churn." + writer + "." + random.nextInt(CHURN_NAMES);
+                switch (random.nextInt(6)) {
+                    case 0:
+                        registry.counter(name + ".count").inc();
+                        break;
+                    case 1:
+                        registry.meter(name + ".meter").mark();
+                        break;
+                    case 2:
+                        registry.histogram(name + ".histogram").update(random.nextInt(100));
+                        break;
+                    case 3:
+                        registry.timer(name + ".timer").update(random.nextInt(100), TimeUnit.MILLISECONDS);
+                        break;
+                    default:
+                        registry.remove(name + CHURN_SUFFIXES[random.nextInt(CHURN_SUFFIXES.length)]);
+                        break;
+                }
+
+                if (++localOps % 1000 == 0) {
+                    ops.addAndGet(1000);
+                }
+            }
+        }
+
+        long takeOps() {
+            return ops.getAndSet(0);
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+    }
+
+    private static class CountingHttpReporter extends NewRelicHTTPv1Reporter {
+        private final AtomicLong cycles = new AtomicLong();
+
+        CountingHttpReporter(MetricRegistry registry, ReporterOptions options, MetricsTransport transport) {
+            super(new NewRelic("http://localhost/unused", "license", "component", "com.hightail.test"), registry,
+                    "CustomHTTPMetrics/stress-test", MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS,
+                    options, transport);
+        }
+
+        @Override
+        public void report(MetricIndex.Group<Gauge> gauges, MetricIndex.Group<Counter> counters,
+                           MetricIndex.Group<Histogram> histograms, MetricIndex.Group<Meter> meters,
+                           MetricIndex.Group<Timer> timers) {
+            super.report(gauges, counters, histograms, meters, timers);
+            cycles.incrementAndGet();
+        }
+    }
+
+    private static class ErrorCollector extends AppenderSkeleton {
+        private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        protected void append(LoggingEvent event) {
+            if (event.getLevel().isGreaterOrEqual(Level.ERROR)) {
+                messages.add(event.getLoggerName() + ": " + event.getRenderedMessage());
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean requiresLayout() {
+            return false;
+        }
+    }
+}
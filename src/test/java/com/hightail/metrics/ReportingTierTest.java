@@ -0,0 +1,131 @@
+package com.hightail.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.hightail.metrics.filter.CompiledMetricFilter;
+import com.hightail.metrics.reporter.MetricIndex;
+import com.hightail.metrics.reporter.NewRelicReporter;
+import com.hightail.metrics.reporter.ReporterOptions;
+import com.hightail.metrics.reporter.ReportingTier;
+import com.hightail.metrics.rest.MetricsTransport;
+import com.hightail.metrics.rest.NewRelic;
+import com.hightail.metrics.rest.NewRelicHTTPv1Reporter;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReportingTierTest {
+
+    @Test
+    public void testTiersReportAtTheirOwnPeriod() throws InterruptedException {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("slo.requests");
+        registry.counter("batch.jobs");
+
+        MetricFilter sloFilter = CompiledMetricFilter.builder().includeGlob("slo.*").build();
+        ReporterOptions options = new ReporterOptions()
+                .addTier(new ReportingTier("slo", sloFilter, 50, TimeUnit.MILLISECONDS));
+        CountingReporter reporter = new CountingReporter(registry, options);
+
+        // report() covers every tier in one tick
+        reporter.report();
+        assertEquals(1, reporter.slo.get());
+        assertEquals(1, reporter.batch.get());
+        assertEquals(2, reporter.ticks.get());
+        assertEquals(1, reporter.endedTicks.get());
+
+        reporter.start(400, TimeUnit.MILLISECONDS);
+        Thread.sleep(1000);
+        reporter.stop();
+
+        int slo = reporter.slo.get() - 1;
+        int batch = reporter.batch.get() - 1;
+        assertTrue("batch reported " + batch + " times", batch >= 1 && batch <= 3);
+        assertTrue("slo reported " + slo + " times", slo >= 4 * batch);
+        assertEquals(slo + batch + 2, reporter.ticks.get());
+        assertEquals(0, reporter.mixedTicks.get());
+        // batch is reported on the ticks of the faster slo tier, not on ticks of its own
+        assertEquals(slo + 1, reporter.endedTicks.get());
+    }
+
+    @Test
+    public void testEveryTierDeclaresItsOwnDuration() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("slo.requests").inc();
+        registry.counter("batch.jobs").inc();
+
+        final List<String> requests = new ArrayList<String>();
+        MetricFilter sloFilter = CompiledMetricFilter.builder().includeGlob("slo.*").build();
+        NewRelicHTTPv1Reporter reporter = NewRelicHTTPv1Reporter.forRegistry(registry)
+                .tier(new ReportingTier("slo", sloFilter, 10, TimeUnit.SECONDS))
+                .withTransport(new MetricsTransport() {
+                    @Override
+                    public void send(NewRelic newRelic, byte[] payload, int length) {
+                        requests.add(new String(payload, 0, length));
+                    }
+                })
+                .build(new NewRelic("http://localhost/unused", "license", "scanner", "com.hightail.test"));
+        reporter.start(1, TimeUnit.HOURS);
+        reporter.report();
+        reporter.stop();
+
+        // one request, with a component per tier
+        assertEquals(1, requests.size());
+        JsonArray components = new JsonParser().parse(requests.get(0)).getAsJsonObject().getAsJsonArray("components");
+        assertEquals(2, components.size());
+        JsonObject batch = components.get(0).getAsJsonObject();
+        assertEquals(3600, batch.get("duration").getAsInt());
+        assertTrue(batch.toString(), batch.getAsJsonObject("metrics").has("batch.jobs/count"));
+        JsonObject slo = components.get(1).getAsJsonObject();
+        assertEquals(10, slo.get("duration").getAsInt());
+        assertTrue(slo.toString(), slo.getAsJsonObject("metrics").has("slo.requests/count"));
+        assertFalse(slo.toString(), slo.getAsJsonObject("metrics").has("batch.jobs/count"));
+    }
+
+    private static class CountingReporter extends NewRelicReporter {
+        private final AtomicInteger slo = new AtomicInteger();
+        private final AtomicInteger batch = new AtomicInteger();
+        private final AtomicInteger ticks = new AtomicInteger();
+        private final AtomicInteger mixedTicks = new AtomicInteger();
+        private final AtomicInteger endedTicks = new AtomicInteger();
+
+        private CountingReporter(MetricRegistry registry, ReporterOptions options) {
+            super(registry, "counting-reporter", MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, options);
+        }
+
+        @Override
+        public void report(MetricIndex.Group<Gauge> gauges, MetricIndex.Group<Counter> counters,
+                           MetricIndex.Group<Histogram> histograms, MetricIndex.Group<Meter> meters,
+                           MetricIndex.Group<Timer> timers) {
+            ticks.incrementAndGet();
+            long period = getTickPeriod(TimeUnit.MILLISECONDS);
+            for (int i = 0; i < counters.size(); i++) {
+                boolean isSlo = counters.name(i).startsWith("slo.");
+                (isSlo ? slo : batch).incrementAndGet();
+                if (period != 0 && period != (isSlo ? 50 : 400)) {
+                    mixedTicks.incrementAndGet();
+                }
+            }
+        }
+
+        @Override
+        protected void endTick() {
+            endedTicks.incrementAndGet();
+        }
+    }
+}
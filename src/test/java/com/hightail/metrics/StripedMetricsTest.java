@@ -0,0 +1,166 @@
+package com.hightail.metrics;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.EWMA;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformReservoir;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.hightail.metrics.rest.MetricsTransport;
+import com.hightail.metrics.rest.NewRelic;
+import com.hightail.metrics.rest.NewRelicHTTPv1Reporter;
+import com.hightail.metrics.striped.StripedCounter;
+import com.hightail.metrics.striped.StripedMeter;
+import com.hightail.metrics.striped.StripedMetricRegistry;
+import com.hightail.metrics.striped.StripedTimer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StripedMetricsTest {
+
+    private static final int THREADS = 8;
+    private static final int UPDATES_PER_THREAD = 10;
+
+    @Test
+    public void testMergesEveryThreadAtReadTime() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter();
+        final StripedMeter meter = new StripedMeter();
+        final StripedTimer timer = new StripedTimer(new UniformReservoir(), Clock.defaultClock(), 64);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= UPDATES_PER_THREAD; i++) {
+                        counter.inc(2);
+                        counter.dec();
+                        meter.mark(i);
+                        timer.update(i, TimeUnit.MILLISECONDS);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(THREADS * UPDATES_PER_THREAD, counter.getCount());
+        assertEquals(THREADS * 55, meter.getCount());
+        assertEquals(THREADS * UPDATES_PER_THREAD, timer.getCount());
+
+        // every duration is still in its thread's buffer until the snapshot is read
+        Snapshot snapshot = timer.getSnapshot();
+        assertEquals(THREADS * UPDATES_PER_THREAD, snapshot.size());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1), snapshot.getMin());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(UPDATES_PER_THREAD), snapshot.getMax());
+        assertEquals(THREADS * UPDATES_PER_THREAD, timer.getSnapshot().size());
+    }
+
+    @Test
+    public void testRatesSpreadMarksOverTheTicksThatPassed() {
+        ManualClock clock = new ManualClock();
+        StripedMeter meter = new StripedMeter(clock);
+        EWMA m1Rate = EWMA.oneMinuteEWMA();
+        EWMA m15Rate = EWMA.fifteenMinuteEWMA();
+
+        // a minute at 5 per second, read once at its end
+        meter.mark(300);
+        clock.advance(60);
+        assertEquals(5, meter.getOneMinuteRate(), 1e-9);
+        assertEquals(5, meter.getFifteenMinuteRate(), 1e-9);
+        assertEquals(5, meter.getMeanRate(), 1e-9);
+
+        // then an idle minute, against moving averages fed both minutes tick by tick
+        for (int i = 0; i < 12; i++) {
+            m1Rate.update(25);
+            m1Rate.tick();
+            m15Rate.update(25);
+            m15Rate.tick();
+        }
+        for (int i = 0; i < 12; i++) {
+            m1Rate.tick();
+            m15Rate.tick();
+        }
+        clock.advance(60);
+        assertEquals(m1Rate.getRate(TimeUnit.SECONDS), meter.getOneMinuteRate(), 1e-9);
+        assertEquals(m15Rate.getRate(TimeUnit.SECONDS), meter.getFifteenMinuteRate(), 1e-9);
+        assertEquals(2.5, meter.getMeanRate(), 1e-9);
+    }
+
+    @Test
+    public void testRegistryHandsOutCachedStripedMetrics() {
+        MetricRegistry registry = new StripedMetricRegistry();
+        Timer timer = registry.timer("scan.file");
+        assertTrue(timer instanceof StripedTimer);
+        assertSame(timer, registry.timer("scan.file"));
+        assertTrue(registry.counter("scan.errors") instanceof StripedCounter);
+        assertTrue(registry.meter("scan.bytes") instanceof StripedMeter);
+
+        registry.remove("scan.file");
+        Timer replaced = registry.timer("scan.file");
+        assertNotSame(timer, replaced);
+        assertSame(replaced, registry.getTimers().get("scan.file"));
+
+        try {
+            registry.counter("scan.file");
+            fail("a timer was handed out as a counter");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testReportersReadStripedMetrics() {
+        MetricRegistry registry = new StripedMetricRegistry();
+        Counter counter = registry.counter("scan.errors");
+        counter.inc(4);
+        Timer timer = registry.timer("scan.file");
+        timer.update(3, TimeUnit.MILLISECONDS);
+        timer.update(5, TimeUnit.MILLISECONDS);
+
+        final List<JsonObject> metrics = new ArrayList<JsonObject>();
+        NewRelicHTTPv1Reporter reporter = NewRelicHTTPv1Reporter.forRegistry(registry)
+                .prefixedWith("Component/scanner")
+                .withTransport(new MetricsTransport() {
+                    @Override
+                    public void send(NewRelic newRelic, byte[] payload, int length) {
+                        metrics.add(new JsonParser().parse(new String(payload, 0, length)).getAsJsonObject()
+                                .getAsJsonArray("components").get(0).getAsJsonObject().getAsJsonObject("metrics"));
+                    }
+                })
+                .build(new NewRelic("http://localhost/unused", "license", "scanner", "com.hightail.test"));
+        reporter.report();
+        reporter.stop();
+
+        JsonObject sent = metrics.get(0);
+        assertEquals(4, sent.get("Component/scanner/scan.errors/count").getAsLong());
+        assertEquals(2, sent.get("Component/scanner/scan.file/count").getAsLong());
+        assertEquals(5, sent.get("Component/scanner/scan.file/max/milliseconds").getAsDouble(), 0.001);
+    }
+
+    private static final class ManualClock extends Clock {
+        private long tick;
+
+        void advance(long seconds) {
+            tick += TimeUnit.SECONDS.toNanos(seconds);
+        }
+
+        @Override
+        public long getTick() {
+            return tick;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.hightail.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.hightail.metrics.rest.MetricsTransport;
+import com.hightail.metrics.rest.NewRelic;
+import com.hightail.metrics.rest.NewRelicHTTPv1Reporter;
+import com.hightail.metrics.sink.TimeSeriesHttpServer;
+import com.hightail.metrics.sink.TimeSeriesSink;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeSeriesSinkTest {
+
+    private static final String COUNT = "CustomHTTPMetrics/sink-test/requests/count";
+
+    @Test
+    public void testKeepsTheLastTicksOfReportedValues() throws Exception {
+        TimeSeriesSink sink = new TimeSeriesSink(3, 64 * 1024);
+        MetricRegistry registry = new MetricRegistry();
+        Counter requests = registry.counter("requests");
+        registry.meter("uploads").mark();
+
+        NewRelicHTTPv1Reporter reporter = NewRelicHTTPv1Reporter.forRegistry(registry)
+                .prefixedWith("CustomHTTPMetrics/sink-test")
+                .withTransport(new MetricsTransport() {
+                    @Override
+                    public void send(NewRelic newRelic, byte[] payload, int length) {
+                        // New Relic is unreachable, the sink still has the values
+                    }
+                })
+                .timeSeriesSink(sink)
+                .build(new NewRelic("http://localhost/unused", "license", "component", "com.hightail.test"));
+
+        for (int i = 1; i <= 4; i++) {
+            requests.inc();
+            reporter.report();
+        }
+
+        assertEquals(4, sink.latest(COUNT), 0);
+        assertEquals(6, sink.getSeriesCount());
+
+        // only the last 3 ticks are kept
+        List<TimeSeriesSink.Point> points = sink.range(COUNT, 0, Long.MAX_VALUE);
+        assertEquals(3, points.size());
+        assertEquals(2, points.get(0).getValue(), 0);
+        assertEquals(4, points.get(2).getValue(), 0);
+
+        // removed metrics free their series
+        registry.remove("uploads");
+        requests.inc();
+        reporter.report();
+        assertEquals(1, sink.getSeriesCount());
+        assertEquals(5, sink.latest(COUNT), 0);
+
+        TimeSeriesHttpServer server = new TimeSeriesHttpServer(sink, 0);
+        server.start();
+        try {
+            String base = "http://127.0.0.1:" + server.getPort();
+            JsonObject latest = get(base + "/latest?name=" + URLEncoder.encode(COUNT, "UTF-8"));
+            assertEquals(5, latest.get("value").getAsDouble(), 0);
+
+            JsonArray range = get(base + "/range?name=" + URLEncoder.encode(COUNT, "UTF-8")).getAsJsonArray("points");
+            assertEquals(3, range.size());
+            assertEquals(5, range.get(2).getAsJsonArray().get(1).getAsDouble(), 0);
+
+            JsonArray series = get(base + "/series?prefix=CustomHTTPMetrics/").getAsJsonArray("series");
+            assertEquals(COUNT, series.get(0).getAsString());
+
+            assertEquals(400, status(base + "/latest"));
+            assertEquals(400, status(base + "/range?from=0"));
+            assertEquals(400, status(base + "/range?name=x&from=yesterday"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMemoryBudgetLimitsSeries() {
+        // 2 ticks of 4 byte values in 24 bytes leaves room for 3 series
+        TimeSeriesSink sink = new TimeSeriesSink(2, 24);
+        assertEquals(3, sink.getMaxSeries());
+
+        sink.beginTick(1000);
+        for (int i = 0; i < 5; i++) {
+            sink.record("series." + i, i);
+        }
+        sink.endTick();
+
+        assertEquals(3, sink.getSeriesCount());
+        assertEquals(2, sink.getDroppedSeriesCount());
+        assertTrue(Double.isNaN(sink.latest("series.4")));
+
+        sink.release("series.0");
+        sink.beginTick(2000);
+        sink.record("series.3", 3);
+        sink.endTick();
+        assertEquals(3, sink.latest("series.3"), 0);
+        // series.3 took over the freed slot without inheriting series.0's values
+        assertEquals(1, sink.range("series.3", 0, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void testReleasedHandleNoLongerRecords() {
+        TimeSeriesSink sink = new TimeSeriesSink(2, 8);
+        assertEquals(1, sink.getMaxSeries());
+
+        long stale = sink.slot("series.0");
+        sink.release("series.0");
+        long reclaimed = sink.slot("series.1");
+        assertTrue(stale != reclaimed);
+
+        sink.beginTick(1000);
+        sink.record(reclaimed, 1);
+        // a reporter still holding the released series' handle must not overwrite series.1
+        sink.record(stale, 99);
+        sink.endTick();
+        assertEquals(1, sink.latest("series.1"), 0);
+        assertTrue(Double.isNaN(sink.latest("series.0")));
+    }
+
+    private static int status(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        int status = connection.getResponseCode();
+        connection.disconnect();
+        return status;
+    }
+
+    private static JsonObject get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        assertEquals(200, connection.getResponseCode());
+        InputStreamReader reader = new InputStreamReader(connection.getInputStream(), "UTF-8");
+        try {
+            return new JsonParser().parse(reader).getAsJsonObject();
+        } finally {
+            reader.close();
+        }
+    }
+}